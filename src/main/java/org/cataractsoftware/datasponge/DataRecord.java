@@ -1,6 +1,7 @@
 package org.cataractsoftware.datasponge;
 
 import java.io.Serializable;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
@@ -44,6 +45,15 @@ public class DataRecord implements Serializable {
         return fields.get(name);
     }
 
+    /**
+     * removes every field whose name is not in the collection passed in
+     *
+     * @param names
+     */
+    public void retainFields(Collection<String> names) {
+        fields.keySet().retainAll(names);
+    }
+
     public int getFieldCount() {
         return fields.size();
     }
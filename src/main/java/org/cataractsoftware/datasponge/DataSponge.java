@@ -208,6 +208,14 @@ public class DataSponge {
         return template;
     }
 
+    @Bean
+    public JmsTemplate dedupTopicTemplate() {
+        JmsTemplate template = new JmsTemplate(connectionFactory());
+        template.setDefaultDestinationName("datasponge.dedup.topic");
+        template.setPubSubDomain(true);
+        return template;
+    }
+
     @Bean
         // this is here to bypass errors with auto-configuration since we have
         // multiple JMS templates
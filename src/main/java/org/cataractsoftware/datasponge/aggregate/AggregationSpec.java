@@ -0,0 +1,201 @@
+package org.cataractsoftware.datasponge.aggregate;
+
+import org.cataractsoftware.datasponge.DataRecord;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * describes a group-by aggregation: the fields records are grouped by and the aggregate columns computed for each
+ * group. It is built from the following plugin properties (shared by the CombiningEnhancer and AggregatingDataWriter):
+ * <p/>
+ * aggregate.groupBy = semicolon-delimited list of fields to group by (if omitted, all records form one group)
+ * aggregate.functions = semicolon-delimited list of aggregates; each is count, count:field, sum:field, min:field,
+ * max:field or distinct:field (approximate distinct count). Defaults to count.
+ * aggregate.hllPrecision = precision of the sketches used for distinct counts (defaults to 12)
+ * <p/>
+ * Each aggregate is written to a field named after the function and field (i.e. sum:matches becomes sum_matches and
+ * count becomes count).
+ * <p/>
+ * Partial aggregates (the combinable state of a group) are carried in DataRecords of type aggregate.partial whose
+ * identifier is the group key. They hold the group-by fields plus one field per aggregate; distinct counts are carried
+ * as serialized HyperLogLog sketches so partials from different nodes can be merged.
+ *
+ * @author Christopher Fagiani
+ */
+public class AggregationSpec {
+
+    public static final String GROUP_BY = "aggregate.groupBy";
+    public static final String FUNCTIONS = "aggregate.functions";
+    public static final String PRECISION = "aggregate.hllPrecision";
+    public static final String PARTIAL_TYPE = "aggregate.partial";
+    public static final String KEY_SEPARATOR = "|";
+
+    private final List<String> groupBy;
+    private final List<Column> columns;
+    private final int precision;
+
+    public AggregationSpec(List<String> groupBy, List<Column> columns, int precision) {
+        this.groupBy = Collections.unmodifiableList(new ArrayList<String>(groupBy));
+        this.columns = Collections.unmodifiableList(new ArrayList<Column>(columns));
+        this.precision = precision;
+    }
+
+    /**
+     * builds a spec from the plugin properties
+     *
+     * @param props
+     * @return
+     */
+    public static AggregationSpec fromProperties(Properties props) {
+        List<String> groupBy = new ArrayList<String>();
+        List<Column> columns = new ArrayList<Column>();
+        String groupProp = props != null ? props.getProperty(GROUP_BY) : null;
+        if (groupProp != null) {
+            for (String field : groupProp.split(";")) {
+                if (!field.trim().isEmpty()) {
+                    groupBy.add(field.trim());
+                }
+            }
+        }
+        String functionProp = props != null ? props.getProperty(FUNCTIONS, "count") : "count";
+        for (String function : functionProp.split(";")) {
+            if (!function.trim().isEmpty()) {
+                columns.add(Column.parse(function.trim()));
+            }
+        }
+        if (columns.isEmpty()) {
+            throw new IllegalStateException(FUNCTIONS + " must list at least one aggregate");
+        }
+        int precision = props != null ? Integer.parseInt(props.getProperty(PRECISION, "" + HyperLogLog.DEFAULT_PRECISION))
+                : HyperLogLog.DEFAULT_PRECISION;
+        return new AggregationSpec(groupBy, columns, precision);
+    }
+
+    /**
+     * returns the key of the group the record belongs to. Works for both raw records and partials.
+     *
+     * @param record
+     * @return
+     */
+    public String groupKey(DataRecord record) {
+        if (groupBy.size() == 1) {
+            Object val = record.getFieldValue(groupBy.get(0));
+            return val != null ? val.toString() : "";
+        }
+        StringBuilder key = new StringBuilder();
+        for (int i = 0; i < groupBy.size(); i++) {
+            if (i > 0) {
+                key.append(KEY_SEPARATOR);
+            }
+            Object val = record.getFieldValue(groupBy.get(i));
+            if (val != null) {
+                key.append(val);
+            }
+        }
+        return key.toString();
+    }
+
+    public boolean isPartial(DataRecord record) {
+        return PARTIAL_TYPE.equals(record.getType());
+    }
+
+    /**
+     * projects a raw record into a partial aggregate for its group holding only that record
+     *
+     * @param record
+     * @return
+     */
+    public DataRecord toPartial(DataRecord record) {
+        DataRecord partial = new DataRecord(groupKey(record), PARTIAL_TYPE);
+        for (String field : groupBy) {
+            partial.setField(field, record.getFieldValue(field));
+        }
+        for (Column column : columns) {
+            Object val = column.field != null ? record.getFieldValue(column.field) : null;
+            switch (column.function) {
+                case COUNT:
+                    partial.setField(column.name, column.field == null || val != null ? 1L : 0L);
+                    break;
+                case SUM:
+                    partial.setField(column.name, GroupAggregate.toNumber(val));
+                    break;
+                case DISTINCT:
+                    // avoids allocating a full sketch for every record
+                    partial.setField(column.name, HyperLogLog.singleton(val, precision));
+                    break;
+                default:
+                    partial.setField(column.name, val);
+                    break;
+            }
+        }
+        return partial;
+    }
+
+    public List<String> getGroupBy() {
+        return groupBy;
+    }
+
+    public List<Column> getColumns() {
+        return columns;
+    }
+
+    public int getPrecision() {
+        return precision;
+    }
+
+    public enum Function {
+        COUNT, SUM, MIN, MAX, DISTINCT
+    }
+
+    /**
+     * a single aggregate computed for every group
+     */
+    public static class Column {
+        private final Function function;
+        private final String field;
+        private final String name;
+
+        public Column(Function function, String field) {
+            this.function = function;
+            this.field = field;
+            this.name = field != null ? function.name().toLowerCase() + "_" + field : function.name().toLowerCase();
+        }
+
+        /**
+         * parses function or function:field
+         *
+         * @param spec
+         * @return
+         */
+        public static Column parse(String spec) {
+            int sep = spec.indexOf(':');
+            String functionName = sep >= 0 ? spec.substring(0, sep).trim() : spec;
+            String field = sep >= 0 ? spec.substring(sep + 1).trim() : null;
+            Function function;
+            try {
+                function = Function.valueOf(functionName.toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalStateException("Unknown aggregate function " + functionName + " in " + FUNCTIONS);
+            }
+            if (function != Function.COUNT && (field == null || field.isEmpty())) {
+                throw new IllegalStateException("Aggregate " + functionName + " requires a field (i.e. " + functionName + ":field)");
+            }
+            return new Column(function, field != null && !field.isEmpty() ? field : null);
+        }
+
+        public Function getFunction() {
+            return function;
+        }
+
+        public String getField() {
+            return field;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package org.cataractsoftware.datasponge.aggregate;
+
+import org.cataractsoftware.datasponge.DataRecord;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * the running aggregates for one group. Raw records are folded in with add and partial aggregates (from the
+ * CombiningEnhancer or another node) with merge; both can be mixed freely since every aggregate is associative.
+ * Instances are not thread-safe.
+ *
+ * @author Christopher Fagiani
+ */
+public class GroupAggregate {
+
+    private final AggregationSpec spec;
+    private final Map<String, Object> groupValues = new LinkedHashMap<String, Object>();
+    private final Object[] values;
+
+    /**
+     * @param spec
+     * @param first any record of the group (raw or partial) from which the group-by values are copied
+     */
+    public GroupAggregate(AggregationSpec spec, DataRecord first) {
+        this.spec = spec;
+        for (String field : spec.getGroupBy()) {
+            groupValues.put(field, first.getFieldValue(field));
+        }
+        this.values = new Object[spec.getColumns().size()];
+        List<AggregationSpec.Column> columns = spec.getColumns();
+        for (int i = 0; i < values.length; i++) {
+            if (columns.get(i).getFunction() == AggregationSpec.Function.COUNT) {
+                values[i] = 0L;
+            }
+        }
+    }
+
+    /**
+     * folds a raw record into the aggregates
+     *
+     * @param record
+     */
+    public void add(DataRecord record) {
+        List<AggregationSpec.Column> columns = spec.getColumns();
+        for (int i = 0; i < values.length; i++) {
+            AggregationSpec.Column column = columns.get(i);
+            Object val = column.getField() != null ? record.getFieldValue(column.getField()) : null;
+            switch (column.getFunction()) {
+                case COUNT:
+                    if (column.getField() == null || val != null) {
+                        values[i] = (Long) values[i] + 1;
+                    }
+                    break;
+                case DISTINCT:
+                    if (val != null) {
+                        sketch(i).add(val);
+                    }
+                    break;
+                default:
+                    combine(i, column.getFunction(), val);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * folds a partial aggregate record into the aggregates
+     *
+     * @param partial
+     */
+    public void merge(DataRecord partial) {
+        List<AggregationSpec.Column> columns = spec.getColumns();
+        for (int i = 0; i < values.length; i++) {
+            AggregationSpec.Column column = columns.get(i);
+            Object val = partial.getFieldValue(column.getName());
+            if (val == null) {
+                continue;
+            }
+            switch (column.getFunction()) {
+                case COUNT:
+                    values[i] = (Long) values[i] + ((Number) val).longValue();
+                    break;
+                case DISTINCT:
+                    sketch(i).merge(HyperLogLog.fromBytes((byte[]) val));
+                    break;
+                default:
+                    combine(i, column.getFunction(), val);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * returns the combinable state of the group as a partial aggregate record
+     *
+     * @param key
+     * @return
+     */
+    public DataRecord toPartial(String key) {
+        DataRecord record = new DataRecord(key, AggregationSpec.PARTIAL_TYPE);
+        populate(record, true);
+        return record;
+    }
+
+    /**
+     * returns the final aggregates of the group (distinct counts are resolved to their estimates)
+     *
+     * @param key
+     * @param type type of the output record
+     * @return
+     */
+    public DataRecord toResult(String key, String type) {
+        DataRecord record = new DataRecord(key, type);
+        populate(record, false);
+        return record;
+    }
+
+    private void populate(DataRecord record, boolean partial) {
+        for (Map.Entry<String, Object> groupValue : groupValues.entrySet()) {
+            record.setField(groupValue.getKey(), groupValue.getValue());
+        }
+        List<AggregationSpec.Column> columns = spec.getColumns();
+        for (int i = 0; i < values.length; i++) {
+            Object val = values[i];
+            if (columns.get(i).getFunction() == AggregationSpec.Function.DISTINCT) {
+                HyperLogLog sketch = (HyperLogLog) val;
+                if (partial) {
+                    val = sketch != null ? sketch.toBytes() : null;
+                } else {
+                    val = sketch != null ? sketch.estimate() : 0L;
+                }
+            }
+            record.setField(columns.get(i).getName(), val);
+        }
+    }
+
+    private HyperLogLog sketch(int i) {
+        if (values[i] == null) {
+            values[i] = new HyperLogLog(spec.getPrecision());
+        }
+        return (HyperLogLog) values[i];
+    }
+
+    private void combine(int i, AggregationSpec.Function function, Object val) {
+        if (val == null) {
+            return;
+        }
+        Object current = values[i];
+        switch (function) {
+            case SUM:
+                Number num = toNumber(val);
+                if (num != null) {
+                    values[i] = current == null ? num : add((Number) current, num);
+                }
+                break;
+            case MIN:
+                if (current == null || compare(val, current) < 0) {
+                    values[i] = val;
+                }
+                break;
+            case MAX:
+                if (current == null || compare(val, current) > 0) {
+                    values[i] = val;
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * converts a field value to a number for summing; integral values are kept as longs. Returns null for values that
+     * are not numeric.
+     *
+     * @param val
+     * @return
+     */
+    static Number toNumber(Object val) {
+        if (val instanceof Integer || val instanceof Long || val instanceof Short || val instanceof Byte) {
+            return ((Number) val).longValue();
+        } else if (val instanceof Number) {
+            return ((Number) val).doubleValue();
+        } else if (val != null) {
+            String str = val.toString().trim();
+            try {
+                return Long.parseLong(str);
+            } catch (NumberFormatException e) {
+                try {
+                    return Double.parseDouble(str);
+                } catch (NumberFormatException e2) {
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static Number add(Number a, Number b) {
+        if (a instanceof Long && b instanceof Long) {
+            return a.longValue() + b.longValue();
+        }
+        return a.doubleValue() + b.doubleValue();
+    }
+
+    private static int compare(Object a, Object b) {
+        if (a instanceof Number && b instanceof Number) {
+            return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue());
+        }
+        return a.toString().compareTo(b.toString());
+    }
+}
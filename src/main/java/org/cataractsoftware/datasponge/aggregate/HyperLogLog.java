@@ -0,0 +1,231 @@
+package org.cataractsoftware.datasponge.aggregate;
+
+import org.cataractsoftware.datasponge.util.VarInt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * HyperLogLog sketch used to estimate the number of distinct values in a group. Sketches with the same precision can
+ * be merged, so each node can count its own values and the coordinator can combine the results. With the default
+ * precision of 12 the sketch uses 4096 registers (4 KB) and the standard error of the estimate is about 1.6%.
+ * <p/>
+ * Sketches are serialized either densely (one byte per register) or sparsely (only the non-zero registers), whichever
+ * is smaller, so sketches of small groups stay small on the wire.
+ *
+ * @author Christopher Fagiani
+ */
+public class HyperLogLog {
+
+    public static final int DEFAULT_PRECISION = 12;
+
+    private static final byte DENSE = 0;
+    private static final byte SPARSE = 1;
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final int precision;
+    private final byte[] registers;
+
+    public HyperLogLog(int precision) {
+        if (precision < 4 || precision > 16) {
+            throw new IllegalArgumentException("HyperLogLog precision must be between 4 and 16");
+        }
+        this.precision = precision;
+        this.registers = new byte[1 << precision];
+    }
+
+    /**
+     * adds a value (by its string form) to the sketch
+     *
+     * @param value
+     */
+    public void add(Object value) {
+        if (value != null) {
+            addHash(hash(value));
+        }
+    }
+
+    /**
+     * folds the registers of another sketch into this one
+     *
+     * @param other sketch with the same precision
+     */
+    public void merge(HyperLogLog other) {
+        if (other.precision != precision) {
+            throw new IllegalArgumentException("Cannot merge sketches with precision " + other.precision + " and " + precision);
+        }
+        for (int i = 0; i < registers.length; i++) {
+            if (other.registers[i] > registers[i]) {
+                registers[i] = other.registers[i];
+            }
+        }
+    }
+
+    /**
+     * returns the estimated number of distinct values added to the sketch
+     *
+     * @return
+     */
+    public long estimate() {
+        int m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+        for (byte register : registers) {
+            sum += 1.0 / (1L << register);
+            if (register == 0) {
+                zeros++;
+            }
+        }
+        double estimate = alpha(m) * m * m / sum;
+        if (estimate <= 2.5 * m && zeros > 0) {
+            // linear counting is more accurate while many registers are still empty
+            estimate = m * Math.log((double) m / zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    public int getPrecision() {
+        return precision;
+    }
+
+    /**
+     * serializes the sketch
+     *
+     * @return
+     */
+    public byte[] toBytes() {
+        int nonZero = 0;
+        for (byte register : registers) {
+            if (register != 0) {
+                nonZero++;
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(precision);
+        try {
+            // a sparse entry takes at most 4 bytes (3 byte index + rank)
+            if (nonZero * 4 < registers.length) {
+                out.write(SPARSE);
+                VarInt.writeUnsigned(out, nonZero);
+                for (int i = 0; i < registers.length; i++) {
+                    if (registers[i] != 0) {
+                        VarInt.writeUnsigned(out, i);
+                        out.write(registers[i]);
+                    }
+                }
+            } else {
+                out.write(DENSE);
+                out.write(registers);
+            }
+        } catch (IOException e) {
+            // cannot happen when writing to memory
+            throw new IllegalStateException("Could not serialize sketch", e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * reads a sketch written by toBytes
+     *
+     * @param data
+     * @return
+     */
+    public static HyperLogLog fromBytes(byte[] data) {
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(data);
+            HyperLogLog hll = new HyperLogLog(buf.get());
+            if (buf.get() == SPARSE) {
+                long count = VarInt.readUnsigned(buf);
+                for (long i = 0; i < count; i++) {
+                    hll.registers[(int) VarInt.readUnsigned(buf)] = buf.get();
+                }
+            } else {
+                buf.get(hll.registers);
+            }
+            return hll;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Corrupt HyperLogLog sketch", e);
+        }
+    }
+
+    /**
+     * serializes a sketch holding a single value without allocating the registers
+     *
+     * @param value
+     * @param precision
+     * @return
+     */
+    public static byte[] singleton(Object value, int precision) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(8);
+        out.write(precision);
+        out.write(SPARSE);
+        try {
+            if (value == null) {
+                VarInt.writeUnsigned(out, 0);
+            } else {
+                long hash = hash(value);
+                VarInt.writeUnsigned(out, 1);
+                VarInt.writeUnsigned(out, index(hash, precision));
+                out.write(rank(hash, precision));
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not serialize sketch", e);
+        }
+        return out.toByteArray();
+    }
+
+    private void addHash(long hash) {
+        int idx = index(hash, precision);
+        byte rank = rank(hash, precision);
+        if (rank > registers[idx]) {
+            registers[idx] = rank;
+        }
+    }
+
+    private static int index(long hash, int precision) {
+        return (int) (hash >>> (64 - precision));
+    }
+
+    private static byte rank(long hash, int precision) {
+        long remaining = hash << precision;
+        return (byte) Math.min(Long.numberOfLeadingZeros(remaining) + 1, 64 - precision + 1);
+    }
+
+    /**
+     * 64 bit FNV-1a hash of the value's UTF-8 string form, finished with the MurmurHash3 mixer so every bit of the
+     * result is well distributed
+     *
+     * @param value
+     * @return
+     */
+    static long hash(Object value) {
+        long h = FNV_OFFSET;
+        for (byte b : value.toString().getBytes(StandardCharsets.UTF_8)) {
+            h ^= (b & 0xff);
+            h *= FNV_PRIME;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static double alpha(int m) {
+        switch (m) {
+            case 16:
+                return 0.673;
+            case 32:
+                return 0.697;
+            case 64:
+                return 0.709;
+            default:
+                return 0.7213 / (1 + 1.079 / m);
+        }
+    }
+}
@@ -1,12 +1,32 @@
 package org.cataractsoftware.datasponge.api;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.cataractsoftware.datasponge.DataRecord;
 import org.cataractsoftware.datasponge.engine.JobCoordinator;
 import org.cataractsoftware.datasponge.model.Job;
+import org.cataractsoftware.datasponge.writer.RecordStore;
+import org.cataractsoftware.datasponge.writer.RecordStoreRegistry;
+import org.cataractsoftware.datasponge.writer.RecordStream;
+import org.cataractsoftware.datasponge.writer.RecordStreamRegistry;
+import org.cataractsoftware.datasponge.writer.ShardRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Profile;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * RESTful interface for datasponge control plane
@@ -18,9 +38,24 @@ import java.util.List;
 @RequestMapping("/job")
 public class JobController {
 
+    private static final Logger logger = LoggerFactory.getLogger(JobController.class);
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final int MAX_PAGE_SIZE = 1000;
+    private static final int STREAM_BATCH_SIZE = 500;
+    private static final long STREAM_POLL_MILLIS = 15000;
+
     @Autowired
     private JobCoordinator coordinator;
 
+    @Autowired
+    private RecordStoreRegistry recordStoreRegistry;
+
+    @Autowired
+    private RecordStreamRegistry recordStreamRegistry;
+
+    @Autowired
+    private ShardRegistry shardRegistry;
+
     /**
      * returns the status of the job indentified by the id
      *
@@ -66,4 +101,157 @@ public class JobController {
     public List<Job> getAllJobs(@RequestParam(value = "status", required = false)String status){
         return coordinator.getAllJobs(status != null?Job.Status.valueOf(status):null);
     }
+
+    /**
+     * returns the latest record with the identifier from the job's record store (populated by the RecordStoreWriter)
+     *
+     * @param id
+     * @param identifier
+     * @return
+     */
+    @RequestMapping(value = "/{id}/store/{identifier:.+}", method = RequestMethod.GET)
+    public ResponseEntity<Map<String, Object>> getStoredRecord(@PathVariable("id") String id, @PathVariable("identifier") String identifier) {
+        RecordStore store = recordStoreRegistry.getStore(id);
+        DataRecord record = store != null ? store.get(identifier) : null;
+        if (record == null) {
+            return new ResponseEntity<Map<String, Object>>(HttpStatus.NOT_FOUND);
+        }
+        return new ResponseEntity<Map<String, Object>>(toMap(record), HttpStatus.OK);
+    }
+
+    /**
+     * returns a page of records from the job's record store. Pass the nextOffset of the returned page as the offset of
+     * the next request to continue reading. Records have the same {identifier, type, fields} form as on the record
+     * stream.
+     *
+     * @param id
+     * @param offset
+     * @param limit
+     * @return
+     */
+    @RequestMapping(value = "/{id}/store", method = RequestMethod.GET)
+    public ResponseEntity<Map<String, Object>> getStoredRecords(@PathVariable("id") String id,
+                                                                @RequestParam(value = "offset", defaultValue = "0") long offset,
+                                                                @RequestParam(value = "limit", defaultValue = "100") int limit) {
+        RecordStore store = recordStoreRegistry.getStore(id);
+        if (store == null) {
+            return new ResponseEntity<Map<String, Object>>(HttpStatus.NOT_FOUND);
+        }
+        RecordStore.Page page = store.scan(offset, Math.max(1, Math.min(limit, MAX_PAGE_SIZE)));
+        List<Map<String, Object>> records = new ArrayList<Map<String, Object>>(page.getRecords().size());
+        for (DataRecord record : page.getRecords()) {
+            records.add(toMap(record));
+        }
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        result.put("records", records);
+        result.put("nextOffset", page.getNextOffset());
+        return new ResponseEntity<Map<String, Object>>(result, HttpStatus.OK);
+    }
+
+    /**
+     * returns the content of an output shard written on this node by a ShardFileWriter. Only shards that have been
+     * registered for the job are served.
+     *
+     * @param id
+     * @param name
+     * @param response
+     * @throws IOException
+     */
+    @RequestMapping(value = "/{id}/shards/{name:.+}", method = RequestMethod.GET)
+    public void getShard(@PathVariable("id") String id, @PathVariable("name") String name,
+                         HttpServletResponse response) throws IOException {
+        File shard = shardRegistry.getFile(id, name);
+        if (shard == null || !shard.isFile()) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        response.setContentType("application/octet-stream");
+        response.setHeader("Content-Length", Long.toString(shard.length()));
+        Files.copy(shard.toPath(), response.getOutputStream());
+    }
+
+    /**
+     * streams the job's output as Server-Sent Events while the job runs. Records are only available if a writer for
+     * the job on this node has writer.publishStream set. Each record is sent as a "record" event whose id is its
+     * sequence number, so a client that reconnects with Last-Event-ID (or passes from=sequence) resumes where it left
+     * off. A client that falls too far behind is moved forward and sent a "lag" event with the number of records it
+     * missed. An "end" event is sent once the job completes.
+     *
+     * @param id
+     * @param from        sequence number to start from (defaults to only new records)
+     * @param lastEventId set by SSE clients when reconnecting (a value that is not a sequence number gives a 400)
+     * @param response
+     * @throws IOException
+     */
+    @RequestMapping(value = "/{id}/records", method = RequestMethod.GET)
+    public void streamRecords(@PathVariable("id") String id,
+                              @RequestParam(value = "from", required = false) Long from,
+                              @RequestHeader(value = "Last-Event-ID", required = false) String lastEventId,
+                              HttpServletResponse response) throws IOException {
+        Job job = coordinator.getJob(id);
+        if (job == null || job.getStatus() == Job.Status.COMPLETE || job.getStatus() == Job.Status.ABORTED
+                || job.getStatus() == Job.Status.FAILED) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        long sequence = from != null ? from : -1;
+        if (lastEventId != null && !lastEventId.trim().isEmpty()) {
+            try {
+                sequence = Long.parseLong(lastEventId.trim()) + 1;
+            } catch (NumberFormatException e) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Last-Event-ID must be a record sequence number");
+                return;
+            }
+        }
+        RecordStream stream = recordStreamRegistry.getStream(id);
+        response.setContentType("text/event-stream");
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        response.setHeader("Cache-Control", "no-cache");
+        PrintWriter out = response.getWriter();
+        try {
+            if (sequence < 0) {
+                sequence = stream.getNextSequence();
+            }
+            while (true) {
+                RecordStream.Batch batch = stream.read(sequence, STREAM_BATCH_SIZE, STREAM_POLL_MILLIS);
+                if (batch.getMissed() > 0) {
+                    out.write("event: lag\ndata: {\"missed\":" + batch.getMissed() + "}\n\n");
+                }
+                long seq = batch.getFirstSequence();
+                for (DataRecord record : batch.getRecords()) {
+                    out.write("id: " + seq++ + "\nevent: record\ndata: ");
+                    out.write(mapper.writeValueAsString(toMap(record)));
+                    out.write("\n\n");
+                }
+                if (batch.isEndOfStream()) {
+                    out.write("event: end\ndata: \n\n");
+                    out.flush();
+                    return;
+                }
+                if (batch.getRecords().isEmpty() && batch.getMissed() == 0) {
+                    // comment line keeps idle connections (and proxies) from timing out
+                    out.write(": keepalive\n\n");
+                }
+                if (out.checkError()) {
+                    logger.debug("Record stream consumer for job {} disconnected", id);
+                    return;
+                }
+                sequence = batch.getNextSequence();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Map<String, Object> toMap(DataRecord record) {
+        Map<String, Object> fields = new LinkedHashMap<String, Object>();
+        for (Map.Entry<String, Object> field : record.getFields()) {
+            fields.put(field.getKey(), field.getValue());
+        }
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        result.put("identifier", record.getIdentifier());
+        result.put("type", record.getType());
+        result.put("fields", fields);
+        return result;
+    }
 }
@@ -132,7 +132,7 @@ public class
                             Message m = session.createTextMessage(targetUrl);
 
                             m.setStringProperty(SELECTOR_PROP, jobId + "-"
-                                    + (targetUrl.hashCode() % modSize));
+                                    + partitionFor(targetUrl, modSize));
                             return m;
                         } catch (Exception e) {
                             logger.error(
@@ -149,6 +149,18 @@ public class
         }
     }
 
+    /**
+     * returns the id of the node responsible for a key (i.e. a url) in an ensemble of modSize nodes
+     *
+     * @param key
+     * @param modSize
+     * @return
+     */
+    public static int partitionFor(String key, int modSize) {
+        // mask the sign bit; a negative hash would otherwise map to a node id no node has
+        return modSize > 0 ? (key.hashCode() & Integer.MAX_VALUE) % modSize : 0;
+    }
+
     /**
      * utility method for converting a relative url to an absolute url.
      *
@@ -5,11 +5,10 @@ import com.gargoylesoftware.htmlunit.FailingHttpStatusCodeException;
 import com.gargoylesoftware.htmlunit.Page;
 import com.gargoylesoftware.htmlunit.WebClient;
 import org.cataractsoftware.datasponge.DataRecord;
-import org.cataractsoftware.datasponge.enhancer.DataEnhancer;
+import org.cataractsoftware.datasponge.enhancer.EnhancerPipeline;
 import org.cataractsoftware.datasponge.extractor.DataExtractor;
 import org.cataractsoftware.datasponge.extractor.DirectoryExtractor;
 import org.cataractsoftware.datasponge.extractor.HyperlinkExtractor;
-import org.cataractsoftware.datasponge.writer.DataWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -36,29 +35,26 @@ public class SpiderThread implements Runnable {
             .getLogger(SpiderThread.class);
     private CrawlerWorkqueue queue;
     private volatile boolean busy;
-    private DataWriter outputCollector;
     private String proxy;
     private int port;
     private DataExtractor extractor;
     private DataExtractor dirExtractor;
     private DataExtractor linkExtractor;
-    private DataEnhancer[] dataEnhancers;
+    private EnhancerPipeline pipeline;
     private WebClient webClient;
     private WebClient backupWebClient;
 
     /**
-     * creates a new SpiderThread object that will add its output to the
-     * collector object passed in. If proxy is not null, it will use the proxy
+     * creates a new SpiderThread object that will submit its output to the
+     * enhancer pipeline passed in. If proxy is not null, it will use the proxy
      * server in the proxy parameter for all http requests.
      *
-     * @param proxy     proxy host
-     * @param port      proxy port
-     * @param collector initialized DataWriter instance
-     * @param enhancers optional array of data enhancers
+     * @param proxy    proxy host
+     * @param port     proxy port
+     * @param pipeline pipeline that enhances records and adds them to the DataWriter
      */
     public SpiderThread(String proxy, int port, CrawlerWorkqueue workQueue,
-                        DataWriter collector, DataExtractor extractor,
-                        DataEnhancer... enhancers) {
+                        EnhancerPipeline pipeline, DataExtractor extractor) {
         this.proxy = proxy;
         this.port = port;
 
@@ -67,8 +63,7 @@ public class SpiderThread implements Runnable {
         this.dirExtractor = new DirectoryExtractor();
         this.linkExtractor = new HyperlinkExtractor();
         busy = true;
-        outputCollector = collector;
-        dataEnhancers = enhancers;
+        this.pipeline = pipeline;
         webClient = initializeWebClient(false);
         backupWebClient = initializeWebClient(true);
     }
@@ -107,21 +102,7 @@ public class SpiderThread implements Runnable {
                         Collection<DataRecord> drColl = extractor.extractData(
                                 url, page);
                         if (drColl != null) {
-
-                            for (DataRecord dr : drColl) {
-                                if (dataEnhancers != null) {
-                                    for (DataEnhancer enhancer : dataEnhancers) {
-                                        if (enhancer != null) {
-                                            if (dr != null) {
-                                                dr = enhancer.enhanceData(dr);
-                                            }
-                                        }
-                                    }
-                                }
-                                if (dr != null) {
-                                    outputCollector.addItem(dr);
-                                }
-                            }
+                            pipeline.submitAll(drColl);
                         }
                     }
                 } else {
@@ -2,12 +2,19 @@ package org.cataractsoftware.datasponge.engine;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.cataractsoftware.datasponge.DataRecord;
+import org.cataractsoftware.datasponge.enhancer.ClusterDedupService;
 import org.cataractsoftware.datasponge.model.Job;
 import org.cataractsoftware.datasponge.model.JobEnrollment;
 import org.cataractsoftware.datasponge.model.ManagementMessage;
 import org.cataractsoftware.datasponge.util.ComponentFactory;
+import org.cataractsoftware.datasponge.util.DaemonThreadFactory;
 import org.cataractsoftware.datasponge.writer.DataWriter;
 import org.cataractsoftware.datasponge.writer.JmsDataWriter;
+import org.cataractsoftware.datasponge.writer.PartitionedDataWriter;
+import org.cataractsoftware.datasponge.writer.RecordStreamRegistry;
+import org.cataractsoftware.datasponge.writer.ShardFileWriter;
+import org.cataractsoftware.datasponge.writer.ShardMerger;
+import org.cataractsoftware.datasponge.writer.ShardRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -15,16 +22,22 @@ import org.springframework.jms.annotation.JmsListener;
 import org.springframework.jms.core.JmsTemplate;
 import org.springframework.jms.core.MessageCreator;
 import org.springframework.messaging.handler.annotation.Header;
-import org.springframework.messaging.handler.annotation.Payload;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import javax.jms.BytesMessage;
 import javax.jms.JMSException;
 import javax.jms.Message;
+import javax.jms.ObjectMessage;
 import javax.jms.Session;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * This component is responsible for coordination of any jobs. If running in a multi-node setup, there could be multiple coordinators
@@ -50,11 +63,22 @@ public class JobCoordinator {
     @Autowired
     private ComponentFactory componentFactory;
 
+    @Autowired
+    private RecordStreamRegistry recordStreamRegistry;
+
+    @Autowired
+    private ShardRegistry shardRegistry;
+
+    @Autowired
+    private ClusterDedupService clusterDedupService;
+
     private volatile Map<String, Job> jobMap = new HashMap<String, Job>();
     private volatile Map<String, DataWriter> dataWriterMap = new HashMap<String, DataWriter>();
     private volatile Map<String, JobExecutor> jobExecutorMap = new HashMap<String, JobExecutor>();
     private volatile Map<String, List<JobEnrollment>> enrollmentMap = new HashMap<String, List<JobEnrollment>>();
     private Timer jobProgressTimer;
+    private final ExecutorService completionExecutor = Executors.newSingleThreadExecutor(
+            new DaemonThreadFactory("datasponge-job-completion-"));
 
     public JobCoordinator() {
         jobProgressTimer = new Timer();
@@ -110,7 +134,7 @@ public class JobCoordinator {
             j.setGuid(UUID.randomUUID().toString());
             j.setCoordinatorId(ManagementMessageSender.HOST_ID);
             if (j.getCoordinatorDataWriter() != null) {
-                dataWriterMap.put(j.getGuid(), (DataWriter) componentFactory.getNewDataAdapter(j.getGuid(), j.getCoordinatorDataWriter()));
+                dataWriterMap.put(j.getGuid(), componentFactory.getNewCoordinatorWriter(j.getGuid(), j.getCoordinatorDataWriter()));
             }
             MessageCreator messageCreator = new MessageCreator() {
                 @Override
@@ -189,7 +213,7 @@ public class JobCoordinator {
             String jobId = executorEntry.getKey();
             if (executorEntry.getValue().isDone()) {
                 completedJobs.add(jobId);
-                managementMessageSender.sendComplete(jobId);
+                managementMessageSender.sendComplete(jobId, shardRegistry.getLocations(jobId));
             } else {
                 managementMessageSender.sendHeartbeat(jobId);
             }
@@ -197,6 +221,8 @@ public class JobCoordinator {
         if (completedJobs.size() > 0) {
             for (String jobId : completedJobs) {
                 jobExecutorMap.remove(jobId);
+                // other nodes may still be checking fingerprints owned by this one
+                clusterDedupService.release(jobId);
                 logger.info("Removed executor for job " + jobId);
                 Job job = jobMap.get(jobId);
                 if (job != null) {
@@ -210,8 +236,10 @@ public class JobCoordinator {
 
 
     /**
-     * checks if we have recived COMPLETE messages for all enrollments for a job. If so, the job is marked complete.
-     * For jobs with a coordinatorDataWriter configured, the finish method will be called on the writer upon executor completion
+     * checks if we have recived COMPLETE messages for all enrollments for a job. If so, the job is handed to the
+     * completion executor, which calls finish on the coordinatorDataWriter (if one is configured) and then marks the job
+     * complete. If the nodes wrote their output to local shards, the shards are merged into the coordinatorDataWriter
+     * first; since that can take minutes it is done outside of this method's lock.
      */
     protected synchronized void checkGlobalCompletion(){
         List<String> completedJobs = new ArrayList<String>();
@@ -225,18 +253,18 @@ public class JobCoordinator {
                     }
                 }
                 if(allComplete) {
-                    //if we're here, then all nodes have reported completion;
-                    DataWriter writer = dataWriterMap.get(enrollmentEntry.getKey());
-                    if (writer != null) {
-                        writer.finish();
-                        dataWriterMap.remove(enrollmentEntry.getKey());
-                    }
-                    Job job = jobMap.get(enrollmentEntry.getKey());
-                    if (job != null) {
-                        job.setStatus(Job.Status.COMPLETE);
-                    }
+                    //if we're here, then all nodes have reported completion; the writer leaves the map so the periodic flush no longer touches it
+                    final String jobId = enrollmentEntry.getKey();
+                    final List<JobEnrollment> enrollments = enrollmentEntry.getValue();
+                    final DataWriter writer = dataWriterMap.remove(jobId);
+                    completionExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            completeJob(jobId, enrollments, writer);
+                        }
+                    });
                     //can also clean up enrollment map
-                    completedJobs.add(enrollmentEntry.getKey());
+                    completedJobs.add(jobId);
                 }
             }
 
@@ -248,6 +276,79 @@ public class JobCoordinator {
         }
     }
 
+    /**
+     * merges the output shards into the coordinator writer (if any), finishes it and marks the job complete. Afterwards
+     * the nodes are told to delete their shards.
+     * @param jobId
+     * @param enrollments
+     * @param writer
+     */
+    protected void completeJob(String jobId, List<JobEnrollment> enrollments, DataWriter writer){
+        Job.Status status = Job.Status.COMPLETE;
+        try {
+            if (writer != null) {
+                try {
+                    mergeShards(jobId, enrollments, writer);
+                    writer.flushBatch();
+                } finally {
+                    writer.finish();
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // the output is missing records; the job must not look like it succeeded
+            logger.error("Could not produce the output of job " + jobId + "; marking it FAILED", e);
+            status = Job.Status.FAILED;
+        } finally {
+            Job job = jobMap.get(jobId);
+            if (job != null) {
+                job.setStatus(status);
+            }
+            recordStreamRegistry.closeStream(jobId);
+            // the shards are no longer needed whether or not the merge worked
+            managementMessageSender.sendMerged(jobId);
+        }
+    }
+
+
+    /**
+     * streams the output shards reported by every node for the job through a k-way merge into the writer. Every
+     * location is checked before anything is merged: it must be the shard endpoint of the job (and all shards of one
+     * node must come from the same host) or a file in the job's shared shard directory.
+     * @param jobId
+     * @param enrollments
+     * @param writer
+     * @throws IOException if a location is rejected or a shard cannot be read
+     */
+    protected void mergeShards(String jobId, List<JobEnrollment> enrollments, DataWriter writer) throws IOException {
+        String sortField = null;
+        File sharedDirectory = null;
+        Job job = jobMap.get(jobId);
+        if (job != null && job.getDataWriter() != null && job.getDataWriter().getPluginProperties() != null) {
+            Properties props = job.getDataWriter().getPluginProperties();
+            sortField = props.getProperty(ShardFileWriter.SORT_FIELD);
+            String dir = props.getProperty(ShardFileWriter.DIRECTORY);
+            sharedDirectory = dir != null && !dir.trim().isEmpty() ? new File(dir.trim()) : null;
+        }
+        List<String> locations = new ArrayList<String>();
+        for (JobEnrollment e : enrollments) {
+            String origin = null;
+            for (String location : e.getShardLocations()) {
+                URI uri = ShardMerger.checkLocation(location, jobId, sharedDirectory);
+                if (uri.getAuthority() != null) {
+                    String shardOrigin = uri.getScheme().toLowerCase() + "://" + uri.getAuthority().toLowerCase();
+                    if (origin != null && !origin.equals(shardOrigin)) {
+                        throw new IOException("Node " + e.getHostId() + " reported shards on more than one host for job " + jobId);
+                    }
+                    origin = shardOrigin;
+                }
+                locations.add(location);
+            }
+        }
+        if (locations.isEmpty()) {
+            return;
+        }
+        new ShardMerger(sortField).merge(locations, writer);
+    }
 
     /**
      * iterates over all dataWriters and flushes their output
@@ -308,6 +409,9 @@ public class JobCoordinator {
                 case COMPLETE:
                     updateEnrollment(msg,true);
                     break;
+                case MERGED:
+                    shardRegistry.removeJob(msg.getJobId());
+                    break;
                 case NODE_FAILURE:
                     handleFailure(msg.getJobId(),Integer.parseInt(msg.getData().get(ManagementMessageSender.NODE_KEY)));
                     break;
@@ -348,19 +452,22 @@ public class JobCoordinator {
             logger.info("Aborting job "+jobId);
             executor.destroy();
             jobExecutorMap.remove(jobId);
+            clusterDedupService.release(jobId);
         }
         if(dataWriterMap.get(jobId) !=null){
             dataWriterMap.get(jobId).finish();
             dataWriterMap.remove(jobId);
         }
+        shardRegistry.removeJob(jobId);
         Job j = jobMap.get(jobId);
         if(j != null){
             j.setStatus(Job.Status.ABORTED);
         }
+        recordStreamRegistry.closeStream(jobId);
     }
 
     /**
-     * updates the heartbeat timestamp on the enrollment
+     * updates the heartbeat timestamp on the sender's enrollment (or marks it complete and records its output shards)
      * @param msg
      */
     protected void updateEnrollment(ManagementMessage msg, boolean isComplete){
@@ -368,8 +475,12 @@ public class JobCoordinator {
         List<JobEnrollment> enrollments = enrollmentMap.get(jobId);
         if(enrollments != null){
             for(JobEnrollment e: enrollments){
-                if(ManagementMessageSender.HOST_ID.equals(e.getHostId())){
+                if(msg.getSenderHostId() != null && msg.getSenderHostId().equals(e.getHostId())){
                     if(isComplete){
+                        String shards = msg.getData() != null ? msg.getData().get(ManagementMessageSender.SHARDS_KEY) : null;
+                        if (shards != null && !shards.isEmpty()) {
+                            e.setShardLocations(Arrays.asList(shards.split("\n")));
+                        }
                         e.setComplete(true);
                     }else {
                         e.setLastHeartbeat(System.currentTimeMillis());
@@ -403,16 +514,39 @@ public class JobCoordinator {
 
     /**
      * received DataRecords that were sent by the participants in the crawl. This is used in conjunction with coordniatorDataWriter configuration to aggregate all output. This method is only invoked if the job is configured to use
-     * the JMSDataWriter.
+     * the JMSDataWriter. Records arrive in batches as (optionally compressed) BytesMessages encoded with the
+     * DataRecordCodec; ObjectMessages holding a single serialized DataRecord are still accepted.
      *
-     * @param record
+     * @param message
      * @param jobId
      */
     @JmsListener(destination = "datasponge.output.topic", containerFactory = "topicContainerFactory")
-    public void handleOutputMessage(@Payload DataRecord record, @Header(JmsDataWriter.JOB_ID_PROP) String jobId) {
+    public void handleOutputMessage(Message message, @Header(JmsDataWriter.JOB_ID_PROP) String jobId) {
         DataWriter writer = dataWriterMap.get(jobId);
-        if (writer != null) {
-            writer.addItem(record);
+        if (writer == null) {
+            return;
+        }
+        try {
+            if (message instanceof BytesMessage) {
+                BytesMessage bytesMessage = (BytesMessage) message;
+                byte[] data = new byte[(int) bytesMessage.getBodyLength()];
+                bytesMessage.readBytes(data);
+                String compression = message.getStringProperty(JmsDataWriter.COMPRESSION_PROP);
+                if (writer instanceof PartitionedDataWriter) {
+                    // decoding happens on the partitioned writer's own threads so this listener can keep up
+                    ((PartitionedDataWriter) writer).addEncoded(data, compression);
+                } else {
+                    for (DataRecord record : JmsDataWriter.decodeMessage(data, compression)) {
+                        writer.addItem(record);
+                    }
+                }
+            } else if (message instanceof ObjectMessage) {
+                writer.addItem((DataRecord) ((ObjectMessage) message).getObject());
+            } else {
+                logger.warn("Ignoring output message of unexpected type {}", message.getClass().getName());
+            }
+        } catch (JMSException | IOException e) {
+            logger.error("Could not read output message for job " + jobId, e);
         }
     }
 
@@ -465,7 +599,8 @@ public class JobCoordinator {
     public boolean areAllJobsDone() {
         if (jobMap.size() > 0) {
             for (Map.Entry<String, Job> jobEntry : jobMap.entrySet()) {
-                if (Job.Status.COMPLETE != jobEntry.getValue().getStatus() && Job.Status.ABORTED != jobEntry.getValue().getStatus()) {
+                if (Job.Status.COMPLETE != jobEntry.getValue().getStatus() && Job.Status.ABORTED != jobEntry.getValue().getStatus()
+                        && Job.Status.FAILED != jobEntry.getValue().getStatus()) {
                     return false;
                 }
             }
@@ -494,6 +629,7 @@ public class JobCoordinator {
         if (jobProgressTimer != null) {
             jobProgressTimer.cancel();
         }
+        completionExecutor.shutdown();
     }
 
 }
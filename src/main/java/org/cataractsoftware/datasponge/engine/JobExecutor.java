@@ -2,11 +2,15 @@ package org.cataractsoftware.datasponge.engine;
 
 import org.cataractsoftware.datasponge.crawler.CrawlerWorkqueue;
 import org.cataractsoftware.datasponge.crawler.SpiderThread;
+import org.cataractsoftware.datasponge.enhancer.ClusterDedupService;
 import org.cataractsoftware.datasponge.enhancer.DataEnhancer;
+import org.cataractsoftware.datasponge.enhancer.EnhancerPipeline;
+import org.cataractsoftware.datasponge.filter.RecordFilter;
 import org.cataractsoftware.datasponge.extractor.DataExtractor;
 import org.cataractsoftware.datasponge.model.Job;
 import org.cataractsoftware.datasponge.util.ComponentFactory;
 import org.cataractsoftware.datasponge.writer.DataWriter;
+import org.cataractsoftware.datasponge.writer.RecordStreamRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -39,11 +43,19 @@ public class JobExecutor {
     private int maxThreads = DEFAULT_THREADS;
     private long sleepInterval = DEFAULT_SLEEP;
     private long crawlInterval;
+    private int enhancerBatchSize;
+    private long enhancerBatchDelay;
+    private int enhancerParallelism;
+    private RecordFilter recordFilter;
     private Job jobDefinition;
     @Autowired
     private CrawlerWorkqueue workQueue;
     @Autowired
     private ComponentFactory componentFactory;
+    @Autowired
+    private RecordStreamRegistry recordStreamRegistry;
+    @Autowired
+    private ClusterDedupService clusterDedupService;
 
     private volatile boolean done;
 
@@ -75,11 +87,15 @@ public class JobExecutor {
                     DataWriter outputCollector = componentFactory.getNewDataAdapter(jobDefinition.getGuid(), jobDefinition
                             .getDataWriter());
 
-                    DataEnhancer[] enhancers = componentFactory.getNewDataAdapterPipeline(jobDefinition.getGuid(), jobDefinition
+                    List<DataEnhancer> enhancers = componentFactory.getNewDataAdapterPipeline(jobDefinition.getGuid(), jobDefinition
                             .getDataEnhancers());
 
-                    List<SpiderThread> threadList = spawnThreads(maxThreads,
-                            outputCollector, extractor, enhancers);
+                    // allow one outstanding enhancer batch per crawler thread
+                    EnhancerPipeline pipeline = new EnhancerPipeline(enhancers.toArray(new DataEnhancer[enhancers.size()]),
+                            outputCollector, enhancerBatchSize, enhancerBatchDelay, maxThreads, enhancerParallelism);
+                    pipeline.setRecordFilter(recordFilter);
+
+                    List<SpiderThread> threadList = spawnThreads(maxThreads, pipeline, extractor);
 
                     while (areStillWorking(threadList)) {
                         try {
@@ -91,6 +107,9 @@ public class JobExecutor {
                             logger.error("Couldn't write incremental output", e);
                         }
                     }
+                    // write anything added since the last incremental flush before closing the writer
+                    pipeline.close();
+                    outputCollector.flushBatch();
                     outputCollector.finish();
                     logger.info("Crawl iteration took {} seconds",
                             ((System.currentTimeMillis() - iterStartTime) / 1000));
@@ -107,6 +126,10 @@ public class JobExecutor {
                     }
                 }
 
+                if (!ManagementMessageSender.HOST_ID.equals(jobDefinition.getCoordinatorId())) {
+                    // the coordinator closes the stream for its own jobs once every node has finished
+                    recordStreamRegistry.closeStream(jobDefinition.getGuid());
+                }
                 long totalTime = System.currentTimeMillis() - startTime;
                 logger.info("Crawl ran for {} seconds", (totalTime / 1000));
             }
@@ -150,21 +173,19 @@ public class JobExecutor {
     /**
      * create threadCount new SpiderThreads and start them.
      *
-     * @param threadCount     number of threads to spawn
-     * @param outputCollector initialized DataWriter instance that will collect data as it
-     *                        is discovered
-     * @param extractor       initialized DataExtractor instance that will extract data from
-     *                        each page
-     * @param enhancers       optional list of data enhancers
+     * @param threadCount number of threads to spawn
+     * @param pipeline    enhancer pipeline that will enhance data as it is discovered and
+     *                    pass it to the DataWriter
+     * @param extractor   initialized DataExtractor instance that will extract data from
+     *                    each page
      * @return - list of running threads
      */
     private List<SpiderThread> spawnThreads(int threadCount,
-                                            DataWriter outputCollector, DataExtractor extractor,
-                                            DataEnhancer... enhancers) {
+                                            EnhancerPipeline pipeline, DataExtractor extractor) {
         List<SpiderThread> threadList = new ArrayList<SpiderThread>();
         for (int i = 0; i < threadCount; i++) {
             SpiderThread st = new SpiderThread(proxy, port, workQueue,
-                    outputCollector, extractor, enhancers);
+                    pipeline, extractor);
             threadList.add(st);
             Thread t = new Thread(st);
             t.start();
@@ -178,6 +199,7 @@ public class JobExecutor {
      * @return
      */
     public boolean handleNodeFailure(int nodeId){
+        clusterDedupService.handleNodeFailure(jobDefinition.getGuid(), nodeId);
         return workQueue.handleNodeFailure(nodeId);
     }
 
@@ -192,10 +214,16 @@ public class JobExecutor {
         }
         this.jobDefinition = jobDefinition;
         this.crawlInterval = jobDefinition.getContinuousCrawlInterval() != null ? jobDefinition.getContinuousCrawlInterval() : 1000L;
+        this.enhancerBatchSize = jobDefinition.getEnhancerBatchSize() != null ? jobDefinition.getEnhancerBatchSize() : EnhancerPipeline.DEFAULT_BATCH_SIZE;
+        this.enhancerBatchDelay = jobDefinition.getEnhancerBatchDelay() != null ? jobDefinition.getEnhancerBatchDelay() : EnhancerPipeline.DEFAULT_BATCH_DELAY_MILLIS;
+        this.enhancerParallelism = jobDefinition.getEnhancerParallelism() != null ? jobDefinition.getEnhancerParallelism() : 1;
+        // compiled once per job; an invalid expression fails the job here rather than on the first record
+        this.recordFilter = RecordFilter.build(jobDefinition.getRecordFilter(), jobDefinition.getRecordFields());
 
         workQueue.initialize(jobDefinition.getGuid(),
                 jobDefinition.getIgnorePatterns(),
                 jobDefinition.getIncludePatterns(), nodeId, modSize);
+        clusterDedupService.updateMembership(jobDefinition.getGuid(), nodeId, modSize);
         if (doSeed) {
             seedQueue(jobDefinition.getStartUrls());
         }
@@ -13,6 +13,7 @@ import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.Session;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 
@@ -27,6 +28,7 @@ public class ManagementMessageSender {
 
     public static final String NODE_KEY = "nodeId";
     public static final String SIZE_KEY = "modSize";
+    public static final String SHARDS_KEY = "shards";
     public static final String HOST_ID = UUID.randomUUID().toString();
 
 
@@ -90,6 +92,14 @@ public class ManagementMessageSender {
         sendBasicMessage(jobId, ManagementMessage.Type.ABORT);
     }
 
+    /**
+     * sends a MERGED message to tell the nodes the coordinator no longer needs their output shards for the job
+     * @param jobId
+     */
+    public void sendMerged(String jobId){
+        sendBasicMessage(jobId, ManagementMessage.Type.MERGED);
+    }
+
     /**
      * sends heartbeat messages
      */
@@ -105,6 +115,30 @@ public class ManagementMessageSender {
         sendBasicMessage(jobId, ManagementMessage.Type.COMPLETE);
     }
 
+    /**
+     * sends complete message along with the locations of the output shards written on this node
+     * @param jobId
+     * @param shards
+     */
+    public void sendComplete(String jobId, List<String> shards){
+        if (shards == null || shards.isEmpty()) {
+            sendComplete(jobId);
+            return;
+        }
+        ManagementMessage completeMessage = constructMessage(jobId, ManagementMessage.Type.COMPLETE);
+        Map<String, String> data = new HashMap<String, String>();
+        StringBuilder shardList = new StringBuilder();
+        for (String shard : shards) {
+            if (shardList.length() > 0) {
+                shardList.append('\n');
+            }
+            shardList.append(shard);
+        }
+        data.put(SHARDS_KEY, shardList.toString());
+        completeMessage.setData(data);
+        managementTopicTemplate.send(buildMessageCreator(completeMessage));
+    }
+
     /**
      * sends a message indicating hostId failed for the job identified by jobId
      * @param jobId
@@ -0,0 +1,24 @@
+package org.cataractsoftware.datasponge.enhancer;
+
+import org.cataractsoftware.datasponge.DataRecord;
+import org.springframework.util.concurrent.ListenableFuture;
+
+import java.util.List;
+
+/**
+ * DataEnhancer that enhances batches of records without blocking the calling thread (i.e. using an asynchronous
+ * client for a remote service). An EnhancerPipeline keeps several batches in flight at once, so the round trips of
+ * consecutive batches overlap and the SpiderThreads keep crawling while a batch is outstanding.
+ *
+ * @author Christopher Fagiani
+ */
+public interface AsyncDataEnhancer extends DataEnhancer {
+
+    /**
+     * starts enhancing the records passed in.
+     *
+     * @param records - records to enhance
+     * @return - future completed with the enhanced records, in order, omitting any records that should be dropped
+     */
+    ListenableFuture<List<DataRecord>> enhanceBatchAsync(List<DataRecord> records);
+}
@@ -0,0 +1,23 @@
+package org.cataractsoftware.datasponge.enhancer;
+
+import org.cataractsoftware.datasponge.DataRecord;
+
+import java.util.List;
+
+/**
+ * DataEnhancer that can enhance several records at once (i.e. with one query or service call for the whole batch).
+ * When run in an EnhancerPipeline, records are grouped into micro-batches and enhanceBatch is used instead of
+ * enhanceData.
+ *
+ * @author Christopher Fagiani
+ */
+public interface BatchDataEnhancer extends DataEnhancer {
+
+    /**
+     * enhances the records passed in.
+     *
+     * @param records - records to enhance
+     * @return - enhanced records, in order, omitting any records that should be dropped
+     */
+    List<DataRecord> enhanceBatch(List<DataRecord> records);
+}
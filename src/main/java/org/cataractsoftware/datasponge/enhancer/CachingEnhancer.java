@@ -0,0 +1,129 @@
+package org.cataractsoftware.datasponge.enhancer;
+
+import org.cataractsoftware.datasponge.DataRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+
+/**
+ * decorator that caches the results of another enhancer (configured as the "delegate" of this enhancer's plugin
+ * configuration), so records with a key that has already been looked up are enhanced from memory. The key is the value
+ * of a configurable field and the delegate's result is assumed to depend only on it (i.e. a lookup of a domain or
+ * keyword in a remote source).
+ * <p/>
+ * On a miss the record is passed to the delegate and the fields it added or changed are cached; on a hit those fields
+ * are copied onto the record. If the delegate drops the record, later records with the same key are dropped too.
+ * Records without a key are always passed to the delegate.
+ * <p/>
+ * The following properties are supported:
+ * <p/>
+ * cache.keyField = name of the field used as the key (defaults to the record identifier)
+ * cache.maxEntries = maximum number of cached keys (defaults to 10000)
+ * cache.ttlMillis = time after which a cached result is looked up again (defaults to 0, which never expires results)
+ * cache.policy = eviction policy: tinylfu (default) or lru. See LookupCache.
+ * <p/>
+ * Hit, miss, eviction and expiration counts are logged every 100000 lookups and are available from getCache.
+ *
+ * @author Christopher Fagiani
+ */
+public class CachingEnhancer implements DelegatingDataEnhancer {
+
+    public static final String KEY_FIELD_PROPERTY = "cache.keyField";
+    public static final String MAX_ENTRIES_PROPERTY = "cache.maxEntries";
+    public static final String TTL_PROPERTY = "cache.ttlMillis";
+    public static final String POLICY_PROPERTY = "cache.policy";
+
+    private static final Logger logger = LoggerFactory.getLogger(CachingEnhancer.class);
+    private static final long STATS_INTERVAL = 100000;
+    private static final Map<String, Object> DROPPED = Collections.emptyMap();
+
+    private DataEnhancer delegate;
+    private String keyField;
+    private LookupCache<Object, Map<String, Object>> cache;
+    private String jobId;
+
+    @Override
+    public void init(Properties props) {
+        Properties p = props != null ? props : new Properties();
+        keyField = p.getProperty(KEY_FIELD_PROPERTY);
+        cache = new LookupCache<Object, Map<String, Object>>(
+                Integer.parseInt(p.getProperty(MAX_ENTRIES_PROPERTY, "10000")),
+                Long.parseLong(p.getProperty(TTL_PROPERTY, "0")),
+                LookupCache.Policy.valueOf(p.getProperty(POLICY_PROPERTY, LookupCache.Policy.TINYLFU.name()).toUpperCase()));
+    }
+
+    @Override
+    public DataRecord enhanceData(DataRecord record) {
+        if (delegate == null) {
+            throw new IllegalStateException("CachingEnhancer requires a delegate enhancer");
+        }
+        if (record == null) {
+            return null;
+        }
+        Object key = keyField != null ? record.getFieldValue(keyField) : record.getIdentifier();
+        if (key == null) {
+            return delegate.enhanceData(record);
+        }
+        Map<String, Object> cached = cache.get(key);
+        logStats();
+        if (cached != null) {
+            if (cached == DROPPED) {
+                return null;
+            }
+            for (Map.Entry<String, Object> field : cached.entrySet()) {
+                record.setField(field.getKey(), field.getValue());
+            }
+            return record;
+        }
+        Map<String, Object> before = new HashMap<String, Object>();
+        for (Map.Entry<String, Object> field : record.getFields()) {
+            before.put(field.getKey(), field.getValue());
+        }
+        DataRecord result = delegate.enhanceData(record);
+        if (result == null) {
+            cache.put(key, DROPPED);
+            return null;
+        }
+        Map<String, Object> added = new HashMap<String, Object>();
+        for (Map.Entry<String, Object> field : result.getFields()) {
+            if (!before.containsKey(field.getKey()) || !Objects.equals(before.get(field.getKey()), field.getValue())) {
+                added.put(field.getKey(), field.getValue());
+            }
+        }
+        cache.put(key, added);
+        return result;
+    }
+
+    @Override
+    public void setJobId(String jobId) {
+        this.jobId = jobId;
+    }
+
+    @Override
+    public void setDelegate(DataEnhancer delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public DataEnhancer getDelegate() {
+        return delegate;
+    }
+
+    public LookupCache<Object, Map<String, Object>> getCache() {
+        return cache;
+    }
+
+    private void logStats() {
+        long hits = cache.getHitCount();
+        long misses = cache.getMissCount();
+        if ((hits + misses) % STATS_INTERVAL == 0) {
+            logger.info("Cache for {} in job {}: {} hits, {} misses, {} evictions, {} expirations", delegate.getClass().getSimpleName(),
+                    jobId, hits, misses, cache.getEvictionCount(), cache.getExpirationCount());
+        }
+    }
+}
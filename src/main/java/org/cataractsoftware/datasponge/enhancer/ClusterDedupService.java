@@ -0,0 +1,516 @@
+package org.cataractsoftware.datasponge.enhancer;
+
+import org.cataractsoftware.datasponge.crawler.CrawlerWorkqueue;
+import org.cataractsoftware.datasponge.util.DaemonThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jms.annotation.JmsListener;
+import org.springframework.jms.core.JmsTemplate;
+import org.springframework.jms.core.MessageCreator;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.Session;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * cluster-wide duplicate detection used by the DeduplicationEnhancer in cluster mode. Every deduplication key is owned
+ * by one node, chosen by hashing the key with the same partitioning function as the CrawlerWorkqueue. Keys are not
+ * urls (the default key combines the record identifier and type), so the owner is usually not the node that produced
+ * the record: on an ensemble of n nodes about (n-1)/n of first-time checks go to another node. The owner keeps the
+ * fingerprints of its keys in a FingerprintTable and answers check-and-set requests: the first node to ask about a key
+ * is told it is new and every later request is told it is a duplicate.
+ * <p/>
+ * Checks for keys owned by other nodes are batched per owner (up to batchSize fingerprints or batchDelayMillis) and sent
+ * as a single message on the dedup topic; the caller blocks until the answer arrives. Every answer means the key is now
+ * known to the owner, so answers are also kept in a bounded local table and repeated keys are resolved locally. If the
+ * owner does not answer within timeoutMillis, the record is treated as new (output stays at-least-once). Concurrent
+ * checks of the same key from one node are sent once; only the first caller can be told the key is new.
+ * <p/>
+ * Each user of the service keeps its own tables by passing a namespaced job id (see namespace), so that, for example,
+ * near-duplicate band keys do not evict exact-duplicate fingerprints. Membership changes and release apply to every
+ * namespace of the job.
+ *
+ * @author Christopher Fagiani
+ */
+@Component
+public class ClusterDedupService {
+
+    public static final String JOB_ID_PROP = "jobId";
+    public static final String TARGET_PROP = "target";
+    public static final String TYPE_PROP = "dedupType";
+    public static final String REQUEST_ID_PROP = "requestId";
+    public static final String REPLY_TO_PROP = "replyTo";
+    public static final String REQUEST = "request";
+    public static final String RESPONSE = "response";
+
+    private static final Logger logger = LoggerFactory.getLogger(ClusterDedupService.class);
+    private static final long RELEASE_DELAY_MILLIS = 300000;
+    private static final String NAMESPACE_SEPARATOR = "/";
+
+    private final String instanceId = UUID.randomUUID().toString();
+    private final Map<String, JobState> jobs = new ConcurrentHashMap<String, JobState>();
+    private final Map<Long, Batch> inFlight = new ConcurrentHashMap<Long, Batch>();
+    private final AtomicLong requestIds = new AtomicLong();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            new DaemonThreadFactory("datasponge-dedup-batcher-"));
+
+    @Resource(name = "dedupTopicTemplate")
+    private JmsTemplate dedupTopicTemplate;
+
+    /**
+     * returns the id under which a user of the service keeps its own tables for a job
+     *
+     * @param jobId
+     * @param namespace
+     * @return
+     */
+    public static String namespace(String jobId, String namespace) {
+        return jobId + NAMESPACE_SEPARATOR + namespace;
+    }
+
+    /**
+     * sets up the tables for a job (or a namespace of a job). Only the first call for a job has any effect.
+     *
+     * @param jobId
+     * @param config
+     */
+    public void register(String jobId, Config config) {
+        getState(jobId).configure(config);
+    }
+
+    /**
+     * records this node's id and the size of the ensemble for a job (as assigned by the coordinator)
+     *
+     * @param jobId
+     * @param nodeId
+     * @param modSize
+     */
+    public void updateMembership(String jobId, int nodeId, int modSize) {
+        synchronized (jobs) {
+            getState(jobId);
+            for (JobState state : statesOf(jobId)) {
+                synchronized (state) {
+                    state.nodeId = nodeId;
+                    state.modSize = modSize;
+                }
+            }
+        }
+    }
+
+    /**
+     * adjusts ownership after a node failure, mirroring CrawlerWorkqueue.handleNodeFailure. Keys previously owned by the
+     * failed node move to other nodes, which have not seen them, so some duplicates may get through.
+     *
+     * @param jobId
+     * @param failedNodeId
+     */
+    public void handleNodeFailure(String jobId, int failedNodeId) {
+        synchronized (jobs) {
+            for (JobState state : statesOf(jobId)) {
+                synchronized (state) {
+                    if (state.nodeId != failedNodeId) {
+                        if (state.nodeId > failedNodeId) {
+                            state.nodeId--;
+                        }
+                        state.modSize--;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * drops the tables of a job once other nodes have had time to finish their checks
+     *
+     * @param jobId
+     */
+    public void release(final String jobId) {
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (jobs) {
+                    Iterator<String> it = jobs.keySet().iterator();
+                    while (it.hasNext()) {
+                        String key = it.next();
+                        if (key.equals(jobId) || key.startsWith(jobId + NAMESPACE_SEPARATOR)) {
+                            it.remove();
+                        }
+                    }
+                }
+            }
+        }, RELEASE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * checks whether the key has been seen anywhere in the ensemble and records it as seen. Blocks while a check is
+     * sent to the owning node.
+     *
+     * @param jobId
+     * @param key
+     * @return true if the key was already seen
+     */
+    public boolean checkAndSet(String jobId, Object key) {
+        return checkAndSetAll(jobId, Collections.singletonList(key))[0];
+    }
+
+    /**
+     * checks and records several keys at once; checks for keys owned by other nodes are all sent before waiting for
+     * the answers, so this takes a single round trip
+     *
+     * @param jobId
+     * @param keys
+     * @return for each key, true if it was already seen
+     */
+    public boolean[] checkAndSetAll(String jobId, List<?> keys) {
+        JobState state = getState(jobId);
+        state.configure(new Config());
+        boolean[] results = new boolean[keys.size()];
+        PendingCheck[] checks = new PendingCheck[keys.size()];
+        int[] owners = new int[keys.size()];
+        for (int i = 0; i < keys.size(); i++) {
+            String keyString = String.valueOf(keys.get(i));
+            long[] fp = FingerprintTable.fingerprint(keyString);
+            int owner;
+            int nodeId;
+            synchronized (state) {
+                nodeId = state.nodeId;
+                owner = CrawlerWorkqueue.partitionFor(keyString, state.modSize);
+            }
+            if (owner == nodeId) {
+                results[i] = !state.owned.add(fp[0], fp[1]);
+            } else if (state.known.contains(fp[0], fp[1])) {
+                results[i] = true;
+            } else {
+                checks[i] = enqueue(jobId, state, owner, fp);
+                owners[i] = owner;
+                // another caller on this node is already waiting on the same key, so this one is the repeat
+                results[i] = checks[i] == null;
+            }
+        }
+        long deadline = System.currentTimeMillis() + state.config.timeoutMillis;
+        for (int i = 0; i < checks.length; i++) {
+            PendingCheck check = checks[i];
+            if (check == null) {
+                continue;
+            }
+            try {
+                if (!check.latch.await(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+                    // treated as new
+                    logger.warn("Timed out waiting for dedup answer from node {} for job {}", owners[i], jobId);
+                    continue;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            state.known.add(check.hi, check.lo);
+            results[i] = check.duplicate;
+        }
+        return results;
+    }
+
+    /**
+     * dispatches requests addressed to this node and answers addressed to this instance
+     *
+     * @param message
+     */
+    @JmsListener(destination = "datasponge.dedup.topic", containerFactory = "topicContainerFactory")
+    public void handleDedupMessage(Message message) {
+        try {
+            if (!(message instanceof BytesMessage)) {
+                return;
+            }
+            String type = message.getStringProperty(TYPE_PROP);
+            if (REQUEST.equals(type)) {
+                handleRequest((BytesMessage) message);
+            } else if (RESPONSE.equals(type) && instanceId.equals(message.getStringProperty(TARGET_PROP))) {
+                handleResponse((BytesMessage) message);
+            }
+        } catch (JMSException e) {
+            logger.error("Could not process dedup message", e);
+        }
+    }
+
+    /**
+     * returns the number of requests sent and still waiting for an answer
+     *
+     * @return
+     */
+    int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    public void setDedupTopicTemplate(JmsTemplate dedupTopicTemplate) {
+        this.dedupTopicTemplate = dedupTopicTemplate;
+    }
+
+    @PreDestroy
+    public void destroy() {
+        scheduler.shutdownNow();
+    }
+
+    private JobState getState(String jobId) {
+        synchronized (jobs) {
+            JobState state = jobs.get(jobId);
+            if (state == null) {
+                state = new JobState();
+                int separator = jobId.indexOf(NAMESPACE_SEPARATOR);
+                JobState job = separator > 0 ? jobs.get(jobId.substring(0, separator)) : null;
+                if (job != null) {
+                    // a namespace created after the membership was assigned starts with the job's membership
+                    synchronized (job) {
+                        state.nodeId = job.nodeId;
+                        state.modSize = job.modSize;
+                    }
+                }
+                jobs.put(jobId, state);
+            }
+            return state;
+        }
+    }
+
+    /**
+     * returns the state of the job and of every namespace of it; callers hold the jobs lock
+     */
+    private List<JobState> statesOf(String jobId) {
+        List<JobState> states = new ArrayList<JobState>();
+        for (Map.Entry<String, JobState> entry : jobs.entrySet()) {
+            if (entry.getKey().equals(jobId) || entry.getKey().startsWith(jobId + NAMESPACE_SEPARATOR)) {
+                states.add(entry.getValue());
+            }
+        }
+        return states;
+    }
+
+    /**
+     * adds the fingerprint to the batch for its owner, returning the check to wait on or null if a check for the same
+     * fingerprint is already waiting in that batch (the earlier caller gets the owner's answer; this one is a duplicate)
+     */
+    private PendingCheck enqueue(final String jobId, final JobState state, final int owner, long[] fp) {
+        PendingCheck check;
+        Batch toSend = null;
+        synchronized (state) {
+            Batch batch = state.batches.get(owner);
+            if (batch == null) {
+                batch = new Batch(jobId, owner);
+                state.batches.put(owner, batch);
+                final Batch scheduled = batch;
+                scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        boolean due;
+                        synchronized (state) {
+                            due = state.batches.get(owner) == scheduled;
+                            if (due) {
+                                state.batches.remove(owner);
+                            }
+                        }
+                        if (due) {
+                            send(scheduled, state.config.timeoutMillis);
+                        }
+                    }
+                }, state.config.batchDelayMillis, TimeUnit.MILLISECONDS);
+            }
+            check = batch.add(fp);
+            if (batch.size() >= state.config.batchSize) {
+                state.batches.remove(owner);
+                toSend = batch;
+            }
+        }
+        if (toSend != null) {
+            send(toSend, state.config.timeoutMillis);
+        }
+        return check;
+    }
+
+    private void send(final Batch batch, long timeoutMillis) {
+        final long requestId = requestIds.incrementAndGet();
+        inFlight.put(requestId, batch);
+        // the callers have given up by then; drop the entry so unanswered requests (owner down or not yet on the job)
+        // do not accumulate
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                inFlight.remove(requestId);
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+        try {
+            dedupTopicTemplate.send(new MessageCreator() {
+                @Override
+                public Message createMessage(Session session) throws JMSException {
+                    BytesMessage m = session.createBytesMessage();
+                    m.setStringProperty(TYPE_PROP, REQUEST);
+                    m.setStringProperty(JOB_ID_PROP, batch.jobId);
+                    m.setStringProperty(TARGET_PROP, batch.jobId + "-" + batch.owner);
+                    m.setStringProperty(REPLY_TO_PROP, instanceId);
+                    m.setLongProperty(REQUEST_ID_PROP, requestId);
+                    m.writeInt(batch.checks.size());
+                    for (PendingCheck check : batch.checks) {
+                        m.writeLong(check.hi);
+                        m.writeLong(check.lo);
+                    }
+                    return m;
+                }
+            });
+        } catch (RuntimeException e) {
+            // the waiting callers time out and treat their records as new
+            inFlight.remove(requestId);
+            logger.error("Could not send dedup request for job " + batch.jobId, e);
+        }
+    }
+
+    private void handleRequest(BytesMessage message) throws JMSException {
+        final String jobId = message.getStringProperty(JOB_ID_PROP);
+        JobState state = jobs.get(jobId);
+        if (state == null) {
+            return;
+        }
+        state.configure(new Config());
+        synchronized (state) {
+            if (!(jobId + "-" + state.nodeId).equals(message.getStringProperty(TARGET_PROP))) {
+                return;
+            }
+        }
+        int count = message.readInt();
+        final byte[] answers = new byte[count];
+        for (int i = 0; i < count; i++) {
+            long hi = message.readLong();
+            long lo = message.readLong();
+            answers[i] = (byte) (state.owned.add(hi, lo) ? 0 : 1);
+        }
+        final String replyTo = message.getStringProperty(REPLY_TO_PROP);
+        final long requestId = message.getLongProperty(REQUEST_ID_PROP);
+        dedupTopicTemplate.send(new MessageCreator() {
+            @Override
+            public Message createMessage(Session session) throws JMSException {
+                BytesMessage m = session.createBytesMessage();
+                m.setStringProperty(TYPE_PROP, RESPONSE);
+                m.setStringProperty(JOB_ID_PROP, jobId);
+                m.setStringProperty(TARGET_PROP, replyTo);
+                m.setLongProperty(REQUEST_ID_PROP, requestId);
+                m.writeInt(answers.length);
+                m.writeBytes(answers);
+                return m;
+            }
+        });
+    }
+
+    private void handleResponse(BytesMessage message) throws JMSException {
+        Batch batch = inFlight.remove(message.getLongProperty(REQUEST_ID_PROP));
+        if (batch == null) {
+            return;
+        }
+        int count = message.readInt();
+        byte[] answers = new byte[count];
+        message.readBytes(answers);
+        for (int i = 0; i < count && i < batch.checks.size(); i++) {
+            PendingCheck check = batch.checks.get(i);
+            check.duplicate = answers[i] != 0;
+            check.latch.countDown();
+        }
+    }
+
+    /**
+     * tuning for a job's tables and batching
+     */
+    public static class Config {
+        private long maxEntries = 1000000;
+        private int stripes = 64;
+        private FingerprintTable.EvictionPolicy eviction = FingerprintTable.EvictionPolicy.GENERATIONAL;
+        private int batchSize = 256;
+        private long batchDelayMillis = 10;
+        private long timeoutMillis = 5000;
+
+        public Config() {
+        }
+
+        public Config(long maxEntries, int stripes, FingerprintTable.EvictionPolicy eviction, int batchSize,
+                      long batchDelayMillis, long timeoutMillis) {
+            this.maxEntries = maxEntries;
+            this.stripes = stripes;
+            this.eviction = eviction;
+            this.batchSize = batchSize;
+            this.batchDelayMillis = batchDelayMillis;
+            this.timeoutMillis = timeoutMillis;
+        }
+    }
+
+    private static class JobState {
+        private final Map<Integer, Batch> batches = new HashMap<Integer, Batch>();
+        private volatile Config config;
+        private volatile FingerprintTable owned;
+        private volatile FingerprintTable known;
+        private int nodeId = 0;
+        private int modSize = 1;
+
+        synchronized void configure(Config config) {
+            if (this.config == null) {
+                this.owned = new FingerprintTable(config.maxEntries, config.stripes, config.eviction);
+                this.known = new FingerprintTable(config.maxEntries, config.stripes, config.eviction);
+                this.config = config;
+            }
+        }
+    }
+
+    /**
+     * checks waiting to be sent to one owner. Each fingerprint is sent once; later checks for it are duplicates.
+     */
+    private static class Batch {
+        private final String jobId;
+        private final int owner;
+        private final List<PendingCheck> checks = new ArrayList<PendingCheck>();
+        private final Map<String, PendingCheck> byFingerprint = new HashMap<String, PendingCheck>();
+
+        Batch(String jobId, int owner) {
+            this.jobId = jobId;
+            this.owner = owner;
+        }
+
+        /**
+         * returns the new check or null if the fingerprint is already in the batch
+         */
+        PendingCheck add(long[] fp) {
+            String id = fp[0] + ":" + fp[1];
+            if (byFingerprint.containsKey(id)) {
+                return null;
+            }
+            PendingCheck check = new PendingCheck(fp[0], fp[1]);
+            byFingerprint.put(id, check);
+            checks.add(check);
+            return check;
+        }
+
+        int size() {
+            return checks.size();
+        }
+    }
+
+    private static class PendingCheck {
+        private final long hi;
+        private final long lo;
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private volatile boolean duplicate;
+
+        PendingCheck(long hi, long lo) {
+            this.hi = hi;
+            this.lo = lo;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package org.cataractsoftware.datasponge.enhancer;
+
+import org.cataractsoftware.datasponge.DataRecord;
+import org.cataractsoftware.datasponge.aggregate.AggregationSpec;
+
+import java.util.Properties;
+
+/**
+ * combiner stage of an aggregation: projects each record into a partial aggregate for its group (see AggregationSpec
+ * for the properties), keeping only the group-by fields and the inputs of the aggregates. Placed at the end of the
+ * enhancer pipeline in front of an AggregatingDataWriter in partial mode, it keeps the writer's memory proportional to
+ * the aggregated fields rather than to whole records (i.e. full page text). It must be configured with the same
+ * aggregation properties as the writer.
+ *
+ * @author Christopher Fagiani
+ */
+public class CombiningEnhancer implements StatelessDataEnhancer {
+
+    private AggregationSpec spec;
+
+    @Override
+    public DataRecord enhanceData(DataRecord record) {
+        if (record == null || spec.isPartial(record)) {
+            return record;
+        }
+        return spec.toPartial(record);
+    }
+
+    @Override
+    public void init(Properties props) {
+        spec = AggregationSpec.fromProperties(props);
+    }
+
+    @Override
+    public void setJobId(String jobId) {
+
+    }
+}
@@ -10,27 +10,71 @@ import java.util.Properties;
 import java.util.Set;
 
 /**
- * Data enhancer used to attempt to remove duplicates. This is not 100% effective as it only works locally
- * (can only detect duplicates for records that it has seen on a single host) and it can evict previously seen
- * records from the internal cache if memory becomes constrained.
+ * Data enhancer used to attempt to remove duplicates. This is not 100% effective: unless run in cluster mode it only
+ * works locally (can only detect duplicates for records that it has seen on a single host) and it can forget previously
+ * seen records once its memory bound is reached.
  * <p/>
- * This enhancer will use the equals method on the DataRecords by default. Customization of the comparison
- * can be made by changing the implementation of equals for DataRecord and/or by setting the customDetector
- * property on the plugin config (in the job configuration) to the fully-qualified name of a DuplicateDetector instance.
- *
- * TODO: update to only cache SHA-256 hash of the record instead of the whole thing
+ * This enhancer will use the identifier and type of the DataRecords (the fields compared by DataRecord.equals) by
+ * default. Customization of the comparison can be made by setting the customDetector property on the plugin config
+ * (in the job configuration) to the fully-qualified name of a DuplicateDetector instance.
+ * <p/>
+ * Three modes are supported (via the dedup.mode property):
+ * <ul>
+ * <li>indexed - (default) only a 128-bit fingerprint of each record's key is kept, in a striped hash table
+ * (FingerprintTable), so lookups are O(1) and concurrent. Custom detectors must implement KeyedDuplicateDetector to
+ * supply the key to fingerprint.</li>
+ * <li>scan - seen records are held via soft references and every record is compared to all of them with the detector.
+ * This is O(n) per record and is used automatically for custom detectors that cannot supply a key.</li>
+ * <li>cluster - like indexed, but each fingerprint is owned by one node of the ensemble (using the same partitioning
+ * as the workqueue) and checked there via the ClusterDedupService, so duplicates are removed across the whole job.
+ * Requires a keyed detector.</li>
+ * </ul>
+ * The indexed mode can be tuned with the following properties:
+ * <p/>
+ * dedup.maxEntries = maximum number of fingerprints held (defaults to 1000000; each takes about 21 bytes)
+ * dedup.stripes = number of independently locked stripes of the table (defaults to 64; a stripe holds at most about
+ * 400 million fingerprints, so very large tables need more stripes)
+ * dedup.evictionPolicy = what to do once the table is full: generational (default; forget the oldest fingerprints),
+ * reset (forget all fingerprints of the full stripe) or none (stop remembering new fingerprints)
+ * <p/>
+ * In cluster mode, checks sent to other nodes are batched:
+ * <p/>
+ * dedup.cluster.batchSize = maximum number of fingerprints sent to a node in one message (defaults to 256)
+ * dedup.cluster.batchDelayMillis = maximum time a check waits for its batch to fill (defaults to 10)
+ * dedup.cluster.timeoutMillis = time to wait for an answer before treating the record as new (defaults to 5000)
  *
  * @author Christopher Fagiani
  */
-public class DeduplicationEnhancer implements DataEnhancer, DuplicateDetector {
+public class DeduplicationEnhancer implements DataEnhancer, KeyedDuplicateDetector {
 
     protected static final String COMPARATOR_PROPERTY = "customDetector";
+    public static final String MODE_PROPERTY = "dedup.mode";
+    public static final String MAX_ENTRIES_PROPERTY = "dedup.maxEntries";
+    public static final String STRIPES_PROPERTY = "dedup.stripes";
+    public static final String EVICTION_PROPERTY = "dedup.evictionPolicy";
+    public static final String BATCH_SIZE_PROPERTY = "dedup.cluster.batchSize";
+    public static final String BATCH_DELAY_PROPERTY = "dedup.cluster.batchDelayMillis";
+    public static final String TIMEOUT_PROPERTY = "dedup.cluster.timeoutMillis";
+
     protected DuplicateDetector detector;
     protected Set<SoftReference<DataRecord>> seenRecords = new HashSet<>();
+    protected FingerprintTable fingerprints;
+    protected ClusterDedupService clusterDedupService;
+    protected ClusterDedupService.Config clusterConfig;
+    protected String jobId;
     protected Logger logger = LoggerFactory.getLogger(DeduplicationEnhancer.class);
 
     @Override
     public DataRecord enhanceData(DataRecord record) {
+        if (record == null) {
+            return null;
+        }
+        if (clusterConfig != null) {
+            return clusterDedupService.checkAndSet(jobId, ((KeyedDuplicateDetector) detector).getDeduplicationKey(record)) ? null : record;
+        }
+        if (fingerprints != null) {
+            return fingerprints.add(((KeyedDuplicateDetector) detector).getDeduplicationKey(record)) ? record : null;
+        }
         if (checkIfSeen(record)) {
             return null;
         } else {
@@ -69,13 +113,21 @@ public class DeduplicationEnhancer implements DataEnhancer, DuplicateDetector {
 
 
     /**
-     * initializes this instance by constructing the comparator to be used in the duplicate detection
+     * initializes this instance by constructing the comparator to be used in the duplicate detection and, in indexed
+     * mode, the fingerprint table
      *
      * @param props initialized property object containing all properties used to load the program
      */
     @Override
     public void init(Properties props) {
         detector = this;
+        Mode mode = Mode.INDEXED;
+        long maxEntries = 1000000;
+        int stripes = 64;
+        FingerprintTable.EvictionPolicy eviction = FingerprintTable.EvictionPolicy.GENERATIONAL;
+        int batchSize = 256;
+        long batchDelay = 10;
+        long timeout = 5000;
         if (props != null) {
             String comparatorClass = props.getProperty(COMPARATOR_PROPERTY);
             if (comparatorClass != null && !comparatorClass.trim().isEmpty()) {
@@ -85,13 +137,54 @@ public class DeduplicationEnhancer implements DataEnhancer, DuplicateDetector {
                     logger.error("Could not instantiate comparator. Using default.", e);
                 }
             }
+            mode = Mode.valueOf(props.getProperty(MODE_PROPERTY, Mode.INDEXED.name()).toUpperCase());
+            maxEntries = Long.parseLong(props.getProperty(MAX_ENTRIES_PROPERTY, "" + maxEntries));
+            stripes = Integer.parseInt(props.getProperty(STRIPES_PROPERTY, "" + stripes));
+            eviction = FingerprintTable.EvictionPolicy.valueOf(props.getProperty(EVICTION_PROPERTY, eviction.name()).toUpperCase());
+            batchSize = Integer.parseInt(props.getProperty(BATCH_SIZE_PROPERTY, "" + batchSize));
+            batchDelay = Long.parseLong(props.getProperty(BATCH_DELAY_PROPERTY, "" + batchDelay));
+            timeout = Long.parseLong(props.getProperty(TIMEOUT_PROPERTY, "" + timeout));
+        }
+        if (mode == Mode.CLUSTER) {
+            if (!(detector instanceof KeyedDuplicateDetector)) {
+                throw new IllegalStateException("Cluster deduplication requires a KeyedDuplicateDetector");
+            }
+            if (clusterDedupService == null) {
+                throw new IllegalStateException("Cluster deduplication requires a ClusterDedupService");
+            }
+            clusterConfig = new ClusterDedupService.Config(maxEntries, stripes, eviction, batchSize, batchDelay, timeout);
+            fingerprints = null;
+            return;
         }
+        if (mode == Mode.INDEXED && !(detector instanceof KeyedDuplicateDetector)) {
+            logger.warn("{} does not supply a deduplication key; falling back to scan mode", detector.getClass().getName());
+            mode = Mode.SCAN;
+        }
+        fingerprints = mode == Mode.INDEXED ? new FingerprintTable(maxEntries, stripes, eviction) : null;
     }
 
 
     @Override
     public void setJobId(String jobId) {
+        this.jobId = jobId;
+        if (clusterConfig != null) {
+            clusterDedupService.register(jobId, clusterConfig);
+        }
+    }
 
+    public void setClusterDedupService(ClusterDedupService clusterDedupService) {
+        this.clusterDedupService = clusterDedupService;
+    }
+
+    /**
+     * default key: the identifier and type of the record (the fields used by equals)
+     *
+     * @param record
+     * @return
+     */
+    @Override
+    public Object getDeduplicationKey(DataRecord record) {
+        return record.getIdentifier() + '\u0000' + record.getType();
     }
 
     /**
@@ -111,4 +204,8 @@ public class DeduplicationEnhancer implements DataEnhancer, DuplicateDetector {
             return false;
         }
     }
+
+    public enum Mode {
+        INDEXED, SCAN, CLUSTER
+    }
 }
@@ -0,0 +1,14 @@
+package org.cataractsoftware.datasponge.enhancer;
+
+/**
+ * a DataEnhancer that wraps another enhancer. The wrapped enhancer is configured via the delegate element of the
+ * wrapping enhancer's plugin configuration and is set by the ComponentFactory after both enhancers are initialized.
+ *
+ * @author Christopher Fagiani
+ */
+public interface DelegatingDataEnhancer extends DataEnhancer {
+
+    void setDelegate(DataEnhancer delegate);
+
+    DataEnhancer getDelegate();
+}
@@ -0,0 +1,365 @@
+package org.cataractsoftware.datasponge.enhancer;
+
+import org.cataractsoftware.datasponge.util.VarInt;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * immutable key/value dictionary stored in a file that is memory-mapped read-only. Entries are sorted by key, so a
+ * lookup is a binary search over an index of entry offsets that compares the probe key with the mapped bytes directly;
+ * nothing is loaded onto the heap except the values of the entry that is found. Since the file is only ever read, every
+ * JVM on a host that maps it shares the same pages of the OS page cache.
+ * <p/>
+ * Layout: magic, version, key column name, entry count, column names, then entry count offsets (relative to the start of the data, in
+ * key order) followed by the entries. Each entry is its key (int length + UTF-8 bytes) and one value per column (varint
+ * length + 1, 0 for null, then UTF-8 bytes). Files are built from a CSV with build(); the data must be under 2GB.
+ *
+ * @author Christopher Fagiani
+ */
+public class DictionaryFile {
+
+    private static final Logger logger = LoggerFactory.getLogger(DictionaryFile.class);
+    private static final int MAGIC = 0x44534443;
+    private static final byte VERSION = 2;
+
+    private final File file;
+    private final long lastModified;
+    private final MappedByteBuffer buffer;
+    private final String keyColumn;
+    private final String[] columns;
+    private final int entryCount;
+    private final int indexStart;
+    private final int dataStart;
+
+    private DictionaryFile(File file) throws IOException {
+        this.file = file;
+        this.lastModified = file.lastModified();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            if (raf.length() > Integer.MAX_VALUE) {
+                throw new IOException("Dictionary " + file + " is larger than 2GB");
+            }
+            // the mapping stays valid after the channel is closed
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        }
+        ByteBuffer header = buffer.duplicate();
+        if (header.getInt() != MAGIC || header.get() != VERSION) {
+            throw new IOException(file + " is not a dictionary file");
+        }
+        keyColumn = readString(header);
+        entryCount = header.getInt();
+        columns = new String[(int) VarInt.readUnsigned(header)];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = readString(header);
+        }
+        indexStart = header.position();
+        dataStart = indexStart + 4 * entryCount;
+    }
+
+    /**
+     * maps an existing dictionary file
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static DictionaryFile open(File file) throws IOException {
+        return new DictionaryFile(file);
+    }
+
+    /**
+     * reads the name of the key column from the header of a dictionary file without mapping it
+     *
+     * @param file
+     * @return
+     * @throws IOException if the file is not a dictionary file (of this version)
+     */
+    public static String readKeyColumn(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+                throw new IOException(file + " is not a dictionary file");
+            }
+            int length = (int) VarInt.readUnsigned(in) - 1;
+            if (length < 0) {
+                return null;
+            }
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * builds a dictionary file from a CSV file with a header row (RFC 4180 quoting). The key column is indexed and
+     * every other column becomes a value column. If a key occurs more than once, its first row is kept. The file is
+     * written to a temporary file and moved into place, so readers never see a partial dictionary.
+     *
+     * @param csv
+     * @param target
+     * @param keyColumn name of the key column (null for the first column)
+     * @throws IOException
+     */
+    public static void build(File csv, File target, String keyColumn) throws IOException {
+        File dir = target.getAbsoluteFile().getParentFile();
+        File dataFile = File.createTempFile("dictionary", ".data", dir);
+        // unique, so JVMs building the same dictionary at once never write to each other's file
+        File tmp = File.createTempFile("dictionary", ".tmp", dir);
+        try {
+            List<String> header;
+            final List<KeyOffset> keys = new ArrayList<KeyOffset>();
+            int[] valueColumns;
+            int keyIndex;
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(csv), StandardCharsets.UTF_8));
+                 DataOutputStream data = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(dataFile)))) {
+                header = readRow(reader);
+                if (header == null) {
+                    throw new IOException("CSV file " + csv + " is empty");
+                }
+                keyIndex = keyColumn != null ? header.indexOf(keyColumn) : 0;
+                if (keyIndex < 0) {
+                    throw new IOException("CSV file " + csv + " has no column named " + keyColumn);
+                }
+                valueColumns = new int[header.size() - 1];
+                for (int i = 0, j = 0; i < header.size(); i++) {
+                    if (i != keyIndex) {
+                        valueColumns[j++] = i;
+                    }
+                }
+                List<String> row;
+                while ((row = readRow(reader)) != null) {
+                    if (row.size() <= keyIndex || row.get(keyIndex).isEmpty()) {
+                        continue;
+                    }
+                    // size() sticks at Integer.MAX_VALUE once it overflows
+                    if (data.size() == Integer.MAX_VALUE) {
+                        throw new IOException("Dictionary data for " + csv + " exceeds 2GB");
+                    }
+                    byte[] key = row.get(keyIndex).getBytes(StandardCharsets.UTF_8);
+                    keys.add(new KeyOffset(key, data.size()));
+                    data.writeInt(key.length);
+                    data.write(key);
+                    for (int col : valueColumns) {
+                        writeString(data, col < row.size() ? row.get(col) : null);
+                    }
+                }
+            }
+            // stable, so the first row of a duplicated key sorts first
+            Collections.sort(keys, new Comparator<KeyOffset>() {
+                @Override
+                public int compare(KeyOffset a, KeyOffset b) {
+                    return compareBytes(a.key, b.key);
+                }
+            });
+            List<KeyOffset> unique = new ArrayList<KeyOffset>(keys.size());
+            for (KeyOffset k : keys) {
+                if (unique.isEmpty() || compareBytes(unique.get(unique.size() - 1).key, k.key) != 0) {
+                    unique.add(k);
+                }
+            }
+            if (unique.size() < keys.size()) {
+                logger.warn("Ignored {} rows with duplicate keys in {}", keys.size() - unique.size(), csv);
+            }
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeByte(VERSION);
+                writeString(out, header.get(keyIndex));
+                out.writeInt(unique.size());
+                VarInt.writeUnsigned(out, valueColumns.length);
+                for (int col : valueColumns) {
+                    writeString(out, header.get(col));
+                }
+                for (KeyOffset k : unique) {
+                    out.writeInt(k.offset);
+                }
+                Files.copy(dataFile.toPath(), out);
+            }
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            logger.info("Built dictionary {} with {} entries from {}", target, unique.size(), csv);
+        } finally {
+            dataFile.delete();
+            tmp.delete();
+        }
+    }
+
+    /**
+     * returns the values stored for the key (in column order) or null if the key is not present. Safe to call from
+     * any number of threads.
+     *
+     * @param key
+     * @return
+     */
+    public String[] lookup(String key) {
+        byte[] probe = key.getBytes(StandardCharsets.UTF_8);
+        int lo = 0;
+        int hi = entryCount - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int entry = dataStart + buffer.getInt(indexStart + 4 * mid);
+            int cmp = compareKey(entry, probe);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return readValues(entry);
+            }
+        }
+        return null;
+    }
+
+    public String getKeyColumn() {
+        return keyColumn;
+    }
+
+    public String[] getColumns() {
+        return columns.clone();
+    }
+
+    public int size() {
+        return entryCount;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * compares the key of the entry at the position with the probe without copying it
+     */
+    private int compareKey(int entry, byte[] probe) {
+        int length = buffer.getInt(entry);
+        int min = Math.min(length, probe.length);
+        for (int i = 0; i < min; i++) {
+            int cmp = (buffer.get(entry + 4 + i) & 0xff) - (probe[i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return length - probe.length;
+    }
+
+    private String[] readValues(int entry) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(entry + 4 + buffer.getInt(entry));
+        String[] values = new String[columns.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = readString(view);
+        }
+        return values;
+    }
+
+    private static int compareBytes(byte[] a, byte[] b) {
+        int min = Math.min(a.length, b.length);
+        for (int i = 0; i < min; i++) {
+            int cmp = (a[i] & 0xff) - (b[i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    private static void writeString(DataOutputStream out, String val) throws IOException {
+        if (val == null) {
+            VarInt.writeUnsigned(out, 0);
+            return;
+        }
+        byte[] bytes = val.getBytes(StandardCharsets.UTF_8);
+        VarInt.writeUnsigned(out, bytes.length + 1);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buf) {
+        int length = (int) VarInt.readUnsigned(buf) - 1;
+        if (length < 0) {
+            return null;
+        }
+        ByteBuffer slice = buf.slice();
+        slice.limit(length);
+        buf.position(buf.position() + length);
+        return StandardCharsets.UTF_8.decode(slice).toString();
+    }
+
+    /**
+     * reads one CSV row (RFC 4180: quoted fields may contain delimiters, quotes doubled as "" and line breaks)
+     *
+     * @param reader
+     * @return the fields of the row or null at the end of the input
+     * @throws IOException
+     */
+    static List<String> readRow(BufferedReader reader) throws IOException {
+        List<String> fields = new ArrayList<String>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        boolean any = false;
+        int c;
+        while ((c = reader.read()) != -1) {
+            any = true;
+            if (quoted) {
+                if (c == '"') {
+                    reader.mark(1);
+                    int next = reader.read();
+                    if (next == '"') {
+                        field.append('"');
+                    } else {
+                        quoted = false;
+                        if (next != -1) {
+                            reader.reset();
+                        }
+                    }
+                } else {
+                    field.append((char) c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else if (c == '\n') {
+                break;
+            } else if (c != '\r') {
+                field.append((char) c);
+            }
+        }
+        if (!any) {
+            return null;
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    private static class KeyOffset {
+        private final byte[] key;
+        private final int offset;
+
+        KeyOffset(byte[] key, int offset) {
+            this.key = key;
+            this.offset = offset;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package org.cataractsoftware.datasponge.enhancer;
+
+import org.cataractsoftware.datasponge.DataRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * joins records against a static reference table (i.e. domain to company or keyword to category). The table is read
+ * from a CSV file once and built into a sorted, memory-mapped DictionaryFile; lookups search the mapped file directly,
+ * so the table takes no heap and is shared (through the page cache) by every enhancer and JVM on the host that uses it.
+ * The dictionary is rebuilt when the CSV file is newer than it or was built with a different key column.
+ * <p/>
+ * The following properties are supported:
+ * <p/>
+ * dictionary.source = path of the CSV file (with a header row) to build the dictionary from; may be omitted if
+ * dictionary.file already exists
+ * dictionary.file = path of the built dictionary (defaults to the source path with a .dict suffix)
+ * dictionary.keyColumn = CSV column holding the key (defaults to the first column)
+ * dictionary.columns = comma-separated list of columns to join onto each record (defaults to all other columns)
+ * dictionary.field = record field whose value is looked up (defaults to the record identifier)
+ * dictionary.prefix = prefix added to the names of the joined fields (defaults to none)
+ * dictionary.onMiss = keep (default; records without a match pass through unchanged) or drop
+ *
+ * @author Christopher Fagiani
+ */
+public class DictionaryJoinEnhancer implements StatelessDataEnhancer {
+
+    public static final String SOURCE_PROPERTY = "dictionary.source";
+    public static final String FILE_PROPERTY = "dictionary.file";
+    public static final String KEY_COLUMN_PROPERTY = "dictionary.keyColumn";
+    public static final String COLUMNS_PROPERTY = "dictionary.columns";
+    public static final String FIELD_PROPERTY = "dictionary.field";
+    public static final String PREFIX_PROPERTY = "dictionary.prefix";
+    public static final String ON_MISS_PROPERTY = "dictionary.onMiss";
+    public static final String FILE_SUFFIX = ".dict";
+
+    private static final Logger logger = LoggerFactory.getLogger(DictionaryJoinEnhancer.class);
+    private static final Map<String, DictionaryFile> openDictionaries = new ConcurrentHashMap<String, DictionaryFile>();
+
+    private DictionaryFile dictionary;
+    private String field;
+    private int[] columnIndexes;
+    private String[] fieldNames;
+    private boolean dropMisses;
+
+    @Override
+    public void init(Properties props) {
+        if (props == null) {
+            throw new IllegalStateException("DictionaryJoinEnhancer requires " + SOURCE_PROPERTY + " or " + FILE_PROPERTY);
+        }
+        String source = props.getProperty(SOURCE_PROPERTY);
+        String path = props.getProperty(FILE_PROPERTY, source != null ? source + FILE_SUFFIX : null);
+        if (path == null) {
+            throw new IllegalStateException("DictionaryJoinEnhancer requires " + SOURCE_PROPERTY + " or " + FILE_PROPERTY);
+        }
+        try {
+            dictionary = openDictionary(source != null ? new File(source) : null, new File(path),
+                    props.getProperty(KEY_COLUMN_PROPERTY));
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not open dictionary " + path, e);
+        }
+        field = props.getProperty(FIELD_PROPERTY);
+        dropMisses = "drop".equalsIgnoreCase(props.getProperty(ON_MISS_PROPERTY, "keep"));
+        String prefix = props.getProperty(PREFIX_PROPERTY, "");
+        List<String> available = Arrays.asList(dictionary.getColumns());
+        List<String> wanted = new ArrayList<String>();
+        String columns = props.getProperty(COLUMNS_PROPERTY);
+        if (columns != null && !columns.trim().isEmpty()) {
+            for (String col : columns.split(",")) {
+                if (!available.contains(col.trim())) {
+                    throw new IllegalStateException("Dictionary " + path + " has no column named " + col.trim());
+                }
+                wanted.add(col.trim());
+            }
+        } else {
+            wanted.addAll(available);
+        }
+        columnIndexes = new int[wanted.size()];
+        fieldNames = new String[wanted.size()];
+        for (int i = 0; i < wanted.size(); i++) {
+            columnIndexes[i] = available.indexOf(wanted.get(i));
+            fieldNames[i] = prefix + wanted.get(i);
+        }
+    }
+
+    @Override
+    public DataRecord enhanceData(DataRecord record) {
+        if (record == null) {
+            return null;
+        }
+        Object key = field != null ? record.getFieldValue(field) : record.getIdentifier();
+        String[] values = key != null ? dictionary.lookup(key.toString()) : null;
+        if (values == null) {
+            return dropMisses ? null : record;
+        }
+        for (int i = 0; i < columnIndexes.length; i++) {
+            record.setField(fieldNames[i], values[columnIndexes[i]]);
+        }
+        return record;
+    }
+
+    @Override
+    public void setJobId(String jobId) {
+
+    }
+
+    public DictionaryFile getDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * returns the mapped dictionary for the file, building it from the source first if the source is newer or the
+     * dictionary is keyed by another column. Enhancers using the same file share one mapping.
+     */
+    private static DictionaryFile openDictionary(File source, File file, String keyColumn) throws IOException {
+        String key = file.getCanonicalPath();
+        synchronized (openDictionaries) {
+            if (source != null && (!file.exists() || source.lastModified() > file.lastModified()
+                    || !isKeyedBy(file, source, keyColumn))) {
+                DictionaryFile.build(source, file, keyColumn);
+                openDictionaries.remove(key);
+            }
+            DictionaryFile dictionary = openDictionaries.get(key);
+            if (dictionary == null || dictionary.getLastModified() != file.lastModified()) {
+                dictionary = DictionaryFile.open(file);
+                openDictionaries.put(key, dictionary);
+                logger.info("Mapped dictionary {} with {} entries", file, dictionary.size());
+            }
+            return dictionary;
+        }
+    }
+
+    /**
+     * returns true if the dictionary file was built with the key column (the first column of the source if null)
+     */
+    private static boolean isKeyedBy(File file, File source, String keyColumn) throws IOException {
+        String built;
+        try {
+            built = DictionaryFile.readKeyColumn(file);
+        } catch (IOException e) {
+            // written by an older version; rebuild it
+            return false;
+        }
+        if (keyColumn == null) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(source), StandardCharsets.UTF_8))) {
+                List<String> header = DictionaryFile.readRow(reader);
+                keyColumn = header != null && !header.isEmpty() ? header.get(0) : null;
+            }
+        }
+        return keyColumn != null && keyColumn.equals(built);
+    }
+}
@@ -0,0 +1,464 @@
+package org.cataractsoftware.datasponge.enhancer;
+
+import org.cataractsoftware.datasponge.DataRecord;
+import org.cataractsoftware.datasponge.filter.RecordFilter;
+import org.cataractsoftware.datasponge.util.DaemonThreadFactory;
+import org.cataractsoftware.datasponge.writer.DataWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.ListenableFutureCallback;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * runs the DataRecords emitted by the extractor through the enhancers of a job and hands the results to the DataWriter.
+ * <p/>
+ * The stages are grouped into segments when the pipeline is built. Consecutive per-record enhancers are fused into a
+ * single segment that takes each record through all of them in one pass (no intermediate lists); a segment of
+ * StatelessDataEnhancers is kept separate from its stateful neighbours so it can run in parallel. Batch and
+ * asynchronous enhancers each form their own segment.
+ * <p/>
+ * If any stage is a BatchDataEnhancer or AsyncDataEnhancer, or parallelism is greater than 1 and a stage is stateless,
+ * records from all SpiderThreads are grouped into micro-batches of up to batchSize records; a partial batch is sent
+ * once its oldest record has waited maxDelayMillis. Each segment then processes the whole batch: batch enhancers with
+ * enhanceBatch, asynchronous enhancers with enhanceBatchAsync (the rest of the pipeline runs when the future completes),
+ * stateless segments split across parallelism threads and all other segments one record at a time, in order. Up to
+ * maxInFlight batches may be outstanding; after that submit blocks, so the crawl slows to the speed of the enhancers.
+ * <p/>
+ * If batching is not needed, each record is enhanced and written on the submitting thread as it arrives (the
+ * SpiderThreads then provide the parallelism).
+ * <p/>
+ * If a RecordFilter is set, it is applied on the submitting thread before anything else, so records it drops are
+ * never batched or enhanced.
+ * <p/>
+ * The time spent in each stage and the number of records it received and dropped are tracked (see getStageStats) and
+ * logged when the pipeline is closed.
+ *
+ * @author Christopher Fagiani
+ */
+public class EnhancerPipeline {
+
+    public static final int DEFAULT_BATCH_SIZE = 100;
+    public static final long DEFAULT_BATCH_DELAY_MILLIS = 50;
+
+    private static final Logger logger = LoggerFactory.getLogger(EnhancerPipeline.class);
+
+    private final List<Segment> segments = new ArrayList<Segment>();
+    private final List<StageStats> stageStats = new ArrayList<StageStats>();
+    private final DataWriter output;
+    private final int batchSize;
+    private final long maxDelayMillis;
+    private final int maxInFlight;
+    private final int parallelism;
+    private final Semaphore inFlight;
+    private final Object lock = new Object();
+    private final ScheduledExecutorService timer;
+    private final ExecutorService workers;
+    private volatile RecordFilter recordFilter;
+    private List<DataRecord> pending;
+    private long generation;
+
+    /**
+     * @param stages         enhancers to run, in order (may be null or contain nulls)
+     * @param output         writer that receives the enhanced records
+     * @param batchSize      maximum number of records per batch (ignored unless batching is needed)
+     * @param maxDelayMillis maximum time a record waits for its batch to fill
+     * @param maxInFlight    maximum number of batches being enhanced at once
+     */
+    public EnhancerPipeline(DataEnhancer[] stages, DataWriter output, int batchSize, long maxDelayMillis, int maxInFlight) {
+        this(stages, output, batchSize, maxDelayMillis, maxInFlight, 1);
+    }
+
+    /**
+     * @param stages         enhancers to run, in order (may be null or contain nulls)
+     * @param output         writer that receives the enhanced records
+     * @param batchSize      maximum number of records per batch (ignored unless batching is needed)
+     * @param maxDelayMillis maximum time a record waits for its batch to fill
+     * @param maxInFlight    maximum number of batches being enhanced at once
+     * @param parallelism    number of threads that run stateless segments on a batch
+     */
+    public EnhancerPipeline(DataEnhancer[] stages, DataWriter output, int batchSize, long maxDelayMillis, int maxInFlight,
+                            int parallelism) {
+        this.output = output;
+        this.parallelism = Math.max(1, parallelism);
+        buildSegments(stages != null ? stages : new DataEnhancer[0]);
+        boolean batching = supportsBatching(stages) || (this.parallelism > 1 && hasParallelSegment());
+        this.batchSize = batching ? Math.max(1, batchSize) : 1;
+        this.maxDelayMillis = maxDelayMillis;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.inFlight = new Semaphore(this.maxInFlight);
+        this.pending = new ArrayList<DataRecord>(this.batchSize);
+        this.timer = this.batchSize > 1 ? Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("datasponge-enhancer-batcher-")) : null;
+        this.workers = this.batchSize > 1 && this.parallelism > 1 && hasParallelSegment()
+                ? Executors.newFixedThreadPool(this.parallelism - 1, new DaemonThreadFactory("datasponge-enhancer-worker-")) : null;
+    }
+
+    /**
+     * returns true if any of the enhancers can process batches
+     *
+     * @param stages
+     * @return
+     */
+    public static boolean supportsBatching(DataEnhancer[] stages) {
+        if (stages != null) {
+            for (DataEnhancer stage : stages) {
+                if (stage instanceof BatchDataEnhancer || stage instanceof AsyncDataEnhancer) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * adds a record to the current batch, sending the batch through the pipeline once it is full
+     *
+     * @param record
+     */
+    public void submit(DataRecord record) {
+        if (record == null) {
+            return;
+        }
+        RecordFilter filter = recordFilter;
+        if (filter != null && filter.apply(record) == null) {
+            return;
+        }
+        List<DataRecord> batch = null;
+        synchronized (lock) {
+            pending.add(record);
+            if (pending.size() >= batchSize) {
+                batch = takePending();
+            } else if (pending.size() == 1) {
+                scheduleDeadline(generation);
+            }
+        }
+        if (batch != null) {
+            dispatch(batch);
+        }
+    }
+
+    public void submitAll(Collection<DataRecord> records) {
+        for (DataRecord record : records) {
+            submit(record);
+        }
+    }
+
+    /**
+     * sends the current partial batch and waits until every batch has been written to the output
+     */
+    public void flush() {
+        List<DataRecord> batch;
+        synchronized (lock) {
+            batch = pending.isEmpty() ? null : takePending();
+        }
+        if (batch != null) {
+            dispatch(batch);
+        }
+        inFlight.acquireUninterruptibly(maxInFlight);
+        inFlight.release(maxInFlight);
+    }
+
+    /**
+     * flushes the pipeline, stops its threads and logs the stage statistics
+     */
+    public void close() {
+        flush();
+        if (timer != null) {
+            timer.shutdownNow();
+        }
+        if (workers != null) {
+            workers.shutdownNow();
+        }
+        if (recordFilter != null) {
+            logger.info("Record filter dropped {} records", recordFilter.getDroppedCount());
+        }
+        for (StageStats stats : stageStats) {
+            if (stats.getRecords() > 0) {
+                logger.info("Enhancer stage {}", stats);
+            }
+        }
+    }
+
+    /**
+     * sets the filter and projection applied to records as they are submitted
+     *
+     * @param recordFilter filter to apply (null for none)
+     */
+    public void setRecordFilter(RecordFilter recordFilter) {
+        this.recordFilter = recordFilter;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * returns the number of segments the stages were grouped into
+     *
+     * @return
+     */
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * returns the statistics of each stage, in pipeline order
+     *
+     * @return
+     */
+    public List<StageStats> getStageStats() {
+        return Collections.unmodifiableList(stageStats);
+    }
+
+    private void buildSegments(DataEnhancer[] stages) {
+        Segment current = null;
+        for (DataEnhancer stage : stages) {
+            if (stage == null) {
+                continue;
+            }
+            StageStats stats = new StageStats(stageStats.size(), stage.getClass().getSimpleName());
+            stageStats.add(stats);
+            Kind kind = stage instanceof AsyncDataEnhancer ? Kind.ASYNC
+                    : stage instanceof BatchDataEnhancer ? Kind.BATCH : Kind.RECORD;
+            boolean stateless = stage instanceof StatelessDataEnhancer;
+            if (kind != Kind.RECORD || current == null || current.kind != Kind.RECORD || current.stateless != stateless) {
+                current = new Segment(kind, stateless);
+                segments.add(current);
+            }
+            current.enhancers.add(stage);
+            current.stats.add(stats);
+        }
+    }
+
+    private boolean hasParallelSegment() {
+        for (Segment segment : segments) {
+            if (segment.kind == Kind.RECORD && segment.stateless) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private List<DataRecord> takePending() {
+        List<DataRecord> batch = pending;
+        pending = new ArrayList<DataRecord>(batchSize);
+        generation++;
+        return batch;
+    }
+
+    private void scheduleDeadline(final long batchGeneration) {
+        if (timer == null) {
+            return;
+        }
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                List<DataRecord> batch = null;
+                synchronized (lock) {
+                    if (generation == batchGeneration && !pending.isEmpty()) {
+                        batch = takePending();
+                    }
+                }
+                if (batch != null) {
+                    dispatch(batch);
+                }
+            }
+        }, maxDelayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void dispatch(List<DataRecord> batch) {
+        inFlight.acquireUninterruptibly();
+        run(batch, 0);
+    }
+
+    /**
+     * runs the batch through the segments starting at the one passed in. Returns as soon as an asynchronous stage has
+     * been started; its callback continues with the next segment.
+     *
+     * @param records
+     * @param firstSegment
+     */
+    private void run(List<DataRecord> records, int firstSegment) {
+        try {
+            for (int i = firstSegment; i < segments.size() && !records.isEmpty(); i++) {
+                final Segment segment = segments.get(i);
+                if (segment.kind == Kind.ASYNC) {
+                    final int next = i + 1;
+                    final int count = records.size();
+                    final long start = System.nanoTime();
+                    ListenableFuture<List<DataRecord>> result = ((AsyncDataEnhancer) segment.enhancers.get(0)).enhanceBatchAsync(records);
+                    result.addCallback(new ListenableFutureCallback<List<DataRecord>>() {
+                        @Override
+                        public void onSuccess(List<DataRecord> enhanced) {
+                            List<DataRecord> out = enhanced != null ? enhanced : new ArrayList<DataRecord>();
+                            segment.stats.get(0).add(count, count - out.size(), System.nanoTime() - start);
+                            run(out, next);
+                        }
+
+                        @Override
+                        public void onFailure(Throwable t) {
+                            logger.error("Enhancer failed; dropping batch", t);
+                            inFlight.release();
+                        }
+                    });
+                    return;
+                } else if (segment.kind == Kind.BATCH) {
+                    int count = records.size();
+                    long start = System.nanoTime();
+                    records = ((BatchDataEnhancer) segment.enhancers.get(0)).enhanceBatch(records);
+                    if (records == null) {
+                        records = new ArrayList<DataRecord>();
+                    }
+                    segment.stats.get(0).add(count, count - records.size(), System.nanoTime() - start);
+                } else if (segment.stateless && workers != null && records.size() > 1) {
+                    records = applyParallel(segment, records);
+                } else {
+                    records = apply(segment, records, 0, records.size());
+                }
+            }
+            for (DataRecord record : records) {
+                if (record != null) {
+                    output.addItem(record);
+                }
+            }
+        } catch (RuntimeException e) {
+            logger.error("Enhancer failed; dropping batch", e);
+        }
+        inFlight.release();
+    }
+
+    /**
+     * takes each record in the range through every enhancer of a fused segment. A record whose enhancer throws is
+     * logged and dropped.
+     */
+    private List<DataRecord> apply(Segment segment, List<DataRecord> records, int from, int to) {
+        List<DataRecord> enhanced = new ArrayList<DataRecord>(to - from);
+        int stages = segment.enhancers.size();
+        for (int r = from; r < to; r++) {
+            DataRecord record = records.get(r);
+            for (int s = 0; s < stages && record != null; s++) {
+                long start = System.nanoTime();
+                try {
+                    record = segment.enhancers.get(s).enhanceData(record);
+                } catch (RuntimeException e) {
+                    // only the record that failed is lost, not the rest of the batch
+                    logger.error("Enhancer failed; dropping record " + record.getIdentifier(), e);
+                    record = null;
+                }
+                segment.stats.get(s).add(1, record == null ? 1 : 0, System.nanoTime() - start);
+            }
+            if (record != null) {
+                enhanced.add(record);
+            }
+        }
+        return enhanced;
+    }
+
+    /**
+     * splits the batch into one chunk per thread; the calling thread processes the first chunk. Order is preserved.
+     */
+    private List<DataRecord> applyParallel(final Segment segment, final List<DataRecord> records) {
+        int chunks = Math.min(parallelism, records.size());
+        int chunkSize = (records.size() + chunks - 1) / chunks;
+        List<Future<List<DataRecord>>> results = new ArrayList<Future<List<DataRecord>>>(chunks - 1);
+        for (int from = chunkSize; from < records.size(); from += chunkSize) {
+            final int start = from;
+            final int end = Math.min(records.size(), from + chunkSize);
+            results.add(workers.submit(new Callable<List<DataRecord>>() {
+                @Override
+                public List<DataRecord> call() {
+                    return apply(segment, records, start, end);
+                }
+            }));
+        }
+        List<DataRecord> enhanced = apply(segment, records, 0, Math.min(chunkSize, records.size()));
+        for (Future<List<DataRecord>> result : results) {
+            try {
+                enhanced.addAll(result.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while enhancing batch", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Enhancer failed", e.getCause());
+            }
+        }
+        return enhanced;
+    }
+
+    private enum Kind {
+        RECORD, BATCH, ASYNC
+    }
+
+    /**
+     * consecutive stages run together
+     */
+    private static class Segment {
+        private final Kind kind;
+        private final boolean stateless;
+        private final List<DataEnhancer> enhancers = new ArrayList<DataEnhancer>();
+        private final List<StageStats> stats = new ArrayList<StageStats>();
+
+        Segment(Kind kind, boolean stateless) {
+            this.kind = kind;
+            this.stateless = stateless;
+        }
+    }
+
+    /**
+     * counts of the records a stage received and dropped and the time it spent on them
+     */
+    public static class StageStats {
+        private final int position;
+        private final String name;
+        private final AtomicLong records = new AtomicLong();
+        private final AtomicLong dropped = new AtomicLong();
+        private final AtomicLong nanos = new AtomicLong();
+
+        StageStats(int position, String name) {
+            this.position = position;
+            this.name = name;
+        }
+
+        void add(long count, long drops, long elapsed) {
+            records.addAndGet(count);
+            dropped.addAndGet(drops);
+            nanos.addAndGet(elapsed);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getRecords() {
+            return records.get();
+        }
+
+        public long getDropped() {
+            return dropped.get();
+        }
+
+        public long getNanos() {
+            return nanos.get();
+        }
+
+        @Override
+        public String toString() {
+            long count = records.get();
+            return position + " (" + name + "): " + count + " records, " + dropped.get() + " dropped, "
+                    + (count > 0 ? nanos.get() / 1000 / count : 0) + " us/record";
+        }
+    }
+}
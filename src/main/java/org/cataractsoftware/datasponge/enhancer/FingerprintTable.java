@@ -0,0 +1,261 @@
+package org.cataractsoftware.datasponge.enhancer;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * bounded set of 128-bit fingerprints (the first 16 bytes of the SHA-256 digest of a key). The table is split into
+ * independently locked stripes, each an open-addressing hash table of long pairs with linear probing, so lookups are
+ * O(1) and threads working on different stripes do not contend. Memory use is fixed when the table is created (16
+ * bytes per slot).
+ * <p/>
+ * When a stripe reaches its share of maxEntries, the EvictionPolicy decides what happens to new fingerprints.
+ *
+ * @author Christopher Fagiani
+ */
+public class FingerprintTable {
+
+    private static final double LOAD_FACTOR = 0.75;
+    // largest share of one table whose slot array (two longs per slot, power-of-two capacity) still fits in an array
+    private static final long MAX_ENTRIES_PER_TABLE = (long) (LOAD_FACTOR * (1 << 29));
+    private static final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 is not available", e);
+            }
+        }
+    };
+
+    private final Stripe[] stripes;
+    private final EvictionPolicy policy;
+
+    /**
+     * @param maxEntries maximum number of fingerprints held
+     * @param stripeCount number of independently locked stripes (rounded up to a power of two)
+     * @param policy
+     * @throws IllegalStateException if a stripe's share of maxEntries is too large for one table (use more stripes)
+     */
+    public FingerprintTable(long maxEntries, int stripeCount, EvictionPolicy policy) {
+        int count = stripeCount <= 1 ? 1 : Integer.highestOneBit(stripeCount - 1) << 1;
+        this.policy = policy;
+        this.stripes = new Stripe[count];
+        // the generational policy keeps two tables per stripe, each holding half of the stripe's share
+        long perTable = Math.max(16, maxEntries / count / (policy == EvictionPolicy.GENERATIONAL ? 2 : 1));
+        if (perTable > MAX_ENTRIES_PER_TABLE) {
+            throw new IllegalStateException("Cannot hold " + maxEntries + " fingerprints in " + count
+                    + " stripes; each stripe is limited to " + MAX_ENTRIES_PER_TABLE + " entries per table");
+        }
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new Stripe((int) perTable);
+        }
+    }
+
+    /**
+     * computes the fingerprint of a key (by its string form)
+     *
+     * @param key
+     * @return two longs holding the 128-bit fingerprint
+     */
+    public static long[] fingerprint(Object key) {
+        MessageDigest digest = digests.get();
+        byte[] hash = digest.digest(String.valueOf(key).getBytes(StandardCharsets.UTF_8));
+        long hi = 0;
+        long lo = 0;
+        for (int i = 0; i < 8; i++) {
+            hi = (hi << 8) | (hash[i] & 0xff);
+            lo = (lo << 8) | (hash[i + 8] & 0xff);
+        }
+        return new long[]{hi, lo};
+    }
+
+    /**
+     * adds the fingerprint of the key
+     *
+     * @param key
+     * @return true if the key was not already present
+     */
+    public boolean add(Object key) {
+        long[] fp = fingerprint(key);
+        return add(fp[0], fp[1]);
+    }
+
+    /**
+     * adds a fingerprint
+     *
+     * @param hi
+     * @param lo
+     * @return true if the fingerprint was not already present
+     */
+    public boolean add(long hi, long lo) {
+        if (hi == 0 && lo == 0) {
+            // (0, 0) marks an empty slot
+            lo = 1;
+        }
+        Stripe stripe = stripes[(int) (hi >>> 32) & (stripes.length - 1)];
+        synchronized (stripe) {
+            if (stripe.current.contains(hi, lo) || (stripe.previous != null && stripe.previous.contains(hi, lo))) {
+                return false;
+            }
+            if (stripe.current.isFull()) {
+                switch (policy) {
+                    case GENERATIONAL:
+                        stripe.previous = stripe.current;
+                        stripe.current = new Slots(stripe.previous.maxEntries);
+                        break;
+                    case RESET:
+                        stripe.current.clear();
+                        break;
+                    default:
+                        // table is full; the key is reported as new but not remembered
+                        return true;
+                }
+                stripe.evictions++;
+            }
+            stripe.current.insert(hi, lo);
+            return true;
+        }
+    }
+
+    /**
+     * returns true if the key's fingerprint is present
+     *
+     * @param key
+     * @return
+     */
+    public boolean contains(Object key) {
+        long[] fp = fingerprint(key);
+        return contains(fp[0], fp[1]);
+    }
+
+    /**
+     * returns true if the fingerprint is present
+     *
+     * @param hi
+     * @param lo
+     * @return
+     */
+    public boolean contains(long hi, long lo) {
+        if (hi == 0 && lo == 0) {
+            lo = 1;
+        }
+        Stripe stripe = stripes[(int) (hi >>> 32) & (stripes.length - 1)];
+        synchronized (stripe) {
+            return stripe.current.contains(hi, lo) || (stripe.previous != null && stripe.previous.contains(hi, lo));
+        }
+    }
+
+    /**
+     * returns the number of fingerprints held
+     *
+     * @return
+     */
+    public long size() {
+        long size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.current.size + (stripe.previous != null ? stripe.previous.size : 0);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * returns the number of times a full stripe evicted fingerprints
+     *
+     * @return
+     */
+    public long getEvictionCount() {
+        long count = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                count += stripe.evictions;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * what to do when a stripe is full
+     */
+    public enum EvictionPolicy {
+        /**
+         * keep two generations per stripe; when the current one fills up the previous one is discarded, so the oldest
+         * fingerprints are forgotten first
+         */
+        GENERATIONAL,
+        /**
+         * forget every fingerprint in the stripe
+         */
+        RESET,
+        /**
+         * stop remembering new fingerprints (later duplicates of them will not be detected)
+         */
+        NONE
+    }
+
+    private static class Stripe {
+        private Slots current;
+        private Slots previous;
+        private long evictions;
+
+        Stripe(int maxEntries) {
+            current = new Slots(maxEntries);
+        }
+    }
+
+    /**
+     * open-addressing table of fingerprints stored as pairs of longs
+     */
+    private static class Slots {
+        private final long[] slots;
+        private final int mask;
+        private final int maxEntries;
+        private int size;
+
+        Slots(int maxEntries) {
+            this.maxEntries = maxEntries;
+            int capacity = Integer.highestOneBit((int) Math.ceil(maxEntries / LOAD_FACTOR) - 1) << 1;
+            this.slots = new long[capacity * 2];
+            this.mask = capacity - 1;
+        }
+
+        boolean contains(long hi, long lo) {
+            int idx = (int) lo & mask;
+            while (true) {
+                long h = slots[idx * 2];
+                long l = slots[idx * 2 + 1];
+                if (h == 0 && l == 0) {
+                    return false;
+                }
+                if (h == hi && l == lo) {
+                    return true;
+                }
+                idx = (idx + 1) & mask;
+            }
+        }
+
+        void insert(long hi, long lo) {
+            int idx = (int) lo & mask;
+            while (slots[idx * 2] != 0 || slots[idx * 2 + 1] != 0) {
+                idx = (idx + 1) & mask;
+            }
+            slots[idx * 2] = hi;
+            slots[idx * 2 + 1] = lo;
+            size++;
+        }
+
+        boolean isFull() {
+            return size >= maxEntries;
+        }
+
+        void clear() {
+            Arrays.fill(slots, 0);
+            size = 0;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package org.cataractsoftware.datasponge.enhancer;
+
+/**
+ * count-min sketch of how often keys have been seen recently, used by the LookupCache to decide whether a new entry is
+ * worth more than the one it would evict. Counters saturate at 15 and are all halved once sampleSize increments have
+ * been recorded, so old popularity fades.
+ *
+ * @author Christopher Fagiani
+ */
+class FrequencySketch {
+
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    private static final int[] SEEDS = {0x97cb3127, 0xbe5466cf, 0x7f4a7c15, 0x2545f491};
+
+    private final byte[][] counters;
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    FrequencySketch(int maxEntries) {
+        int width = Integer.highestOneBit(Math.max(16, maxEntries - 1) << 1);
+        counters = new byte[DEPTH][width];
+        mask = width - 1;
+        sampleSize = Math.max(160, 10 * maxEntries);
+    }
+
+    void increment(Object key) {
+        int hash = spread(key.hashCode());
+        for (int i = 0; i < DEPTH; i++) {
+            int index = indexOf(hash, i);
+            if (counters[i][index] < MAX_COUNT) {
+                counters[i][index]++;
+            }
+        }
+        if (++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int min = MAX_COUNT;
+        for (int i = 0; i < DEPTH; i++) {
+            min = Math.min(min, counters[i][indexOf(hash, i)]);
+        }
+        return min;
+    }
+
+    private void reset() {
+        for (byte[] row : counters) {
+            for (int i = 0; i < row.length; i++) {
+                row[i] = (byte) (row[i] >>> 1);
+            }
+        }
+        additions /= 2;
+    }
+
+    private int indexOf(int hash, int row) {
+        int h = (hash ^ SEEDS[row]) * SEEDS[(row + 1) % DEPTH];
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private static int spread(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h;
+    }
+}
@@ -10,13 +10,17 @@ import org.cataractsoftware.datasponge.util.GroovyDataAdapter;
  *
  * @author Christopher Fagiani
  */
-public class GroovyEnhancer extends GroovyDataAdapter implements DataEnhancer {
+public class GroovyEnhancer extends GroovyDataAdapter<DataEnhancer> implements DataEnhancer {
 
     private static final String PROP_NAME = "groovyenhancerclass";
 
 
     public DataRecord enhanceData(DataRecord record) {
-        return (DataRecord) getGroovyObject().invokeMethod("enhanceData", record);
+        LoadedScript<DataEnhancer> script = getScript();
+        if (script.getTyped() != null) {
+            return script.getTyped().enhanceData(record);
+        }
+        return (DataRecord) script.invoke(record);
     }
 
 
@@ -25,4 +29,14 @@ public class GroovyEnhancer extends GroovyDataAdapter implements DataEnhancer {
         return PROP_NAME;
     }
 
+    @Override
+    protected Class<DataEnhancer> getScriptInterface() {
+        return DataEnhancer.class;
+    }
+
+    @Override
+    protected String getScriptMethodName() {
+        return "enhanceData";
+    }
+
 }
@@ -0,0 +1,21 @@
+package org.cataractsoftware.datasponge.enhancer;
+
+import org.cataractsoftware.datasponge.DataRecord;
+
+/**
+ * DuplicateDetector that can express its notion of "duplicate" as a key: two records are duplicates if and only if
+ * their keys are equal. Detectors implementing this interface can be used with the indexed mode of the
+ * DeduplicationEnhancer, which only stores a fingerprint of each key.
+ *
+ * @author Christopher Fagiani
+ */
+public interface KeyedDuplicateDetector extends DuplicateDetector {
+
+    /**
+     * returns the key identifying the record for duplicate detection. Its string form is fingerprinted.
+     *
+     * @param record
+     * @return
+     */
+    Object getDeduplicationKey(DataRecord record);
+}
@@ -0,0 +1,201 @@
+package org.cataractsoftware.datasponge.enhancer;
+
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * size-bounded cache with optional expiry, used by the CachingEnhancer. Two eviction policies are supported:
+ * <ul>
+ * <li>LRU - the least recently used entry is evicted.</li>
+ * <li>TINYLFU - (W-TinyLFU) new entries enter a small LRU window (1% of the cache). An entry leaving the window is only
+ * admitted to the main cache if it has been looked up more often recently (per a FrequencySketch) than the entry it
+ * would evict, so a burst of one-off keys cannot flush out the popular ones. The main cache is a segmented LRU: entries
+ * start in probation and move to the protected segment (80% of the main cache) when they are hit again.</li>
+ * </ul>
+ * Entries older than ttlMillis (if positive) are treated as absent. All methods are synchronized.
+ *
+ * @author Christopher Fagiani
+ */
+public class LookupCache<K, V> {
+
+    private final int maxEntries;
+    private final long ttlMillis;
+    private final Policy policy;
+    private final LinkedHashMap<K, Entry<V>> window = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true);
+    private final LinkedHashMap<K, Entry<V>> probation = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true);
+    private final LinkedHashMap<K, Entry<V>> protectedEntries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true);
+    private final FrequencySketch sketch;
+    private final int windowMax;
+    private final int mainMax;
+    private final int protectedMax;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long expirations;
+
+    public LookupCache(int maxEntries, long ttlMillis, Policy policy) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be positive");
+        }
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+        this.policy = policy;
+        if (policy == Policy.TINYLFU) {
+            windowMax = Math.max(1, maxEntries / 100);
+            mainMax = maxEntries - windowMax;
+            protectedMax = mainMax * 4 / 5;
+            sketch = new FrequencySketch(maxEntries);
+        } else {
+            windowMax = maxEntries;
+            mainMax = 0;
+            protectedMax = 0;
+            sketch = null;
+        }
+    }
+
+    /**
+     * returns the value cached for the key or null if it is absent or expired
+     *
+     * @param key
+     * @return
+     */
+    public synchronized V get(K key) {
+        if (sketch != null) {
+            sketch.increment(key);
+        }
+        Entry<V> entry = window.get(key);
+        if (entry == null) {
+            entry = protectedEntries.get(key);
+        }
+        if (entry == null) {
+            entry = probation.remove(key);
+            if (entry != null) {
+                promote(key, entry);
+            }
+        }
+        if (entry != null && ttlMillis > 0 && System.currentTimeMillis() - entry.created > ttlMillis) {
+            remove(key);
+            expirations++;
+            entry = null;
+        }
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.value;
+    }
+
+    /**
+     * caches the value, evicting another entry if the cache is full
+     *
+     * @param key
+     * @param value
+     */
+    public synchronized void put(K key, V value) {
+        Entry<V> entry = new Entry<V>(value);
+        if (window.containsKey(key)) {
+            window.put(key, entry);
+            return;
+        }
+        if (protectedEntries.containsKey(key)) {
+            protectedEntries.put(key, entry);
+            return;
+        }
+        if (probation.containsKey(key)) {
+            probation.put(key, entry);
+            return;
+        }
+        window.put(key, entry);
+        if (window.size() > windowMax) {
+            Map.Entry<K, Entry<V>> candidate = removeEldest(window);
+            if (policy == Policy.LRU || mainMax == 0) {
+                evictions++;
+            } else {
+                admit(candidate.getKey(), candidate.getValue());
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return window.size() + probation.size() + protectedEntries.size();
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    public synchronized long getExpirationCount() {
+        return expirations;
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * moves an entry leaving the window into probation if there is room or if it is used more often than the entry
+     * that would be evicted for it
+     */
+    private void admit(K key, Entry<V> entry) {
+        if (probation.size() + protectedEntries.size() < mainMax) {
+            probation.put(key, entry);
+            return;
+        }
+        LinkedHashMap<K, Entry<V>> victims = probation.isEmpty() ? protectedEntries : probation;
+        K victim = victims.keySet().iterator().next();
+        if (sketch.frequency(key) > sketch.frequency(victim)) {
+            victims.remove(victim);
+            probation.put(key, entry);
+        }
+        evictions++;
+    }
+
+    /**
+     * moves an entry hit in probation to the protected segment, demoting the least recently used protected entry if
+     * the segment is full
+     */
+    private void promote(K key, Entry<V> entry) {
+        protectedEntries.put(key, entry);
+        if (protectedEntries.size() > protectedMax) {
+            Map.Entry<K, Entry<V>> demoted = removeEldest(protectedEntries);
+            probation.put(demoted.getKey(), demoted.getValue());
+        }
+    }
+
+    private void remove(K key) {
+        if (window.remove(key) == null && protectedEntries.remove(key) == null) {
+            probation.remove(key);
+        }
+    }
+
+    private Map.Entry<K, Entry<V>> removeEldest(LinkedHashMap<K, Entry<V>> map) {
+        Iterator<Map.Entry<K, Entry<V>>> it = map.entrySet().iterator();
+        Map.Entry<K, Entry<V>> eldest = it.next();
+        it.remove();
+        return new AbstractMap.SimpleImmutableEntry<K, Entry<V>>(eldest.getKey(), eldest.getValue());
+    }
+
+    public enum Policy {
+        LRU, TINYLFU
+    }
+
+    private static class Entry<V> {
+        private final V value;
+        private final long created = System.currentTimeMillis();
+
+        Entry(V value) {
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package org.cataractsoftware.datasponge.enhancer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * bounded, in-memory LSH index of MinHash signatures. Each entry is filed under each of its band keys; a lookup only
+ * compares the signature against the entries that share a band key with it, so its cost does not depend on the number
+ * of entries. Entries are held in a ring of maxEntries slots and the oldest entry is forgotten once the ring is full.
+ *
+ * @author Christopher Fagiani
+ */
+public class MinHashIndex {
+
+    private final String[] identifiers;
+    private final int[][] signatures;
+    private final long[][] keys;
+    private final Map<Long, List<Integer>> buckets = new HashMap<Long, List<Integer>>();
+    private int next;
+    private int size;
+    private long evictions;
+
+    public MinHashIndex(int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be positive");
+        }
+        identifiers = new String[maxEntries];
+        signatures = new int[maxEntries][];
+        keys = new long[maxEntries][];
+    }
+
+    /**
+     * looks for an entry at least as similar as the threshold. If there is none, the signature is added.
+     *
+     * @param identifier identifier of the record the signature was computed from
+     * @param signature
+     * @param bandKeys
+     * @param threshold  minimum estimated Jaccard similarity of a match
+     * @return the most similar entry or null if there was no match
+     */
+    public synchronized Match findOrAdd(String identifier, int[] signature, long[] bandKeys, double threshold) {
+        int best = -1;
+        double bestSimilarity = threshold;
+        for (long key : bandKeys) {
+            List<Integer> bucket = buckets.get(key);
+            if (bucket == null) {
+                continue;
+            }
+            for (int slot : bucket) {
+                double similarity = MinHasher.similarity(signature, signatures[slot]);
+                if (similarity >= bestSimilarity) {
+                    best = slot;
+                    bestSimilarity = similarity;
+                }
+            }
+        }
+        if (best >= 0) {
+            return new Match(identifiers[best], bestSimilarity);
+        }
+        add(identifier, signature, bandKeys);
+        return null;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    private void add(String identifier, int[] signature, long[] bandKeys) {
+        int slot = next;
+        if (signatures[slot] != null) {
+            for (long key : keys[slot]) {
+                List<Integer> bucket = buckets.get(key);
+                bucket.remove(Integer.valueOf(slot));
+                if (bucket.isEmpty()) {
+                    buckets.remove(key);
+                }
+            }
+            evictions++;
+        } else {
+            size++;
+        }
+        identifiers[slot] = identifier;
+        signatures[slot] = signature;
+        keys[slot] = bandKeys;
+        for (long key : bandKeys) {
+            List<Integer> bucket = buckets.get(key);
+            if (bucket == null) {
+                bucket = new ArrayList<Integer>(1);
+                buckets.put(key, bucket);
+            }
+            if (!bucket.contains(slot)) {
+                bucket.add(slot);
+            }
+        }
+        next = (next + 1) % identifiers.length;
+    }
+
+    /**
+     * an indexed entry matched by a lookup
+     */
+    public static class Match {
+        private final String identifier;
+        private final double similarity;
+
+        public Match(String identifier, double similarity) {
+            this.identifier = identifier;
+            this.similarity = similarity;
+        }
+
+        public String getIdentifier() {
+            return identifier;
+        }
+
+        public double getSimilarity() {
+            return similarity;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package org.cataractsoftware.datasponge.enhancer;
+
+import java.util.Arrays;
+
+/**
+ * computes MinHash signatures of text and the LSH band keys derived from them. The text is lower-cased and split into
+ * words (runs of letters and digits); each run of shingleSize consecutive words is a shingle. The signature holds, for
+ * each of bands * rows hash functions, the minimum hash over all shingles, so the fraction of positions at which two
+ * signatures agree estimates the Jaccard similarity of their shingle sets.
+ * <p/>
+ * The signature is split into bands of rows values and each band is hashed to a single key. Two texts with Jaccard
+ * similarity s share at least one band key with probability 1 - (1 - s^rows)^bands, which rises steeply around
+ * (1 / bands)^(1 / rows). The hash functions are fixed, so signatures computed on different nodes can be compared.
+ *
+ * @author Christopher Fagiani
+ */
+public class MinHasher {
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    private final int shingleSize;
+    private final int bands;
+    private final int rows;
+    private final long[] seeds;
+
+    public MinHasher(int shingleSize, int bands, int rows) {
+        if (shingleSize < 1 || bands < 1 || rows < 1) {
+            throw new IllegalArgumentException("Shingle size, bands and rows must be positive");
+        }
+        this.shingleSize = shingleSize;
+        this.bands = bands;
+        this.rows = rows;
+        this.seeds = new long[bands * rows];
+        for (int i = 0; i < seeds.length; i++) {
+            seeds[i] = mix(GOLDEN_GAMMA * (i + 1));
+        }
+    }
+
+    /**
+     * computes the signature of the text
+     *
+     * @param text
+     * @return signature or null if the text contains no words
+     */
+    public int[] signature(CharSequence text) {
+        long[] words = new long[shingleSize];
+        int wordCount = 0;
+        int[] sig = new int[seeds.length];
+        Arrays.fill(sig, Integer.MAX_VALUE);
+        long word = FNV_OFFSET;
+        boolean inWord = false;
+        for (int i = 0; i <= text.length(); i++) {
+            char c = i < text.length() ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                word = (word ^ Character.toLowerCase(c)) * FNV_PRIME;
+                inWord = true;
+            } else if (inWord) {
+                words[wordCount % shingleSize] = word;
+                wordCount++;
+                if (wordCount >= shingleSize) {
+                    addShingle(sig, words, wordCount);
+                }
+                word = FNV_OFFSET;
+                inWord = false;
+            }
+        }
+        if (wordCount == 0) {
+            return null;
+        }
+        if (wordCount < shingleSize) {
+            // short text: all of its words form the only shingle
+            addShingle(sig, words, wordCount);
+        }
+        return sig;
+    }
+
+    /**
+     * hashes each band of the signature (and its band number) to a 64-bit key. Keys of different bands can collide, but
+     * that is improbable.
+     *
+     * @param signature
+     * @return
+     */
+    public long[] bandKeys(int[] signature) {
+        long[] keys = new long[bands];
+        for (int b = 0; b < bands; b++) {
+            long h = FNV_OFFSET ^ b;
+            for (int r = 0; r < rows; r++) {
+                h = (h ^ signature[b * rows + r]) * FNV_PRIME;
+            }
+            keys[b] = mix(h + b * GOLDEN_GAMMA);
+        }
+        return keys;
+    }
+
+    /**
+     * estimates the Jaccard similarity of the texts the signatures were computed from
+     *
+     * @param a
+     * @param b
+     * @return
+     */
+    public static double similarity(int[] a, int[] b) {
+        int same = 0;
+        for (int i = 0; i < a.length; i++) {
+            if (a[i] == b[i]) {
+                same++;
+            }
+        }
+        return (double) same / a.length;
+    }
+
+    public int getBands() {
+        return bands;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    private void addShingle(int[] sig, long[] words, int wordCount) {
+        // words is a ring; combine the shingle's words in the order they appeared
+        int count = Math.min(wordCount, shingleSize);
+        long shingle = FNV_OFFSET;
+        for (int i = 0; i < count; i++) {
+            shingle = mix(shingle ^ words[(wordCount - count + i) % shingleSize]);
+        }
+        for (int i = 0; i < seeds.length; i++) {
+            int h = (int) (mix(shingle ^ seeds[i]) >>> 32);
+            if (h < sig[i]) {
+                sig[i] = h;
+            }
+        }
+    }
+
+    /**
+     * MurmurHash3 64 bit finalizer
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
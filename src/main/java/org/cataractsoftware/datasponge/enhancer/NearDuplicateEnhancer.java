@@ -0,0 +1,182 @@
+package org.cataractsoftware.datasponge.enhancer;
+
+import org.cataractsoftware.datasponge.DataRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Data enhancer that detects near-duplicates: records whose text is almost, but not exactly, the same (i.e. pages that
+ * only differ in boilerplate, timestamps or ads). A MinHash signature is computed over a text field of each record and
+ * looked up in banded LSH tables; records that match a previously seen record are dropped or tagged.
+ * <p/>
+ * Two modes are supported (via the neardup.mode property):
+ * <ul>
+ * <li>local - (default) signatures are kept in a bounded in-memory index (MinHashIndex) and candidates sharing a band
+ * are compared with the record, so only records whose estimated similarity reaches neardup.threshold match.</li>
+ * <li>cluster - each band key is checked against the whole ensemble via the ClusterDedupService (the key is owned by one
+ * node). Only band keys are exchanged, so a record matches as soon as one band was seen before; the similarity at which
+ * this happens is controlled by neardup.bands and neardup.rows rather than neardup.threshold. The band keys are kept in
+ * their own tables, apart from those of a DeduplicationEnhancer in cluster mode on the same job.</li>
+ * </ul>
+ * The following properties are supported:
+ * <p/>
+ * neardup.field = name of the field holding the text (defaults to text); records without it are passed through
+ * neardup.shingleSize = number of consecutive words per shingle (defaults to 3)
+ * neardup.bands = number of LSH bands (defaults to 16)
+ * neardup.rows = number of signature values per band (defaults to 8)
+ * neardup.threshold = minimum estimated Jaccard similarity for a match in local mode (defaults to 0.8)
+ * neardup.maxEntries = maximum number of signatures held (defaults to 100000; in cluster mode each signature takes
+ * neardup.bands table entries)
+ * <p/>
+ * In cluster mode the band key tables and the batching of checks sent to other nodes can be tuned like those of the
+ * DeduplicationEnhancer:
+ * <p/>
+ * neardup.stripes = number of independently locked stripes of the tables (defaults to 64)
+ * neardup.evictionPolicy = generational (default), reset or none
+ * neardup.cluster.batchSize = maximum number of band keys sent to a node in one message (defaults to 256)
+ * neardup.cluster.batchDelayMillis = maximum time a check waits for its batch to fill (defaults to 10)
+ * neardup.cluster.timeoutMillis = time to wait for an answer before treating the record as new (defaults to 5000)
+ * neardup.action = drop (default) or tag. Tagged records get a nearDuplicate field set to true and, in local mode,
+ * nearDuplicateOf (identifier of the matched record) and nearDuplicateSimilarity fields.
+ *
+ * @author Christopher Fagiani
+ */
+public class NearDuplicateEnhancer implements DataEnhancer {
+
+    public static final String MODE_PROPERTY = "neardup.mode";
+    public static final String FIELD_PROPERTY = "neardup.field";
+    public static final String SHINGLE_SIZE_PROPERTY = "neardup.shingleSize";
+    public static final String BANDS_PROPERTY = "neardup.bands";
+    public static final String ROWS_PROPERTY = "neardup.rows";
+    public static final String THRESHOLD_PROPERTY = "neardup.threshold";
+    public static final String MAX_ENTRIES_PROPERTY = "neardup.maxEntries";
+    public static final String ACTION_PROPERTY = "neardup.action";
+    public static final String STRIPES_PROPERTY = "neardup.stripes";
+    public static final String EVICTION_PROPERTY = "neardup.evictionPolicy";
+    public static final String BATCH_SIZE_PROPERTY = "neardup.cluster.batchSize";
+    public static final String BATCH_DELAY_PROPERTY = "neardup.cluster.batchDelayMillis";
+    public static final String TIMEOUT_PROPERTY = "neardup.cluster.timeoutMillis";
+    public static final String CLUSTER_NAMESPACE = "neardup";
+    public static final String DUPLICATE_FIELD = "nearDuplicate";
+    public static final String DUPLICATE_OF_FIELD = "nearDuplicateOf";
+    public static final String SIMILARITY_FIELD = "nearDuplicateSimilarity";
+
+    private static final Logger logger = LoggerFactory.getLogger(NearDuplicateEnhancer.class);
+
+    private String field;
+    private double threshold;
+    private Action action;
+    private MinHasher hasher;
+    private MinHashIndex index;
+    private ClusterDedupService clusterDedupService;
+    private ClusterDedupService.Config clusterConfig;
+    private String clusterJobId;
+
+    @Override
+    public void init(Properties props) {
+        Properties p = props != null ? props : new Properties();
+        Mode mode = Mode.valueOf(p.getProperty(MODE_PROPERTY, Mode.LOCAL.name()).toUpperCase());
+        field = p.getProperty(FIELD_PROPERTY, "text");
+        threshold = Double.parseDouble(p.getProperty(THRESHOLD_PROPERTY, "0.8"));
+        action = Action.valueOf(p.getProperty(ACTION_PROPERTY, Action.DROP.name()).toUpperCase());
+        hasher = new MinHasher(Integer.parseInt(p.getProperty(SHINGLE_SIZE_PROPERTY, "3")),
+                Integer.parseInt(p.getProperty(BANDS_PROPERTY, "16")),
+                Integer.parseInt(p.getProperty(ROWS_PROPERTY, "8")));
+        int maxEntries = Integer.parseInt(p.getProperty(MAX_ENTRIES_PROPERTY, "100000"));
+        if (mode == Mode.CLUSTER) {
+            if (clusterDedupService == null) {
+                throw new IllegalStateException("Cluster near-duplicate detection requires a ClusterDedupService");
+            }
+            clusterConfig = new ClusterDedupService.Config((long) maxEntries * hasher.getBands(),
+                    Integer.parseInt(p.getProperty(STRIPES_PROPERTY, "64")),
+                    FingerprintTable.EvictionPolicy.valueOf(p.getProperty(EVICTION_PROPERTY,
+                            FingerprintTable.EvictionPolicy.GENERATIONAL.name()).toUpperCase()),
+                    Integer.parseInt(p.getProperty(BATCH_SIZE_PROPERTY, "256")),
+                    Long.parseLong(p.getProperty(BATCH_DELAY_PROPERTY, "10")),
+                    Long.parseLong(p.getProperty(TIMEOUT_PROPERTY, "5000")));
+            index = null;
+        } else {
+            clusterConfig = null;
+            index = new MinHashIndex(maxEntries);
+        }
+        logger.debug("Near-duplicate detection on field {} matches at similarity ~{}", field,
+                Math.pow(1.0 / hasher.getBands(), 1.0 / hasher.getRows()));
+    }
+
+    @Override
+    public DataRecord enhanceData(DataRecord record) {
+        if (record == null) {
+            return null;
+        }
+        Object text = record.getFieldValue(field);
+        if (text == null) {
+            return record;
+        }
+        int[] signature = hasher.signature(text.toString());
+        if (signature == null) {
+            return record;
+        }
+        long[] bandKeys = hasher.bandKeys(signature);
+        MinHashIndex.Match match;
+        if (index != null) {
+            match = index.findOrAdd(record.getIdentifier(), signature, bandKeys, threshold);
+        } else {
+            match = checkCluster(bandKeys);
+        }
+        if (match == null) {
+            return record;
+        }
+        if (action == Action.DROP) {
+            return null;
+        }
+        record.setField(DUPLICATE_FIELD, Boolean.TRUE);
+        if (match.getIdentifier() != null) {
+            record.setField(DUPLICATE_OF_FIELD, match.getIdentifier());
+            record.setField(SIMILARITY_FIELD, match.getSimilarity());
+        }
+        return record;
+    }
+
+    @Override
+    public void setJobId(String jobId) {
+        this.clusterJobId = ClusterDedupService.namespace(jobId, CLUSTER_NAMESPACE);
+        if (clusterConfig != null) {
+            clusterDedupService.register(clusterJobId, clusterConfig);
+        }
+    }
+
+    public void setClusterDedupService(ClusterDedupService clusterDedupService) {
+        this.clusterDedupService = clusterDedupService;
+    }
+
+    /**
+     * records every band key with its owner; the record is a near-duplicate if any of them had been seen
+     *
+     * @param bandKeys
+     * @return
+     */
+    private MinHashIndex.Match checkCluster(long[] bandKeys) {
+        List<String> keys = new ArrayList<String>(bandKeys.length);
+        for (long key : bandKeys) {
+            keys.add(Long.toHexString(key));
+        }
+        for (boolean seen : clusterDedupService.checkAndSetAll(clusterJobId, keys)) {
+            if (seen) {
+                return new MinHashIndex.Match(null, 0);
+            }
+        }
+        return null;
+    }
+
+    public enum Mode {
+        LOCAL, CLUSTER
+    }
+
+    public enum Action {
+        DROP, TAG
+    }
+}
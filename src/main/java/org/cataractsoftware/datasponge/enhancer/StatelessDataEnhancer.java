@@ -0,0 +1,11 @@
+package org.cataractsoftware.datasponge.enhancer;
+
+/**
+ * marker for enhancers whose result for a record does not depend on which other records they have seen (or in what
+ * order), i.e. lookups and projections but not deduplication. The EnhancerPipeline may run a stateless stage on the
+ * records of a batch in parallel and in any order.
+ *
+ * @author Christopher Fagiani
+ */
+public interface StatelessDataEnhancer extends DataEnhancer {
+}
@@ -11,17 +11,31 @@ import java.util.Collection;
  *
  * @author Christopher Fagiani
  */
-public class GroovyExtractor extends GroovyDataAdapter implements DataExtractor {
+public class GroovyExtractor extends GroovyDataAdapter<DataExtractor> implements DataExtractor {
 
     private static final String PROP_NAME = "groovyextractorclass";
 
 
     public Collection<DataRecord> extractData(String url, Page page) {
-        return (Collection<DataRecord>) getGroovyObject().invokeMethod("extractData", new Object[]{url, page});
+        LoadedScript<DataExtractor> script = getScript();
+        if (script.getTyped() != null) {
+            return script.getTyped().extractData(url, page);
+        }
+        return (Collection<DataRecord>) script.invoke(url, page);
     }
 
     @Override
     protected String getScriptPropertyName() {
         return PROP_NAME;
     }
+
+    @Override
+    protected Class<DataExtractor> getScriptInterface() {
+        return DataExtractor.class;
+    }
+
+    @Override
+    protected String getScriptMethodName() {
+        return "extractData";
+    }
 }
@@ -0,0 +1,336 @@
+package org.cataractsoftware.datasponge.filter;
+
+import org.cataractsoftware.datasponge.DataRecord;
+
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * recursive-descent parser that compiles a filter expression into a tree of RecordPredicates. Literals are converted
+ * and regular expressions compiled while parsing, so nothing is re-parsed per record.
+ * <p/>
+ * Grammar:
+ * <p/>
+ * expr = and ( ("or" | "||") and )*
+ * and = unary ( ("and" | "&&") unary )*
+ * unary = ("not" | "!") unary | "(" expr ")" | "exists" field | field op literal
+ * op = "==" | "!=" | "&lt;" | "&lt;=" | "&gt;" | "&gt;=" | "=~" (regular expression that must match part of the value)
+ * literal = 'string' | "string" | number | true | false | null
+ * <p/>
+ * A field is a name made of letters, digits, '_', '-' and '.'; @id and @type refer to the record identifier and type.
+ * Numbers are compared numerically when the field value is a number or a numeric string; other values are compared as
+ * strings. Missing fields only match "== null" and "!= literal".
+ *
+ * @author Christopher Fagiani
+ */
+class FilterExpressionParser {
+
+    static final String ID_FIELD = "@id";
+    static final String TYPE_FIELD = "@type";
+
+    private final String text;
+    private int pos;
+
+    private FilterExpressionParser(String text) {
+        this.text = text;
+    }
+
+    /**
+     * compiles the expression
+     *
+     * @param expression
+     * @return
+     * @throws IllegalArgumentException if the expression is invalid
+     */
+    static RecordPredicate parse(String expression) {
+        FilterExpressionParser parser = new FilterExpressionParser(expression);
+        RecordPredicate result = parser.parseOr();
+        parser.skipWhitespace();
+        if (parser.pos < expression.length()) {
+            throw parser.error("Unexpected input");
+        }
+        return result;
+    }
+
+    private RecordPredicate parseOr() {
+        RecordPredicate left = parseAnd();
+        while (acceptWord("or") || accept("||")) {
+            final RecordPredicate l = left;
+            final RecordPredicate r = parseAnd();
+            left = new RecordPredicate() {
+                @Override
+                public boolean matches(DataRecord record) {
+                    return l.matches(record) || r.matches(record);
+                }
+            };
+        }
+        return left;
+    }
+
+    private RecordPredicate parseAnd() {
+        RecordPredicate left = parseUnary();
+        while (acceptWord("and") || accept("&&")) {
+            final RecordPredicate l = left;
+            final RecordPredicate r = parseUnary();
+            left = new RecordPredicate() {
+                @Override
+                public boolean matches(DataRecord record) {
+                    return l.matches(record) && r.matches(record);
+                }
+            };
+        }
+        return left;
+    }
+
+    private RecordPredicate parseUnary() {
+        if (acceptWord("not") || (!peek("!=") && accept("!"))) {
+            final RecordPredicate inner = parseUnary();
+            return new RecordPredicate() {
+                @Override
+                public boolean matches(DataRecord record) {
+                    return !inner.matches(record);
+                }
+            };
+        }
+        if (accept("(")) {
+            RecordPredicate inner = parseOr();
+            if (!accept(")")) {
+                throw error("Expected ')'");
+            }
+            return inner;
+        }
+        if (acceptWord("exists")) {
+            final String field = parseField();
+            return new RecordPredicate() {
+                @Override
+                public boolean matches(DataRecord record) {
+                    return valueOf(record, field) != null;
+                }
+            };
+        }
+        return parseComparison();
+    }
+
+    private RecordPredicate parseComparison() {
+        final String field = parseField();
+        String op = parseOperator();
+        if ("=~".equals(op)) {
+            Object literal = parseLiteral();
+            if (!(literal instanceof String)) {
+                throw error("Expected a quoted regular expression");
+            }
+            final Pattern pattern;
+            try {
+                pattern = Pattern.compile((String) literal);
+            } catch (PatternSyntaxException e) {
+                throw error("Invalid regular expression: " + e.getDescription());
+            }
+            return new RecordPredicate() {
+                @Override
+                public boolean matches(DataRecord record) {
+                    Object val = valueOf(record, field);
+                    return val != null && pattern.matcher(val.toString()).find();
+                }
+            };
+        }
+        final Object literal = parseLiteral();
+        final Comparison comparison = Comparison.forOperator(op);
+        if (literal == null && comparison != Comparison.EQ && comparison != Comparison.NE) {
+            throw error("null can only be compared with == or !=");
+        }
+        return new RecordPredicate() {
+            @Override
+            public boolean matches(DataRecord record) {
+                return comparison.test(valueOf(record, field), literal);
+            }
+        };
+    }
+
+    private String parseField() {
+        skipWhitespace();
+        int start = pos;
+        if (pos < text.length() && text.charAt(pos) == '@') {
+            pos++;
+        }
+        while (pos < text.length()) {
+            char c = text.charAt(pos);
+            if (isFieldChar(c)) {
+                pos++;
+            } else {
+                break;
+            }
+        }
+        if (pos == start) {
+            throw error("Expected a field name");
+        }
+        return text.substring(start, pos);
+    }
+
+    private String parseOperator() {
+        String[] ops = {"==", "!=", "<=", ">=", "=~", "<", ">"};
+        for (String op : ops) {
+            if (accept(op)) {
+                return op;
+            }
+        }
+        throw error("Expected a comparison operator");
+    }
+
+    private Object parseLiteral() {
+        skipWhitespace();
+        if (pos >= text.length()) {
+            throw error("Expected a value");
+        }
+        char c = text.charAt(pos);
+        if (c == '\'' || c == '"') {
+            StringBuilder builder = new StringBuilder();
+            pos++;
+            while (pos < text.length() && text.charAt(pos) != c) {
+                if (text.charAt(pos) == '\\' && pos + 1 < text.length()) {
+                    pos++;
+                }
+                builder.append(text.charAt(pos++));
+            }
+            if (pos >= text.length()) {
+                throw error("Unterminated string");
+            }
+            pos++;
+            return builder.toString();
+        }
+        if (acceptWord("true")) {
+            return Boolean.TRUE;
+        }
+        if (acceptWord("false")) {
+            return Boolean.FALSE;
+        }
+        if (acceptWord("null")) {
+            return null;
+        }
+        int start = pos;
+        while (pos < text.length() && "+-.0123456789eE".indexOf(text.charAt(pos)) >= 0) {
+            pos++;
+        }
+        try {
+            return Double.valueOf(text.substring(start, pos));
+        } catch (NumberFormatException e) {
+            pos = start;
+            throw error("Expected a value");
+        }
+    }
+
+    private static Object valueOf(DataRecord record, String field) {
+        if (ID_FIELD.equals(field)) {
+            return record.getIdentifier();
+        } else if (TYPE_FIELD.equals(field)) {
+            return record.getType();
+        }
+        return record.getFieldValue(field);
+    }
+
+    private void skipWhitespace() {
+        while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+            pos++;
+        }
+    }
+
+    private boolean peek(String token) {
+        skipWhitespace();
+        return text.startsWith(token, pos);
+    }
+
+    private boolean accept(String token) {
+        if (peek(token)) {
+            pos += token.length();
+            return true;
+        }
+        return false;
+    }
+
+    private boolean acceptWord(String word) {
+        skipWhitespace();
+        int end = pos + word.length();
+        if (text.regionMatches(true, pos, word, 0, word.length())
+                && (end == text.length() || !isFieldChar(text.charAt(end)))) {
+            pos = end;
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean isFieldChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '-' || c == '.';
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(message + " at position " + pos + " of filter expression: " + text);
+    }
+
+    /**
+     * comparison operators; the literal was converted when the expression was parsed
+     */
+    private enum Comparison {
+        EQ, NE, LT, LE, GT, GE;
+
+        static Comparison forOperator(String op) {
+            switch (op) {
+                case "==":
+                    return EQ;
+                case "!=":
+                    return NE;
+                case "<":
+                    return LT;
+                case "<=":
+                    return LE;
+                case ">":
+                    return GT;
+                default:
+                    return GE;
+            }
+        }
+
+        boolean test(Object val, Object literal) {
+            if (val == null || literal == null) {
+                boolean same = val == literal;
+                return this == EQ ? same : this == NE && !same;
+            }
+            int cmp;
+            if (literal instanceof Double) {
+                Double num = toNumber(val);
+                if (num == null) {
+                    return this == NE;
+                }
+                cmp = Double.compare(num, (Double) literal);
+            } else if (literal instanceof Boolean) {
+                boolean same = literal.toString().equalsIgnoreCase(val.toString());
+                return this == EQ ? same : this == NE ? !same : false;
+            } else {
+                cmp = val.toString().compareTo((String) literal);
+            }
+            switch (this) {
+                case EQ:
+                    return cmp == 0;
+                case NE:
+                    return cmp != 0;
+                case LT:
+                    return cmp < 0;
+                case LE:
+                    return cmp <= 0;
+                case GT:
+                    return cmp > 0;
+                default:
+                    return cmp >= 0;
+            }
+        }
+
+        private static Double toNumber(Object val) {
+            if (val instanceof Number) {
+                return ((Number) val).doubleValue();
+            }
+            try {
+                return Double.valueOf(val.toString().trim());
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package org.cataractsoftware.datasponge.filter;
+
+import org.cataractsoftware.datasponge.DataRecord;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * declarative filter and projection applied to records as soon as they are extracted, so records and fields that are
+ * not needed are never enhanced, buffered or sent to the broker. The filter expression is parsed once (see
+ * FilterExpressionParser) into a tree of RecordPredicates; evaluating it for a record does no parsing or reflection.
+ * <p/>
+ * Records that do not match the expression are dropped. If a set of fields is given, every other field is removed
+ * from the records that remain (the identifier and type are always kept). Fields read by enhancers must be included
+ * in the projection since it is applied before them.
+ *
+ * @author Christopher Fagiani
+ */
+public class RecordFilter {
+
+    private final String expression;
+    private final RecordPredicate predicate;
+    private final Set<String> fields;
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * @param expression filter expression (null or blank to keep every record)
+     * @param fields     names of the fields to keep (null or empty to keep every field)
+     * @throws IllegalArgumentException if the expression is invalid
+     */
+    public RecordFilter(String expression, Collection<String> fields) {
+        this.expression = expression;
+        this.predicate = expression != null && !expression.trim().isEmpty()
+                ? FilterExpressionParser.parse(expression) : null;
+        this.fields = fields != null && !fields.isEmpty()
+                ? Collections.unmodifiableSet(new HashSet<String>(fields)) : null;
+    }
+
+    /**
+     * builds a filter from the job settings, returning null if neither is set
+     *
+     * @param expression
+     * @param fields
+     * @return
+     */
+    public static RecordFilter build(String expression, Collection<String> fields) {
+        if ((expression == null || expression.trim().isEmpty()) && (fields == null || fields.isEmpty())) {
+            return null;
+        }
+        return new RecordFilter(expression, fields);
+    }
+
+    /**
+     * returns the record (with only the projected fields) or null if it does not match the filter
+     *
+     * @param record
+     * @return
+     */
+    public DataRecord apply(DataRecord record) {
+        if (predicate != null && !predicate.matches(record)) {
+            dropped.incrementAndGet();
+            return null;
+        }
+        if (fields != null) {
+            record.retainFields(fields);
+        }
+        return record;
+    }
+
+    public boolean matches(DataRecord record) {
+        return predicate == null || predicate.matches(record);
+    }
+
+    public String getExpression() {
+        return expression;
+    }
+
+    public Set<String> getFields() {
+        return fields;
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+}
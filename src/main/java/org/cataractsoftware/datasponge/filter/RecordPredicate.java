@@ -0,0 +1,14 @@
+package org.cataractsoftware.datasponge.filter;
+
+import org.cataractsoftware.datasponge.DataRecord;
+
+/**
+ * a condition on a DataRecord. Instances are built once, when a filter expression is compiled, and are evaluated for
+ * every record so they must be thread-safe.
+ *
+ * @author Christopher Fagiani
+ */
+public interface RecordPredicate {
+
+    boolean matches(DataRecord record);
+}
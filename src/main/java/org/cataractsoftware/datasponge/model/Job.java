@@ -27,6 +27,11 @@ public class Job {
     private String guid;
     private String coordinatorId;
     private Long continuousCrawlInterval;
+    private Integer enhancerBatchSize;
+    private Long enhancerBatchDelay;
+    private Integer enhancerParallelism;
+    private String recordFilter;
+    private Set<String> recordFields;
 
     public Job() {
         submissionTime = new Date();
@@ -145,6 +150,46 @@ public class Job {
         this.continuousCrawlInterval = continuousCrawlInterval;
     }
 
+    public Integer getEnhancerBatchSize() {
+        return enhancerBatchSize;
+    }
+
+    public void setEnhancerBatchSize(Integer enhancerBatchSize) {
+        this.enhancerBatchSize = enhancerBatchSize;
+    }
+
+    public Long getEnhancerBatchDelay() {
+        return enhancerBatchDelay;
+    }
+
+    public void setEnhancerBatchDelay(Long enhancerBatchDelay) {
+        this.enhancerBatchDelay = enhancerBatchDelay;
+    }
+
+    public Integer getEnhancerParallelism() {
+        return enhancerParallelism;
+    }
+
+    public void setEnhancerParallelism(Integer enhancerParallelism) {
+        this.enhancerParallelism = enhancerParallelism;
+    }
+
+    public String getRecordFilter() {
+        return recordFilter;
+    }
+
+    public void setRecordFilter(String recordFilter) {
+        this.recordFilter = recordFilter;
+    }
+
+    public Set<String> getRecordFields() {
+        return recordFields;
+    }
+
+    public void setRecordFields(Set<String> recordFields) {
+        this.recordFields = recordFields;
+    }
+
     public PluginConfig getCoordinatorDataWriter() {
         return coordinatorDataWriter;
     }
@@ -154,7 +199,7 @@ public class Job {
     }
 
     public enum Status {
-        SUBMITTED, PROCESSING, NODE_COMPLETE, COMPLETE, ABORTED
+        SUBMITTED, PROCESSING, NODE_COMPLETE, COMPLETE, ABORTED, FAILED
     }
 
     public enum Mode {
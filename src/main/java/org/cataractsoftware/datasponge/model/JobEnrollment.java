@@ -1,5 +1,8 @@
 package org.cataractsoftware.datasponge.model;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * data structure used to have a server enroll in a crawl job
  *
@@ -11,6 +14,7 @@ public class JobEnrollment {
     private String hostId;
     private long lastHeartbeat=0l;
     private boolean complete = false;
+    private List<String> shardLocations = new ArrayList<String>();
 
     public JobEnrollment() {
 
@@ -53,6 +57,14 @@ public class JobEnrollment {
         this.complete = complete;
     }
 
+    public List<String> getShardLocations() {
+        return shardLocations;
+    }
+
+    public void setShardLocations(List<String> shardLocations) {
+        this.shardLocations = shardLocations;
+    }
+
     @Override
     public int hashCode() {
         final int prime = 31;
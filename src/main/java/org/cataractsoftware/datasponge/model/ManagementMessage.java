@@ -47,7 +47,7 @@ public class ManagementMessage {
     }
 
     public enum Type {
-        HEARTBEAT, ENROLLMENT, ASSIGNMENT, NODE_FAILURE,COMPLETE, ABORT
+        HEARTBEAT, ENROLLMENT, ASSIGNMENT, NODE_FAILURE,COMPLETE, ABORT, MERGED
     }
 
 
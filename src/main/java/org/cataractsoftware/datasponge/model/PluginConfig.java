@@ -12,6 +12,7 @@ public class PluginConfig {
     private Type type;
     private String className;
     private Properties pluginProperties;
+    private PluginConfig delegate;
 
     public Type getType() {
         return type;
@@ -37,6 +38,14 @@ public class PluginConfig {
         this.pluginProperties = pluginProperties;
     }
 
+    public PluginConfig getDelegate() {
+        return delegate;
+    }
+
+    public void setDelegate(PluginConfig delegate) {
+        this.delegate = delegate;
+    }
+
     public enum Type {
         DATA_EXTRACTOR, DATA_WRITER, DATA_ENHANCER
     }
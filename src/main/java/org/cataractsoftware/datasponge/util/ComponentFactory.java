@@ -2,9 +2,20 @@ package org.cataractsoftware.datasponge.util;
 
 import org.cataractsoftware.datasponge.DataAdapter;
 import org.cataractsoftware.datasponge.engine.JobExecutor;
+import org.cataractsoftware.datasponge.enhancer.ClusterDedupService;
+import org.cataractsoftware.datasponge.enhancer.DataEnhancer;
+import org.cataractsoftware.datasponge.enhancer.DeduplicationEnhancer;
+import org.cataractsoftware.datasponge.enhancer.DelegatingDataEnhancer;
+import org.cataractsoftware.datasponge.enhancer.NearDuplicateEnhancer;
 import org.cataractsoftware.datasponge.model.PluginConfig;
 import org.cataractsoftware.datasponge.support.DynamicJmsListenerAnnotationBeanPostProcessor;
+import org.cataractsoftware.datasponge.writer.AbstractDataWriter;
+import org.cataractsoftware.datasponge.writer.DataWriter;
+import org.cataractsoftware.datasponge.writer.DelegatingDataWriter;
+import org.cataractsoftware.datasponge.writer.PartitionedDataWriter;
+import org.cataractsoftware.datasponge.writer.RecordStreamRegistry;
 import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.NoSuchBeanDefinitionException;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.ApplicationContextAware;
@@ -12,6 +23,7 @@ import org.springframework.stereotype.Component;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Properties;
 
 /**
  * utility class for constructing job-specific components
@@ -23,6 +35,12 @@ public class ComponentFactory implements ApplicationContextAware {
 
     private ApplicationContext applicationContext;
 
+    @Autowired
+    private RecordStreamRegistry recordStreamRegistry;
+
+    @Autowired
+    private ClusterDedupService clusterDedupService;
+
     /**
      * helper method to reflectively instantiate and initialize the pluggable
      * DataAdapter components (DataExtractor and DataWriter instances).
@@ -44,7 +62,20 @@ public class ComponentFactory implements ApplicationContextAware {
                     //try to instantiate as non-spring class
                     adapter = (T) writerClass.newInstance();
                 }
+                if (adapter instanceof AbstractDataWriter) {
+                    ((AbstractDataWriter) adapter).setRecordStreamRegistry(recordStreamRegistry);
+                }
+                if (adapter instanceof DeduplicationEnhancer) {
+                    ((DeduplicationEnhancer) adapter).setClusterDedupService(clusterDedupService);
+                } else if (adapter instanceof NearDuplicateEnhancer) {
+                    ((NearDuplicateEnhancer) adapter).setClusterDedupService(clusterDedupService);
+                }
                 adapter.init(adapterConf.getPluginProperties());
+                if (adapter instanceof DelegatingDataWriter && adapterConf.getDelegate() != null) {
+                    ((DelegatingDataWriter) adapter).setDelegate((DataWriter) getNewDataAdapter(jobId, adapterConf.getDelegate()));
+                } else if (adapter instanceof DelegatingDataEnhancer && adapterConf.getDelegate() != null) {
+                    ((DelegatingDataEnhancer) adapter).setDelegate((DataEnhancer) getNewDataAdapter(jobId, adapterConf.getDelegate()));
+                }
                 adapter.setJobId(jobId);
                 return adapter;
             } catch (ReflectiveOperationException ex) {
@@ -62,27 +93,73 @@ public class ComponentFactory implements ApplicationContextAware {
     }
 
     /**
-     * helper to initialize an array of DataAdapter components. It is assumed
-     * that the fully-qualified class names of each component is passed in a
-     * comma-delimited string via the pipelineClasses argument.
+     * helper to initialize the DataAdapter components of a pipeline, in the order they are configured. Stages without
+     * a class name are skipped; a class that cannot be instantiated fails the whole pipeline (see getNewDataAdapter).
      *
      * @param pipelineStages array of PluginConfig objects describing the data pipeline
-     * @return array of T
+     * @return list of T (empty if there are no stages)
      */
-    public <T extends DataAdapter> T[] getNewDataAdapterPipeline(String jobId,
-                                                                 PluginConfig[] pipelineStages) {
-        T[] adapters = null;
+    public <T extends DataAdapter> List<T> getNewDataAdapterPipeline(String jobId,
+                                                                     PluginConfig[] pipelineStages) {
+        List<T> pipeline = new ArrayList<T>();
         if (pipelineStages != null) {
             for (PluginConfig conf : pipelineStages) {
-                List<T> pipeline = new ArrayList<T>();
                 T item = getNewDataAdapter(jobId, conf);
                 if (item != null) {
                     pipeline.add(item);
                 }
-                adapters = pipeline.toArray(adapters);
             }
         }
-        return adapters;
+        return pipeline;
+    }
+
+    /**
+     * builds the writer used by the coordinator to consume the output of a job. If the plugin properties request more
+     * than one partition (coordinator.partitions), the writer is wrapped in a PartitionedDataWriter that either owns one
+     * writer per partition or, in merge mode, shares a single writer across all partitions.
+     *
+     * @param jobId
+     * @param adapterConf
+     * @return initialized writer or null if adapterConf is null
+     */
+    public DataWriter getNewCoordinatorWriter(String jobId, PluginConfig adapterConf) {
+        Properties props = adapterConf != null ? adapterConf.getPluginProperties() : null;
+        int partitionCount = props != null ? Integer.parseInt(props.getProperty(PartitionedDataWriter.PARTITIONS_PROP, "1")) : 1;
+        if (partitionCount <= 1) {
+            return getNewDataAdapter(jobId, adapterConf);
+        }
+        PartitionedDataWriter.Mode mode = PartitionedDataWriter.Mode.valueOf(
+                props.getProperty(PartitionedDataWriter.MODE_PROP, PartitionedDataWriter.Mode.PARTITIONED.name()).toUpperCase());
+        DataWriter[] partitions = new DataWriter[partitionCount];
+        for (int i = 0; i < partitionCount; i++) {
+            if (mode == PartitionedDataWriter.Mode.MERGE && i > 0) {
+                partitions[i] = partitions[0];
+            } else {
+                partitions[i] = getNewDataAdapter(jobId, configForPartition(adapterConf, i));
+            }
+        }
+        PartitionedDataWriter writer = new PartitionedDataWriter(partitions, partitionCount,
+                props.getProperty(PartitionedDataWriter.KEY_PROP));
+        writer.setJobId(jobId);
+        return writer;
+    }
+
+    /**
+     * copies the plugin configuration (and that of any delegate) with {partition} replaced in its property values
+     *
+     * @param conf
+     * @param partition
+     * @return
+     */
+    private PluginConfig configForPartition(PluginConfig conf, int partition) {
+        PluginConfig partitionConf = new PluginConfig();
+        partitionConf.setType(conf.getType());
+        partitionConf.setClassName(conf.getClassName());
+        partitionConf.setPluginProperties(PartitionedDataWriter.propertiesForPartition(conf.getPluginProperties(), partition));
+        if (conf.getDelegate() != null) {
+            partitionConf.setDelegate(configForPartition(conf.getDelegate(), partition));
+        }
+        return partitionConf;
     }
 
     public JobExecutor buildJobExecutor() {
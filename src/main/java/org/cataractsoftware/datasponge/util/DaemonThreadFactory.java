@@ -0,0 +1,30 @@
+package org.cataractsoftware.datasponge.util;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * thread factory for background pools: threads are daemons (so they never keep the JVM alive) and are named with
+ * a prefix followed by a sequence number.
+ *
+ * @author Christopher Fagiani
+ */
+public class DaemonThreadFactory implements ThreadFactory {
+
+    private final String prefix;
+    private final AtomicInteger count = new AtomicInteger(0);
+
+    /**
+     * @param prefix thread name prefix (for example "datasponge-writer-flusher-")
+     */
+    public DaemonThreadFactory(String prefix) {
+        this.prefix = prefix;
+    }
+
+    @Override
+    public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, prefix + count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    }
+}
@@ -0,0 +1,278 @@
+package org.cataractsoftware.datasponge.util;
+
+import org.cataractsoftware.datasponge.DataRecord;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * compact binary codec for DataRecords. An encoded message holds one or more records and starts with a dictionary of
+ * the field names used by those records, so each name is written once per message and fields refer to it by index.
+ * Lengths and integers are varints and values are written with a one-byte type tag: strings, numbers, booleans, dates
+ * and byte arrays are encoded natively and any other Serializable value falls back to Java serialization (values that
+ * are not Serializable are written as their string form).
+ * <p/>
+ * Layout: version byte, name count, names, record count, then for each record its identifier, type, field count and
+ * (name index, tagged value) pairs. Strings are written as varint (length + 1) followed by UTF-8 bytes; a length of 0
+ * denotes null.
+ *
+ * @author Christopher Fagiani
+ */
+public class DataRecordCodec {
+
+    public static final byte VERSION = 1;
+
+    private static final byte NULL_VAL = 0;
+    private static final byte STRING_VAL = 1;
+    private static final byte INT_VAL = 2;
+    private static final byte LONG_VAL = 3;
+    private static final byte DOUBLE_VAL = 4;
+    private static final byte FLOAT_VAL = 5;
+    private static final byte BOOLEAN_VAL = 6;
+    private static final byte DATE_VAL = 7;
+    private static final byte BYTES_VAL = 8;
+    private static final byte SERIALIZED_VAL = 9;
+
+    private DataRecordCodec() {
+    }
+
+    /**
+     * encodes a single record
+     *
+     * @param record
+     * @return
+     */
+    public static byte[] encode(DataRecord record) {
+        return encode(Collections.singletonList(record));
+    }
+
+    /**
+     * encodes the records as a single message sharing one field-name dictionary
+     *
+     * @param records
+     * @return
+     */
+    public static byte[] encode(Collection<DataRecord> records) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128 * Math.max(1, records.size()));
+        try {
+            encode(records, bytes);
+        } catch (IOException e) {
+            // cannot happen when writing to memory
+            throw new IllegalStateException("Could not encode records", e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * writes the records as a single message to the stream
+     *
+     * @param records
+     * @param stream
+     * @throws IOException
+     */
+    public static void encode(Collection<DataRecord> records, OutputStream stream) throws IOException {
+        Map<String, Integer> names = new HashMap<String, Integer>();
+        List<String> nameList = new ArrayList<String>();
+        for (DataRecord record : records) {
+            for (Map.Entry<String, Object> field : record.getFields()) {
+                if (!names.containsKey(field.getKey())) {
+                    names.put(field.getKey(), nameList.size());
+                    nameList.add(field.getKey());
+                }
+            }
+        }
+        DataOutputStream out = new DataOutputStream(stream);
+        out.writeByte(VERSION);
+        VarInt.writeUnsigned(out, nameList.size());
+        for (String name : nameList) {
+            writeString(out, name);
+        }
+        VarInt.writeUnsigned(out, records.size());
+        for (DataRecord record : records) {
+            writeString(out, record.getIdentifier());
+            writeString(out, record.getType());
+            VarInt.writeUnsigned(out, record.getFieldCount());
+            for (Map.Entry<String, Object> field : record.getFields()) {
+                VarInt.writeUnsigned(out, names.get(field.getKey()));
+                writeValue(out, field.getValue());
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * decodes a message holding a single record
+     *
+     * @param data
+     * @return
+     * @throws IOException if the data is not a valid message
+     */
+    public static DataRecord decode(byte[] data) throws IOException {
+        List<DataRecord> records = decodeAll(ByteBuffer.wrap(data));
+        if (records.size() != 1) {
+            throw new IOException("Expected a single record but message contained " + records.size());
+        }
+        return records.get(0);
+    }
+
+    /**
+     * decodes every record in a message
+     *
+     * @param data
+     * @return
+     * @throws IOException if the data is not a valid message
+     */
+    public static List<DataRecord> decodeAll(byte[] data) throws IOException {
+        return decodeAll(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * decodes every record in the message between the buffer's position and limit (advancing the position). The
+     * buffer may be a view of a memory-mapped file; values are decoded straight from it.
+     *
+     * @param buf
+     * @return
+     * @throws IOException if the data is not a valid message
+     */
+    public static List<DataRecord> decodeAll(ByteBuffer buf) throws IOException {
+        try {
+            byte version = buf.get();
+            if (version != VERSION) {
+                throw new IOException("Unsupported DataRecord encoding version " + version);
+            }
+            String[] names = new String[(int) VarInt.readUnsigned(buf)];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = readString(buf);
+            }
+            int recordCount = (int) VarInt.readUnsigned(buf);
+            List<DataRecord> records = new ArrayList<DataRecord>(recordCount);
+            for (int i = 0; i < recordCount; i++) {
+                DataRecord record = new DataRecord(readString(buf), readString(buf));
+                int fieldCount = (int) VarInt.readUnsigned(buf);
+                for (int j = 0; j < fieldCount; j++) {
+                    String name = names[(int) VarInt.readUnsigned(buf)];
+                    record.setField(name, readValue(buf));
+                }
+                records.add(record);
+            }
+            return records;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException | IllegalStateException e) {
+            throw new IOException("Truncated or corrupt DataRecord message", e);
+        }
+    }
+
+    private static void writeValue(DataOutputStream out, Object val) throws IOException {
+        if (val == null) {
+            out.writeByte(NULL_VAL);
+        } else if (val instanceof String) {
+            out.writeByte(STRING_VAL);
+            writeString(out, (String) val);
+        } else if (val instanceof Integer) {
+            out.writeByte(INT_VAL);
+            VarInt.writeSigned(out, (Integer) val);
+        } else if (val instanceof Long) {
+            out.writeByte(LONG_VAL);
+            VarInt.writeSigned(out, (Long) val);
+        } else if (val instanceof Double) {
+            out.writeByte(DOUBLE_VAL);
+            out.writeDouble((Double) val);
+        } else if (val instanceof Float) {
+            out.writeByte(FLOAT_VAL);
+            out.writeFloat((Float) val);
+        } else if (val instanceof Boolean) {
+            out.writeByte(BOOLEAN_VAL);
+            out.writeBoolean((Boolean) val);
+        } else if (val instanceof Date) {
+            out.writeByte(DATE_VAL);
+            VarInt.writeSigned(out, ((Date) val).getTime());
+        } else if (val instanceof byte[]) {
+            out.writeByte(BYTES_VAL);
+            VarInt.writeUnsigned(out, ((byte[]) val).length);
+            out.write((byte[]) val);
+        } else if (val instanceof Serializable) {
+            out.writeByte(SERIALIZED_VAL);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+                oos.writeObject(val);
+            }
+            VarInt.writeUnsigned(out, bytes.size());
+            bytes.writeTo(out);
+        } else {
+            out.writeByte(STRING_VAL);
+            writeString(out, val.toString());
+        }
+    }
+
+    private static Object readValue(ByteBuffer buf) throws IOException {
+        byte tag = buf.get();
+        switch (tag) {
+            case NULL_VAL:
+                return null;
+            case STRING_VAL:
+                return readString(buf);
+            case INT_VAL:
+                return (int) VarInt.zigZagDecode(VarInt.readUnsigned(buf));
+            case LONG_VAL:
+                return VarInt.zigZagDecode(VarInt.readUnsigned(buf));
+            case DOUBLE_VAL:
+                return buf.getDouble();
+            case FLOAT_VAL:
+                return buf.getFloat();
+            case BOOLEAN_VAL:
+                return buf.get() != 0;
+            case DATE_VAL:
+                return new Date(VarInt.zigZagDecode(VarInt.readUnsigned(buf)));
+            case BYTES_VAL:
+                byte[] raw = new byte[(int) VarInt.readUnsigned(buf)];
+                buf.get(raw);
+                return raw;
+            case SERIALIZED_VAL:
+                byte[] serialized = new byte[(int) VarInt.readUnsigned(buf)];
+                buf.get(serialized);
+                try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(serialized))) {
+                    return ois.readObject();
+                } catch (ClassNotFoundException e) {
+                    throw new IOException("Could not deserialize field value", e);
+                }
+            default:
+                throw new IOException("Unknown value tag " + tag);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String val) throws IOException {
+        if (val == null) {
+            VarInt.writeUnsigned(out, 0);
+            return;
+        }
+        byte[] bytes = val.getBytes(StandardCharsets.UTF_8);
+        VarInt.writeUnsigned(out, bytes.length + 1);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buf) {
+        int length = (int) VarInt.readUnsigned(buf) - 1;
+        if (length < 0) {
+            return null;
+        }
+        ByteBuffer slice = buf.slice();
+        slice.limit(length);
+        buf.position(buf.position() + length);
+        return StandardCharsets.UTF_8.decode(slice).toString();
+    }
+}
@@ -1,21 +1,48 @@
 package org.cataractsoftware.datasponge.util;
 
-import groovy.lang.GroovyClassLoader;
 import groovy.lang.GroovyObject;
 import org.cataractsoftware.datasponge.AbstractDataAdapter;
 import org.cataractsoftware.datasponge.DataAdapter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.util.Properties;
 
 /**
- * data adaptor base class that facilitates loading a Groovy script from a file
+ * data adaptor base class that facilitates loading a Groovy script from a file. Compiled script classes are shared
+ * through the GroovyScriptCache, so only the first adapter to use a script compiles it.
+ * <p/>
+ * If the script class implements the adapter's interface (i.e. DataEnhancer), calls are made directly through that
+ * interface. Otherwise the script method is looked up once, when the script is loaded, and invoked reflectively;
+ * Groovy's dynamic invokeMethod is never used per record.
+ * <p/>
+ * With hot reload enabled, the GroovyScriptWatcher recompiles the script in the background whenever its file changes
+ * and the new instance replaces the old one in a single step, so a running job picks up the change without being
+ * restarted. Calls already in progress finish on the old instance. If the new version does not compile or
+ * initialize, the error is logged and the old instance stays in use.
+ * <p/>
+ * Plugin properties:
+ * <p/>
+ * groovy.compileStatic = if true, the script is compiled with @CompileStatic (defaults to false)
+ * groovy.hotReload = if true, the script is reloaded when its file changes (defaults to false)
  *
  * @author Christopher Fagiani
  */
-public abstract class GroovyDataAdapter extends AbstractDataAdapter implements DataAdapter {
+public abstract class GroovyDataAdapter<T> extends AbstractDataAdapter implements DataAdapter {
 
-    private GroovyObject groovyObject;
+    public static final String COMPILE_STATIC_PROP = "groovy.compileStatic";
+    public static final String HOT_RELOAD_PROP = "groovy.hotReload";
+
+    private static final Logger logger = LoggerFactory.getLogger(GroovyDataAdapter.class);
+
+    private volatile LoadedScript<T> script;
+    private File scriptFile;
+    private boolean compileStatic;
+    private Properties props;
+    private int reloadCount;
 
     /**
      * returns the name of the property key to use when loading the groovy script
@@ -25,14 +52,66 @@ public abstract class GroovyDataAdapter extends AbstractDataAdapter implements D
     abstract protected String getScriptPropertyName();
 
     /**
-     * returns the groovy object initialized by the init method.
+     * returns the interface the adapter implements; scripts that implement it are called directly
+     *
+     * @return
+     */
+    abstract protected Class<T> getScriptInterface();
+
+    /**
+     * returns the name of the script method called for scripts that do not implement the interface
+     *
+     * @return
+     */
+    abstract protected String getScriptMethodName();
+
+    /**
+     * returns the groovy object initialized by the init method (or by the latest reload).
      *
      * @return
      */
     protected GroovyObject getGroovyObject() {
-        return groovyObject;
+        return script.groovyObject;
     }
 
+    /**
+     * returns the currently loaded script. Callers should read it once per call so that every step of the call uses
+     * the same instance even if a reload happens meanwhile.
+     *
+     * @return
+     */
+    protected LoadedScript<T> getScript() {
+        return script;
+    }
+
+    /**
+     * returns the compiled class of the script
+     *
+     * @return
+     */
+    public Class<?> getScriptClass() {
+        LoadedScript<T> current = script;
+        return current != null ? current.groovyObject.getClass() : null;
+    }
+
+    /**
+     * returns true if the script implements the adapter interface and is called through it
+     *
+     * @return
+     */
+    public boolean isTypedDispatch() {
+        LoadedScript<T> current = script;
+        return current != null && current.typed != null;
+    }
+
+    /**
+     * returns the number of times the script has been replaced since init
+     *
+     * @return
+     */
+    public synchronized int getReloadCount() {
+        return reloadCount;
+    }
 
     @Override
     public void init(Properties props) {
@@ -40,20 +119,123 @@ public abstract class GroovyDataAdapter extends AbstractDataAdapter implements D
         if (val == null || val.trim().isEmpty()) {
             throw new IllegalStateException("GroovyEnhancer used but no " + getScriptPropertyName() + " specified in property file");
         }
+        this.props = props;
+        this.scriptFile = new File(val);
+        this.compileStatic = Boolean.parseBoolean(props.getProperty(COMPILE_STATIC_PROP, "false"));
         try {
-            ClassLoader parent = getClass().getClassLoader();
-            GroovyClassLoader loader = new GroovyClassLoader(parent);
+            script = load();
+            if (Boolean.parseBoolean(props.getProperty(HOT_RELOAD_PROP, "false"))) {
+                GroovyScriptWatcher.getInstance().register(scriptFile, this);
+            }
+        } catch (Exception e) {
+            throw new IllegalStateException("Could not initialize the GroovyEnhancer.", e);
+        }
+    }
+
+    /**
+     * compiles (or fetches from the cache) the current version of the script and swaps it in if it has changed. Called
+     * by the GroovyScriptWatcher; failures are logged and leave the current script in place.
+     */
+    public synchronized void reloadScript() {
+        try {
+            Class<?> current = script != null ? script.groovyObject.getClass() : null;
+            if (GroovyScriptCache.getScriptClass(scriptFile, compileStatic) == current) {
+                return;
+            }
+            script = load();
+            reloadCount++;
+            logger.info("Reloaded Groovy script {} for job {}", scriptFile, getJobId());
+        } catch (Exception e) {
+            logger.error("Could not reload Groovy script " + scriptFile + "; continuing with the previous version", e);
+        }
+    }
 
+    /**
+     * instantiates and configures the script, resolving how it will be called
+     *
+     * @return
+     * @throws Exception
+     */
+    private LoadedScript<T> load() throws Exception {
+        Class<?> groovyClass = GroovyScriptCache.getScriptClass(scriptFile, compileStatic);
+        GroovyObject groovyObject = (GroovyObject) groovyClass.newInstance();
+        T typed = null;
+        Method method = null;
+        if (getScriptInterface().isInstance(groovyObject)) {
+            typed = getScriptInterface().cast(groovyObject);
+        } else {
+            method = findScriptMethod(groovyClass);
+        }
+        if (groovyObject.getMetaClass().respondsTo(groovyObject, "setProperties").size() > 0) {
+            groovyObject.invokeMethod("setProperties", new Object[]{props});
+        }
+        return new LoadedScript<T>(groovyObject, typed, method);
+    }
 
-            File classFile = new File(val);
-            Class groovyClass = loader.parseClass(classFile);
-            groovyObject = (GroovyObject) groovyClass.newInstance();
-            if (groovyObject.getMetaClass().respondsTo(groovyObject, "setProperties").size() > 0) {
-                groovyObject.invokeMethod("setProperties", new Object[]{props});
+    /**
+     * finds the public method with the name and parameter count of the interface method
+     *
+     * @param groovyClass
+     * @return
+     */
+    private Method findScriptMethod(Class<?> groovyClass) {
+        int paramCount = -1;
+        for (Method m : getScriptInterface().getMethods()) {
+            if (m.getName().equals(getScriptMethodName())) {
+                paramCount = m.getParameterTypes().length;
             }
+        }
+        for (Method m : groovyClass.getMethods()) {
+            if (m.getName().equals(getScriptMethodName()) && m.getParameterTypes().length == paramCount) {
+                return m;
+            }
+        }
+        throw new IllegalStateException("Groovy script " + groovyClass.getName() + " has no " + getScriptMethodName()
+                + " method");
+    }
 
-        } catch (Exception e) {
-            throw new IllegalStateException("Could not initialize the GroovyEnhancer.", e);
+    /**
+     * an initialized script instance along with the way it is called. Instances are immutable so a reload replaces
+     * the whole thing at once.
+     */
+    protected static class LoadedScript<T> {
+        private final GroovyObject groovyObject;
+        private final T typed;
+        private final Method method;
+
+        LoadedScript(GroovyObject groovyObject, T typed, Method method) {
+            this.groovyObject = groovyObject;
+            this.typed = typed;
+            this.method = method;
+        }
+
+        /**
+         * returns the script cast to the adapter interface or null if it does not implement it
+         *
+         * @return
+         */
+        public T getTyped() {
+            return typed;
+        }
+
+        /**
+         * invokes the script method resolved when the script was loaded
+         *
+         * @param args
+         * @return
+         */
+        public Object invoke(Object... args) {
+            try {
+                return method.invoke(groovyObject, args);
+            } catch (InvocationTargetException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new IllegalStateException("Groovy script method " + method.getName() + " failed", cause);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException("Cannot call Groovy script method " + method.getName(), e);
+            }
         }
     }
 }
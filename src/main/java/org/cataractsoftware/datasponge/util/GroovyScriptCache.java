@@ -0,0 +1,154 @@
+package org.cataractsoftware.datasponge.util;
+
+import groovy.lang.GroovyClassLoader;
+import groovy.transform.CompileStatic;
+import org.codehaus.groovy.ast.AnnotationNode;
+import org.codehaus.groovy.ast.ClassHelper;
+import org.codehaus.groovy.ast.ClassNode;
+import org.codehaus.groovy.classgen.GeneratorContext;
+import org.codehaus.groovy.control.CompilePhase;
+import org.codehaus.groovy.control.CompilerConfiguration;
+import org.codehaus.groovy.control.SourceUnit;
+import org.codehaus.groovy.control.customizers.CompilationCustomizer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * process-wide cache of compiled Groovy script classes. Adapters that use the same script file (including the ones
+ * re-created for every iteration of a continuous job) share one compiled class and only pay for instantiation. Each
+ * script file has a single entry, stamped with a SHA-256 hash of the source it was compiled from: when the content
+ * changes the script is compiled again and the new class replaces the old one. The cache then no longer refers to the
+ * superseded class, so it (and its class loader) can be unloaded as soon as no adapter holds an instance of it.
+ * <p/>
+ * Scripts may optionally be compiled with @CompileStatic applied to every class, which removes dynamic dispatch from
+ * the compiled code (the script must then be statically typed).
+ *
+ * @author Christopher Fagiani
+ */
+public class GroovyScriptCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(GroovyScriptCache.class);
+    private static final ConcurrentMap<String, CompiledScript> classes = new ConcurrentHashMap<String, CompiledScript>();
+    private static final Object compileLock = new Object();
+    private static GroovyClassLoader dynamicLoader;
+    private static GroovyClassLoader staticLoader;
+
+    private GroovyScriptCache() {
+    }
+
+    /**
+     * returns the compiled class for the script file, compiling it if the file has not been compiled yet or its content has changed since
+     *
+     * @param scriptFile
+     * @param compileStatic if true, the script is compiled with @CompileStatic
+     * @return
+     * @throws IOException if the file cannot be read
+     */
+    public static Class<?> getScriptClass(File scriptFile, boolean compileStatic) throws IOException {
+        String source = new String(Files.readAllBytes(scriptFile.toPath()), StandardCharsets.UTF_8);
+        String hash = hash(source);
+        String key = scriptFile.getAbsolutePath() + (compileStatic ? ":static" : ":dynamic");
+        CompiledScript compiled = classes.get(key);
+        if (compiled == null || !compiled.hash.equals(hash)) {
+            synchronized (compileLock) {
+                compiled = classes.get(key);
+                if (compiled == null || !compiled.hash.equals(hash)) {
+                    long start = System.currentTimeMillis();
+                    Class<?> scriptClass = getLoader(compileStatic).parseClass(source, scriptFile.getName());
+                    // replaces (and so evicts) the class compiled from the previous content of the file
+                    compiled = new CompiledScript(hash, scriptClass);
+                    classes.put(key, compiled);
+                    logger.info("Compiled Groovy script {} ({}) in {} ms", scriptFile,
+                            compileStatic ? "static" : "dynamic", System.currentTimeMillis() - start);
+                }
+            }
+        }
+        return compiled.scriptClass;
+    }
+
+    /**
+     * returns the number of compiled classes held by the cache
+     *
+     * @return
+     */
+    public static int size() {
+        return classes.size();
+    }
+
+    /**
+     * discards every compiled class
+     */
+    public static void clear() {
+        classes.clear();
+    }
+
+    private static GroovyClassLoader getLoader(boolean compileStatic) {
+        if (compileStatic) {
+            if (staticLoader == null) {
+                CompilerConfiguration config = new CompilerConfiguration();
+                config.addCompilationCustomizers(new CompileStaticCustomizer());
+                staticLoader = new GroovyClassLoader(GroovyScriptCache.class.getClassLoader(), config);
+            }
+            return staticLoader;
+        }
+        if (dynamicLoader == null) {
+            dynamicLoader = new GroovyClassLoader(GroovyScriptCache.class.getClassLoader());
+        }
+        return dynamicLoader;
+    }
+
+    /**
+     * annotates every class in the script with @CompileStatic before the AST transformations are collected, as if
+     * the author had written the annotation
+     */
+    private static class CompileStaticCustomizer extends CompilationCustomizer {
+        private static final ClassNode COMPILE_STATIC = ClassHelper.make(CompileStatic.class);
+
+        CompileStaticCustomizer() {
+            super(CompilePhase.CONVERSION);
+        }
+
+        @Override
+        public void call(SourceUnit source, GeneratorContext context, ClassNode classNode) {
+            if (classNode.getAnnotations(COMPILE_STATIC).isEmpty()) {
+                classNode.addAnnotation(new AnnotationNode(COMPILE_STATIC));
+            }
+        }
+    }
+
+    /**
+     * a compiled class along with the hash of the source it was compiled from
+     */
+    private static class CompiledScript {
+        private final String hash;
+        private final Class<?> scriptClass;
+
+        CompiledScript(String hash, Class<?> scriptClass) {
+            this.hash = hash;
+            this.scriptClass = scriptClass;
+        }
+    }
+
+    private static String hash(String source) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(source.getBytes(StandardCharsets.UTF_8));
+            StringBuilder builder = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                builder.append(String.format("%02x", b));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // every JVM is required to support SHA-256
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
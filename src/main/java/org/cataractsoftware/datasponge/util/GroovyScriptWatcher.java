@@ -0,0 +1,143 @@
+package org.cataractsoftware.datasponge.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * watches the files of Groovy scripts used by adapters with hot reload enabled and asks those adapters to reload when
+ * a file changes. A single daemon thread serves every adapter in the process: it waits on a WatchService for the
+ * directories holding the scripts, lets a burst of events settle (editors often write a file several times) and then
+ * calls reloadScript on each adapter using a changed file, so compilation happens in the background rather than on the
+ * crawler threads.
+ * <p/>
+ * Adapters are held through weak references since they have no close method; an adapter that is no longer used by a
+ * job is dropped from the watch list once it is garbage collected.
+ *
+ * @author Christopher Fagiani
+ */
+public class GroovyScriptWatcher {
+
+    private static final Logger logger = LoggerFactory.getLogger(GroovyScriptWatcher.class);
+    private static final long SETTLE_MILLIS = 200;
+    private static final GroovyScriptWatcher instance = new GroovyScriptWatcher();
+
+    private final Map<Path, List<WeakReference<GroovyDataAdapter<?>>>> adapters = new HashMap<Path, List<WeakReference<GroovyDataAdapter<?>>>>();
+    private final Set<Path> watchedDirectories = new HashSet<Path>();
+    private WatchService watchService;
+
+    private GroovyScriptWatcher() {
+    }
+
+    public static GroovyScriptWatcher getInstance() {
+        return instance;
+    }
+
+    /**
+     * starts watching the script file on behalf of the adapter
+     *
+     * @param scriptFile
+     * @param adapter
+     * @throws IOException if the directory cannot be watched
+     */
+    public synchronized void register(File scriptFile, GroovyDataAdapter<?> adapter) throws IOException {
+        Path file = scriptFile.getAbsoluteFile().toPath().normalize();
+        Path dir = file.getParent();
+        if (watchService == null) {
+            watchService = FileSystems.getDefault().newWatchService();
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    watch();
+                }
+            }, "datasponge-groovy-watcher");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        if (watchedDirectories.add(dir)) {
+            dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        }
+        List<WeakReference<GroovyDataAdapter<?>>> list = adapters.get(file);
+        if (list == null) {
+            list = new ArrayList<WeakReference<GroovyDataAdapter<?>>>();
+            adapters.put(file, list);
+        }
+        list.add(new WeakReference<GroovyDataAdapter<?>>(adapter));
+    }
+
+    /**
+     * returns the adapters still registered for the file, dropping any that have been garbage collected
+     *
+     * @param file
+     * @return
+     */
+    private synchronized List<GroovyDataAdapter<?>> liveAdapters(Path file) {
+        List<GroovyDataAdapter<?>> live = new ArrayList<GroovyDataAdapter<?>>();
+        List<WeakReference<GroovyDataAdapter<?>>> list = adapters.get(file);
+        if (list != null) {
+            for (Iterator<WeakReference<GroovyDataAdapter<?>>> it = list.iterator(); it.hasNext(); ) {
+                GroovyDataAdapter<?> adapter = it.next().get();
+                if (adapter == null) {
+                    it.remove();
+                } else {
+                    live.add(adapter);
+                }
+            }
+            if (list.isEmpty()) {
+                adapters.remove(file);
+            }
+        }
+        return live;
+    }
+
+    private void watch() {
+        while (true) {
+            try {
+                WatchKey key = watchService.take();
+                Set<Path> changed = new HashSet<Path>();
+                collect(key, changed);
+                // let the writer finish, then pick up any further events for the same burst
+                Thread.sleep(SETTLE_MILLIS);
+                while ((key = watchService.poll()) != null) {
+                    collect(key, changed);
+                }
+                for (Path file : changed) {
+                    for (GroovyDataAdapter<?> adapter : liveAdapters(file)) {
+                        adapter.reloadScript();
+                    }
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            } catch (RuntimeException e) {
+                logger.error("Error while reloading Groovy scripts", e);
+            }
+        }
+    }
+
+    private void collect(WatchKey key, Set<Path> changed) {
+        Path dir = (Path) key.watchable();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.context() instanceof Path) {
+                changed.add(dir.resolve((Path) event.context()).normalize());
+            }
+        }
+        key.reset();
+    }
+}
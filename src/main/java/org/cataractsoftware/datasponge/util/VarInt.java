@@ -0,0 +1,133 @@
+package org.cataractsoftware.datasponge.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * utility methods for reading and writing variable-length integers (LEB128 style: 7 bits per byte, high bit set on
+ * all but the last byte). Signed values should be zig-zag encoded first so small negative numbers stay small.
+ *
+ * @author Christopher Fagiani
+ */
+public class VarInt {
+
+    private VarInt() {
+    }
+
+    /**
+     * writes an unsigned value using 1-10 bytes
+     *
+     * @param out
+     * @param value
+     * @throws IOException
+     */
+    public static void writeUnsigned(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /**
+     * writes a signed value (zig-zag encoded)
+     *
+     * @param out
+     * @param value
+     * @throws IOException
+     */
+    public static void writeSigned(OutputStream out, long value) throws IOException {
+        writeUnsigned(out, zigZagEncode(value));
+    }
+
+    /**
+     * reads an unsigned value written by writeUnsigned
+     *
+     * @param in
+     * @return
+     * @throws IOException if the stream ends in the middle of a value or the value is malformed
+     */
+    public static long readUnsigned(InputStream in) throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Stream ended inside a varint");
+            }
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /**
+     * reads a signed value written by writeSigned
+     *
+     * @param in
+     * @return
+     * @throws IOException
+     */
+    public static long readSigned(InputStream in) throws IOException {
+        return zigZagDecode(readUnsigned(in));
+    }
+
+    /**
+     * reads an unsigned value from the buffer's current position (advancing it)
+     *
+     * @param buf
+     * @return
+     */
+    public static long readUnsigned(ByteBuffer buf) {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buf.get();
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IllegalStateException("Malformed varint");
+    }
+
+    /**
+     * writes an unsigned value at the buffer's current position (advancing it)
+     *
+     * @param buf
+     * @param value
+     */
+    public static void writeUnsigned(ByteBuffer buf, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buf.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buf.put((byte) value);
+    }
+
+    /**
+     * returns the number of bytes writeUnsigned will use for the value
+     *
+     * @param value
+     * @return
+     */
+    public static int sizeOfUnsigned(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            size++;
+            value >>>= 7;
+        }
+        return size;
+    }
+
+    public static long zigZagEncode(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    public static long zigZagDecode(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -2,20 +2,100 @@ package org.cataractsoftware.datasponge.writer;
 
 import org.cataractsoftware.datasponge.AbstractDataAdapter;
 import org.cataractsoftware.datasponge.DataRecord;
+import org.cataractsoftware.datasponge.util.DaemonThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Base class for data writers. Most custom DataWriter implementations should extend this class. It handles keeping a
  * thread-safe collection of DataRecords that have yet to be written and
  * will flush them whenever the flushBatch method is run.
+ * <p/>
+ * Records are double-buffered: addItem appends to the active buffer while flushBatch swaps in the (empty) spare buffer
+ * in constant time and writes the old one outside of the lock, so producers never wait on the actual write. Calls to
+ * flushBatch are serialized so batches are written in order, and records within a batch are written in the order they
+ * were added. A flush can also be requested asynchronously via
+ * requestFlush, in which case it is performed by a shared background flusher thread.
+ * <p/>
+ * In addition to the periodic flushes performed by the framework, a writer will request a flush on its own when the
+ * thresholds of its FlushPolicy (flush.maxRecords, flush.maxBytes, flush.maxDelayMillis) are reached. These flushes
+ * stop once the writer is finished: subclasses call markFinished at the start of finish().
+ * <p/>
+ * By default the internal collection is unbounded. A bound can be set via the following plugin properties:
+ * <p/>
+ * writer.maxBufferedRecords = maximum number of records held in memory between flushes (0 or absent means unbounded)
+ * writer.overflowPolicy = what to do with a record that arrives while the buffer is full. One of:
+ * <ul>
+ * <li>BLOCK - (default) the caller requests a background flush and waits until it drains the buffer. This slows the SpiderThreads down to the speed of the writer.</li>
+ * <li>SPILL - the record is serialized to a temporary file and written out (after the in-memory records) on the next flush</li>
+ * <li>DROP - the record is discarded and counted</li>
+ * </ul>
+ * writer.spillDirectory = directory used for spill files (defaults to java.io.tmpdir)
+ * <p/>
+ * writer.publishStream = if true, every accepted record is also published to the job's RecordStream so it can be
+ * consumed live via the REST api (GET /job/{id}/records). Enable it on only one writer per node for a job (typically
+ * the coordinatorDataWriter) or consumers will see records twice.
  *
  * @author Christopher Fagiani
  */
 public abstract class AbstractDataWriter extends AbstractDataAdapter implements DataWriter {
 
-    private final HashSet<DataRecord> dataRecordSet = new HashSet<DataRecord>();
+    public static final String MAX_BUFFER_PROP = "writer.maxBufferedRecords";
+    public static final String OVERFLOW_POLICY_PROP = "writer.overflowPolicy";
+    public static final String SPILL_DIR_PROP = "writer.spillDirectory";
+    public static final String PUBLISH_STREAM_PROP = "writer.publishStream";
+
+    private static final Logger logger = LoggerFactory.getLogger(AbstractDataWriter.class);
+    private static final long BLOCK_WAIT_MILLIS = 1000;
+    private static final int SPILL_CHUNK_SIZE = 1000;
+    private static final ExecutorService flusher = Executors.newCachedThreadPool(new DaemonThreadFactory("datasponge-writer-flusher-"));
+    private static final ScheduledExecutorService flushTimer = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("datasponge-writer-timer-"));
+
+    private final Object bufferLock = new Object();
+    private final Object flushLock = new Object();
+    private final AtomicBoolean flushPending = new AtomicBoolean(false);
+    private HashSet<DataRecord> activeBuffer = new LinkedHashSet<DataRecord>();
+    private HashSet<DataRecord> spareBuffer = new LinkedHashSet<DataRecord>();
+    private long activeBytes;
+    private long bufferGeneration;
+    private FlushPolicy flushPolicy = FlushPolicy.fromProperties(null);
+    private final AtomicLong droppedCount = new AtomicLong(0);
+    private final AtomicLong spilledCount = new AtomicLong(0);
+    private int maxBufferedRecords;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+    private File spillDirectory;
+    private File spillFile;
+    private ObjectOutputStream spillStream;
+    private long lastReportedDrops;
+    private boolean publishStream;
+    private RecordStreamRegistry recordStreamRegistry;
+    private volatile RecordStream recordStream;
+    private volatile boolean backgroundFlushEnabled = true;
+    private volatile boolean finished;
+    private volatile ScheduledFuture<?> delayedFlush;
 
 
     /**
@@ -24,38 +104,351 @@ public abstract class AbstractDataWriter extends AbstractDataAdapter implements
      * @param props property object will all properties used to run the app
      */
     public void init(Properties props) {
-
+        flushPolicy = FlushPolicy.fromProperties(props);
+        if (props != null) {
+            maxBufferedRecords = Integer.parseInt(props.getProperty(MAX_BUFFER_PROP, "0"));
+            overflowPolicy = OverflowPolicy.valueOf(props.getProperty(OVERFLOW_POLICY_PROP, OverflowPolicy.BLOCK.name()).toUpperCase());
+            String spillDir = props.getProperty(SPILL_DIR_PROP);
+            if (spillDir != null && !spillDir.trim().isEmpty()) {
+                spillDirectory = new File(spillDir.trim());
+            }
+            publishStream = Boolean.parseBoolean(props.getProperty(PUBLISH_STREAM_PROP, "false"));
+        }
     }
 
     /**
      * adds a DataRecord to the internal collection of items to be written
-     * This method is thread-safe.
+     * This method is thread-safe. If the buffer is bounded and full, the configured OverflowPolicy is applied.
      *
      * @param record DataRecord instance to add to write list
      */
     public void addItem(DataRecord record) {
-        synchronized (dataRecordSet) {
-            dataRecordSet.add(record);
+        synchronized (bufferLock) {
+            if (isFull() && !activeBuffer.contains(record)) {
+                switch (overflowPolicy) {
+                    case DROP:
+                        droppedCount.incrementAndGet();
+                        return;
+                    case SPILL:
+                        spill(record);
+                        publish(record);
+                        return;
+                    default:
+                        awaitCapacity();
+                        break;
+                }
+            }
+            if (!activeBuffer.add(record)) {
+                return;
+            }
+            onRecordBuffered(record);
         }
+        publish(record);
+    }
+
+    /**
+     * sets the registry used to look up the job's RecordStream. Records are only published if writer.publishStream is set.
+     *
+     * @param recordStreamRegistry
+     */
+    public void setRecordStreamRegistry(RecordStreamRegistry recordStreamRegistry) {
+        this.recordStreamRegistry = recordStreamRegistry;
+    }
+
+    /**
+     * publishes the record to the job's RecordStream (if enabled)
+     *
+     * @param record
+     */
+    private void publish(DataRecord record) {
+        if (!publishStream || recordStreamRegistry == null || getJobId() == null) {
+            return;
+        }
+        RecordStream stream = recordStream;
+        if (stream == null) {
+            stream = recordStreamRegistry.getStream(getJobId());
+            recordStream = stream;
+        }
+        stream.publish(record);
+    }
+
+    /**
+     * applies the flush policy after a record has been added to the active buffer. Must be called while holding the bufferLock.
+     *
+     * @param record
+     */
+    private void onRecordBuffered(DataRecord record) {
+        if (flushPolicy.isTrackingBytes()) {
+            activeBytes += FlushPolicy.estimateSize(record);
+        }
+        if (activeBuffer.size() == 1 && flushPolicy.getMaxDelayMillis() > 0) {
+            scheduleDelayedFlush(bufferGeneration);
+        }
+        if (flushPolicy.isThresholdReached(activeBuffer.size(), activeBytes)) {
+            requestFlush();
+        }
+    }
+
+    /**
+     * schedules a flush maxDelayMillis from now. If the buffer has already been swapped by the time the timer fires,
+     * the timer does nothing (the records it was guarding have already been flushed).
+     *
+     * @param generation generation of the active buffer when the first record was added to it
+     */
+    private void scheduleDelayedFlush(final long generation) {
+        delayedFlush = flushTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (finished) {
+                    return;
+                }
+                synchronized (bufferLock) {
+                    if (generation != bufferGeneration) {
+                        return;
+                    }
+                }
+                requestFlush();
+            }
+        }, flushPolicy.getMaxDelayMillis(), TimeUnit.MILLISECONDS);
     }
 
     /**
      * flushes the contents of the internal storage to disk and clears out the
-     * internal store. This method is thread-safe.
+     * internal store. This method is thread-safe. Only the buffer swap happens under the lock used by addItem; the
+     * records are written after the lock is released.
      */
-    @SuppressWarnings("unchecked")
     public void flushBatch() {
-        HashSet<DataRecord> items = null;
-        synchronized (dataRecordSet) {
-            items = (HashSet<DataRecord>) dataRecordSet.clone();
-            dataRecordSet.clear();
-        }
-        if (items != null) {
-            startBatch();
-            for (DataRecord item : items) {
-                writeItem(item);
+        synchronized (flushLock) {
+            flushPending.set(false);
+            HashSet<DataRecord> items;
+            File spilled;
+            synchronized (bufferLock) {
+                items = activeBuffer;
+                activeBuffer = spareBuffer;
+                spareBuffer = null;
+                activeBytes = 0;
+                bufferGeneration++;
+                spilled = detachSpillFile();
+                bufferLock.notifyAll();
+            }
+            reportDrops();
+            try {
+                startBatch();
+                if (!items.isEmpty()) {
+                    writeBatch(items);
+                }
+                if (spilled != null) {
+                    writeSpilledItems(spilled);
+                }
+                completeBatch();
+            } finally {
+                items.clear();
+                synchronized (bufferLock) {
+                    spareBuffer = items;
+                }
+            }
+        }
+    }
+
+    /**
+     * asks the background flusher to flush this writer. Requests made while a flush is already pending are coalesced
+     * into that flush. This method returns immediately. Once the writer is finished, requests are ignored.
+     */
+    public void requestFlush() {
+        if (backgroundFlushEnabled && !finished && flushPending.compareAndSet(false, true)) {
+            flusher.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        synchronized (flushLock) {
+                            // the writer may have been finished while this flush was queued
+                            if (finished) {
+                                flushPending.set(false);
+                                return;
+                            }
+                            flushBatch();
+                        }
+                    } catch (RuntimeException e) {
+                        logger.error("Background flush failed for job " + getJobId(), e);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * stops the flushes this writer performs on its own: a pending delayed flush is cancelled, a queued background
+     * flush does nothing and a background flush that is already running is waited for. Subclasses must call this at
+     * the start of finish(), before they release what completeBatch writes to. Explicit calls to flushBatch still work.
+     */
+    protected void markFinished() {
+        synchronized (flushLock) {
+            finished = true;
+        }
+        ScheduledFuture<?> timer = delayedFlush;
+        if (timer != null) {
+            timer.cancel(false);
+        }
+    }
+
+    /**
+     * enables or disables the flushes this writer performs on its own (flush policy thresholds and BLOCK overflow).
+     * A wrapper that must know whether every flush succeeded (i.e. the WalDataWriter) disables them, so the writer is
+     * only flushed by explicit calls to flushBatch, whose failures reach the caller. A full BLOCK buffer then waits for
+     * the next explicit flush.
+     *
+     * @param enabled
+     */
+    public void setBackgroundFlushEnabled(boolean enabled) {
+        this.backgroundFlushEnabled = enabled;
+    }
+
+    /**
+     * returns the flush policy in effect for this writer
+     *
+     * @return
+     */
+    public FlushPolicy getFlushPolicy() {
+        return flushPolicy;
+    }
+
+    /**
+     * returns the number of records discarded because the buffer was full (only applicable to the DROP policy)
+     *
+     * @return
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * returns the number of records that were written to a spill file because the buffer was full (only applicable to the SPILL policy)
+     *
+     * @return
+     */
+    public long getSpilledCount() {
+        return spilledCount.get();
+    }
+
+    /**
+     * returns true if the buffer is bounded and has reached its limit. Must be called while holding the bufferLock.
+     *
+     * @return
+     */
+    private boolean isFull() {
+        return maxBufferedRecords > 0 && activeBuffer.size() >= maxBufferedRecords;
+    }
+
+    /**
+     * requests a background flush and waits until it frees up space in the buffer. If the wait is interrupted, the
+     * record will be admitted anyway (so it is not lost) and the interrupt flag is restored. Must be called while
+     * holding the bufferLock.
+     */
+    private void awaitCapacity() {
+        try {
+            while (isFull() && !finished) {
+                requestFlush();
+                bufferLock.wait(BLOCK_WAIT_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * appends the record to the current spill file, creating it if needed. If the record cannot be spilled it is
+     * counted as dropped. Must be called while holding the bufferLock.
+     *
+     * @param record
+     */
+    private void spill(DataRecord record) {
+        try {
+            if (spillStream == null) {
+                spillFile = File.createTempFile("datasponge-spill", ".bin", spillDirectory);
+                spillFile.deleteOnExit();
+                spillStream = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile)));
             }
-            completeBatch();
+            spillStream.writeObject(record);
+            // reset so the stream does not hold a reference to every record written
+            spillStream.reset();
+            spilledCount.incrementAndGet();
+        } catch (IOException e) {
+            logger.error("Could not spill record to disk; dropping it", e);
+            droppedCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * closes the current spill file (if any) and returns it so it can be written by the flush. Subsequent spills
+     * will go to a new file. Must be called while holding the bufferLock.
+     *
+     * @return the closed spill file or null if nothing was spilled
+     */
+    private File detachSpillFile() {
+        File file = null;
+        if (spillStream != null) {
+            try {
+                spillStream.close();
+                file = spillFile;
+            } catch (IOException e) {
+                logger.error("Could not close spill file " + spillFile, e);
+            }
+            spillStream = null;
+            spillFile = null;
+        }
+        return file;
+    }
+
+    /**
+     * streams the records from a spill file through writeBatch (in chunks of SPILL_CHUNK_SIZE) and then deletes the file.
+     *
+     * @param file
+     */
+    private void writeSpilledItems(File file) {
+        List<DataRecord> chunk = new ArrayList<DataRecord>(SPILL_CHUNK_SIZE);
+        try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                chunk.add((DataRecord) in.readObject());
+                if (chunk.size() == SPILL_CHUNK_SIZE) {
+                    writeBatch(chunk);
+                    chunk.clear();
+                }
+            }
+        } catch (EOFException e) {
+            //end of spill file
+            if (!chunk.isEmpty()) {
+                writeBatch(chunk);
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            logger.error("Could not read spill file " + file, e);
+        } finally {
+            if (!file.delete()) {
+                logger.warn("Could not delete spill file {}", file);
+            }
+        }
+    }
+
+    /**
+     * logs a warning if records have been dropped since the last flush
+     */
+    private void reportDrops() {
+        long drops = droppedCount.get();
+        if (drops > lastReportedDrops) {
+            logger.warn("Writer buffer full; {} records dropped so far for job {}", drops, getJobId());
+            lastReportedDrops = drops;
+        }
+    }
+
+    /**
+     * called by flushBatch with the records to write (between startBatch and completeBatch). A single flush may call
+     * this more than once (for instance, once for the in-memory records and once per chunk of spilled records).
+     * The default implementation calls writeItem for each record; override it if the output supports bulk writes.
+     *
+     * @param records non-empty collection of records to write
+     */
+    protected void writeBatch(Collection<DataRecord> records) {
+        for (DataRecord record : records) {
+            writeItem(record);
         }
     }
 
@@ -84,4 +477,11 @@ public abstract class AbstractDataWriter extends AbstractDataAdapter implements
     protected void completeBatch() {
         //no-op
     }
+
+    /**
+     * behavior applied when a record arrives while the bounded buffer is full
+     */
+    public enum OverflowPolicy {
+        BLOCK, SPILL, DROP
+    }
 }
@@ -0,0 +1,178 @@
+package org.cataractsoftware.datasponge.writer;
+
+import org.cataractsoftware.datasponge.AbstractDataAdapter;
+import org.cataractsoftware.datasponge.DataRecord;
+import org.cataractsoftware.datasponge.aggregate.AggregationSpec;
+import org.cataractsoftware.datasponge.aggregate.GroupAggregate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * DataWriter that computes group-by aggregates (see AggregationSpec for the aggregation properties) and writes them to
+ * a delegate writer, configured via the delegate element of this writer's plugin configuration. It accepts both raw
+ * records and the partial aggregates produced by the CombiningEnhancer or by another AggregatingDataWriter.
+ * <p/>
+ * It runs in one of two modes:
+ * <p/>
+ * partial - used as the dataWriter on each node. Records are combined in memory and, on every flush, the partial
+ * aggregate of each group seen since the last flush is written to the delegate (typically the JMSDataWriter), so the
+ * coordinator receives one record per group per flush instead of every record.
+ * final - used as the coordinatorDataWriter. Partials from every node are merged and the final aggregates are written
+ * to the delegate when the job finishes.
+ * <p/>
+ * The following properties are supported in addition to the aggregation properties:
+ * <p/>
+ * aggregate.mode = partial or final (defaults to final)
+ * aggregate.maxGroups = in partial mode, emit early once this many groups are held in memory (defaults to 100000)
+ * aggregate.outputType = type of the final output records (defaults to aggregate)
+ *
+ * @author Christopher Fagiani
+ */
+public class AggregatingDataWriter extends AbstractDataAdapter implements DelegatingDataWriter {
+
+    public static final String MODE = "aggregate.mode";
+    public static final String MAX_GROUPS = "aggregate.maxGroups";
+    public static final String OUTPUT_TYPE = "aggregate.outputType";
+
+    private static final Logger logger = LoggerFactory.getLogger(AggregatingDataWriter.class);
+
+    private final Object lock = new Object();
+    private final Object emitLock = new Object();
+    private AggregationSpec spec;
+    private Mode mode;
+    private int maxGroups;
+    private String outputType;
+    private DataWriter delegate;
+    private Map<String, GroupAggregate> groups = new HashMap<String, GroupAggregate>();
+    private long recordsIn;
+    private long recordsOut;
+
+    @Override
+    public void init(Properties props) {
+        spec = AggregationSpec.fromProperties(props);
+        mode = Mode.valueOf((props != null ? props.getProperty(MODE, Mode.FINAL.name()) : Mode.FINAL.name()).toUpperCase());
+        maxGroups = props != null ? Integer.parseInt(props.getProperty(MAX_GROUPS, "100000")) : 100000;
+        outputType = props != null ? props.getProperty(OUTPUT_TYPE, "aggregate") : "aggregate";
+    }
+
+    @Override
+    public void setJobId(String id) {
+        super.setJobId(id);
+        if (delegate != null) {
+            delegate.setJobId(id);
+        }
+    }
+
+    @Override
+    public void setDelegate(DataWriter delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public DataWriter getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public void addItem(DataRecord record) {
+        Map<String, GroupAggregate> full = null;
+        synchronized (lock) {
+            String key = spec.groupKey(record);
+            GroupAggregate group = groups.get(key);
+            if (group == null) {
+                group = new GroupAggregate(spec, record);
+                groups.put(key, group);
+            }
+            if (spec.isPartial(record)) {
+                group.merge(record);
+            } else {
+                group.add(record);
+            }
+            recordsIn++;
+            if (mode == Mode.PARTIAL && groups.size() >= maxGroups) {
+                full = swap();
+            }
+        }
+        if (full != null) {
+            emitAndFlush(full);
+        }
+    }
+
+    /**
+     * in partial mode, writes the partial aggregates combined since the last flush to the delegate
+     */
+    @Override
+    public void flushBatch() {
+        if (mode == Mode.PARTIAL) {
+            Map<String, GroupAggregate> pending;
+            synchronized (lock) {
+                pending = swap();
+            }
+            emitAndFlush(pending);
+        } else {
+            requireDelegate().flushBatch();
+        }
+    }
+
+    /**
+     * in final mode, writes the final aggregates to the delegate. In both modes the delegate is then finished.
+     */
+    @Override
+    public void finish() {
+        if (mode == Mode.FINAL) {
+            Map<String, GroupAggregate> results;
+            synchronized (lock) {
+                results = swap();
+            }
+            DataWriter writer = requireDelegate();
+            for (Map.Entry<String, GroupAggregate> entry : results.entrySet()) {
+                writer.addItem(entry.getValue().toResult(entry.getKey(), outputType));
+            }
+            recordsOut += results.size();
+        }
+        flushBatch();
+        requireDelegate().finish();
+        logger.info("Aggregated {} records into {} output records for job {}", recordsIn, recordsOut, getJobId());
+    }
+
+    private Map<String, GroupAggregate> swap() {
+        Map<String, GroupAggregate> current = groups;
+        groups = new HashMap<String, GroupAggregate>();
+        return current;
+    }
+
+    /**
+     * writes the partials to the delegate and flushes it. Writers buffer records in a set keyed by identifier, so two
+     * partials of a group must never meet in the delegate's buffer; emitting and flushing as one step, one caller at a
+     * time, guarantees each buffered batch holds at most one partial per group.
+     *
+     * @param pending
+     */
+    private void emitAndFlush(Map<String, GroupAggregate> pending) {
+        DataWriter writer = requireDelegate();
+        synchronized (emitLock) {
+            for (Map.Entry<String, GroupAggregate> entry : pending.entrySet()) {
+                writer.addItem(entry.getValue().toPartial(entry.getKey()));
+            }
+            writer.flushBatch();
+        }
+        synchronized (lock) {
+            recordsOut += pending.size();
+        }
+    }
+
+    private DataWriter requireDelegate() {
+        if (delegate == null) {
+            throw new IllegalStateException("AggregatingDataWriter requires a delegate writer");
+        }
+        return delegate;
+    }
+
+    public enum Mode {
+        PARTIAL, FINAL
+    }
+}
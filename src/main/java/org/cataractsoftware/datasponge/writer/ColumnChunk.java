@@ -0,0 +1,373 @@
+package org.cataractsoftware.datasponge.writer;
+
+import org.cataractsoftware.datasponge.util.VarInt;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A single compressed column of a row group in the columnar file format written by ColumnarFileWriter. This class
+ * holds the column metadata (type, encoding, null count and min/max statistics) that is stored in the file header and
+ * knows how to encode/decode the column body.
+ * <p/>
+ * The uncompressed body of a column consists of a null bitmap (one bit per row, set for non-null values) followed by
+ * either the plain-encoded non-null values or, for DICTIONARY encoding, the dictionary followed by one varint index per
+ * non-null value. Longs are zig-zag varint deltas, doubles are 8 bytes, strings are varint-length-prefixed UTF-8 and
+ * booleans are one byte. The body is deflate-compressed.
+ *
+ * @author Christopher Fagiani
+ */
+class ColumnChunk {
+
+    static final byte TYPE_STRING = 1;
+    static final byte TYPE_LONG = 2;
+    static final byte TYPE_DOUBLE = 3;
+    static final byte TYPE_BOOLEAN = 4;
+    static final byte ENCODING_PLAIN = 0;
+    static final byte ENCODING_DICTIONARY = 1;
+
+    private String name;
+    private byte type;
+    private byte encoding;
+    private int nullCount;
+    private int distinctCount;
+    private Object min;
+    private Object max;
+    private int uncompressedLength;
+    private byte[] compressed;
+    private int compressedLength;
+
+    private ColumnChunk() {
+    }
+
+    /**
+     * builds and compresses a column from its values (one per row, nulls allowed). Values must already be normalized
+     * to Long, Double, Boolean or String.
+     *
+     * @param name
+     * @param values
+     * @param dictionaryThreshold maximum number of distinct values for which dictionary encoding is used
+     * @return
+     * @throws IOException
+     */
+    static ColumnChunk build(String name, List<Object> values, int dictionaryThreshold) throws IOException {
+        ColumnChunk chunk = new ColumnChunk();
+        chunk.name = name;
+        chunk.type = inferType(values);
+        byte[] nullBitmap = new byte[(values.size() + 7) / 8];
+        List<Object> nonNull = new ArrayList<Object>(values.size());
+        for (int i = 0; i < values.size(); i++) {
+            Object val = values.get(i);
+            if (val == null) {
+                chunk.nullCount++;
+            } else {
+                nullBitmap[i / 8] |= (byte) (1 << (i % 8));
+                Object typed = chunk.type == TYPE_STRING ? val.toString() : val;
+                nonNull.add(typed);
+                chunk.updateStats(typed);
+            }
+        }
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(nullBitmap);
+        Map<Object, Integer> dictionary = chunk.type == TYPE_BOOLEAN ? null : buildDictionary(nonNull, dictionaryThreshold);
+        DataOutputStream out = new DataOutputStream(body);
+        if (dictionary != null) {
+            chunk.encoding = ENCODING_DICTIONARY;
+            chunk.distinctCount = dictionary.size();
+            VarInt.writeUnsigned(out, dictionary.size());
+            Object prev = null;
+            for (Object key : dictionary.keySet()) {
+                writeValue(out, chunk.type, key, prev);
+                prev = key;
+            }
+            for (Object val : nonNull) {
+                VarInt.writeUnsigned(out, dictionary.get(val));
+            }
+        } else {
+            chunk.encoding = ENCODING_PLAIN;
+            Object prev = null;
+            for (Object val : nonNull) {
+                writeValue(out, chunk.type, val, prev);
+                prev = val;
+            }
+        }
+        out.flush();
+        byte[] raw = body.toByteArray();
+        chunk.uncompressedLength = raw.length;
+        chunk.compressed = deflate(raw);
+        chunk.compressedLength = chunk.compressed.length;
+        return chunk;
+    }
+
+    /**
+     * reads the column metadata written by writeHeader
+     *
+     * @param in
+     * @return
+     * @throws IOException
+     */
+    static ColumnChunk readHeader(DataInputStream in) throws IOException {
+        ColumnChunk chunk = new ColumnChunk();
+        chunk.name = readString(in);
+        chunk.type = in.readByte();
+        chunk.encoding = in.readByte();
+        chunk.nullCount = (int) VarInt.readUnsigned(in);
+        chunk.distinctCount = (int) VarInt.readUnsigned(in);
+        if (in.readBoolean()) {
+            chunk.min = readValue(in, chunk.type, null);
+            chunk.max = readValue(in, chunk.type, null);
+        }
+        chunk.uncompressedLength = (int) VarInt.readUnsigned(in);
+        chunk.compressedLength = (int) VarInt.readUnsigned(in);
+        return chunk;
+    }
+
+    /**
+     * writes the column metadata (everything but the body)
+     *
+     * @param out
+     * @throws IOException
+     */
+    void writeHeader(DataOutputStream out) throws IOException {
+        writeString(out, name);
+        out.writeByte(type);
+        out.writeByte(encoding);
+        VarInt.writeUnsigned(out, nullCount);
+        VarInt.writeUnsigned(out, distinctCount);
+        out.writeBoolean(min != null);
+        if (min != null) {
+            writeValue(out, type, min, null);
+            writeValue(out, type, max, null);
+        }
+        VarInt.writeUnsigned(out, uncompressedLength);
+        VarInt.writeUnsigned(out, compressedLength);
+    }
+
+    /**
+     * writes the compressed body
+     *
+     * @param out
+     * @throws IOException
+     */
+    void writeBody(OutputStream out) throws IOException {
+        out.write(compressed);
+    }
+
+    /**
+     * decompresses and decodes a body read from the file
+     *
+     * @param compressedBody
+     * @param rowCount
+     * @return one value per row (null where the row had no value)
+     * @throws IOException
+     */
+    List<Object> decode(byte[] compressedBody, int rowCount) throws IOException {
+        byte[] raw = inflate(compressedBody, uncompressedLength);
+        int bitmapLength = (rowCount + 7) / 8;
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(raw, bitmapLength, raw.length - bitmapLength));
+        List<Object> dictionary = null;
+        if (encoding == ENCODING_DICTIONARY) {
+            int size = (int) VarInt.readUnsigned(in);
+            dictionary = new ArrayList<Object>(size);
+            Object prev = null;
+            for (int i = 0; i < size; i++) {
+                prev = readValue(in, type, prev);
+                dictionary.add(prev);
+            }
+        }
+        List<Object> values = new ArrayList<Object>(rowCount);
+        Object prev = null;
+        for (int i = 0; i < rowCount; i++) {
+            if ((raw[i / 8] & (1 << (i % 8))) == 0) {
+                values.add(null);
+            } else if (dictionary != null) {
+                values.add(dictionary.get((int) VarInt.readUnsigned(in)));
+            } else {
+                prev = readValue(in, type, prev);
+                values.add(prev);
+            }
+        }
+        return values;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    byte getType() {
+        return type;
+    }
+
+    byte getEncoding() {
+        return encoding;
+    }
+
+    int getNullCount() {
+        return nullCount;
+    }
+
+    int getDistinctCount() {
+        return distinctCount;
+    }
+
+    Object getMin() {
+        return min;
+    }
+
+    Object getMax() {
+        return max;
+    }
+
+    int getCompressedLength() {
+        return compressedLength;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void updateStats(Object val) {
+        if (type == TYPE_BOOLEAN) {
+            return;
+        }
+        if (min == null || ((Comparable<Object>) val).compareTo(min) < 0) {
+            min = val;
+        }
+        if (max == null || ((Comparable<Object>) val).compareTo(max) > 0) {
+            max = val;
+        }
+    }
+
+    /**
+     * the column type is the common type of all non-null values; mixed columns are stored as strings
+     *
+     * @param values
+     * @return
+     */
+    private static byte inferType(List<Object> values) {
+        byte result = 0;
+        for (Object val : values) {
+            if (val == null) {
+                continue;
+            }
+            byte valType = val instanceof Long ? TYPE_LONG : val instanceof Double ? TYPE_DOUBLE : val instanceof Boolean ? TYPE_BOOLEAN : TYPE_STRING;
+            if (result == 0) {
+                result = valType;
+            } else if (result != valType) {
+                return TYPE_STRING;
+            }
+        }
+        return result == 0 ? TYPE_STRING : result;
+    }
+
+    /**
+     * returns a value-to-index map if the column has few enough distinct values to benefit from a dictionary, otherwise null
+     *
+     * @param values
+     * @param threshold
+     * @return
+     */
+    private static Map<Object, Integer> buildDictionary(List<Object> values, int threshold) {
+        Map<Object, Integer> dictionary = new LinkedHashMap<Object, Integer>();
+        for (Object val : values) {
+            if (!dictionary.containsKey(val)) {
+                if (dictionary.size() >= threshold) {
+                    return null;
+                }
+                dictionary.put(val, dictionary.size());
+            }
+        }
+        // a dictionary only pays off if values repeat
+        return dictionary.size() * 2 <= values.size() ? dictionary : null;
+    }
+
+    private static void writeValue(DataOutputStream out, byte type, Object val, Object prev) throws IOException {
+        switch (type) {
+            case TYPE_LONG:
+                VarInt.writeSigned(out, (Long) val - (prev == null ? 0 : (Long) prev));
+                break;
+            case TYPE_DOUBLE:
+                out.writeDouble((Double) val);
+                break;
+            case TYPE_BOOLEAN:
+                out.writeBoolean((Boolean) val);
+                break;
+            default:
+                writeString(out, (String) val);
+        }
+    }
+
+    private static Object readValue(DataInputStream in, byte type, Object prev) throws IOException {
+        switch (type) {
+            case TYPE_LONG:
+                return VarInt.readSigned(in) + (prev == null ? 0 : (Long) prev);
+            case TYPE_DOUBLE:
+                return in.readDouble();
+            case TYPE_BOOLEAN:
+                return in.readBoolean();
+            default:
+                return readString(in);
+        }
+    }
+
+    static void writeString(OutputStream out, String val) throws IOException {
+        byte[] bytes = val.getBytes(StandardCharsets.UTF_8);
+        VarInt.writeUnsigned(out, bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[(int) VarInt.readUnsigned(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] deflate(byte[] raw) {
+        Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, raw.length / 2));
+            byte[] buf = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(buf, 0, deflater.deflate(buf));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] compressedBody, int length) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressedBody);
+            byte[] raw = new byte[length];
+            int read = 0;
+            while (read < length && !inflater.finished()) {
+                int n = inflater.inflate(raw, read, length - read);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    // truncated body: the inflater can make no further progress
+                    throw new IOException("Corrupt column chunk");
+                }
+                read += n;
+            }
+            return read == length ? raw : Arrays.copyOf(raw, read);
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt column chunk", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package org.cataractsoftware.datasponge.writer;
+
+import org.cataractsoftware.datasponge.util.VarInt;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads files written by ColumnarFileWriter. Only the header is read when the file is opened; a column body is read
+ * (and decompressed) only when that column is requested, so scans that need a few fields touch only those bytes. The
+ * column statistics in the header can be used to skip files entirely.
+ *
+ * @author Christopher Fagiani
+ */
+public class ColumnarFileReader implements Closeable {
+
+    private final FileChannel channel;
+    private final String recordType;
+    private final int rowCount;
+    private final Map<String, ColumnChunk> columns = new LinkedHashMap<String, ColumnChunk>();
+    private final Map<String, Long> offsets = new LinkedHashMap<String, Long>();
+
+    public ColumnarFileReader(File file) throws IOException {
+        long dataStart;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != ColumnarFileWriter.MAGIC) {
+                throw new IOException(file + " is not a columnar data file");
+            }
+            byte version = in.readByte();
+            if (version != ColumnarFileWriter.VERSION) {
+                throw new IOException("Unsupported columnar file version " + version);
+            }
+            int headerLength = (int) VarInt.readUnsigned(in);
+            dataStart = 5 + VarInt.sizeOfUnsigned(headerLength) + headerLength;
+            byte[] headerBytes = new byte[headerLength];
+            in.readFully(headerBytes);
+            DataInputStream header = new DataInputStream(new ByteArrayInputStream(headerBytes));
+            recordType = ColumnChunk.readString(header);
+            rowCount = (int) VarInt.readUnsigned(header);
+            int columnCount = (int) VarInt.readUnsigned(header);
+            long offset = dataStart;
+            for (int i = 0; i < columnCount; i++) {
+                ColumnChunk chunk = ColumnChunk.readHeader(header);
+                columns.put(chunk.getName(), chunk);
+                offsets.put(chunk.getName(), offset);
+                offset += chunk.getCompressedLength();
+            }
+        }
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    }
+
+    public String getRecordType() {
+        return recordType;
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public List<String> getColumnNames() {
+        return Collections.unmodifiableList(new ArrayList<String>(columns.keySet()));
+    }
+
+    public boolean hasColumn(String name) {
+        return columns.containsKey(name);
+    }
+
+    public Object getMin(String column) {
+        return getChunk(column).getMin();
+    }
+
+    public Object getMax(String column) {
+        return getChunk(column).getMax();
+    }
+
+    public int getNullCount(String column) {
+        return getChunk(column).getNullCount();
+    }
+
+    /**
+     * returns true if the column was written with dictionary encoding
+     *
+     * @param column
+     * @return
+     */
+    public boolean isDictionaryEncoded(String column) {
+        return getChunk(column).getEncoding() == ColumnChunk.ENCODING_DICTIONARY;
+    }
+
+    /**
+     * reads and decodes a single column
+     *
+     * @param column
+     * @return one value per row, in row order (null for rows that had no value for the field)
+     * @throws IOException
+     */
+    public List<Object> readColumn(String column) throws IOException {
+        ColumnChunk chunk = getChunk(column);
+        ByteBuffer buf = ByteBuffer.allocate(chunk.getCompressedLength());
+        long position = offsets.get(column);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0) {
+                throw new IOException("Unexpected end of file reading column " + column);
+            }
+        }
+        return chunk.decode(buf.array(), rowCount);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private ColumnChunk getChunk(String column) {
+        ColumnChunk chunk = columns.get(column);
+        if (chunk == null) {
+            throw new IllegalArgumentException("No column named " + column);
+        }
+        return chunk;
+    }
+}
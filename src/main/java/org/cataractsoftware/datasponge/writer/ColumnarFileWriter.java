@@ -0,0 +1,224 @@
+package org.cataractsoftware.datasponge.writer;
+
+import org.cataractsoftware.datasponge.DataRecord;
+import org.cataractsoftware.datasponge.util.VarInt;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * DataWriter that writes records in a compressed, column-oriented format suited to analytics jobs that only read a few
+ * fields. Records are grouped by type and buffered as one value vector per field (a "row group"). When a row group is
+ * full (or has been open too long) it is written to its own file under directory/type/ in which every column is
+ * compressed separately, low-cardinality columns are dictionary-encoded and each column carries its null count and
+ * min/max values in the file header, so readers can skip columns (and whole files) they do not need. Files are written
+ * to a temporary name and renamed once complete. Use ColumnarFileReader to read them back.
+ * <p/>
+ * Integral values are stored as longs, floating point values as doubles and Dates as epoch milliseconds. Every other
+ * value is stored as its string form, as is any column whose values are of mixed types. The record identifier is
+ * stored in the reserved "@identifier" column.
+ * <p/>
+ * The behavior of this writer can be configured via the following properties:
+ * <p/>
+ * columnar.directory = root directory of the output (required)
+ * columnar.rowGroupSize = number of records per file (defaults to 10000)
+ * columnar.dictionaryThreshold = maximum number of distinct values for which a column is dictionary encoded (defaults to 1024)
+ * columnar.maxRowGroupAgeMillis = a partially-filled row group older than this is written at the end of the next flush (defaults to 60000)
+ *
+ * @author Christopher Fagiani
+ */
+public class ColumnarFileWriter extends AbstractDataWriter {
+
+    public static final String DIRECTORY = "columnar.directory";
+    public static final String ROW_GROUP_SIZE = "columnar.rowGroupSize";
+    public static final String DICTIONARY_THRESHOLD = "columnar.dictionaryThreshold";
+    public static final String MAX_AGE = "columnar.maxRowGroupAgeMillis";
+    public static final String IDENTIFIER_COLUMN = "@identifier";
+    public static final String FILE_SUFFIX = ".dcol";
+
+    static final int MAGIC = 0x4453434C;
+    static final byte VERSION = 1;
+
+    private static final Logger logger = LoggerFactory.getLogger(ColumnarFileWriter.class);
+    private static final String DEFAULT_TYPE = "default";
+
+    private final Map<String, RowGroup> rowGroups = new HashMap<String, RowGroup>();
+    private File directory;
+    private int rowGroupSize;
+    private int dictionaryThreshold;
+    private long maxAgeMillis;
+    private int sequence;
+    private long bytesWritten;
+
+    @Override
+    public void init(Properties props) {
+        super.init(props);
+        String dirName = props.getProperty(DIRECTORY);
+        if (dirName == null || dirName.trim().isEmpty()) {
+            throw new IllegalStateException(DIRECTORY + " must be set when using ColumnarFileWriter");
+        }
+        directory = new File(dirName.trim());
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalStateException("Could not create output directory " + directory);
+        }
+        rowGroupSize = Integer.parseInt(props.getProperty(ROW_GROUP_SIZE, "10000"));
+        dictionaryThreshold = Integer.parseInt(props.getProperty(DICTIONARY_THRESHOLD, "1024"));
+        maxAgeMillis = Long.parseLong(props.getProperty(MAX_AGE, "60000"));
+    }
+
+    @Override
+    protected void writeItem(DataRecord record) {
+        String type = record.getType() != null ? record.getType() : DEFAULT_TYPE;
+        RowGroup group = rowGroups.get(type);
+        if (group == null) {
+            group = new RowGroup();
+            rowGroups.put(type, group);
+        }
+        group.add(record);
+        if (group.rows >= rowGroupSize) {
+            rowGroups.remove(type);
+            writeRowGroup(type, group);
+        }
+    }
+
+    @Override
+    protected void completeBatch() {
+        super.completeBatch();
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, RowGroup>> it = rowGroups.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, RowGroup> entry = it.next();
+            if (now - entry.getValue().createdAt >= maxAgeMillis) {
+                it.remove();
+                writeRowGroup(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    @Override
+    public void finish() {
+        markFinished();
+        for (Map.Entry<String, RowGroup> entry : rowGroups.entrySet()) {
+            writeRowGroup(entry.getKey(), entry.getValue());
+        }
+        rowGroups.clear();
+        logger.info("Columnar writer wrote {} files ({} bytes) to {}", sequence, bytesWritten, directory);
+    }
+
+    /**
+     * encodes every column of the row group and writes them, preceded by the header, to a new file
+     *
+     * @param type
+     * @param group
+     */
+    private void writeRowGroup(String type, RowGroup group) {
+        File typeDir = new File(directory, type.replaceAll("[^A-Za-z0-9._-]", "_"));
+        if (!typeDir.isDirectory() && !typeDir.mkdirs()) {
+            throw new RuntimeException("Could not create output directory " + typeDir);
+        }
+        String name = String.format("part-%d-%05d", System.currentTimeMillis(), sequence++);
+        File tmpFile = new File(typeDir, "." + name + ".tmp");
+        File outFile = new File(typeDir, name + FILE_SUFFIX);
+        try {
+            List<ColumnChunk> chunks = new ArrayList<ColumnChunk>(group.columns.size());
+            for (Map.Entry<String, List<Object>> column : group.columns.entrySet()) {
+                chunks.add(ColumnChunk.build(column.getKey(), column.getValue(), dictionaryThreshold));
+            }
+            ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+            DataOutputStream header = new DataOutputStream(headerBytes);
+            ColumnChunk.writeString(header, type);
+            VarInt.writeUnsigned(header, group.rows);
+            VarInt.writeUnsigned(header, chunks.size());
+            for (ColumnChunk chunk : chunks) {
+                chunk.writeHeader(header);
+            }
+            header.flush();
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 65536))) {
+                out.writeInt(MAGIC);
+                out.writeByte(VERSION);
+                VarInt.writeUnsigned(out, headerBytes.size());
+                headerBytes.writeTo(out);
+                for (ColumnChunk chunk : chunks) {
+                    chunk.writeBody(out);
+                }
+            }
+            if (!tmpFile.renameTo(outFile)) {
+                throw new IOException("Could not rename " + tmpFile + " to " + outFile);
+            }
+            bytesWritten += outFile.length();
+            logger.debug("Wrote {} {} records to {}", group.rows, type, outFile);
+        } catch (IOException e) {
+            tmpFile.delete();
+            throw new RuntimeException("Could not write columnar file " + outFile, e);
+        }
+    }
+
+    /**
+     * converts a field value to one of the types the format stores natively (Long, Double, Boolean or String)
+     *
+     * @param val
+     * @return
+     */
+    static Object normalize(Object val) {
+        if (val == null || val instanceof Long || val instanceof Double || val instanceof Boolean || val instanceof String) {
+            return val;
+        } else if (val instanceof Integer || val instanceof Short || val instanceof Byte) {
+            return ((Number) val).longValue();
+        } else if (val instanceof Float) {
+            return ((Number) val).doubleValue();
+        } else if (val instanceof Date) {
+            return ((Date) val).getTime();
+        } else {
+            return val.toString();
+        }
+    }
+
+    /**
+     * column vectors for the records of a single type. Every vector always holds one entry per row; a field that first
+     * appears part-way through the group is back-filled with nulls.
+     */
+    private static class RowGroup {
+        private final long createdAt = System.currentTimeMillis();
+        private final Map<String, List<Object>> columns = new LinkedHashMap<String, List<Object>>();
+        private int rows;
+
+        RowGroup() {
+            columns.put(IDENTIFIER_COLUMN, new ArrayList<Object>());
+        }
+
+        void add(DataRecord record) {
+            for (Map.Entry<String, List<Object>> column : columns.entrySet()) {
+                if (IDENTIFIER_COLUMN.equals(column.getKey())) {
+                    column.getValue().add(record.getIdentifier());
+                } else {
+                    column.getValue().add(normalize(record.getFieldValue(column.getKey())));
+                }
+            }
+            for (Map.Entry<String, Object> field : record.getFields()) {
+                if (!columns.containsKey(field.getKey())) {
+                    List<Object> values = new ArrayList<Object>(rows + 1);
+                    for (int i = 0; i < rows; i++) {
+                        values.add(null);
+                    }
+                    values.add(normalize(field.getValue()));
+                    columns.put(field.getKey(), values);
+                }
+            }
+            rows++;
+        }
+    }
+}
@@ -74,6 +74,7 @@ public class CsvFileWriter extends AbstractDataWriter {
 
     @Override
     public void finish() {
+        markFinished();
         try {
             writer.close();
         } catch (Exception e) {
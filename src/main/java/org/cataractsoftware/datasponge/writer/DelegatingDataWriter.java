@@ -0,0 +1,14 @@
+package org.cataractsoftware.datasponge.writer;
+
+/**
+ * a DataWriter that wraps another writer. The wrapped writer is configured via the delegate element of the wrapping
+ * writer's plugin configuration and is set by the ComponentFactory after both writers are initialized.
+ *
+ * @author Christopher Fagiani
+ */
+public interface DelegatingDataWriter extends DataWriter {
+
+    void setDelegate(DataWriter delegate);
+
+    DataWriter getDelegate();
+}
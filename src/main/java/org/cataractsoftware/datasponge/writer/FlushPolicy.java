@@ -0,0 +1,113 @@
+package org.cataractsoftware.datasponge.writer;
+
+import org.cataractsoftware.datasponge.DataRecord;
+
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Describes when a writer should flush on its own rather than waiting for the periodic flush performed by the
+ * JobExecutor (or the JobCoordinator for coordinator writers). A flush is triggered as soon as ANY of the configured
+ * thresholds is reached. The policy is configured via the following plugin properties (all are optional; a value of
+ * 0 disables that threshold):
+ * <p/>
+ * flush.maxRecords = number of buffered records that triggers a flush
+ * flush.maxBytes = approximate size (in bytes) of buffered records that triggers a flush
+ * flush.maxDelayMillis = maximum time the oldest buffered record may wait before a flush is triggered
+ * <p/>
+ * Low thresholds favor output freshness, high thresholds favor throughput.
+ *
+ * @author Christopher Fagiani
+ */
+public class FlushPolicy {
+
+    public static final String MAX_RECORDS_PROP = "flush.maxRecords";
+    public static final String MAX_BYTES_PROP = "flush.maxBytes";
+    public static final String MAX_DELAY_PROP = "flush.maxDelayMillis";
+
+    private static final int OBJECT_OVERHEAD = 16;
+
+    private final int maxRecords;
+    private final long maxBytes;
+    private final long maxDelayMillis;
+
+    public FlushPolicy(int maxRecords, long maxBytes, long maxDelayMillis) {
+        this.maxRecords = maxRecords;
+        this.maxBytes = maxBytes;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * builds a policy from the plugin properties. If props is null, a policy with no thresholds is returned.
+     *
+     * @param props
+     * @return
+     */
+    public static FlushPolicy fromProperties(Properties props) {
+        if (props == null) {
+            return new FlushPolicy(0, 0, 0);
+        }
+        return new FlushPolicy(Integer.parseInt(props.getProperty(MAX_RECORDS_PROP, "0")),
+                Long.parseLong(props.getProperty(MAX_BYTES_PROP, "0")),
+                Long.parseLong(props.getProperty(MAX_DELAY_PROP, "0")));
+    }
+
+    /**
+     * returns true if a buffer holding the given number of records/bytes should be flushed
+     *
+     * @param recordCount
+     * @param byteCount
+     * @return
+     */
+    public boolean isThresholdReached(int recordCount, long byteCount) {
+        return (maxRecords > 0 && recordCount >= maxRecords) || (maxBytes > 0 && byteCount >= maxBytes);
+    }
+
+    /**
+     * returns true if byte counting is needed by this policy
+     *
+     * @return
+     */
+    public boolean isTrackingBytes() {
+        return maxBytes > 0;
+    }
+
+    public int getMaxRecords() {
+        return maxRecords;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getMaxDelayMillis() {
+        return maxDelayMillis;
+    }
+
+    /**
+     * cheaply estimates the in-memory size of a record. This does not need to be exact; it only needs to be
+     * proportional to the real size so the maxBytes threshold behaves sensibly.
+     *
+     * @param record
+     * @return
+     */
+    public static long estimateSize(DataRecord record) {
+        long size = OBJECT_OVERHEAD + estimateSize(record.getIdentifier()) + estimateSize(record.getType());
+        for (Map.Entry<String, Object> field : record.getFields()) {
+            size += estimateSize(field.getKey()) + estimateSize(field.getValue());
+        }
+        return size;
+    }
+
+    private static long estimateSize(Object val) {
+        if (val == null) {
+            return 0;
+        } else if (val instanceof CharSequence) {
+            return OBJECT_OVERHEAD + 2L * ((CharSequence) val).length();
+        } else if (val instanceof byte[]) {
+            return OBJECT_OVERHEAD + ((byte[]) val).length;
+        } else {
+            return OBJECT_OVERHEAD + 8;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package org.cataractsoftware.datasponge.writer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Minimal, dependency-free JDBC connection pool used by the JdbcDataWriter. Connections are created lazily (up to
+ * maxSize), validated when they are borrowed and returned to the pool when released. Connections that were
+ * released as broken are closed instead of being reused.
+ *
+ * @author Christopher Fagiani
+ */
+public class JdbcConnectionPool {
+    private static final Logger logger = LoggerFactory.getLogger(JdbcConnectionPool.class);
+    private static final int VALIDATION_TIMEOUT_SECS = 2;
+
+    private final String jdbcUrl;
+    private final String user;
+    private final String password;
+    private final long borrowTimeoutMillis;
+    private final Semaphore permits;
+    private final LinkedBlockingQueue<Connection> idleConnections = new LinkedBlockingQueue<Connection>();
+    private volatile boolean closed;
+
+    public JdbcConnectionPool(String jdbcUrl, String user, String password, int maxSize, long borrowTimeoutMillis) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Pool size must be at least 1");
+        }
+        this.jdbcUrl = jdbcUrl;
+        this.user = user;
+        this.password = password;
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+        this.permits = new Semaphore(maxSize, true);
+    }
+
+    /**
+     * returns a valid connection, waiting up to borrowTimeoutMillis for one to become available if the pool is
+     * exhausted. Every connection obtained from this method MUST be handed back via release.
+     *
+     * @return
+     * @throws SQLException if the pool is closed, no connection became available in time or a connection could not be created
+     */
+    public Connection borrow() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool is closed");
+        }
+        try {
+            if (!permits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new SQLException("Timed out waiting for a connection to " + jdbcUrl);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection", e);
+        }
+        try {
+            Connection conn = idleConnections.poll();
+            while (conn != null && !isUsable(conn)) {
+                closeQuietly(conn);
+                conn = idleConnections.poll();
+            }
+            if (conn == null) {
+                conn = DriverManager.getConnection(jdbcUrl, user, password);
+            }
+            return conn;
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * returns a connection to the pool. If broken is true (or the pool has been closed) the connection is closed instead.
+     *
+     * @param conn
+     * @param broken
+     */
+    public void release(Connection conn, boolean broken) {
+        if (conn == null) {
+            return;
+        }
+        if (broken || closed) {
+            closeQuietly(conn);
+        } else {
+            idleConnections.offer(conn);
+        }
+        permits.release();
+    }
+
+    /**
+     * closes all idle connections. Connections that are currently borrowed are closed when they are released.
+     */
+    public void close() {
+        closed = true;
+        Connection conn = idleConnections.poll();
+        while (conn != null) {
+            closeQuietly(conn);
+            conn = idleConnections.poll();
+        }
+    }
+
+    private boolean isUsable(Connection conn) {
+        try {
+            return !conn.isClosed() && conn.isValid(VALIDATION_TIMEOUT_SECS);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void closeQuietly(Connection conn) {
+        try {
+            conn.close();
+        } catch (SQLException e) {
+            logger.warn("Could not close pooled connection", e);
+        }
+    }
+}
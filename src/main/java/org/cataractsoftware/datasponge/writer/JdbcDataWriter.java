@@ -1,49 +1,244 @@
 package org.cataractsoftware.datasponge.writer;
 
 import org.cataractsoftware.datasponge.DataRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Datawriter that is able to insert records into one or more JDBC tables.
- * NOTE: this assumes we're using JDBC4.0+ and does NOT use a connection pool.
+ * NOTE: this assumes we're using JDBC4.0+.
+ * <p/>
+ * Connections are taken from a small pool owned by the writer. Each flushBatch runs in a single transaction: the
+ * records are handed to processBatch in chunks of jdbcBatchSize and the transaction is committed once the whole
+ * flush has been processed. If a chunk fails, it is rolled back (to a savepoint) and its records are retried one at a
+ * time via processRecord so a single bad record does not prevent the others from being written.
+ * <p/>
+ * The behavior of this writer can be configured via the following properties:
+ * <p/>
+ * jdbcUrl = JDBC connection url
+ * jdbcUser = database user
+ * jdbcPassword = database password
+ * jdbcPoolSize = maximum number of pooled connections (defaults to 2)
+ * jdbcBatchSize = maximum number of records passed to a single processBatch call (defaults to 500)
+ * jdbcPoolTimeoutMillis = how long to wait for a pooled connection (defaults to 30000)
  */
 public abstract class JdbcDataWriter extends AbstractDataWriter {
 
     public static final String JDBC_URL_PROP = "jdbcUrl";
     public static final String DB_USER_PROP = "jdbcUser";
     public static final String DB_PASSWORD_PROP = "jdbcPassword";
+    public static final String POOL_SIZE_PROP = "jdbcPoolSize";
+    public static final String BATCH_SIZE_PROP = "jdbcBatchSize";
+    public static final String POOL_TIMEOUT_PROP = "jdbcPoolTimeoutMillis";
 
-    private String jdbcUrl;
-    private String user;
-    private String password;
+    private static final Logger logger = LoggerFactory.getLogger(JdbcDataWriter.class);
+
+    private final AtomicLong writtenCount = new AtomicLong(0);
+    private final AtomicLong failedCount = new AtomicLong(0);
+    private final AtomicLong batchCount = new AtomicLong(0);
+    private JdbcConnectionPool pool;
+    private int batchSize;
+    private Connection batchConnection;
+    private int pendingCount;
 
     @Override
     public void init(Properties props) {
-        this.jdbcUrl = props.getProperty(JDBC_URL_PROP);
-        this.user = props.getProperty(DB_USER_PROP);
-        this.password = props.getProperty(DB_PASSWORD_PROP);
+        super.init(props);
+        String jdbcUrl = props.getProperty(JDBC_URL_PROP);
+        String user = props.getProperty(DB_USER_PROP);
+        String password = props.getProperty(DB_PASSWORD_PROP);
+        this.batchSize = Integer.parseInt(props.getProperty(BATCH_SIZE_PROP, "500"));
+        this.pool = new JdbcConnectionPool(jdbcUrl, user, password,
+                Integer.parseInt(props.getProperty(POOL_SIZE_PROP, "2")),
+                Long.parseLong(props.getProperty(POOL_TIMEOUT_PROP, "30000")));
     }
 
+    /**
+     * splits the records into chunks of batchSize and processes each chunk using the connection for the current flush.
+     * The connection is borrowed lazily so empty flushes never touch the database.
+     *
+     * @param records non-empty collection of records to write
+     */
+    @Override
+    protected void writeBatch(Collection<DataRecord> records) {
+        Connection conn = getBatchConnection();
+        if (conn == null) {
+            failedCount.addAndGet(records.size());
+            return;
+        }
+        List<DataRecord> chunk = new ArrayList<DataRecord>(Math.min(batchSize, records.size()));
+        for (DataRecord record : records) {
+            chunk.add(record);
+            if (chunk.size() >= batchSize) {
+                writeChunk(chunk, conn);
+                chunk = new ArrayList<DataRecord>(batchSize);
+            }
+        }
+        if (!chunk.isEmpty()) {
+            writeChunk(chunk, conn);
+        }
+    }
 
     @Override
     protected void writeItem(DataRecord record) {
-        try (Connection conn = DriverManager.getConnection(jdbcUrl, user, password)) {
-            conn.setAutoCommit(false);
+        writeBatch(Collections.singletonList(record));
+    }
+
+    /**
+     * commits the transaction for the current flush and returns the connection to the pool
+     */
+    @Override
+    protected void completeBatch() {
+        super.completeBatch();
+        if (batchConnection == null) {
+            return;
+        }
+        boolean broken = false;
+        try {
+            batchConnection.commit();
+            writtenCount.addAndGet(pendingCount);
+            batchCount.incrementAndGet();
+        } catch (SQLException e) {
+            logger.error("Could not commit batch of " + pendingCount + " records for job " + getJobId(), e);
+            failedCount.addAndGet(pendingCount);
+            rollbackQuietly(batchConnection, null);
+            broken = true;
+        } finally {
+            pool.release(batchConnection, broken);
+            batchConnection = null;
+            pendingCount = 0;
+        }
+    }
+
+    /**
+     * returns the connection used by the current flush, borrowing one from the pool if needed
+     *
+     * @return connection or null if none could be obtained
+     */
+    private Connection getBatchConnection() {
+        if (batchConnection == null) {
+            try {
+                Connection conn = pool.borrow();
+                try {
+                    conn.setAutoCommit(false);
+                } catch (SQLException e) {
+                    pool.release(conn, true);
+                    throw e;
+                }
+                batchConnection = conn;
+            } catch (SQLException e) {
+                logger.error("Could not obtain connection for job " + getJobId(), e);
+            }
+        }
+        return batchConnection;
+    }
+
+    /**
+     * processes a chunk via processBatch. If that fails, the chunk is rolled back and each record is retried on its own.
+     *
+     * @param chunk
+     * @param conn
+     */
+    private void writeChunk(List<DataRecord> chunk, Connection conn) {
+        Savepoint savepoint = setSavepoint(conn);
+        try {
+            processBatch(chunk, conn);
+            releaseSavepoint(conn, savepoint);
+            pendingCount += chunk.size();
+        } catch (SQLException | RuntimeException e) {
+            if (savepoint == null) {
+                // without savepoints the only option is to discard the whole transaction
+                logger.error("Batch failed and savepoints are not supported; discarding " + (pendingCount + chunk.size()) + " records", e);
+                rollbackQuietly(conn, null);
+                failedCount.addAndGet(pendingCount + chunk.size());
+                pendingCount = 0;
+                return;
+            }
+            logger.warn("Batch of {} records failed ({}); retrying records individually", chunk.size(), e.getMessage());
+            rollbackQuietly(conn, savepoint);
+            for (DataRecord record : chunk) {
+                writeSingle(record, conn);
+            }
+        }
+    }
+
+    /**
+     * writes a single record via processRecord, isolated by a savepoint
+     *
+     * @param record
+     * @param conn
+     */
+    private void writeSingle(DataRecord record, Connection conn) {
+        Savepoint savepoint = setSavepoint(conn);
+        try {
+            processRecord(record, conn);
+            releaseSavepoint(conn, savepoint);
+            pendingCount++;
+        } catch (RuntimeException e) {
+            logger.warn("Could not write record {}: {}", record.getIdentifier(), e.getMessage());
+            failedCount.incrementAndGet();
+            rollbackQuietly(conn, savepoint);
+        }
+    }
+
+    private Savepoint setSavepoint(Connection conn) {
+        try {
+            return conn.setSavepoint();
+        } catch (SQLFeatureNotSupportedException e) {
+            return null;
+        } catch (SQLException e) {
+            logger.warn("Could not set savepoint", e);
+            return null;
+        }
+    }
+
+    private void releaseSavepoint(Connection conn, Savepoint savepoint) {
+        if (savepoint != null) {
             try {
-                processRecord(record, conn);
-                conn.commit();
-            } catch (Throwable ex) {
-                //TODO: log
+                conn.releaseSavepoint(savepoint);
+            } catch (SQLException e) {
+                //not all drivers support releasing savepoints; they are released on commit anyway
+            }
+        }
+    }
+
+    private void rollbackQuietly(Connection conn, Savepoint savepoint) {
+        try {
+            if (savepoint != null) {
+                conn.rollback(savepoint);
+            } else {
                 conn.rollback();
             }
         } catch (SQLException e) {
-            //TODO: log and continue
+            logger.error("Could not roll back", e);
         }
+    }
 
+    /**
+     * Processes a chunk of records using the connection for the current flush. The default implementation calls
+     * processRecord for each record; subclasses should override this to build PreparedStatements once and use
+     * addBatch/executeBatch. Implementors should NOT close the connection nor commit. Throwing an exception causes the
+     * chunk to be rolled back and its records to be retried individually via processRecord.
+     *
+     * @param records    records to write (at most jdbcBatchSize)
+     * @param connection connection to use
+     * @throws SQLException
+     */
+    protected void processBatch(List<DataRecord> records, Connection connection) throws SQLException {
+        for (DataRecord record : records) {
+            processRecord(record, connection);
+        }
     }
 
     /**
@@ -51,15 +246,46 @@ public abstract class JdbcDataWriter extends AbstractDataWriter {
      * Implementors should NOT close the connection nor is there a need to commit. To trigger a rollback, throw
      * implementors can throw a runtime exception.
      * <p>
-     * The writeItem method will take care of closing the connection and committing/rolling back as needed.
+     * The writer will take care of committing/rolling back as needed.
      *
      * @param record
      * @param connection
      */
     protected abstract void processRecord(DataRecord record, Connection connection);
 
+    /**
+     * returns the number of records committed to the database
+     *
+     * @return
+     */
+    public long getWrittenCount() {
+        return writtenCount.get();
+    }
+
+    /**
+     * returns the number of records that could not be written
+     *
+     * @return
+     */
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * returns the number of transactions committed
+     *
+     * @return
+     */
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
     @Override
     public void finish() {
-        //no-op
+        markFinished();
+        if (pool != null) {
+            pool.close();
+        }
+        logger.info("JdbcDataWriter for job {} wrote {} records in {} batches; {} failures", getJobId(), writtenCount.get(), batchCount.get(), failedCount.get());
     }
 }
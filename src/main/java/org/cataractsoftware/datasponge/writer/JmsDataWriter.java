@@ -1,7 +1,7 @@
 package org.cataractsoftware.datasponge.writer;
 
-import org.cataractsoftware.datasponge.AbstractDataAdapter;
 import org.cataractsoftware.datasponge.DataRecord;
+import org.cataractsoftware.datasponge.util.DataRecordCodec;
 import org.springframework.beans.factory.config.ConfigurableBeanFactory;
 import org.springframework.context.annotation.Scope;
 import org.springframework.jms.core.JmsTemplate;
@@ -9,53 +9,159 @@ import org.springframework.jms.core.MessageCreator;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.Resource;
+import javax.jms.BytesMessage;
 import javax.jms.JMSException;
-import javax.jms.ObjectMessage;
 import javax.jms.Session;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Properties;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
 /**
- * Datawriter implementation that will publish data records to JMS.
+ * Datawriter implementation that will publish data records to JMS. Records are buffered like any other
+ * AbstractDataWriter and each flush sends them as BytesMessages holding up to jmsMaxRecordsPerMessage records encoded
+ * with the DataRecordCodec and (by default) deflate-compressed, so the SpiderThreads never wait on the broker.
+ * <p/>
+ * Unless overridden, the flush policy defaults to flushing every 1000 records or 1000 ms, whichever comes first.
+ * <p/>
+ * The behavior of this writer can be configured via the following properties:
+ * <p/>
+ * jmsDestination = name of the destination to publish to
+ * jmsMaxRecordsPerMessage = maximum number of records per message (defaults to 1000)
+ * jmsCompression = either "deflate" (default) or "none"
  *
  * @author Christopher Fagiani
  */
 @Component
 @Scope(value = ConfigurableBeanFactory.SCOPE_PROTOTYPE)
-public class JmsDataWriter extends AbstractDataAdapter implements DataWriter {
+public class JmsDataWriter extends AbstractDataWriter {
 
     public static final String DESTINATION_NAME_PROP = "jmsDestination";
+    public static final String MAX_RECORDS_PER_MESSAGE_PROP = "jmsMaxRecordsPerMessage";
+    public static final String COMPRESSION_CONFIG_PROP = "jmsCompression";
     public static final String JOB_ID_PROP = "jobId";
+    public static final String RECORD_COUNT_PROP = "recordCount";
+    public static final String COMPRESSION_PROP = "compression";
+    public static final String DEFLATE = "deflate";
+
+    private static final String DEFAULT_FLUSH_RECORDS = "1000";
+    private static final String DEFAULT_FLUSH_DELAY = "1000";
+
     private String destination;
+    private int maxRecordsPerMessage;
+    private boolean compress;
     @Resource(name = "outputJmsTemplate")
     private JmsTemplate outputJmsTemplate;
 
     @Override
-    public void addItem(final DataRecord record) {
-        outputJmsTemplate.send(destination, new MessageCreator() {
-            @Override
-            public ObjectMessage createMessage(Session session) throws JMSException {
-                ObjectMessage message = session.createObjectMessage();
-                message.setObject(record);
-                message.setStringProperty(JOB_ID_PROP, getJobId());
-                return message;
+    public void init(Properties props) {
+        Properties effective = new Properties();
+        effective.setProperty(FlushPolicy.MAX_RECORDS_PROP, DEFAULT_FLUSH_RECORDS);
+        effective.setProperty(FlushPolicy.MAX_DELAY_PROP, DEFAULT_FLUSH_DELAY);
+        if (props != null) {
+            for (String name : props.stringPropertyNames()) {
+                effective.setProperty(name, props.getProperty(name));
             }
-        });
+        }
+        super.init(effective);
+        this.destination = effective.getProperty(DESTINATION_NAME_PROP);
+        this.maxRecordsPerMessage = Integer.parseInt(effective.getProperty(MAX_RECORDS_PER_MESSAGE_PROP, "1000"));
+        this.compress = DEFLATE.equalsIgnoreCase(effective.getProperty(COMPRESSION_CONFIG_PROP, DEFLATE));
     }
 
-
     @Override
-    public void flushBatch() {
-        //no-op
+    protected void writeBatch(Collection<DataRecord> records) {
+        List<DataRecord> chunk = new ArrayList<DataRecord>(Math.min(records.size(), maxRecordsPerMessage));
+        for (DataRecord record : records) {
+            chunk.add(record);
+            if (chunk.size() >= maxRecordsPerMessage) {
+                send(chunk);
+                chunk.clear();
+            }
+        }
+        if (!chunk.isEmpty()) {
+            send(chunk);
+        }
     }
 
+    @Override
+    protected void writeItem(DataRecord record) {
+        List<DataRecord> single = new ArrayList<DataRecord>(1);
+        single.add(record);
+        send(single);
+    }
 
     @Override
     public void finish() {
-        //no-op
+        markFinished();
     }
 
-    @Override
-    public void init(Properties props) {
-        this.destination = props.getProperty(DESTINATION_NAME_PROP);
+    public void setOutputJmsTemplate(JmsTemplate outputJmsTemplate) {
+        this.outputJmsTemplate = outputJmsTemplate;
+    }
+
+    /**
+     * decodes the body of a message sent by this writer
+     *
+     * @param body        message body
+     * @param compression value of the compression property of the message (may be null)
+     * @return
+     * @throws IOException
+     */
+    public static List<DataRecord> decodeMessage(byte[] body, String compression) throws IOException {
+        if (!DEFLATE.equalsIgnoreCase(compression)) {
+            return DataRecordCodec.decodeAll(body);
+        }
+        ByteArrayOutputStream raw = new ByteArrayOutputStream(body.length * 4);
+        try (InputStream in = new InflaterInputStream(new ByteArrayInputStream(body))) {
+            byte[] buf = new byte[8192];
+            int read;
+            while ((read = in.read(buf)) > 0) {
+                raw.write(buf, 0, read);
+            }
+        }
+        return DataRecordCodec.decodeAll(raw.toByteArray());
+    }
+
+    private void send(final List<DataRecord> records) {
+        final byte[] body = encode(records);
+        final int count = records.size();
+        outputJmsTemplate.send(destination, new MessageCreator() {
+            @Override
+            public BytesMessage createMessage(Session session) throws JMSException {
+                BytesMessage message = session.createBytesMessage();
+                message.writeBytes(body);
+                message.setStringProperty(JOB_ID_PROP, getJobId());
+                message.setIntProperty(RECORD_COUNT_PROP, count);
+                if (compress) {
+                    message.setStringProperty(COMPRESSION_PROP, DEFLATE);
+                }
+                return message;
+            }
+        });
+    }
+
+    private byte[] encode(List<DataRecord> records) {
+        if (!compress) {
+            return DataRecordCodec.encode(records);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * records.size());
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try (DeflaterOutputStream out = new DeflaterOutputStream(bytes, deflater, 8192)) {
+            DataRecordCodec.encode(records, out);
+        } catch (IOException e) {
+            // cannot happen when writing to memory
+            throw new IllegalStateException("Could not encode records", e);
+        } finally {
+            deflater.end();
+        }
+        return bytes.toByteArray();
     }
 }
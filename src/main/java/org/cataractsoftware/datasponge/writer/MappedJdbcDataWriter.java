@@ -0,0 +1,280 @@
+package org.cataractsoftware.datasponge.writer;
+
+import org.cataractsoftware.datasponge.DataRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Concrete JdbcDataWriter that writes each DataRecord as a single row of one table without requiring any custom code.
+ * The row is built from a mapping of DataRecord field names to column names. The statement is generated once and a
+ * PreparedStatement is cached per pooled connection, so each flush only binds parameters and calls addBatch.
+ * <p/>
+ * In addition to the properties used by JdbcDataWriter, the behavior of this writer can be configured via the
+ * following properties:
+ * <p/>
+ * jdbcTable = name of the table to write
+ * jdbcColumnMapping = semicolon-delimited list of field:column pairs (i.e. title:page_title;matchText:snippet)
+ * jdbcIdColumn = column that holds DataRecord.identifier (required for upsert mode)
+ * jdbcTypeColumn = optional column that holds DataRecord.type
+ * jdbcWriteMode = either "insert" (default) or "upsert". Upsert mode replaces the row with the same identifier, which
+ * is useful for continuous crawls that revisit the same pages.
+ * jdbcDialect = syntax to use for upserts: H2 (MERGE ... KEY), POSTGRESQL (ON CONFLICT) or MYSQL (ON DUPLICATE KEY).
+ * If omitted, it is inferred from the jdbcUrl.
+ *
+ * @author Christopher Fagiani
+ */
+public class MappedJdbcDataWriter extends JdbcDataWriter {
+
+    public static final String TABLE_PROP = "jdbcTable";
+    public static final String COLUMN_MAPPING_PROP = "jdbcColumnMapping";
+    public static final String ID_COLUMN_PROP = "jdbcIdColumn";
+    public static final String TYPE_COLUMN_PROP = "jdbcTypeColumn";
+    public static final String WRITE_MODE_PROP = "jdbcWriteMode";
+    public static final String DIALECT_PROP = "jdbcDialect";
+
+    private static final Logger logger = LoggerFactory.getLogger(MappedJdbcDataWriter.class);
+
+    private final Map<Connection, PreparedStatement> statementCache = new IdentityHashMap<Connection, PreparedStatement>();
+    private Map<String, String> fieldToColumn;
+    private String idColumn;
+    private String typeColumn;
+    private String sql;
+
+    @Override
+    public void init(Properties props) {
+        super.init(props);
+        String table = props.getProperty(TABLE_PROP);
+        if (table == null || table.trim().isEmpty()) {
+            throw new IllegalStateException(TABLE_PROP + " must be set when using MappedJdbcDataWriter");
+        }
+        fieldToColumn = parseMapping(props.getProperty(COLUMN_MAPPING_PROP, ""));
+        idColumn = trimToNull(props.getProperty(ID_COLUMN_PROP));
+        typeColumn = trimToNull(props.getProperty(TYPE_COLUMN_PROP));
+        if (fieldToColumn.isEmpty() && idColumn == null && typeColumn == null) {
+            throw new IllegalStateException("At least one column must be mapped when using MappedJdbcDataWriter");
+        }
+        boolean upsert = "upsert".equalsIgnoreCase(props.getProperty(WRITE_MODE_PROP, "insert").trim());
+        if (upsert) {
+            if (idColumn == null) {
+                throw new IllegalStateException(ID_COLUMN_PROP + " must be set when " + WRITE_MODE_PROP + " is upsert");
+            }
+            Dialect dialect = resolveDialect(props.getProperty(DIALECT_PROP), props.getProperty(JDBC_URL_PROP));
+            sql = buildUpsert(table.trim(), getColumns(), dialect);
+        } else {
+            sql = buildInsert(table.trim(), getColumns());
+        }
+        logger.info("MappedJdbcDataWriter will use: {}", sql);
+    }
+
+    @Override
+    protected void processBatch(List<DataRecord> records, Connection connection) throws SQLException {
+        PreparedStatement stmt = getStatement(connection);
+        for (DataRecord record : records) {
+            bind(stmt, record);
+            stmt.addBatch();
+        }
+        stmt.executeBatch();
+    }
+
+    @Override
+    protected void processRecord(DataRecord record, Connection connection) {
+        try {
+            PreparedStatement stmt = getStatement(connection);
+            bind(stmt, record);
+            stmt.executeUpdate();
+        } catch (SQLException e) {
+            throw new RuntimeException("Could not write record " + record.getIdentifier(), e);
+        }
+    }
+
+    @Override
+    public void finish() {
+        synchronized (statementCache) {
+            for (PreparedStatement stmt : statementCache.values()) {
+                try {
+                    stmt.close();
+                } catch (SQLException e) {
+                    logger.warn("Could not close statement", e);
+                }
+            }
+            statementCache.clear();
+        }
+        super.finish();
+    }
+
+    /**
+     * returns the cached statement for the connection, preparing it if needed. Statements belonging to connections
+     * that have since been closed are evicted.
+     *
+     * @param connection
+     * @return
+     * @throws SQLException
+     */
+    private PreparedStatement getStatement(Connection connection) throws SQLException {
+        synchronized (statementCache) {
+            PreparedStatement stmt = statementCache.get(connection);
+            if (stmt == null || stmt.isClosed()) {
+                Iterator<PreparedStatement> it = statementCache.values().iterator();
+                while (it.hasNext()) {
+                    if (it.next().isClosed()) {
+                        it.remove();
+                    }
+                }
+                stmt = connection.prepareStatement(sql);
+                statementCache.put(connection, stmt);
+            } else {
+                // a failed executeBatch can leave entries behind that must not be re-sent
+                stmt.clearBatch();
+                stmt.clearParameters();
+            }
+            return stmt;
+        }
+    }
+
+    /**
+     * binds the record's values to the statement in the same order as getColumns
+     *
+     * @param stmt
+     * @param record
+     * @throws SQLException
+     */
+    private void bind(PreparedStatement stmt, DataRecord record) throws SQLException {
+        int idx = 1;
+        if (idColumn != null) {
+            stmt.setString(idx++, record.getIdentifier());
+        }
+        if (typeColumn != null) {
+            stmt.setString(idx++, record.getType());
+        }
+        for (String field : fieldToColumn.keySet()) {
+            Object val = record.getFieldValue(field);
+            if (val == null) {
+                stmt.setNull(idx++, Types.NULL);
+            } else if (val instanceof Date) {
+                stmt.setTimestamp(idx++, new Timestamp(((Date) val).getTime()));
+            } else if (val instanceof String || val instanceof Number || val instanceof Boolean || val instanceof byte[]) {
+                stmt.setObject(idx++, val);
+            } else {
+                stmt.setString(idx++, val.toString());
+            }
+        }
+    }
+
+    /**
+     * returns the column names in binding order (id, type, then mapped fields)
+     *
+     * @return
+     */
+    private List<String> getColumns() {
+        List<String> columns = new ArrayList<String>();
+        if (idColumn != null) {
+            columns.add(idColumn);
+        }
+        if (typeColumn != null) {
+            columns.add(typeColumn);
+        }
+        columns.addAll(fieldToColumn.values());
+        return columns;
+    }
+
+    private String buildInsert(String table, List<String> columns) {
+        return "INSERT INTO " + table + " (" + join(columns) + ") VALUES (" + placeholders(columns.size()) + ")";
+    }
+
+    private String buildUpsert(String table, List<String> columns, Dialect dialect) {
+        switch (dialect) {
+            case POSTGRESQL: {
+                StringBuilder builder = new StringBuilder(buildInsert(table, columns));
+                builder.append(" ON CONFLICT (").append(idColumn).append(") DO ");
+                List<String> updates = new ArrayList<String>();
+                for (String col : columns) {
+                    if (!col.equals(idColumn)) {
+                        updates.add(col + " = EXCLUDED." + col);
+                    }
+                }
+                builder.append(updates.isEmpty() ? "NOTHING" : "UPDATE SET " + join(updates));
+                return builder.toString();
+            }
+            case MYSQL: {
+                List<String> updates = new ArrayList<String>();
+                for (String col : columns) {
+                    updates.add(col + " = VALUES(" + col + ")");
+                }
+                return buildInsert(table, columns) + " ON DUPLICATE KEY UPDATE " + join(updates);
+            }
+            default:
+                return "MERGE INTO " + table + " (" + join(columns) + ") KEY (" + idColumn + ") VALUES (" + placeholders(columns.size()) + ")";
+        }
+    }
+
+    private Dialect resolveDialect(String configured, String jdbcUrl) {
+        if (configured != null && !configured.trim().isEmpty()) {
+            return Dialect.valueOf(configured.trim().toUpperCase());
+        }
+        String url = jdbcUrl != null ? jdbcUrl.toLowerCase() : "";
+        if (url.startsWith("jdbc:postgresql:")) {
+            return Dialect.POSTGRESQL;
+        } else if (url.startsWith("jdbc:mysql:") || url.startsWith("jdbc:mariadb:")) {
+            return Dialect.MYSQL;
+        } else if (url.startsWith("jdbc:h2:")) {
+            return Dialect.H2;
+        }
+        throw new IllegalStateException("Cannot infer upsert syntax from " + jdbcUrl + "; set " + DIALECT_PROP);
+    }
+
+    private Map<String, String> parseMapping(String mapping) {
+        Map<String, String> result = new LinkedHashMap<String, String>();
+        for (String pair : mapping.split(";")) {
+            if (pair.trim().isEmpty()) {
+                continue;
+            }
+            String[] parts = pair.split(":");
+            if (parts.length != 2 || parts[0].trim().isEmpty() || parts[1].trim().isEmpty()) {
+                throw new IllegalStateException("Invalid " + COLUMN_MAPPING_PROP + " entry: " + pair);
+            }
+            result.put(parts[0].trim(), parts[1].trim());
+        }
+        return result;
+    }
+
+    private String join(List<String> items) {
+        StringBuilder builder = new StringBuilder();
+        for (String item : items) {
+            if (builder.length() > 0) {
+                builder.append(", ");
+            }
+            builder.append(item);
+        }
+        return builder.toString();
+    }
+
+    private String placeholders(int count) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            builder.append(i > 0 ? ", ?" : "?");
+        }
+        return builder.toString();
+    }
+
+    private String trimToNull(String val) {
+        return val == null || val.trim().isEmpty() ? null : val.trim();
+    }
+
+    public enum Dialect {
+        H2, POSTGRESQL, MYSQL
+    }
+}
@@ -0,0 +1,254 @@
+package org.cataractsoftware.datasponge.writer;
+
+import org.cataractsoftware.datasponge.AbstractDataAdapter;
+import org.cataractsoftware.datasponge.DataRecord;
+import org.cataractsoftware.datasponge.util.DaemonThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DataWriter used by the JobCoordinator to consume node output in parallel. Encoded batches received from the output
+ * topic are handed to a pool of decoder threads (so the single JMS listener thread only copies bytes) and every decoded
+ * record is routed, by a hash of its partition key, to one of N partitions. Each partition has its own writer instance,
+ * so buffering and flushing proceed in parallel and records with the same key always reach the same writer. Batches are
+ * decoded in parallel but routed in the order they arrived, so records with the same key also reach their writer in
+ * arrival order (upserting writers keep the latest version). In MERGE mode all partitions share a single writer, for
+ * writers that must produce a single output; decoding is still done in parallel.
+ * <p/>
+ * Partitioning is enabled by setting the following properties on the coordinatorDataWriter:
+ * <p/>
+ * coordinator.partitions = number of partitions (defaults to 1, which disables partitioning)
+ * coordinator.partitionMode = either "partitioned" (default; one writer per partition) or "merge" (one shared writer)
+ * coordinator.partitionKey = name of the field whose value is hashed to pick the partition (defaults to the record identifier)
+ * <p/>
+ * In partitioned mode, every occurrence of {partition} in the writer's property values is replaced with the partition
+ * number, so file-based writers can be given distinct outputs (i.e. csvwriter.filename=/out/part-{partition}.csv).
+ *
+ * @author Christopher Fagiani
+ */
+public class PartitionedDataWriter extends AbstractDataAdapter implements DataWriter {
+
+    public static final String PARTITIONS_PROP = "coordinator.partitions";
+    public static final String MODE_PROP = "coordinator.partitionMode";
+    public static final String KEY_PROP = "coordinator.partitionKey";
+    public static final String PARTITION_PLACEHOLDER = "{partition}";
+
+    private static final Logger logger = LoggerFactory.getLogger(PartitionedDataWriter.class);
+    private static final int QUEUED_BATCHES_PER_THREAD = 4;
+    private static final long SHUTDOWN_WAIT_SECS = 300;
+
+    private final DataWriter[] partitions;
+    private final List<DataWriter> distinctWriters;
+    private final String keyField;
+    private final ThreadPoolExecutor decodePool;
+    private final ExecutorService flushPool;
+    private final Object submitLock = new Object();
+    private final Object routeLock = new Object();
+    private long nextTicket;
+    private long nextToRoute;
+
+    /**
+     * @param partitions    writer for each partition (the same instance may be used for every partition)
+     * @param decodeThreads number of threads used to decode incoming batches
+     * @param keyField      field used to route records (null to use the identifier)
+     */
+    public PartitionedDataWriter(DataWriter[] partitions, int decodeThreads, String keyField) {
+        this.partitions = partitions;
+        this.keyField = keyField;
+        Set<DataWriter> seen = Collections.newSetFromMap(new IdentityHashMap<DataWriter, Boolean>());
+        List<DataWriter> distinct = new ArrayList<DataWriter>();
+        for (DataWriter writer : partitions) {
+            if (seen.add(writer)) {
+                distinct.add(writer);
+            }
+        }
+        this.distinctWriters = distinct;
+        // when every decoder is busy and the queue is full, the listener thread decodes the batch itself (backpressure)
+        this.decodePool = new ThreadPoolExecutor(decodeThreads, decodeThreads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(decodeThreads * QUEUED_BATCHES_PER_THREAD),
+                new DaemonThreadFactory("datasponge-output-decoder-"), new ThreadPoolExecutor.CallerRunsPolicy());
+        this.flushPool = Executors.newFixedThreadPool(distinct.size(), new DaemonThreadFactory("datasponge-partition-flusher-"));
+    }
+
+    /**
+     * builds the per-partition plugin properties by substituting the partition number for {partition}
+     *
+     * @param props
+     * @param partition
+     * @return
+     */
+    public static Properties propertiesForPartition(Properties props, int partition) {
+        Properties result = new Properties();
+        if (props != null) {
+            for (String name : props.stringPropertyNames()) {
+                result.setProperty(name, props.getProperty(name).replace(PARTITION_PLACEHOLDER, Integer.toString(partition)));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void init(Properties props) {
+        // partition writers are initialized individually
+    }
+
+    @Override
+    public void setJobId(String id) {
+        super.setJobId(id);
+        for (DataWriter writer : distinctWriters) {
+            writer.setJobId(id);
+        }
+    }
+
+    @Override
+    public void addItem(DataRecord record) {
+        partitions[partitionFor(record)].addItem(record);
+    }
+
+    /**
+     * queues an encoded batch (as sent by the JmsDataWriter) for decoding on the decoder pool. The decoded records are
+     * routed only after those of every batch queued before it.
+     *
+     * @param body
+     * @param compression
+     */
+    public void addEncoded(final byte[] body, final String compression) {
+        // tickets must be handed out in the order batches enter the pool, or a decoder could wait on a batch queued
+        // behind it
+        synchronized (submitLock) {
+            final long ticket = nextTicket++;
+            decodePool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    List<DataRecord> records = null;
+                    try {
+                        records = JmsDataWriter.decodeMessage(body, compression);
+                    } catch (IOException e) {
+                        logger.error("Could not decode output batch for job " + getJobId(), e);
+                    }
+                    awaitTurn(ticket);
+                    try {
+                        if (records != null) {
+                            for (DataRecord record : records) {
+                                addItem(record);
+                            }
+                        }
+                    } finally {
+                        synchronized (routeLock) {
+                            nextToRoute++;
+                            routeLock.notifyAll();
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * flushes every partition writer in parallel and waits for them to complete
+     */
+    @Override
+    public void flushBatch() {
+        List<Future<?>> results = new ArrayList<Future<?>>(distinctWriters.size());
+        for (final DataWriter writer : distinctWriters) {
+            results.add(flushPool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    writer.flushBatch();
+                }
+            }));
+        }
+        for (Future<?> result : results) {
+            try {
+                result.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                logger.error("Could not flush partition writer for job " + getJobId(), e.getCause());
+            }
+        }
+    }
+
+    /**
+     * waits for all queued batches to be decoded, then flushes and finishes every partition writer
+     */
+    @Override
+    public void finish() {
+        decodePool.shutdown();
+        try {
+            if (!decodePool.awaitTermination(SHUTDOWN_WAIT_SECS, TimeUnit.SECONDS)) {
+                logger.warn("Timed out waiting for output batches to be decoded for job {}", getJobId());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flushBatch();
+        flushPool.shutdown();
+        for (DataWriter writer : distinctWriters) {
+            writer.finish();
+        }
+    }
+
+    /**
+     * waits until the batches with earlier tickets have been routed. The wait is not abandoned on interrupt since every
+     * later batch depends on this one being routed.
+     *
+     * @param ticket
+     */
+    private void awaitTurn(long ticket) {
+        boolean interrupted = false;
+        synchronized (routeLock) {
+            while (nextToRoute != ticket) {
+                try {
+                    routeLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public int getPartitionCount() {
+        return partitions.length;
+    }
+
+    /**
+     * returns the partition a record is routed to
+     *
+     * @param record
+     * @return
+     */
+    public int partitionFor(DataRecord record) {
+        Object key = keyField != null ? record.getFieldValue(keyField) : record.getIdentifier();
+        if (key == null) {
+            return 0;
+        }
+        int hash = key.hashCode();
+        // spread the bits so keys that differ only in their high bits still land in different partitions
+        hash ^= (hash >>> 16);
+        return (hash & Integer.MAX_VALUE) % partitions.length;
+    }
+
+    public enum Mode {
+        PARTITIONED, MERGE
+    }
+}
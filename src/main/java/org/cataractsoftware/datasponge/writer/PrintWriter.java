@@ -28,7 +28,7 @@ public class PrintWriter extends AbstractDataWriter {
     }
 
     public void finish() {
-        //no-op
+        markFinished();
     }
 
     protected String getDelimiter() {
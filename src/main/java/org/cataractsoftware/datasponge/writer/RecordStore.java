@@ -0,0 +1,284 @@
+package org.cataractsoftware.datasponge.writer;
+
+import org.cataractsoftware.datasponge.DataRecord;
+import org.cataractsoftware.datasponge.util.DataRecordCodec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Append-only, segmented log of DataRecords backed by memory-mapped files. Each segment is a fixed-size file
+ * (segment-NNNNNNNNNN.log) holding length-prefixed records encoded with the DataRecordCodec. A record's offset is its logical
+ * position in the log (segment number * segment size + position in the segment), so offsets increase monotonically and
+ * can be used to page through the log. An in-memory index maps record identifiers to the offset of the latest committed
+ * record with that identifier; it is rebuilt by scanning the segments when an existing store is reopened.
+ * <p/>
+ * Appends and commits are serialized while any number of threads read. Readers only see records up to the last committed
+ * offset and decode them straight from a view of the mapped segment, without copying them to the heap first.
+ *
+ * @author Christopher Fagiani
+ */
+public class RecordStore implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(RecordStore.class);
+    private static final String SEGMENT_FORMAT = "segment-%010d.log";
+    private static final int LENGTH_SIZE = 4;
+
+    private final File directory;
+    private final int segmentSize;
+    private final List<MappedByteBuffer> segments = new CopyOnWriteArrayList<MappedByteBuffer>();
+    private final Map<String, Long> index = new ConcurrentHashMap<String, Long>();
+    private final Map<String, Long> pendingIndex = new HashMap<String, Long>();
+    private final ByteArrayOutputStream encodeBuffer = new ByteArrayOutputStream(1024);
+    private volatile long committedOffset;
+    private long writeOffset;
+    private long recordCount;
+
+    /**
+     * opens (or creates) the store in the directory
+     *
+     * @param directory
+     * @param segmentSize size, in bytes, of each segment file
+     * @throws IOException
+     */
+    public RecordStore(File directory, int segmentSize) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create record store directory " + directory);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        recover();
+    }
+
+    /**
+     * appends the record to the log. The record is not visible to readers until commit is called.
+     *
+     * @param record
+     * @return offset of the record
+     * @throws IOException
+     */
+    public synchronized long append(DataRecord record) throws IOException {
+        byte[] payload = encode(record);
+        int size = LENGTH_SIZE + payload.length;
+        if (size > segmentSize) {
+            throw new IOException("Record " + record.getIdentifier() + " (" + size + " bytes) is larger than a segment");
+        }
+        int position = (int) (writeOffset % segmentSize);
+        if (position + size > segmentSize) {
+            // leave the tail of the segment unused; a zero length (or running off the end) tells readers to move on
+            MappedByteBuffer current = segments.get(segments.size() - 1);
+            if (position + LENGTH_SIZE <= segmentSize) {
+                current.putInt(position, 0);
+            }
+            writeOffset = (writeOffset / segmentSize + 1) * segmentSize;
+            position = 0;
+        }
+        int segmentNumber = (int) (writeOffset / segmentSize);
+        if (segmentNumber == segments.size()) {
+            segments.add(mapSegment(segmentNumber));
+        }
+        MappedByteBuffer segment = segments.get(segmentNumber);
+        segment.putInt(position, payload.length);
+        ByteBuffer view = segment.duplicate();
+        view.position(position + LENGTH_SIZE);
+        view.put(payload);
+        long offset = writeOffset;
+        writeOffset += size;
+        if (record.getIdentifier() != null) {
+            // published by commit, so readers keep getting the previous version until then
+            pendingIndex.put(record.getIdentifier(), offset);
+        }
+        recordCount++;
+        return offset;
+    }
+
+    /**
+     * makes all appended records visible to readers
+     */
+    public synchronized void commit() {
+        committedOffset = writeOffset;
+        index.putAll(pendingIndex);
+        pendingIndex.clear();
+    }
+
+    /**
+     * forces the mapped segments to disk
+     */
+    public void sync() {
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+    }
+
+    /**
+     * returns the latest committed record with the identifier or null if there is none
+     *
+     * @param identifier
+     * @return
+     */
+    public DataRecord get(String identifier) {
+        if (identifier == null) {
+            return null;
+        }
+        Long offset = index.get(identifier);
+        if (offset == null || offset >= committedOffset) {
+            return null;
+        }
+        return read(offset);
+    }
+
+    /**
+     * reads up to limit committed records starting at offset
+     *
+     * @param offset position to start reading from (use 0 for the start of the log or the nextOffset of a previous page)
+     * @param limit  maximum number of records to return
+     * @return
+     */
+    public Page scan(long offset, int limit) {
+        List<DataRecord> records = new ArrayList<DataRecord>(Math.min(limit, 1000));
+        long end = committedOffset;
+        long position = Math.max(0, offset);
+        while (records.size() < limit && position < end) {
+            int segPos = (int) (position % segmentSize);
+            ByteBuffer segment = segments.get((int) (position / segmentSize));
+            int length = segPos + LENGTH_SIZE <= segmentSize ? segment.getInt(segPos) : 0;
+            if (length <= 0) {
+                position = (position / segmentSize + 1) * segmentSize;
+                continue;
+            }
+            records.add(read(position));
+            position += LENGTH_SIZE + length;
+        }
+        return new Page(records, Math.min(position, end));
+    }
+
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    public long getCommittedOffset() {
+        return committedOffset;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    @Override
+    public void close() {
+        sync();
+        segments.clear();
+        index.clear();
+        pendingIndex.clear();
+    }
+
+    private DataRecord read(long offset) {
+        ByteBuffer view = segments.get((int) (offset / segmentSize)).duplicate();
+        int position = (int) (offset % segmentSize);
+        int length = view.getInt(position);
+        view.position(position + LENGTH_SIZE);
+        view.limit(position + LENGTH_SIZE + length);
+        try {
+            return DataRecordCodec.decodeAll(view.slice()).get(0);
+        } catch (IOException e) {
+            throw new IllegalStateException("Corrupt record at offset " + offset + " in " + directory, e);
+        }
+    }
+
+    private MappedByteBuffer mapSegment(int number) throws IOException {
+        File file = new File(directory, String.format(SEGMENT_FORMAT, number));
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            // the mapping stays valid after the channel is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+    }
+
+    /**
+     * maps any existing segments and scans them to rebuild the index and find the end of the log
+     *
+     * @throws IOException
+     */
+    private void recover() throws IOException {
+        int number = 0;
+        while (new File(directory, String.format(SEGMENT_FORMAT, number)).exists()) {
+            segments.add(mapSegment(number));
+            number++;
+        }
+        if (segments.isEmpty()) {
+            return;
+        }
+        long position = 0;
+        long end = (long) segments.size() * segmentSize;
+        while (position < end) {
+            int segPos = (int) (position % segmentSize);
+            ByteBuffer segment = segments.get((int) (position / segmentSize));
+            int length = segPos + LENGTH_SIZE <= segmentSize ? segment.getInt(segPos) : 0;
+            if (length <= 0 || segPos + LENGTH_SIZE + length > segmentSize) {
+                long nextSegment = (position / segmentSize + 1) * segmentSize;
+                if (nextSegment >= end) {
+                    break;
+                }
+                position = nextSegment;
+                continue;
+            }
+            writeOffset = position;
+            try {
+                String identifier = read(position).getIdentifier();
+                if (identifier != null) {
+                    index.put(identifier, position);
+                }
+            } catch (RuntimeException e) {
+                // a torn write at the end of the log; anything after it is discarded
+                logger.warn("Truncating record store {} at offset {}", directory, position);
+                break;
+            }
+            recordCount++;
+            position += LENGTH_SIZE + length;
+            writeOffset = position;
+        }
+        committedOffset = writeOffset;
+        logger.info("Opened record store {} with {} records", directory, recordCount);
+    }
+
+    private byte[] encode(DataRecord record) throws IOException {
+        encodeBuffer.reset();
+        DataRecordCodec.encode(Collections.singletonList(record), encodeBuffer);
+        return encodeBuffer.toByteArray();
+    }
+
+    /**
+     * a page of records read from the store along with the offset to pass to the next scan
+     */
+    public static class Page {
+        private final List<DataRecord> records;
+        private final long nextOffset;
+
+        public Page(List<DataRecord> records, long nextOffset) {
+            this.records = records;
+            this.nextOffset = nextOffset;
+        }
+
+        public List<DataRecord> getRecords() {
+            return records;
+        }
+
+        public long getNextOffset() {
+            return nextOffset;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package org.cataractsoftware.datasponge.writer;
+
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * keeps track of the RecordStore written by each job on this node so the output can be read back (i.e. via the REST
+ * api). Stores stay registered after their job completes so results remain readable until the node shuts down.
+ * <p/>
+ * A directory is only ever opened once: writers created later for the same directory (i.e. one per iteration of a
+ * continuous job) get the store that is already open instead of mapping the same files a second time.
+ *
+ * @author Christopher Fagiani
+ */
+@Component
+public class RecordStoreRegistry {
+
+    private final Map<String, RecordStore> stores = new ConcurrentHashMap<String, RecordStore>();
+    private final Map<String, RecordStore> storesByDirectory = new HashMap<String, RecordStore>();
+
+    /**
+     * returns the open store for the directory, opening it if needed, and registers it as the job's store
+     *
+     * @param jobId
+     * @param directory
+     * @param segmentSize only used if the store has to be opened
+     * @return
+     * @throws IOException
+     */
+    public synchronized RecordStore open(String jobId, File directory, int segmentSize) throws IOException {
+        String key = directory.getCanonicalPath();
+        RecordStore store = storesByDirectory.get(key);
+        if (store == null) {
+            store = new RecordStore(directory, segmentSize);
+            storesByDirectory.put(key, store);
+        }
+        stores.put(jobId, store);
+        return store;
+    }
+
+    /**
+     * returns the store for the job or null if this node has no store for it
+     *
+     * @param jobId
+     * @return
+     */
+    public RecordStore getStore(String jobId) {
+        return jobId != null ? stores.get(jobId) : null;
+    }
+
+    @PreDestroy
+    public synchronized void closeAll() {
+        for (RecordStore store : storesByDirectory.values()) {
+            store.close();
+        }
+        storesByDirectory.clear();
+        stores.clear();
+    }
+}
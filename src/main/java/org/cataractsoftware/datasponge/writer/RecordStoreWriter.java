@@ -0,0 +1,127 @@
+package org.cataractsoftware.datasponge.writer;
+
+import org.cataractsoftware.datasponge.DataRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.config.ConfigurableBeanFactory;
+import org.springframework.context.annotation.Scope;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+
+/**
+ * DataWriter that appends records to a RecordStore (a segmented, memory-mapped log with an identifier index) so they
+ * can be looked up by identifier or paged through via the REST api (GET /job/{id}/store). Each flush is committed as a
+ * unit, so readers never see a partially written batch. In a multi-node setup, use this as the coordinatorDataWriter so
+ * all output can be read from the node that accepted the job.
+ * <p/>
+ * The behavior of this writer can be configured via the following properties:
+ * <p/>
+ * recordstore.directory = root directory for stores; each job's store is kept in a sub-directory named after the job id (required)
+ * recordstore.segmentSize = size of each segment file in bytes (defaults to 67108864)
+ * recordstore.syncOnFlush = if true, the mapped segments are forced to disk after every flush (defaults to false)
+ *
+ * @author Christopher Fagiani
+ */
+@Component
+@Scope(value = ConfigurableBeanFactory.SCOPE_PROTOTYPE)
+public class RecordStoreWriter extends AbstractDataWriter {
+
+    public static final String DIRECTORY = "recordstore.directory";
+    public static final String SEGMENT_SIZE = "recordstore.segmentSize";
+    public static final String SYNC_ON_FLUSH = "recordstore.syncOnFlush";
+
+    private static final Logger logger = LoggerFactory.getLogger(RecordStoreWriter.class);
+    private static final String DEFAULT_JOB = "default";
+
+    @Autowired(required = false)
+    private RecordStoreRegistry registry;
+
+    private File directory;
+    private int segmentSize;
+    private boolean syncOnFlush;
+    private RecordStore store;
+
+    @Override
+    public void init(Properties props) {
+        super.init(props);
+        String dirName = props.getProperty(DIRECTORY);
+        if (dirName == null || dirName.trim().isEmpty()) {
+            throw new IllegalStateException(DIRECTORY + " must be set when using RecordStoreWriter");
+        }
+        directory = new File(dirName.trim());
+        segmentSize = Integer.parseInt(props.getProperty(SEGMENT_SIZE, "67108864"));
+        syncOnFlush = Boolean.parseBoolean(props.getProperty(SYNC_ON_FLUSH, "false"));
+    }
+
+    /**
+     * opens the job's store as soon as the job id is known so it can be registered before any output arrives
+     *
+     * @param id
+     */
+    @Override
+    public void setJobId(String id) {
+        super.setJobId(id);
+        getStore();
+    }
+
+    @Override
+    protected void writeItem(DataRecord record) {
+        try {
+            getStore().append(record);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not append record to store", e);
+        }
+    }
+
+    @Override
+    protected void completeBatch() {
+        super.completeBatch();
+        if (store != null) {
+            store.commit();
+            if (syncOnFlush) {
+                store.sync();
+            }
+        }
+    }
+
+    @Override
+    public void finish() {
+        markFinished();
+        if (store != null) {
+            store.commit();
+            store.sync();
+            logger.info("Record store {} holds {} records", store.getDirectory(), store.getRecordCount());
+            if (registry == null) {
+                store.close();
+            }
+        }
+    }
+
+    public void setRecordStoreRegistry(RecordStoreRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * returns the store for this writer's job, opening and registering it if needed. With a registry, writers for the
+     * same job share the store that is already open.
+     *
+     * @return
+     */
+    public synchronized RecordStore getStore() {
+        if (store == null) {
+            String jobId = getJobId() != null ? getJobId() : DEFAULT_JOB;
+            File storeDirectory = new File(directory, jobId);
+            try {
+                store = registry != null ? registry.open(jobId, storeDirectory, segmentSize)
+                        : new RecordStore(storeDirectory, segmentSize);
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not open record store for job " + jobId, e);
+            }
+        }
+        return store;
+    }
+}
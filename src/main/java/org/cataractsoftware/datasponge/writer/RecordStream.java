@@ -0,0 +1,145 @@
+package org.cataractsoftware.datasponge.writer;
+
+import org.cataractsoftware.datasponge.DataRecord;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bounded ring buffer of the most recent DataRecords output by a job. Writers publish into it without ever blocking;
+ * once the buffer is full the oldest record is overwritten. Each record is assigned a sequence number and consumers
+ * read from a sequence number of their choosing, so any number of consumers can follow the stream at their own pace. A
+ * consumer that falls further behind than the capacity of the buffer is moved forward to the oldest retained record
+ * and told how many records it missed.
+ *
+ * @author Christopher Fagiani
+ */
+public class RecordStream {
+
+    private final DataRecord[] ring;
+    private long nextSequence;
+    private boolean closed;
+
+    public RecordStream(int capacity) {
+        ring = new DataRecord[capacity];
+    }
+
+    /**
+     * adds a record to the stream, overwriting the oldest one if the buffer is full
+     *
+     * @param record
+     */
+    public synchronized void publish(DataRecord record) {
+        if (closed) {
+            return;
+        }
+        ring[(int) (nextSequence % ring.length)] = record;
+        nextSequence++;
+        notifyAll();
+    }
+
+    /**
+     * marks the stream as complete. Consumers will receive what is left in the buffer and then see an end-of-stream read.
+     */
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    /**
+     * reads up to max records starting at the sequence number, waiting up to waitMillis for new records if none are
+     * available
+     *
+     * @param fromSequence first sequence number to read (a negative number means "only new records")
+     * @param max          maximum number of records to return
+     * @param waitMillis   how long to wait if there is nothing to read
+     * @return
+     * @throws InterruptedException
+     */
+    public synchronized Batch read(long fromSequence, int max, long waitMillis) throws InterruptedException {
+        long from = fromSequence < 0 ? nextSequence : fromSequence;
+        long deadline = System.currentTimeMillis() + waitMillis;
+        long remaining = waitMillis;
+        while (from >= nextSequence && !closed && remaining > 0) {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+        long oldest = Math.max(0, nextSequence - ring.length);
+        long missed = 0;
+        if (from < oldest) {
+            missed = oldest - from;
+            from = oldest;
+        }
+        int count = (int) Math.min(max, Math.max(0, nextSequence - from));
+        List<DataRecord> records = new ArrayList<DataRecord>(count);
+        for (long seq = from; seq < from + count; seq++) {
+            records.add(ring[(int) (seq % ring.length)]);
+        }
+        return new Batch(records, from, missed, closed && from + count >= nextSequence);
+    }
+
+    public synchronized long getNextSequence() {
+        return nextSequence;
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * result of a read from the stream
+     */
+    public static class Batch {
+        private final List<DataRecord> records;
+        private final long firstSequence;
+        private final long missed;
+        private final boolean endOfStream;
+
+        Batch(List<DataRecord> records, long firstSequence, long missed, boolean endOfStream) {
+            this.records = records;
+            this.firstSequence = firstSequence;
+            this.missed = missed;
+            this.endOfStream = endOfStream;
+        }
+
+        public List<DataRecord> getRecords() {
+            return records;
+        }
+
+        /**
+         * sequence number of the first record in the batch
+         *
+         * @return
+         */
+        public long getFirstSequence() {
+            return firstSequence;
+        }
+
+        /**
+         * sequence number to pass to the next read
+         *
+         * @return
+         */
+        public long getNextSequence() {
+            return firstSequence + records.size();
+        }
+
+        /**
+         * number of records that were overwritten before the consumer could read them
+         *
+         * @return
+         */
+        public long getMissed() {
+            return missed;
+        }
+
+        /**
+         * true if the stream is closed and the consumer has read everything in it
+         *
+         * @return
+         */
+        public boolean isEndOfStream() {
+            return endOfStream;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package org.cataractsoftware.datasponge.writer;
+
+import org.springframework.stereotype.Component;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * holds the RecordStream of each running job on this node. Streams are created on demand (by the first writer that
+ * publishes or the first consumer that subscribes) and removed when the job completes. Once a job's stream has been
+ * closed, later lookups get an already-closed stream that is not registered, so a consumer that arrives after the job
+ * ended is sent the end of the stream instead of waiting on a new one forever. Only the most recently closed jobs
+ * (MAX_CLOSED_JOBS) are remembered; consumers of older jobs are turned away by the job status before they get here.
+ *
+ * @author Christopher Fagiani
+ */
+@Component
+public class RecordStreamRegistry {
+
+    public static final int DEFAULT_CAPACITY = 10000;
+    public static final int MAX_CLOSED_JOBS = 1000;
+
+    private final ConcurrentMap<String, RecordStream> streams = new ConcurrentHashMap<String, RecordStream>();
+    private final Set<String> closedJobs = Collections.synchronizedSet(Collections.newSetFromMap(
+            new LinkedHashMap<String, Boolean>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                    return size() > MAX_CLOSED_JOBS;
+                }
+            }));
+
+    /**
+     * returns the stream for the job, creating it if needed
+     *
+     * @param jobId
+     * @return
+     */
+    public RecordStream getStream(String jobId) {
+        RecordStream stream = streams.get(jobId);
+        if (stream == null) {
+            if (closedJobs.contains(jobId)) {
+                return buildClosedStream();
+            }
+            RecordStream newStream = new RecordStream(DEFAULT_CAPACITY);
+            stream = streams.putIfAbsent(jobId, newStream);
+            if (stream == null) {
+                stream = newStream;
+                if (closedJobs.contains(jobId)) {
+                    // the job was closed while this stream was being registered
+                    closeStream(jobId);
+                }
+            }
+        }
+        return stream;
+    }
+
+    /**
+     * closes and removes the stream for the job (if there is one)
+     *
+     * @param jobId
+     */
+    public void closeStream(String jobId) {
+        closedJobs.add(jobId);
+        RecordStream stream = streams.remove(jobId);
+        if (stream != null) {
+            stream.close();
+        }
+    }
+
+    private RecordStream buildClosedStream() {
+        RecordStream stream = new RecordStream(1);
+        stream.close();
+        return stream;
+    }
+}
@@ -0,0 +1,330 @@
+package org.cataractsoftware.datasponge.writer;
+
+import org.cataractsoftware.datasponge.DataRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * High-throughput CSV DataWriter. Values are encoded (UTF-8) straight into a reusable direct ByteBuffer that is drained
+ * to a FileChannel, so no intermediate String is built per record. Values are quoted per RFC 4180 (a value containing
+ * the delimiter, a double quote, CR or LF is enclosed in double quotes and embedded quotes are doubled) and lines end
+ * with CRLF.
+ * <p/>
+ * The output can be rolled over to a new file by size or age and can optionally be gzip-compressed as it is written.
+ * <p/>
+ * The behavior of this writer can be configured via the following properties:
+ * <p/>
+ * csvwriter.filename = the file to write (fully qualified path). When rolling is enabled, a sequence number is inserted
+ * before the extension (i.e. out.csv becomes out.00000.csv, out.00001.csv, ...)
+ * csvwriter.mode = either "append" or "overwrite"
+ * csvwriter.includeheader = if true, it will write a header row at the start of each new file
+ * csvwriter.fieldorder = semicolon-delimited list of field names to write
+ * csvwriter.delimiter = field delimiter (defaults to ",")
+ * csvwriter.rollSizeBytes = start a new file once this many (uncompressed) bytes have been written to the current one
+ * csvwriter.rollIntervalMillis = start a new file once the current one has been open this long
+ * csvwriter.compression = either "none" (default) or "gzip" (".gz" is appended to the file names)
+ * csvwriter.bufferSize = size of the encoding buffer in bytes (defaults to 65536)
+ *
+ * @author Christopher Fagiani
+ */
+public class RollingCsvFileWriter extends AbstractDataWriter {
+
+    public static final String FILENAME = "csvwriter.filename";
+    public static final String MODE = "csvwriter.mode";
+    public static final String HEADER_FLAG = "csvwriter.includeheader";
+    public static final String FIELDS = "csvwriter.fieldorder";
+    public static final String DELIM = "csvwriter.delimiter";
+    public static final String ROLL_SIZE = "csvwriter.rollSizeBytes";
+    public static final String ROLL_INTERVAL = "csvwriter.rollIntervalMillis";
+    public static final String COMPRESSION = "csvwriter.compression";
+    public static final String BUFFER_SIZE = "csvwriter.bufferSize";
+
+    private static final Logger logger = LoggerFactory.getLogger(RollingCsvFileWriter.class);
+    private static final String APPEND = "append";
+    private static final String GZIP = "gzip";
+    private static final String LINE_END = "\r\n";
+    private static final String QUOTE = "\"";
+    private static final String ESCAPED_QUOTE = "\"\"";
+
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private List<String> fieldsToWrite;
+    private String delimiter;
+    private boolean includeHeader;
+    private boolean append;
+    private boolean compress;
+    private long rollSizeBytes;
+    private long rollIntervalMillis;
+    private String filePrefix;
+    private String fileSuffix;
+    private boolean rolling;
+    private int sequence;
+
+    private ByteBuffer buffer;
+    private FileChannel fileChannel;
+    private WritableByteChannel channel;
+    private OutputStream gzipStream;
+    private long bytesInFile;
+    private long fileOpenedAt;
+    private File currentFile;
+    private long recordsInFile;
+    private boolean currentFileRolled;
+
+    @Override
+    public void init(Properties props) {
+        super.init(props);
+        String fileName = props.getProperty(FILENAME);
+        if (fileName == null || fileName.trim().isEmpty()) {
+            throw new IllegalStateException(FILENAME + " must be set when using RollingCsvFileWriter");
+        }
+        String headerString = props.getProperty(FIELDS);
+        if (headerString == null || headerString.trim().length() == 0) {
+            throw new IllegalStateException(FIELDS + " must be non-empty in the property file when using RollingCsvFileWriter");
+        }
+        fieldsToWrite = Arrays.asList(headerString.split(";"));
+        delimiter = props.getProperty(DELIM, ",");
+        includeHeader = Boolean.parseBoolean(props.getProperty(HEADER_FLAG, "false"));
+        append = APPEND.equalsIgnoreCase(props.getProperty(MODE, "overwrite"));
+        compress = GZIP.equalsIgnoreCase(props.getProperty(COMPRESSION, "none"));
+        rollSizeBytes = Long.parseLong(props.getProperty(ROLL_SIZE, "0"));
+        rollIntervalMillis = Long.parseLong(props.getProperty(ROLL_INTERVAL, "0"));
+        rolling = rollSizeBytes > 0 || rollIntervalMillis > 0;
+        buffer = ByteBuffer.allocateDirect(Integer.parseInt(props.getProperty(BUFFER_SIZE, "65536")));
+
+        int extIdx = fileName.lastIndexOf('.');
+        if (extIdx > fileName.lastIndexOf(File.separatorChar)) {
+            filePrefix = fileName.substring(0, extIdx);
+            fileSuffix = fileName.substring(extIdx);
+        } else {
+            filePrefix = fileName;
+            fileSuffix = "";
+        }
+        if (compress) {
+            fileSuffix = fileSuffix + ".gz";
+        }
+        sequence = append && rolling ? findNextSequence() : 0;
+        try {
+            openFile();
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not configure RollingCsvFileWriter", e);
+        }
+    }
+
+    @Override
+    protected void writeItem(DataRecord record) {
+        try {
+            if (isRollDue()) {
+                roll();
+            }
+            boolean first = true;
+            for (String field : fieldsToWrite) {
+                if (!first) {
+                    encode(delimiter);
+                }
+                first = false;
+                Object val = record.getFieldValue(field);
+                if (val != null) {
+                    encodeValue(val.toString());
+                }
+            }
+            encode(LINE_END);
+            recordsInFile++;
+        } catch (IOException e) {
+            throw new RuntimeException("Could not write item to file", e);
+        }
+    }
+
+    @Override
+    protected void completeBatch() {
+        super.completeBatch();
+        try {
+            drain();
+            if (gzipStream != null) {
+                // sync-flush so everything written so far can be decompressed by readers
+                gzipStream.flush();
+            }
+            if (isRollDue()) {
+                roll();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("could not flush batch to disk", e);
+        }
+    }
+
+    @Override
+    public void finish() {
+        markFinished();
+        try {
+            closeFile();
+        } catch (IOException e) {
+            throw new RuntimeException("Could not close output file", e);
+        }
+        if (currentFileRolled && recordsInFile == 0 && !currentFile.delete()) {
+            // a roll at the end of the last batch leaves a file without records behind
+            logger.warn("Could not remove empty output file {}", currentFile);
+        }
+    }
+
+    /**
+     * writes a value, quoting it if it contains the delimiter, a quote, CR or LF
+     *
+     * @param val
+     * @throws IOException
+     */
+    private void encodeValue(String val) throws IOException {
+        if (!needsQuoting(val)) {
+            encode(val);
+            return;
+        }
+        encode(QUOTE);
+        int start = 0;
+        int quoteIdx = val.indexOf('"');
+        while (quoteIdx >= 0) {
+            encode(val.subSequence(start, quoteIdx));
+            encode(ESCAPED_QUOTE);
+            start = quoteIdx + 1;
+            quoteIdx = val.indexOf('"', start);
+        }
+        encode(val.subSequence(start, val.length()));
+        encode(QUOTE);
+    }
+
+    private boolean needsQuoting(String val) {
+        if (val.indexOf('"') >= 0 || val.indexOf('\n') >= 0 || val.indexOf('\r') >= 0) {
+            return true;
+        }
+        return val.contains(delimiter);
+    }
+
+    /**
+     * encodes the characters into the buffer, draining it to the channel whenever it fills up
+     *
+     * @param chars
+     * @throws IOException
+     */
+    private void encode(CharSequence chars) throws IOException {
+        if (chars.length() == 0) {
+            return;
+        }
+        CharBuffer in = CharBuffer.wrap(chars);
+        encoder.reset();
+        while (true) {
+            CoderResult result = encoder.encode(in, buffer, true);
+            if (result.isOverflow()) {
+                drain();
+            } else {
+                break;
+            }
+        }
+        while (encoder.flush(buffer).isOverflow()) {
+            drain();
+        }
+    }
+
+    /**
+     * writes the contents of the buffer to the current channel and clears it
+     *
+     * @throws IOException
+     */
+    private void drain() throws IOException {
+        buffer.flip();
+        bytesInFile += buffer.remaining();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private boolean isRollDue() {
+        if (!rolling || recordsInFile == 0) {
+            // idle periodic flushes must not leave a trail of header-only files
+            return false;
+        }
+        return (rollSizeBytes > 0 && bytesInFile + buffer.position() >= rollSizeBytes)
+                || (rollIntervalMillis > 0 && System.currentTimeMillis() - fileOpenedAt >= rollIntervalMillis);
+    }
+
+    private void roll() throws IOException {
+        closeFile();
+        sequence++;
+        openFile();
+        currentFileRolled = true;
+    }
+
+    private void openFile() throws IOException {
+        File file = new File(rolling ? String.format("%s.%05d%s", filePrefix, sequence, fileSuffix) : filePrefix + fileSuffix);
+        boolean hasContent = append && file.exists() && file.length() > 0;
+        fileChannel = append
+                ? FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)
+                : FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        if (compress) {
+            // appending to a gzip file adds a new gzip member, which standard tools read as one stream
+            gzipStream = new GZIPOutputStream(Channels.newOutputStream(fileChannel), buffer.capacity(), true);
+            channel = Channels.newChannel(gzipStream);
+        } else {
+            gzipStream = null;
+            channel = fileChannel;
+        }
+        currentFile = file;
+        recordsInFile = 0;
+        bytesInFile = 0;
+        fileOpenedAt = System.currentTimeMillis();
+        if (includeHeader && !hasContent) {
+            boolean first = true;
+            for (String field : fieldsToWrite) {
+                if (!first) {
+                    encode(delimiter);
+                }
+                first = false;
+                encodeValue(field);
+            }
+            encode(LINE_END);
+        }
+        logger.info("Writing CSV output to {}", file);
+    }
+
+    private void closeFile() throws IOException {
+        if (fileChannel != null) {
+            drain();
+            if (gzipStream != null) {
+                gzipStream.close();
+            }
+            fileChannel.close();
+            fileChannel = null;
+            channel = null;
+            gzipStream = null;
+        }
+    }
+
+    /**
+     * finds the first sequence number that does not exist on disk yet so appending never clobbers earlier files
+     *
+     * @return
+     */
+    private int findNextSequence() {
+        int next = 0;
+        while (new File(String.format("%s.%05d%s", filePrefix, next, fileSuffix)).exists()) {
+            next++;
+        }
+        return next;
+    }
+}
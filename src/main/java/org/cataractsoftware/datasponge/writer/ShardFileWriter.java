@@ -0,0 +1,223 @@
+package org.cataractsoftware.datasponge.writer;
+
+import org.cataractsoftware.datasponge.DataRecord;
+import org.cataractsoftware.datasponge.util.DataRecordCodec;
+import org.cataractsoftware.datasponge.util.VarInt;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.config.ConfigurableBeanFactory;
+import org.springframework.context.annotation.Scope;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * DataWriter that keeps a node's output on local disk instead of sending it through the broker. Records are collected
+ * into runs; each run is sorted by the shard key and written as a gzip-compressed shard file made of blocks of
+ * DataRecordCodec-encoded records. When the job finishes on this node, the shard locations are reported to the job
+ * coordinator (in the COMPLETE message), which streams every shard from every node through a k-way merge into its
+ * coordinatorDataWriter once the whole job is complete, producing output sorted by the shard key.
+ * <p/>
+ * Shards are read by the coordinator via their location URI. By default that is a file: URI, which works when the
+ * shard directory is on storage shared with the coordinator. Otherwise set shard.baseUrl to the REST api base url of
+ * this node (i.e. http://host:8080) and the coordinator will download the shards from GET /job/{id}/shards/{name}.
+ * <p/>
+ * The behavior of this writer can be configured via the following properties:
+ * <p/>
+ * shard.directory = directory for shard files; each job gets a sub-directory (required)
+ * shard.sortField = field used to order records (defaults to the record identifier)
+ * shard.runSize = maximum number of records held in memory before a sorted run is written (defaults to 100000)
+ * shard.baseUrl = base url used to build http locations for the shards (optional)
+ *
+ * @author Christopher Fagiani
+ */
+@Component
+@Scope(value = ConfigurableBeanFactory.SCOPE_PROTOTYPE)
+public class ShardFileWriter extends AbstractDataWriter {
+
+    public static final String DIRECTORY = "shard.directory";
+    public static final String SORT_FIELD = "shard.sortField";
+    public static final String RUN_SIZE = "shard.runSize";
+    public static final String BASE_URL = "shard.baseUrl";
+    public static final String SHARD_SUFFIX = ".shard.gz";
+
+    static final int BLOCK_SIZE = 1000;
+
+    private static final Logger logger = LoggerFactory.getLogger(ShardFileWriter.class);
+
+    @Autowired(required = false)
+    private ShardRegistry shardRegistry;
+
+    private final String writerId = UUID.randomUUID().toString();
+    private final List<DataRecord> run = new ArrayList<DataRecord>();
+    private final List<File> shards = new ArrayList<File>();
+    private File directory;
+    private String sortField;
+    private int runSize;
+    private String baseUrl;
+
+    @Override
+    public void init(Properties props) {
+        super.init(props);
+        String dirName = props.getProperty(DIRECTORY);
+        if (dirName == null || dirName.trim().isEmpty()) {
+            throw new IllegalStateException(DIRECTORY + " must be set when using ShardFileWriter");
+        }
+        directory = new File(dirName.trim());
+        sortField = props.getProperty(SORT_FIELD);
+        runSize = Integer.parseInt(props.getProperty(RUN_SIZE, "100000"));
+        baseUrl = props.getProperty(BASE_URL);
+        if (baseUrl != null && baseUrl.endsWith("/")) {
+            baseUrl = baseUrl.substring(0, baseUrl.length() - 1);
+        }
+    }
+
+    @Override
+    protected void writeBatch(Collection<DataRecord> records) {
+        for (DataRecord record : records) {
+            run.add(record);
+            if (run.size() >= runSize) {
+                writeRun();
+            }
+        }
+    }
+
+    @Override
+    protected void writeItem(DataRecord record) {
+        run.add(record);
+        if (run.size() >= runSize) {
+            writeRun();
+        }
+    }
+
+    /**
+     * writes the last run and registers all shards so they can be reported to the coordinator
+     */
+    @Override
+    public void finish() {
+        markFinished();
+        if (!run.isEmpty()) {
+            writeRun();
+        }
+        for (File shard : shards) {
+            if (shardRegistry != null) {
+                shardRegistry.register(getJobId(), shard, getLocation(shard));
+            }
+        }
+        logger.info("Wrote {} shard files for job {}", shards.size(), getJobId());
+    }
+
+    public void setShardRegistry(ShardRegistry shardRegistry) {
+        this.shardRegistry = shardRegistry;
+    }
+
+    /**
+     * returns the shard files written so far
+     *
+     * @return
+     */
+    public List<File> getShards() {
+        return Collections.unmodifiableList(shards);
+    }
+
+    /**
+     * returns the URI the coordinator should use to read the shard
+     *
+     * @param shard
+     * @return
+     */
+    public String getLocation(File shard) {
+        if (baseUrl != null && !baseUrl.isEmpty()) {
+            return baseUrl + "/job/" + getJobId() + "/shards/" + shard.getName();
+        }
+        return shard.toURI().toString();
+    }
+
+    /**
+     * builds the comparator used to order records in shards and during the merge. Numeric values are compared as
+     * numbers (so 9 sorts before 10) and before any non-numeric value; everything else is compared by its string form.
+     * Records without a value sort first.
+     *
+     * @param sortField field to order by (null for the identifier)
+     * @return
+     */
+    public static Comparator<DataRecord> buildComparator(final String sortField) {
+        return new Comparator<DataRecord>() {
+            @Override
+            public int compare(DataRecord a, DataRecord b) {
+                Object keyA = sortKey(a, sortField);
+                Object keyB = sortKey(b, sortField);
+                if (keyA == null) {
+                    return keyB == null ? 0 : -1;
+                }
+                if (keyB == null) {
+                    return 1;
+                }
+                boolean numA = keyA instanceof Number;
+                boolean numB = keyB instanceof Number;
+                if (numA && numB) {
+                    return compareNumbers((Number) keyA, (Number) keyB);
+                }
+                if (numA != numB) {
+                    return numA ? -1 : 1;
+                }
+                return keyA.toString().compareTo(keyB.toString());
+            }
+        };
+    }
+
+    private static int compareNumbers(Number a, Number b) {
+        if (isIntegral(a) && isIntegral(b)) {
+            return Long.compare(a.longValue(), b.longValue());
+        }
+        return Double.compare(a.doubleValue(), b.doubleValue());
+    }
+
+    private static boolean isIntegral(Number n) {
+        return n instanceof Long || n instanceof Integer || n instanceof Short || n instanceof Byte;
+    }
+
+    private static Object sortKey(DataRecord record, String sortField) {
+        if (sortField == null) {
+            return record.getIdentifier();
+        }
+        return record.getFieldValue(sortField);
+    }
+
+    /**
+     * sorts the current run and writes it to a new shard file as length-prefixed blocks of encoded records
+     */
+    private void writeRun() {
+        Collections.sort(run, buildComparator(sortField));
+        File jobDir = new File(directory, getJobId() != null ? getJobId() : "default");
+        if (!jobDir.isDirectory() && !jobDir.mkdirs()) {
+            throw new RuntimeException("Could not create shard directory " + jobDir);
+        }
+        File shard = new File(jobDir, String.format("%s-%05d%s", writerId, shards.size(), SHARD_SUFFIX));
+        try (OutputStream out = new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(shard)), 65536)) {
+            for (int start = 0; start < run.size(); start += BLOCK_SIZE) {
+                byte[] block = DataRecordCodec.encode(run.subList(start, Math.min(start + BLOCK_SIZE, run.size())));
+                VarInt.writeUnsigned(out, block.length);
+                out.write(block);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Could not write shard file " + shard, e);
+        }
+        logger.debug("Wrote {} records to shard {}", run.size(), shard);
+        shards.add(shard);
+        run.clear();
+    }
+}
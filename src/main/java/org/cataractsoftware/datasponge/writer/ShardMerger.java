@@ -0,0 +1,167 @@
+package org.cataractsoftware.datasponge.writer;
+
+import org.cataractsoftware.datasponge.DataRecord;
+import org.cataractsoftware.datasponge.util.DataRecordCodec;
+import org.cataractsoftware.datasponge.util.VarInt;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * streams the sorted shard files written by ShardFileWriters on every node through a k-way merge into a DataWriter.
+ * Only one block of records per shard is held in memory at a time, so the merge runs in memory proportional to the
+ * number of shards rather than the size of the output.
+ *
+ * @author Christopher Fagiani
+ */
+public class ShardMerger {
+
+    private static final Logger logger = LoggerFactory.getLogger(ShardMerger.class);
+    private static final int FLUSH_INTERVAL = 10000;
+    private static final Pattern SHARD_NAME = Pattern.compile("[A-Za-z0-9_-][A-Za-z0-9._-]*" + Pattern.quote(ShardFileWriter.SHARD_SUFFIX));
+
+    private final Comparator<DataRecord> comparator;
+
+    /**
+     * @param sortField field the shards were sorted by (null for the identifier)
+     */
+    public ShardMerger(String sortField) {
+        this.comparator = ShardFileWriter.buildComparator(sortField);
+    }
+
+    /**
+     * checks that a location reported for one of the job's shards is one the coordinator may read: the
+     * /job/{id}/shards/{name} endpoint of a node's REST api (http or https), or, if the shards are on shared storage, a
+     * file directly inside the job's sub-directory of the shard directory. Anything else is rejected, so a COMPLETE
+     * message cannot make the coordinator read arbitrary urls or files.
+     *
+     * @param location        location as reported by the node
+     * @param jobId
+     * @param sharedDirectory shard.directory of the job (null if shards are only served over http)
+     * @return the location as a URI
+     * @throws IOException if the location is not acceptable
+     */
+    public static URI checkLocation(String location, String jobId, File sharedDirectory) throws IOException {
+        URI uri;
+        try {
+            uri = new URI(location);
+        } catch (URISyntaxException e) {
+            throw new IOException("Invalid shard location " + location, e);
+        }
+        String path = uri.getPath();
+        String name = path != null ? path.substring(path.lastIndexOf('/') + 1) : "";
+        if (SHARD_NAME.matcher(name).matches() && uri.getRawQuery() == null && uri.getRawFragment() == null) {
+            String scheme = uri.getScheme() != null ? uri.getScheme().toLowerCase() : "";
+            if (("http".equals(scheme) || "https".equals(scheme)) && uri.getHost() != null && uri.getRawUserInfo() == null
+                    && uri.getRawPath().endsWith("/job/" + jobId + "/shards/" + name)) {
+                return uri;
+            }
+            if ("file".equals(scheme) && sharedDirectory != null && uri.getAuthority() == null
+                    && new File(uri).getCanonicalFile().getParentFile().equals(new File(sharedDirectory, jobId).getCanonicalFile())) {
+                return uri;
+            }
+        }
+        throw new IOException("Refusing to read shard from " + location + " for job " + jobId);
+    }
+
+    /**
+     * merges the shards at the locations into the writer, flushing it periodically. The writer is not finished.
+     *
+     * @param locations URIs of the shards
+     * @param writer
+     * @return number of records merged
+     * @throws IOException if a shard cannot be read
+     */
+    public long merge(List<String> locations, DataWriter writer) throws IOException {
+        List<ShardCursor> cursors = new ArrayList<ShardCursor>(locations.size());
+        PriorityQueue<ShardCursor> heap = new PriorityQueue<ShardCursor>(Math.max(1, locations.size()),
+                new Comparator<ShardCursor>() {
+                    @Override
+                    public int compare(ShardCursor a, ShardCursor b) {
+                        return comparator.compare(a.current, b.current);
+                    }
+                });
+        long count = 0;
+        try {
+            for (String location : locations) {
+                ShardCursor cursor = new ShardCursor(new URL(location).openStream());
+                cursors.add(cursor);
+                if (cursor.advance()) {
+                    heap.add(cursor);
+                }
+            }
+            while (!heap.isEmpty()) {
+                ShardCursor cursor = heap.poll();
+                writer.addItem(cursor.current);
+                if (++count % FLUSH_INTERVAL == 0) {
+                    writer.flushBatch();
+                }
+                if (cursor.advance()) {
+                    heap.add(cursor);
+                }
+            }
+        } finally {
+            for (ShardCursor cursor : cursors) {
+                cursor.close();
+            }
+        }
+        writer.flushBatch();
+        logger.info("Merged {} records from {} shards", count, locations.size());
+        return count;
+    }
+
+    /**
+     * reads a shard one block at a time
+     */
+    private static class ShardCursor implements Closeable {
+        private final PushbackInputStream in;
+        private Iterator<DataRecord> block;
+        private DataRecord current;
+
+        ShardCursor(InputStream stream) throws IOException {
+            this.in = new PushbackInputStream(new GZIPInputStream(new BufferedInputStream(stream), 65536));
+        }
+
+        boolean advance() throws IOException {
+            while (block == null || !block.hasNext()) {
+                int next = in.read();
+                if (next < 0) {
+                    current = null;
+                    return false;
+                }
+                in.unread(next);
+                byte[] data = new byte[(int) VarInt.readUnsigned(in)];
+                new DataInputStream(in).readFully(data);
+                block = DataRecordCodec.decodeAll(data).iterator();
+            }
+            current = block.next();
+            return true;
+        }
+
+        @Override
+        public void close() {
+            try {
+                in.close();
+            } catch (IOException e) {
+                logger.warn("Could not close shard stream", e);
+            }
+        }
+    }
+}
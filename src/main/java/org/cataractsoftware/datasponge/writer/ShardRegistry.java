@@ -0,0 +1,102 @@
+package org.cataractsoftware.datasponge.writer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * keeps track of the shard files written by ShardFileWriters on this node. The locations are reported to the job
+ * coordinator in the COMPLETE message and the files can be served to it over the REST api. A job's shards are deleted
+ * once the coordinator reports that it has merged them (MERGED message) or the job is aborted.
+ *
+ * @author Christopher Fagiani
+ */
+@Component
+public class ShardRegistry {
+    private static final Logger logger = LoggerFactory.getLogger(ShardRegistry.class);
+
+    private final ConcurrentMap<String, List<String>> locations = new ConcurrentHashMap<String, List<String>>();
+    private final Map<String, File> files = new ConcurrentHashMap<String, File>();
+
+    /**
+     * records a shard file written for a job
+     *
+     * @param jobId
+     * @param file
+     * @param location URI the coordinator should read the shard from
+     */
+    public void register(String jobId, File file, String location) {
+        List<String> jobLocations = locations.get(jobId);
+        if (jobLocations == null) {
+            List<String> newLocations = new CopyOnWriteArrayList<String>();
+            jobLocations = locations.putIfAbsent(jobId, newLocations);
+            if (jobLocations == null) {
+                jobLocations = newLocations;
+            }
+        }
+        jobLocations.add(location);
+        files.put(key(jobId, file.getName()), file);
+    }
+
+    /**
+     * forgets every shard written for the job on this node and deletes the files (and the job's shard directory, once
+     * it is empty)
+     *
+     * @param jobId
+     */
+    public void removeJob(String jobId) {
+        locations.remove(jobId);
+        String prefix = key(jobId, "");
+        Iterator<Map.Entry<String, File>> it = files.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, File> entry = it.next();
+            if (entry.getKey().startsWith(prefix)) {
+                File file = entry.getValue();
+                it.remove();
+                if (file.exists() && !file.delete()) {
+                    logger.warn("Could not delete shard " + file.getAbsolutePath());
+                }
+                File parent = file.getParentFile();
+                if (parent != null) {
+                    // only succeeds once the directory is empty
+                    parent.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * returns the locations of every shard written for the job on this node
+     *
+     * @param jobId
+     * @return
+     */
+    public List<String> getLocations(String jobId) {
+        List<String> jobLocations = locations.get(jobId);
+        return jobLocations != null ? new ArrayList<String>(jobLocations) : new ArrayList<String>();
+    }
+
+    /**
+     * returns the shard file with the given name for the job or null if no such shard was written on this node
+     *
+     * @param jobId
+     * @param name
+     * @return
+     */
+    public File getFile(String jobId, String name) {
+        return files.get(key(jobId, name));
+    }
+
+    private String key(String jobId, String name) {
+        return jobId + "/" + name;
+    }
+}
@@ -0,0 +1,193 @@
+package org.cataractsoftware.datasponge.writer;
+
+import org.cataractsoftware.datasponge.AbstractDataAdapter;
+import org.cataractsoftware.datasponge.DataRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * DataWriter that puts a local write-ahead log in front of another writer (the delegate, configured via the delegate
+ * element of this writer's plugin configuration), giving at-least-once output. Every record is appended to the log
+ * before it is handed to the delegate, and log segments are only deleted once a flush of the delegate has succeeded,
+ * so the delegate keeps batching as usual.
+ * <p/>
+ * If a flush of the delegate throws, the records of the affected segments are handed to the delegate again on the next
+ * flush. Likewise, if the delegate rejects a record in addItem, the segment holding it is not deleted by the next flush
+ * but replayed by the one after it. If the process dies, the segments left in the log directory are replayed into the delegate on the first flush
+ * after the writer is next started with the same directory. Records may therefore be written more than once but are
+ * not lost.
+ * <p/>
+ * A failure in a flush the delegate performs on its own could not be seen here, so the background flushes of an
+ * AbstractDataWriter delegate (flush.* thresholds and the BLOCK overflow policy) are disabled: the delegate is only
+ * flushed when this writer is. Delegates of other types must not flush on their own.
+ * <p/>
+ * The behavior of this writer can be configured via the following properties:
+ * <p/>
+ * wal.directory = directory holding the log; use a distinct directory per writer (required)
+ * wal.durability = one of none (records survive a process crash), async (the log is also fsynced every
+ * wal.syncIntervalMillis) or sync (addItem waits for the fsync; concurrent writers share fsyncs). Defaults to async.
+ * wal.syncIntervalMillis = interval between background fsyncs (defaults to 50)
+ *
+ * @author Christopher Fagiani
+ */
+public class WalDataWriter extends AbstractDataAdapter implements DelegatingDataWriter {
+
+    public static final String DIRECTORY = "wal.directory";
+    public static final String DURABILITY = "wal.durability";
+    public static final String SYNC_INTERVAL = "wal.syncIntervalMillis";
+
+    private static final Logger logger = LoggerFactory.getLogger(WalDataWriter.class);
+    private static final long HANDOFF_WAIT_MILLIS = 50;
+
+    private final Object flushLock = new Object();
+    private final List<WriteAheadLog.Segment> unconfirmed = new ArrayList<WriteAheadLog.Segment>();
+    private WriteAheadLog wal;
+    private DataWriter delegate;
+
+    @Override
+    public void init(Properties props) {
+        String dirName = props != null ? props.getProperty(DIRECTORY) : null;
+        if (dirName == null || dirName.trim().isEmpty()) {
+            throw new IllegalStateException(DIRECTORY + " must be set when using WalDataWriter");
+        }
+        WriteAheadLog.Durability durability = WriteAheadLog.Durability.valueOf(
+                props.getProperty(DURABILITY, WriteAheadLog.Durability.ASYNC.name()).toUpperCase());
+        long syncInterval = Long.parseLong(props.getProperty(SYNC_INTERVAL, "50"));
+        try {
+            wal = new WriteAheadLog(new File(dirName.trim()), durability, syncInterval);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not open write-ahead log in " + dirName, e);
+        }
+        unconfirmed.addAll(wal.getRecoveredSegments());
+        if (!unconfirmed.isEmpty()) {
+            logger.info("Found {} write-ahead log segments in {}; they will be replayed on the next flush",
+                    unconfirmed.size(), dirName);
+        }
+    }
+
+    @Override
+    public void setJobId(String id) {
+        super.setJobId(id);
+        if (delegate != null) {
+            delegate.setJobId(id);
+        }
+    }
+
+    @Override
+    public void setDelegate(DataWriter delegate) {
+        if (delegate instanceof AbstractDataWriter) {
+            ((AbstractDataWriter) delegate).setBackgroundFlushEnabled(false);
+        }
+        this.delegate = delegate;
+    }
+
+    @Override
+    public DataWriter getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public void addItem(DataRecord record) {
+        DataWriter writer = requireDelegate();
+        WriteAheadLog.Segment segment;
+        try {
+            segment = wal.append(record);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not append record to write-ahead log", e);
+        }
+        try {
+            writer.addItem(record);
+        } catch (RuntimeException e) {
+            // the record is only in the log; keep the segment until it has been replayed
+            segment.markFailed();
+            throw e;
+        } finally {
+            segment.release();
+        }
+    }
+
+    /**
+     * replays any unconfirmed segments, seals the current segment and flushes the delegate. The sealed segments are
+     * deleted only if the flush succeeds; sealed segments holding a record the delegate rejected are kept to be
+     * replayed on the next flush instead.
+     */
+    @Override
+    public void flushBatch() {
+        DataWriter writer = requireDelegate();
+        synchronized (flushLock) {
+            List<WriteAheadLog.Segment> pending = new ArrayList<WriteAheadLog.Segment>(unconfirmed);
+            List<WriteAheadLog.Segment> rejected = new ArrayList<WriteAheadLog.Segment>();
+            unconfirmed.clear();
+            try {
+                for (WriteAheadLog.Segment segment : pending) {
+                    for (DataRecord record : WriteAheadLog.read(segment)) {
+                        writer.addItem(record);
+                    }
+                }
+                for (WriteAheadLog.Segment segment : wal.roll()) {
+                    pending.add(segment);
+                    awaitHandoff(segment, writer);
+                    if (segment.isFailed()) {
+                        rejected.add(segment);
+                    }
+                }
+                writer.flushBatch();
+            } catch (IOException | RuntimeException e) {
+                unconfirmed.addAll(pending);
+                if (e instanceof RuntimeException) {
+                    throw (RuntimeException) e;
+                }
+                throw new RuntimeException("Could not replay write-ahead log", e);
+            }
+            pending.removeAll(rejected);
+            unconfirmed.addAll(rejected);
+            wal.delete(pending);
+        }
+    }
+
+    /**
+     * flushes the delegate and closes the log
+     */
+    @Override
+    public void finish() {
+        flushBatch();
+        requireDelegate().finish();
+        try {
+            wal.close();
+        } catch (IOException e) {
+            logger.error("Could not close write-ahead log", e);
+        }
+    }
+
+    /**
+     * waits until every record appended to the sealed segment has been handed to the delegate so the coming flush
+     * covers it. If a hand-off is blocked on the delegate (i.e. a full buffer waiting for a flush), the delegate is
+     * flushed to let it through.
+     *
+     * @param segment
+     * @param writer
+     */
+    private void awaitHandoff(WriteAheadLog.Segment segment, DataWriter writer) {
+        long deadline = System.currentTimeMillis() + HANDOFF_WAIT_MILLIS;
+        while (segment.getPending() > 0) {
+            if (System.currentTimeMillis() > deadline) {
+                writer.flushBatch();
+                deadline = System.currentTimeMillis() + HANDOFF_WAIT_MILLIS;
+            }
+            Thread.yield();
+        }
+    }
+
+    private DataWriter requireDelegate() {
+        if (delegate == null) {
+            throw new IllegalStateException("WalDataWriter requires a delegate writer");
+        }
+        return delegate;
+    }
+}
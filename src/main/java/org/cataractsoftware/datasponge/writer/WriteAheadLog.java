@@ -0,0 +1,456 @@
+package org.cataractsoftware.datasponge.writer;
+
+import org.cataractsoftware.datasponge.DataRecord;
+import org.cataractsoftware.datasponge.util.DataRecordCodec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * segmented write-ahead log of DataRecords. Each entry is a length, a CRC32 of the payload and the record encoded with
+ * the DataRecordCodec. Entries are written to the current segment (wal-NNNNNNNNNN.log) as they are appended; roll
+ * seals the current segment and starts a new one so sealed segments can be deleted once their records are safely
+ * written downstream.
+ * <p/>
+ * Durability is controlled by the Durability level. Fsyncs are issued by a background thread which covers every entry
+ * written since the previous fsync (group commit), so concurrent appenders in SYNC mode share a single fsync.
+ *
+ * @author Christopher Fagiani
+ */
+public class WriteAheadLog implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(WriteAheadLog.class);
+    private static final String SEGMENT_FORMAT = "wal-%010d.log";
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final int HEADER_SIZE = 8;
+
+    private final File directory;
+    private final Durability durability;
+    private final long syncIntervalMillis;
+    private final Object lock = new Object();
+    private final List<Segment> recovered = new ArrayList<Segment>();
+    private final List<Segment> sealedOnError = new ArrayList<Segment>();
+    private final ByteArrayOutputStream encodeBuffer = new ByteArrayOutputStream(1024);
+    private final CRC32 crc = new CRC32();
+    private final Thread syncThread;
+    private Segment current;
+    private FileChannel channel;
+    private long nextSegmentNumber;
+    private long written;
+    private long synced;
+    private volatile boolean closed;
+
+    /**
+     * opens the log in the directory. Segments left by a previous run are not appended to; they are reported by
+     * getRecoveredSegments so their records can be replayed.
+     *
+     * @param directory
+     * @param durability
+     * @param syncIntervalMillis maximum time between fsyncs (ASYNC) or time the sync thread waits for work (SYNC)
+     * @throws IOException
+     */
+    public WriteAheadLog(File directory, Durability durability, long syncIntervalMillis) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create write-ahead log directory " + directory);
+        }
+        this.directory = directory;
+        this.durability = durability;
+        this.syncIntervalMillis = Math.max(1, syncIntervalMillis);
+        File[] existing = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File f) {
+                return f.isFile() && f.getName().startsWith(SEGMENT_PREFIX);
+            }
+        });
+        if (existing != null) {
+            Arrays.sort(existing);
+            for (File f : existing) {
+                if (f.length() > 0) {
+                    recovered.add(new Segment(f));
+                } else if (!f.delete()) {
+                    logger.warn("Could not delete empty write-ahead log segment {}", f);
+                }
+                nextSegmentNumber = Math.max(nextSegmentNumber, parseSegmentNumber(f) + 1);
+            }
+        }
+        openSegment();
+        if (durability != Durability.NONE) {
+            syncThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    syncLoop();
+                }
+            }, "datasponge-wal-sync-" + directory.getName());
+            syncThread.setDaemon(true);
+            syncThread.start();
+        } else {
+            syncThread = null;
+        }
+    }
+
+    /**
+     * appends the record to the current segment. The caller must call release on the returned segment once the record
+     * has been handed downstream. In SYNC mode this method returns once the entry has been fsynced.
+     *
+     * @param record
+     * @return segment holding the record
+     * @throws IOException
+     */
+    public Segment append(DataRecord record) throws IOException {
+        Segment segment;
+        long position;
+        synchronized (lock) {
+            if (closed) {
+                throw new IOException("Write-ahead log " + directory + " is closed");
+            }
+            encodeBuffer.reset();
+            DataRecordCodec.encode(Collections.singletonList(record), encodeBuffer);
+            byte[] payload = encodeBuffer.toByteArray();
+            crc.reset();
+            crc.update(payload, 0, payload.length);
+            ByteBuffer entry = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+            entry.putInt(payload.length);
+            entry.putInt((int) crc.getValue());
+            entry.put(payload);
+            entry.flip();
+            if (!channel.isOpen()) {
+                // a previous failed append sealed the segment but could not start a new one
+                openSegment();
+            }
+            long start = channel.position();
+            try {
+                while (entry.hasRemaining()) {
+                    channel.write(entry);
+                }
+            } catch (IOException e) {
+                discardPartialEntry(start);
+                throw e;
+            }
+            segment = current;
+            segment.pending.incrementAndGet();
+            segment.entries++;
+            position = ++written;
+            if (durability == Durability.SYNC) {
+                lock.notifyAll();
+            }
+        }
+        if (durability == Durability.SYNC) {
+            awaitSync(position);
+        }
+        return segment;
+    }
+
+    /**
+     * seals the current segment (if it holds any entries) and starts a new one
+     *
+     * @return the sealed segments, including any sealed early by a failed append (empty if there was nothing to seal)
+     * @throws IOException
+     */
+    public List<Segment> roll() throws IOException {
+        List<Segment> sealed = new ArrayList<Segment>(1);
+        synchronized (lock) {
+            if (channel.isOpen() && current.entries > 0) {
+                closeSegment();
+            }
+            if (!channel.isOpen()) {
+                if (current.entries > 0 && !sealedOnError.contains(current)) {
+                    sealedOnError.add(current);
+                }
+                openSegment();
+            }
+            sealed.addAll(sealedOnError);
+            sealedOnError.clear();
+        }
+        return sealed;
+    }
+
+    /**
+     * deletes sealed segments whose records have been written downstream
+     *
+     * @param segments
+     */
+    public void delete(List<Segment> segments) {
+        for (Segment segment : segments) {
+            if (!segment.file.delete() && segment.file.exists()) {
+                logger.warn("Could not delete write-ahead log segment {}", segment.file);
+            }
+        }
+    }
+
+    /**
+     * returns the segments left by a previous run. Their records must be replayed by the caller.
+     *
+     * @return
+     */
+    public List<Segment> getRecoveredSegments() {
+        return Collections.unmodifiableList(recovered);
+    }
+
+    /**
+     * reads every intact entry from a segment. Reading stops at the first torn or corrupt entry (the tail of a segment
+     * that was being written when the process died).
+     *
+     * @param segment
+     * @return
+     * @throws IOException
+     */
+    public static List<DataRecord> read(Segment segment) throws IOException {
+        List<DataRecord> records = new ArrayList<DataRecord>();
+        try (FileChannel in = FileChannel.open(segment.file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer data = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+            CRC32 check = new CRC32();
+            while (data.remaining() >= HEADER_SIZE) {
+                int length = data.getInt();
+                int expected = data.getInt();
+                if (length <= 0 || length > data.remaining()) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                data.get(payload);
+                check.reset();
+                check.update(payload, 0, length);
+                if ((int) check.getValue() != expected) {
+                    break;
+                }
+                records.addAll(DataRecordCodec.decodeAll(payload));
+            }
+            if (data.hasRemaining()) {
+                logger.warn("Ignoring torn entry at the end of write-ahead log segment {}", segment.file);
+            }
+        }
+        return records;
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    /**
+     * closes the log. If the current segment holds no entries, it is deleted.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            closeSegment();
+            if (current.entries == 0 && !current.file.delete()) {
+                logger.warn("Could not delete write-ahead log segment {}", current.file);
+            }
+            lock.notifyAll();
+        }
+        if (syncThread != null) {
+            syncThread.interrupt();
+        }
+    }
+
+    /**
+     * removes the part of an entry that was written before a write failed, so later entries are not hidden behind a
+     * torn one (reading stops at the first bad entry). If the segment cannot be truncated, it is sealed as it is (the
+     * torn entry is then its last) and a new segment is started. Must be called while holding the lock.
+     *
+     * @param start position of the failed entry
+     */
+    private void discardPartialEntry(long start) {
+        try {
+            channel.truncate(start);
+            channel.position(start);
+            return;
+        } catch (IOException e) {
+            logger.warn("Could not truncate write-ahead log segment {}; sealing it", current.file, e);
+        }
+        try {
+            closeSegment();
+        } catch (IOException e) {
+            logger.warn("Could not close write-ahead log segment {}", current.file, e);
+        }
+        if (current.entries > 0) {
+            if (!sealedOnError.contains(current)) {
+                sealedOnError.add(current);
+            }
+        } else if (!current.file.delete()) {
+            logger.warn("Could not delete write-ahead log segment {}", current.file);
+        }
+        try {
+            openSegment();
+        } catch (IOException e) {
+            // appends fail until the log is usable again; the next roll retries
+            logger.error("Could not open a new write-ahead log segment in " + directory, e);
+        }
+    }
+
+    private void openSegment() throws IOException {
+        current = new Segment(new File(directory, String.format(SEGMENT_FORMAT, nextSegmentNumber++)));
+        channel = FileChannel.open(current.file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * fsyncs (unless durability is NONE) and closes the current segment. Must be called while holding the lock.
+     *
+     * @throws IOException
+     */
+    private void closeSegment() throws IOException {
+        if (!channel.isOpen()) {
+            return;
+        }
+        if (durability != Durability.NONE) {
+            channel.force(false);
+        }
+        channel.close();
+        synced = written;
+        lock.notifyAll();
+    }
+
+    private void awaitSync(long position) throws IOException {
+        synchronized (lock) {
+            try {
+                while (synced < position) {
+                    if (closed && synced < position) {
+                        throw new IOException("Write-ahead log " + directory + " closed before entry was synced");
+                    }
+                    lock.wait(syncIntervalMillis);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for write-ahead log sync", e);
+            }
+        }
+    }
+
+    /**
+     * group commit: each pass fsyncs everything written so far and wakes the appenders it covers. The fsync itself is
+     * done outside of the lock so appends can continue meanwhile.
+     */
+    private void syncLoop() {
+        while (!closed) {
+            long target;
+            FileChannel toSync;
+            synchronized (lock) {
+                try {
+                    if (durability == Durability.SYNC) {
+                        while (!closed && written == synced) {
+                            lock.wait(syncIntervalMillis);
+                        }
+                    } else {
+                        lock.wait(syncIntervalMillis);
+                    }
+                } catch (InterruptedException e) {
+                    if (closed) {
+                        return;
+                    }
+                }
+                if (closed || written == synced) {
+                    continue;
+                }
+                target = written;
+                toSync = channel;
+            }
+            try {
+                toSync.force(false);
+            } catch (ClosedChannelException e) {
+                // the segment was rolled (and synced) while we were waiting
+            } catch (IOException e) {
+                logger.error("Could not sync write-ahead log " + directory, e);
+                continue;
+            }
+            synchronized (lock) {
+                if (target > synced) {
+                    synced = target;
+                }
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private static long parseSegmentNumber(File f) {
+        String name = f.getName();
+        try {
+            return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.indexOf('.')));
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * how far the log goes to make an appended record durable
+     */
+    public enum Durability {
+        /**
+         * entries are handed to the operating system as they are appended; they survive a crash of the process but
+         * not of the host
+         */
+        NONE,
+        /**
+         * as NONE but the log is also fsynced in the background every sync interval, bounding what a host crash can lose
+         */
+        ASYNC,
+        /**
+         * append waits until its entry has been fsynced; concurrent appenders share fsyncs (group commit)
+         */
+        SYNC
+    }
+
+    /**
+     * a segment file of the log
+     */
+    public static class Segment {
+        private final File file;
+        private final AtomicInteger pending = new AtomicInteger(0);
+        private volatile boolean failed;
+        private int entries;
+
+        Segment(File file) {
+            this.file = file;
+            this.entries = file.length() > 0 ? 1 : 0;
+        }
+
+        /**
+         * signals that a record appended to this segment has been handed downstream
+         */
+        public void release() {
+            pending.decrementAndGet();
+        }
+
+        /**
+         * signals that a record appended to this segment could not be handed downstream, so the segment has to be
+         * replayed rather than deleted after the next flush
+         */
+        public void markFailed() {
+            failed = true;
+        }
+
+        public boolean isFailed() {
+            return failed;
+        }
+
+        /**
+         * returns the number of appended records that have not yet been released
+         *
+         * @return
+         */
+        public int getPending() {
+            return pending.get();
+        }
+
+        public File getFile() {
+            return file;
+        }
+    }
+}
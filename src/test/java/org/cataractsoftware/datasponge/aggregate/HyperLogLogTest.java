@@ -0,0 +1,65 @@
+package org.cataractsoftware.datasponge.aggregate;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * checks the accuracy, merging and serialization of the HyperLogLog sketch
+ *
+ * @author Christopher Fagiani
+ */
+@RunWith(JUnit4.class)
+public class HyperLogLogTest {
+
+    @Test
+    public void testEstimateAndMerge() {
+        HyperLogLog a = new HyperLogLog(HyperLogLog.DEFAULT_PRECISION);
+        HyperLogLog b = new HyperLogLog(HyperLogLog.DEFAULT_PRECISION);
+        for (int i = 0; i < 60000; i++) {
+            a.add("value" + i);
+            // half of b's values overlap with a
+            b.add("value" + (i + 30000));
+        }
+        assertWithin("Single sketch estimate should be close", 60000, a.estimate(), 0.05);
+        a.merge(b);
+        assertWithin("Merged estimate should count the union", 90000, a.estimate(), 0.05);
+        assertEquals("Small cardinalities should be nearly exact", 3, estimateOf("x", "y", "z", "x"));
+    }
+
+    @Test
+    public void testSerialization() {
+        HyperLogLog small = new HyperLogLog(HyperLogLog.DEFAULT_PRECISION);
+        small.add("a");
+        small.add("b");
+        byte[] sparse = small.toBytes();
+        assertTrue("Small sketches should be serialized sparsely", sparse.length < 16);
+        assertEquals("Sparse sketch should round trip", 2, HyperLogLog.fromBytes(sparse).estimate());
+
+        HyperLogLog large = new HyperLogLog(HyperLogLog.DEFAULT_PRECISION);
+        for (int i = 0; i < 10000; i++) {
+            large.add(i);
+        }
+        assertEquals("Dense sketch should round trip", large.estimate(), HyperLogLog.fromBytes(large.toBytes()).estimate());
+
+        HyperLogLog merged = HyperLogLog.fromBytes(HyperLogLog.singleton("a", HyperLogLog.DEFAULT_PRECISION));
+        merged.merge(small);
+        assertEquals("Singleton sketch should match adding the value", 2, merged.estimate());
+    }
+
+    private long estimateOf(String... values) {
+        HyperLogLog hll = new HyperLogLog(HyperLogLog.DEFAULT_PRECISION);
+        for (String v : values) {
+            hll.add(v);
+        }
+        return hll.estimate();
+    }
+
+    private void assertWithin(String msg, long expected, long actual, double tolerance) {
+        assertTrue(msg + " (expected ~" + expected + " but was " + actual + ")",
+                Math.abs(actual - expected) <= expected * tolerance);
+    }
+}
@@ -0,0 +1,137 @@
+package org.cataractsoftware.datasponge.enhancer;
+
+import org.cataractsoftware.datasponge.DataRecord;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * test case for the caching enhancer and its LookupCache
+ *
+ * @author Christopher Fagiani
+ */
+@RunWith(JUnit4.class)
+public class CachingEnhancerTest {
+
+    @Test
+    public void testLookupsCached() {
+        LookupEnhancer lookup = new LookupEnhancer();
+        CachingEnhancer enhancer = buildEnhancer(lookup, "lru", 0);
+        for (int i = 0; i < 10; i++) {
+            DataRecord rec = enhancer.enhanceData(buildRecord("page" + i, "example.com"));
+            assertEquals("Cached fields should be applied to every record", "Example Inc", rec.getFieldValue("company"));
+            assertEquals("Other fields should be left alone", "page" + i, rec.getIdentifier());
+        }
+        assertEquals("Delegate should only be called on a miss", 1, lookup.calls.get());
+        assertNull("Dropped keys should be dropped", enhancer.enhanceData(buildRecord("x1", "blocked.com")));
+        assertNull("Drops should be cached", enhancer.enhanceData(buildRecord("x2", "blocked.com")));
+        assertEquals("Delegate should not be called for a cached drop", 2, lookup.calls.get());
+        assertEquals("Hits should be counted", 10, enhancer.getCache().getHitCount());
+        assertEquals("Misses should be counted", 2, enhancer.getCache().getMissCount());
+    }
+
+    @Test
+    public void testTtl() throws InterruptedException {
+        LookupEnhancer lookup = new LookupEnhancer();
+        CachingEnhancer enhancer = buildEnhancer(lookup, "lru", 50);
+        enhancer.enhanceData(buildRecord("a", "example.com"));
+        Thread.sleep(100);
+        enhancer.enhanceData(buildRecord("b", "example.com"));
+        assertEquals("Expired entries should be looked up again", 2, lookup.calls.get());
+        assertEquals("Expirations should be counted", 1, enhancer.getCache().getExpirationCount());
+    }
+
+    @Test
+    public void testLruEviction() {
+        LookupCache<String, String> cache = new LookupCache<String, String>(3, 0, LookupCache.Policy.LRU);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.put("c", "3");
+        cache.get("a");
+        cache.put("d", "4");
+        assertNotNull("Recently used entry should be kept", cache.get("a"));
+        assertNull("Least recently used entry should be evicted", cache.get("b"));
+        assertEquals("Cache should be bounded", 3, cache.size());
+        assertEquals("Evictions should be counted", 1, cache.getEvictionCount());
+    }
+
+    @Test
+    public void testTinyLfuResistsScans() {
+        LookupCache<String, String> tinyLfu = new LookupCache<String, String>(100, 0, LookupCache.Policy.TINYLFU);
+        LookupCache<String, String> lru = new LookupCache<String, String>(100, 0, LookupCache.Policy.LRU);
+        int tinyLfuKept = countHotKeptAfterScan(tinyLfu);
+        assertTrue("Frequently used entries should survive a scan of one-off keys", tinyLfuKept >= 45);
+        assertEquals("LRU should lose every frequently used entry to the scan", 0, countHotKeptAfterScan(lru));
+        assertEquals("Cache should be bounded", 100, tinyLfu.size());
+    }
+
+    private int countHotKeptAfterScan(LookupCache<String, String> cache) {
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 50; i++) {
+                if (cache.get("hot" + i) == null) {
+                    cache.put("hot" + i, "v");
+                }
+            }
+        }
+        for (int i = 0; i < 1000; i++) {
+            if (cache.get("scan" + i) == null) {
+                cache.put("scan" + i, "v");
+            }
+        }
+        int kept = 0;
+        for (int i = 0; i < 50; i++) {
+            if (cache.get("hot" + i) != null) {
+                kept++;
+            }
+        }
+        return kept;
+    }
+
+    private CachingEnhancer buildEnhancer(DataEnhancer delegate, String policy, long ttl) {
+        Properties props = new Properties();
+        props.setProperty(CachingEnhancer.KEY_FIELD_PROPERTY, "domain");
+        props.setProperty(CachingEnhancer.POLICY_PROPERTY, policy);
+        props.setProperty(CachingEnhancer.TTL_PROPERTY, "" + ttl);
+        CachingEnhancer enhancer = new CachingEnhancer();
+        enhancer.init(props);
+        enhancer.setDelegate(delegate);
+        enhancer.setJobId("job1");
+        return enhancer;
+    }
+
+    private DataRecord buildRecord(String id, String domain) {
+        DataRecord rec = new DataRecord(id, "page");
+        rec.setField("domain", domain);
+        return rec;
+    }
+
+    private static class LookupEnhancer implements DataEnhancer {
+        private final AtomicInteger calls = new AtomicInteger();
+
+        @Override
+        public DataRecord enhanceData(DataRecord record) {
+            calls.incrementAndGet();
+            if ("blocked.com".equals(record.getFieldValue("domain"))) {
+                return null;
+            }
+            record.setField("company", "Example Inc");
+            return record;
+        }
+
+        @Override
+        public void init(Properties props) {
+        }
+
+        @Override
+        public void setJobId(String jobId) {
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package org.cataractsoftware.datasponge.enhancer;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.cataractsoftware.datasponge.crawler.CrawlerWorkqueue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.springframework.jms.core.JmsTemplate;
+
+import javax.jms.BytesMessage;
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.Session;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * runs two ClusterDedupService instances against an embedded, non-persistent broker
+ *
+ * @author Christopher Fagiani
+ */
+@RunWith(JUnit4.class)
+public class ClusterDedupServiceTest {
+
+    private static final String BROKER_URL = "vm://dedupservicetest?broker.persistent=false&broker.useJmx=false";
+    private static final String DESTINATION = "test.dedup";
+    private static final String JOB_ID = "job1";
+
+    private Connection connection;
+    private ClusterDedupService node0;
+    private ClusterDedupService node1;
+
+    @Before
+    public void setup() throws JMSException {
+        ActiveMQConnectionFactory factory = new ActiveMQConnectionFactory(BROKER_URL);
+        connection = factory.createConnection();
+        JmsTemplate template = new JmsTemplate(factory);
+        template.setDefaultDestinationName(DESTINATION);
+        template.setPubSubDomain(true);
+        node0 = new ClusterDedupService();
+        node0.setDedupTopicTemplate(template);
+        node1 = new ClusterDedupService();
+        node1.setDedupTopicTemplate(template);
+        // stands in for the listener container of each node
+        Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        MessageConsumer consumer = session.createConsumer(session.createTopic(DESTINATION));
+        consumer.setMessageListener(new MessageListener() {
+            @Override
+            public void onMessage(Message message) {
+                try {
+                    node0.handleDedupMessage(message);
+                    ((BytesMessage) message).reset();
+                    node1.handleDedupMessage(message);
+                } catch (JMSException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        connection.start();
+    }
+
+    @After
+    public void cleanup() throws JMSException {
+        node0.destroy();
+        node1.destroy();
+        connection.close();
+    }
+
+    @Test
+    public void testDuplicatesDetectedAcrossNodes() {
+        node0.updateMembership(JOB_ID, 0, 2);
+        node1.updateMembership(JOB_ID, 1, 2);
+        for (int i = 0; i < 50; i++) {
+            assertFalse("First sighting anywhere should not be a duplicate", node0.checkAndSet(JOB_ID, "key" + i));
+        }
+        for (int i = 0; i < 50; i++) {
+            assertTrue("Keys seen by the other node should be duplicates", node1.checkAndSet(JOB_ID, "key" + i));
+        }
+        for (int i = 0; i < 50; i++) {
+            assertTrue("Keys seen before should stay duplicates", node0.checkAndSet(JOB_ID, "key" + i));
+        }
+        assertFalse("New keys should not be duplicates", node1.checkAndSet(JOB_ID, "other"));
+    }
+
+    @Test
+    public void testNamespacesKeepSeparateTables() {
+        String nearDup = ClusterDedupService.namespace(JOB_ID, "neardup");
+        node0.updateMembership(JOB_ID, 0, 2);
+        node1.updateMembership(JOB_ID, 1, 2);
+        node0.register(nearDup, new ClusterDedupService.Config(1000, 4, FingerprintTable.EvictionPolicy.GENERATIONAL, 16, 5, 5000));
+        node1.register(nearDup, new ClusterDedupService.Config(1000, 4, FingerprintTable.EvictionPolicy.GENERATIONAL, 16, 5, 5000));
+        for (int i = 0; i < 20; i++) {
+            assertFalse("First sighting in the job should not be a duplicate", node0.checkAndSet(JOB_ID, "key" + i));
+        }
+        for (int i = 0; i < 20; i++) {
+            assertFalse("Keys of another namespace should not be duplicates", node0.checkAndSet(nearDup, "key" + i));
+        }
+        for (int i = 0; i < 20; i++) {
+            assertTrue("A namespace should inherit the membership of its job", node1.checkAndSet(nearDup, "key" + i));
+        }
+    }
+
+    @Test
+    public void testUnansweredChecksTreatedAsNew() throws InterruptedException {
+        node0.register(JOB_ID, new ClusterDedupService.Config(1000, 4, FingerprintTable.EvictionPolicy.GENERATIONAL, 16, 5, 200));
+        // node 1 never joins the job, so checks for keys it owns go unanswered
+        node0.updateMembership(JOB_ID, 0, 2);
+        String remoteKey = keyOwnedBy(1);
+        assertFalse("Unanswered checks should treat the record as new", node0.checkAndSet(JOB_ID, remoteKey));
+        assertFalse("Unanswered checks should not be remembered", node0.checkAndSet(JOB_ID, remoteKey));
+        for (int i = 0; i < 50 && node0.getInFlightCount() > 0; i++) {
+            Thread.sleep(20);
+        }
+        assertEquals("Unanswered requests should be discarded after the timeout", 0, node0.getInFlightCount());
+    }
+
+    @Test
+    public void testConcurrentChecksOnOneNode() throws Exception {
+        // a long batch delay makes every thread join the same batch
+        node0.register(JOB_ID, new ClusterDedupService.Config(1000, 4, FingerprintTable.EvictionPolicy.GENERATIONAL, 256, 200, 5000));
+        node0.updateMembership(JOB_ID, 0, 2);
+        node1.updateMembership(JOB_ID, 1, 2);
+        final String remoteKey = keyOwnedBy(1);
+        int threads = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger newCount = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> results = new ArrayList<Future<?>>();
+        for (int i = 0; i < threads; i++) {
+            results.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    start.await();
+                    if (!node0.checkAndSet(JOB_ID, remoteKey)) {
+                        newCount.incrementAndGet();
+                    }
+                    return null;
+                }
+            }));
+        }
+        start.countDown();
+        for (Future<?> result : results) {
+            result.get();
+        }
+        executor.shutdown();
+        assertEquals("Only one concurrent caller should be told the key is new", 1, newCount.get());
+    }
+
+    private String keyOwnedBy(int node) {
+        for (int i = 0; ; i++) {
+            if (CrawlerWorkqueue.partitionFor("key" + i, 2) == node) {
+                return "key" + i;
+            }
+        }
+    }
+}
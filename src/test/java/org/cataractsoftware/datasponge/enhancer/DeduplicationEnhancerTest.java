@@ -6,10 +6,17 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * test case for deduplication enhancer
@@ -58,6 +65,75 @@ public class DeduplicationEnhancerTest {
     }
 
 
+    @Test
+    public void testKeyedCustomDetector() {
+        DataEnhancer enhancer = buildEnhancer(IdOnlyDetector.class.getName());
+        assertNotNull("Record should not be null", enhancer.enhanceData(TestUtils.buildRecord("1", REC_TYPE)));
+        assertNull("Record should be null since its key was seen",
+                enhancer.enhanceData(TestUtils.buildRecord("1", "BLAH")));
+        assertNotNull("Fingerprint table should be used for keyed detectors",
+                ((DeduplicationEnhancer) enhancer).fingerprints);
+    }
+
+    @Test
+    public void testBoundedTable() {
+        FingerprintTable table = new FingerprintTable(1000, 4, FingerprintTable.EvictionPolicy.GENERATIONAL);
+        for (int i = 0; i < 10000; i++) {
+            assertTrue("New keys should be added", table.add("key" + i));
+        }
+        assertTrue("Table should stay within its bound", table.size() <= 1000);
+        assertTrue("Full stripes should evict", table.getEvictionCount() > 0);
+        assertTrue("Recent keys should still be detected", table.contains("key9999"));
+        assertFalse("Oldest keys should be forgotten first", table.contains("key0"));
+
+        FingerprintTable noEviction = new FingerprintTable(100, 1, FingerprintTable.EvictionPolicy.NONE);
+        for (int i = 0; i < 200; i++) {
+            noEviction.add("key" + i);
+        }
+        assertTrue("Keys added before the table filled should be kept", noEviction.contains("key0"));
+        assertEquals("Table should not grow past its bound", 100, noEviction.size());
+    }
+
+    @Test
+    public void testOversizedStripesRejected() {
+        Properties props = new Properties();
+        props.setProperty(DeduplicationEnhancer.MAX_ENTRIES_PROPERTY, "2000000000");
+        props.setProperty(DeduplicationEnhancer.STRIPES_PROPERTY, "1");
+        props.setProperty(DeduplicationEnhancer.EVICTION_PROPERTY, "none");
+        try {
+            new DeduplicationEnhancer().init(props);
+            fail("A stripe share too large for one table should be rejected");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testConcurrentIndexedDedup() throws InterruptedException {
+        final DataEnhancer enhancer = buildEnhancer(null);
+        final AtomicInteger accepted = new AtomicInteger();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            Thread th = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    // every thread offers the same records so each should be accepted exactly once
+                    for (int i = 0; i < 20000; i++) {
+                        if (enhancer.enhanceData(TestUtils.buildRecord("" + i, REC_TYPE)) != null) {
+                            accepted.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            threads.add(th);
+            th.start();
+        }
+        for (Thread th : threads) {
+            th.join();
+        }
+        assertEquals("Each distinct record should be accepted once", 20000, accepted.get());
+    }
+
     private DataEnhancer buildEnhancer(String comparatorClass) {
         DeduplicationEnhancer enhancer = new DeduplicationEnhancer();
         Properties props = new Properties();
@@ -68,4 +144,14 @@ public class DeduplicationEnhancerTest {
         return enhancer;
     }
 
+    /**
+     * keyed detector that treats records with the same identifier as duplicates
+     */
+    public static class IdOnlyDetector extends TestDedupeDetector implements KeyedDuplicateDetector {
+        @Override
+        public Object getDeduplicationKey(DataRecord record) {
+            return record.getIdentifier();
+        }
+    }
+
 }
@@ -0,0 +1,130 @@
+package org.cataractsoftware.datasponge.enhancer;
+
+import org.cataractsoftware.datasponge.DataRecord;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * test case for the dictionary join enhancer and the DictionaryFile it builds
+ *
+ * @author Christopher Fagiani
+ */
+@RunWith(JUnit4.class)
+public class DictionaryJoinEnhancerTest {
+
+    private File dir;
+    private File csv;
+
+    @Before
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("dictionarytest").toFile();
+        csv = new File(dir, "companies.csv");
+        StringBuilder content = new StringBuilder("domain,company,category\r\n");
+        for (int i = 0; i < 1000; i++) {
+            content.append("site").append(i).append(".com,Company ").append(i).append(",cat").append(i % 7).append("\r\n");
+        }
+        content.append("example.com,\"Example, \"\"Inc\"\"\",\"multi\nline\"\n");
+        content.append("site5.com,Duplicate,dup\n");
+        Files.write(csv.toPath(), content.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    @After
+    public void cleanup() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testJoin() {
+        DictionaryJoinEnhancer enhancer = buildEnhancer(null, "keep");
+        assertTrue("Dictionary should be built next to the source", new File(dir, "companies.csv.dict").exists());
+        assertEquals("Each distinct key should be indexed once", 1001, enhancer.getDictionary().size());
+        DataRecord rec = enhancer.enhanceData(buildRecord("site42.com"));
+        assertEquals("Values should be joined", "Company 42", rec.getFieldValue("company"));
+        assertEquals("Every column should be joined by default", "cat0", rec.getFieldValue("category"));
+        rec = enhancer.enhanceData(buildRecord("example.com"));
+        assertEquals("Quoted values should be parsed", "Example, \"Inc\"", rec.getFieldValue("company"));
+        assertEquals("Quoted line breaks should be kept", "multi\nline", rec.getFieldValue("category"));
+        assertEquals("First row of a duplicated key should win", "Company 5",
+                enhancer.enhanceData(buildRecord("site5.com")).getFieldValue("company"));
+        rec = enhancer.enhanceData(buildRecord("unknown.com"));
+        assertNotNull("Misses should pass through by default", rec);
+        assertNull("Misses should not be joined", rec.getFieldValue("company"));
+    }
+
+    @Test
+    public void testColumnsAndMisses() {
+        DictionaryJoinEnhancer enhancer = buildEnhancer("category", "drop");
+        DataRecord rec = enhancer.enhanceData(buildRecord("site8.com"));
+        assertEquals("Selected columns should be joined with the prefix", "cat1", rec.getFieldValue("ref.category"));
+        assertNull("Other columns should not be joined", rec.getFieldValue("ref.company"));
+        assertNull("Misses should be dropped", enhancer.enhanceData(buildRecord("unknown.com")));
+    }
+
+    @Test
+    public void testRebuiltWhenSourceChanges() throws IOException {
+        DictionaryJoinEnhancer enhancer = buildEnhancer(null, "keep");
+        assertEquals("Dictionary should hold the original rows", 1001, enhancer.getDictionary().size());
+        Files.write(csv.toPath(), "domain,company,category\nnew.com,New Co,cat\n".getBytes(StandardCharsets.UTF_8));
+        csv.setLastModified(new File(dir, "companies.csv.dict").lastModified() + 5000);
+        enhancer = buildEnhancer(null, "keep");
+        assertEquals("Dictionary should be rebuilt from the newer source", 1, enhancer.getDictionary().size());
+        assertEquals("New rows should be joined", "New Co", enhancer.enhanceData(buildRecord("new.com")).getFieldValue("company"));
+    }
+
+    @Test
+    public void testRebuiltWhenKeyColumnChanges() {
+        assertEquals("Default key should be the first column", "domain",
+                buildEnhancer(null, "keep").getDictionary().getKeyColumn());
+        Properties props = new Properties();
+        props.setProperty(DictionaryJoinEnhancer.SOURCE_PROPERTY, csv.getAbsolutePath());
+        props.setProperty(DictionaryJoinEnhancer.KEY_COLUMN_PROPERTY, "company");
+        props.setProperty(DictionaryJoinEnhancer.FIELD_PROPERTY, "company");
+        DictionaryJoinEnhancer enhancer = new DictionaryJoinEnhancer();
+        enhancer.init(props);
+        assertEquals("Dictionary should be rebuilt for the new key column", "company", enhancer.getDictionary().getKeyColumn());
+        DataRecord rec = new DataRecord("http://site3.com/", "page");
+        rec.setField("company", "Company 3");
+        assertEquals("Lookups should use the new key column", "site3.com", enhancer.enhanceData(rec).getFieldValue("domain"));
+    }
+
+    private DictionaryJoinEnhancer buildEnhancer(String columns, String onMiss) {
+        Properties props = new Properties();
+        props.setProperty(DictionaryJoinEnhancer.SOURCE_PROPERTY, csv.getAbsolutePath());
+        props.setProperty(DictionaryJoinEnhancer.FIELD_PROPERTY, "domain");
+        props.setProperty(DictionaryJoinEnhancer.ON_MISS_PROPERTY, onMiss);
+        if (columns != null) {
+            props.setProperty(DictionaryJoinEnhancer.COLUMNS_PROPERTY, columns);
+            props.setProperty(DictionaryJoinEnhancer.PREFIX_PROPERTY, "ref.");
+        }
+        DictionaryJoinEnhancer enhancer = new DictionaryJoinEnhancer();
+        enhancer.init(props);
+        enhancer.setJobId("job1");
+        return enhancer;
+    }
+
+    private DataRecord buildRecord(String domain) {
+        DataRecord rec = new DataRecord("http://" + domain + "/", "page");
+        rec.setField("domain", domain);
+        return rec;
+    }
+}
@@ -0,0 +1,290 @@
+package org.cataractsoftware.datasponge.enhancer;
+
+import org.cataractsoftware.datasponge.DataRecord;
+import org.cataractsoftware.datasponge.writer.DataWriter;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * verifies the EnhancerPipeline batches records for batch and asynchronous enhancers and runs stateless stages in
+ * parallel
+ *
+ * @author Christopher Fagiani
+ */
+@RunWith(JUnit4.class)
+public class EnhancerPipelineTest {
+
+    @Test
+    public void testRecordsBatched() {
+        CountingBatchEnhancer batchEnhancer = new CountingBatchEnhancer();
+        CollectingWriter writer = new CollectingWriter();
+        EnhancerPipeline pipeline = new EnhancerPipeline(new DataEnhancer[]{new DropOddEnhancer(), batchEnhancer},
+                writer, 10, 10000, 2);
+        for (int i = 0; i < 45; i++) {
+            pipeline.submit(buildRecord(i));
+        }
+        assertEquals("Full batches should be sent as soon as they fill", 4, batchEnhancer.batches.get());
+        pipeline.close();
+        assertEquals("Partial batch should be sent on flush", 5, batchEnhancer.batches.get());
+        assertEquals("Per-record stages should drop records within a batch", 23, writer.records.size());
+        assertEquals("Batch stage should enhance every record", "yes", writer.records.get(0).getFieldValue("batched"));
+    }
+
+    @Test
+    public void testPartialBatchSentAfterDelay() throws InterruptedException {
+        CountingBatchEnhancer batchEnhancer = new CountingBatchEnhancer();
+        CollectingWriter writer = new CollectingWriter();
+        EnhancerPipeline pipeline = new EnhancerPipeline(new DataEnhancer[]{batchEnhancer}, writer, 100, 20, 2);
+        pipeline.submit(buildRecord(1));
+        for (int i = 0; i < 100 && writer.size() == 0; i++) {
+            Thread.sleep(20);
+        }
+        assertEquals("Partial batch should be sent once the delay has passed", 1, writer.size());
+        pipeline.close();
+    }
+
+    @Test
+    public void testAsyncBatchesOverlap() {
+        AsyncEnhancer asyncEnhancer = new AsyncEnhancer();
+        CollectingWriter writer = new CollectingWriter();
+        EnhancerPipeline pipeline = new EnhancerPipeline(new DataEnhancer[]{asyncEnhancer, new CountingBatchEnhancer()},
+                writer, 5, 10000, 4);
+        for (int i = 0; i < 20; i++) {
+            pipeline.submit(buildRecord(i));
+        }
+        assertEquals("Submitting should not wait for outstanding batches", 4, asyncEnhancer.pending.size());
+        asyncEnhancer.completeAll();
+        pipeline.close();
+        assertEquals("Every record should be written once its batch completes", 20, writer.size());
+        assertEquals("Later stages should run after the asynchronous stage", "yes", writer.records.get(0).getFieldValue("batched"));
+        assertTrue("Asynchronous stage should enhance the records", writer.records.get(0).getFieldValue("async") != null);
+    }
+
+    @Test
+    public void testNoBatchingWithoutBatchStages() {
+        CollectingWriter writer = new CollectingWriter();
+        EnhancerPipeline pipeline = new EnhancerPipeline(new DataEnhancer[]{new DropOddEnhancer()}, writer, 100, 10000, 1);
+        assertEquals("Pipelines without batch stages should not batch", 1, pipeline.getBatchSize());
+        pipeline.submit(buildRecord(2));
+        assertEquals("Records should be written as they are submitted", 1, writer.size());
+        pipeline.close();
+    }
+
+    @Test
+    public void testStatelessStagesRunInParallel() {
+        TaggingEnhancer first = new TaggingEnhancer("first");
+        TaggingEnhancer second = new TaggingEnhancer("second");
+        CollectingWriter writer = new CollectingWriter();
+        EnhancerPipeline pipeline = new EnhancerPipeline(new DataEnhancer[]{first, second, new DropOddEnhancer()},
+                writer, 40, 10000, 1, 4);
+        assertEquals("Stateless batching should be enabled when parallelism is requested", 40, pipeline.getBatchSize());
+        assertEquals("Adjacent stateless stages should be fused", 2, pipeline.getSegmentCount());
+        for (int i = 0; i < 80; i++) {
+            pipeline.submit(buildRecord(i));
+        }
+        pipeline.close();
+        assertEquals("Stateful stage should still drop records", 40, writer.size());
+        for (int i = 0; i < writer.size(); i++) {
+            assertEquals("Record order should be preserved", i * 2, writer.records.get(i).getFieldValue("num"));
+            assertEquals("Fused stages should both run", "yes", writer.records.get(i).getFieldValue("second"));
+        }
+        assertTrue("Stateless stage should run on more than one thread", first.threads.size() > 1);
+
+        List<EnhancerPipeline.StageStats> stats = pipeline.getStageStats();
+        assertEquals("Each stage should have statistics", 3, stats.size());
+        assertEquals("Stage should count its records", 80, stats.get(0).getRecords());
+        assertEquals("Stage should count dropped records", 40, stats.get(2).getDropped());
+        assertEquals("Stage name should be recorded", "TaggingEnhancer", stats.get(1).getName());
+    }
+
+    @Test
+    public void testFailingRecordDoesNotDropBatch() {
+        CollectingWriter writer = new CollectingWriter();
+        DataEnhancer failOnFive = new DropOddEnhancer() {
+            @Override
+            public DataRecord enhanceData(DataRecord record) {
+                if ((Integer) record.getFieldValue("num") == 5) {
+                    throw new IllegalArgumentException("bad record");
+                }
+                return record;
+            }
+        };
+        EnhancerPipeline pipeline = new EnhancerPipeline(new DataEnhancer[]{failOnFive, new CountingBatchEnhancer()},
+                writer, 10, 10000, 1);
+        for (int i = 0; i < 10; i++) {
+            pipeline.submit(buildRecord(i));
+        }
+        pipeline.close();
+        assertEquals("Only the failing record should be dropped", 9, writer.size());
+        assertEquals("Failing record should be counted as dropped", 1, pipeline.getStageStats().get(0).getDropped());
+    }
+
+    private DataRecord buildRecord(int i) {
+        DataRecord rec = new DataRecord("id" + i, "test");
+        rec.setField("num", i);
+        return rec;
+    }
+
+    private static class DropOddEnhancer implements DataEnhancer {
+        @Override
+        public DataRecord enhanceData(DataRecord record) {
+            return ((Integer) record.getFieldValue("num")) % 2 == 0 ? record : null;
+        }
+
+        @Override
+        public void init(Properties props) {
+        }
+
+        @Override
+        public void setJobId(String jobId) {
+        }
+    }
+
+    private static class TaggingEnhancer implements StatelessDataEnhancer {
+        private final String field;
+        private final Set<String> threads = Collections.synchronizedSet(new HashSet<String>());
+
+        TaggingEnhancer(String field) {
+            this.field = field;
+        }
+
+        @Override
+        public DataRecord enhanceData(DataRecord record) {
+            threads.add(Thread.currentThread().getName());
+            try {
+                // long enough for the worker threads to pick up their chunks
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            record.setField(field, "yes");
+            return record;
+        }
+
+        @Override
+        public void init(Properties props) {
+        }
+
+        @Override
+        public void setJobId(String jobId) {
+        }
+    }
+
+    private static class CountingBatchEnhancer implements BatchDataEnhancer {
+        private final AtomicInteger batches = new AtomicInteger();
+
+        @Override
+        public List<DataRecord> enhanceBatch(List<DataRecord> records) {
+            batches.incrementAndGet();
+            for (DataRecord record : records) {
+                enhanceData(record);
+            }
+            return records;
+        }
+
+        @Override
+        public DataRecord enhanceData(DataRecord record) {
+            record.setField("batched", "yes");
+            return record;
+        }
+
+        @Override
+        public void init(Properties props) {
+        }
+
+        @Override
+        public void setJobId(String jobId) {
+        }
+    }
+
+    private static class AsyncEnhancer implements AsyncDataEnhancer {
+        private final List<SettableListenableFuture<List<DataRecord>>> pending = Collections.synchronizedList(
+                new ArrayList<SettableListenableFuture<List<DataRecord>>>());
+        private final List<List<DataRecord>> inputs = Collections.synchronizedList(new ArrayList<List<DataRecord>>());
+
+        @Override
+        public ListenableFuture<List<DataRecord>> enhanceBatchAsync(List<DataRecord> records) {
+            SettableListenableFuture<List<DataRecord>> future = new SettableListenableFuture<List<DataRecord>>();
+            inputs.add(records);
+            pending.add(future);
+            return future;
+        }
+
+        void completeAll() {
+            ExecutorService executor = Executors.newFixedThreadPool(2);
+            for (int i = 0; i < pending.size(); i++) {
+                final List<DataRecord> records = inputs.get(i);
+                final SettableListenableFuture<List<DataRecord>> future = pending.get(i);
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (DataRecord record : records) {
+                            enhanceData(record);
+                        }
+                        future.set(records);
+                    }
+                });
+            }
+            executor.shutdown();
+        }
+
+        @Override
+        public DataRecord enhanceData(DataRecord record) {
+            record.setField("async", Thread.currentThread().getName());
+            return record;
+        }
+
+        @Override
+        public void init(Properties props) {
+        }
+
+        @Override
+        public void setJobId(String jobId) {
+        }
+    }
+
+    private static class CollectingWriter implements DataWriter {
+        private final List<DataRecord> records = Collections.synchronizedList(new ArrayList<DataRecord>());
+
+        @Override
+        public void addItem(DataRecord record) {
+            records.add(record);
+        }
+
+        int size() {
+            return records.size();
+        }
+
+        @Override
+        public void flushBatch() {
+        }
+
+        @Override
+        public void finish() {
+        }
+
+        @Override
+        public void init(Properties props) {
+        }
+
+        @Override
+        public void setJobId(String jobId) {
+        }
+    }
+}
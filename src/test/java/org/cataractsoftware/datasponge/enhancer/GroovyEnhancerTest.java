@@ -0,0 +1,146 @@
+package org.cataractsoftware.datasponge.enhancer;
+
+import org.cataractsoftware.datasponge.DataRecord;
+import org.cataractsoftware.datasponge.util.GroovyDataAdapter;
+import org.cataractsoftware.datasponge.util.GroovyScriptCache;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * verifies Groovy enhancer scripts are compiled once, dispatched through the DataEnhancer interface when they
+ * implement it, can be compiled statically and are reloaded when their file changes
+ *
+ * @author Christopher Fagiani
+ */
+@RunWith(JUnit4.class)
+public class GroovyEnhancerTest {
+
+    private static final String TYPED_SCRIPT = "import org.cataractsoftware.datasponge.DataRecord\n"
+            + "import org.cataractsoftware.datasponge.enhancer.DataEnhancer\n"
+            + "class TypedEnhancer implements DataEnhancer {\n"
+            + "    DataRecord enhanceData(DataRecord record) { record.setField('groovy', 'typed'); return record }\n"
+            + "    void init(Properties props) {}\n"
+            + "    void setJobId(String jobId) {}\n"
+            + "}\n";
+    private static final String DUCK_SCRIPT = "class DuckEnhancer {\n"
+            + "    String suffix = ''\n"
+            + "    def setProperties(Properties props) { suffix = props.getProperty('suffix', '') }\n"
+            + "    def enhanceData(record) { record.setField('groovy', 'duck' + suffix); record }\n"
+            + "}\n";
+
+    private File dir;
+
+    @Before
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("groovytest").toFile();
+        GroovyScriptCache.clear();
+    }
+
+    @After
+    public void cleanup() {
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testTypedScriptSharedAndStatic() throws IOException {
+        File script = write("typed.groovy", TYPED_SCRIPT);
+        GroovyEnhancer first = buildEnhancer(script, true);
+        GroovyEnhancer second = buildEnhancer(script, true);
+        assertTrue("Script implementing DataEnhancer should be called directly", first.isTypedDispatch());
+        assertSame("Adapters using the same script should share the compiled class",
+                first.getScriptClass(), second.getScriptClass());
+        assertEquals("Script should be compiled once", 1, GroovyScriptCache.size());
+        DataRecord rec = first.enhanceData(new DataRecord("1", "t"));
+        assertEquals("Statically compiled script should enhance the record", "typed", rec.getFieldValue("groovy"));
+
+        write("typed.groovy", TYPED_SCRIPT + "// changed\n");
+        GroovyEnhancer changed = buildEnhancer(script, true);
+        assertNotSame("Changed content should be compiled again", first.getScriptClass(), changed.getScriptClass());
+        assertEquals("Superseded class should be evicted from the cache", 1, GroovyScriptCache.size());
+        assertEquals("Adapters on the superseded class should keep working", "typed",
+                second.enhanceData(new DataRecord("2", "t")).getFieldValue("groovy"));
+    }
+
+    @Test
+    public void testUntypedScriptCalledByMethod() throws IOException {
+        File script = write("duck.groovy", DUCK_SCRIPT);
+        GroovyEnhancer enhancer = buildEnhancer(script, false);
+        assertFalse("Untyped script should not be cast to DataEnhancer", enhancer.isTypedDispatch());
+        DataRecord rec = enhancer.enhanceData(new DataRecord("1", "t"));
+        assertEquals("Untyped script method should be invoked", "duck!", rec.getFieldValue("groovy"));
+    }
+
+    @Test
+    public void testStaticCompilationChecksTypes() throws IOException {
+        File script = write("untyped.groovy", TYPED_SCRIPT.replace("record.setField(", "record.noSuchMethod("));
+        buildEnhancer(script, false);
+        try {
+            buildEnhancer(script, true);
+            fail("Static compilation should reject calls to unknown methods");
+        } catch (IllegalStateException e) {
+            assertEquals("Only the dynamic version should be cached", 1, GroovyScriptCache.size());
+        }
+    }
+
+    @Test
+    public void testHotReload() throws Exception {
+        File script = write("reload.groovy", TYPED_SCRIPT);
+        Properties props = buildProperties(script, false);
+        props.setProperty(GroovyDataAdapter.HOT_RELOAD_PROP, "true");
+        GroovyEnhancer enhancer = new GroovyEnhancer();
+        enhancer.init(props);
+        assertEquals("Original script should run", "typed", enhancer.enhanceData(new DataRecord("1", "t")).getFieldValue("groovy"));
+
+        write("reload.groovy", "this is not groovy {");
+        write("reload.groovy", TYPED_SCRIPT.replace("'typed'", "'reloaded'"));
+        for (int i = 0; i < 100 && enhancer.getReloadCount() == 0; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals("Script should be reloaded once after the burst of changes", 1, enhancer.getReloadCount());
+        assertEquals("New script should run", "reloaded", enhancer.enhanceData(new DataRecord("2", "t")).getFieldValue("groovy"));
+
+        write("reload.groovy", "this is not groovy {");
+        enhancer.reloadScript();
+        assertEquals("Previous script should be kept if the new one does not compile", "reloaded",
+                enhancer.enhanceData(new DataRecord("3", "t")).getFieldValue("groovy"));
+    }
+
+    private GroovyEnhancer buildEnhancer(File script, boolean compileStatic) {
+        GroovyEnhancer enhancer = new GroovyEnhancer();
+        enhancer.init(buildProperties(script, compileStatic));
+        return enhancer;
+    }
+
+    private Properties buildProperties(File script, boolean compileStatic) {
+        Properties props = new Properties();
+        props.setProperty("groovyenhancerclass", script.getAbsolutePath());
+        props.setProperty(GroovyDataAdapter.COMPILE_STATIC_PROP, Boolean.toString(compileStatic));
+        props.setProperty("suffix", "!");
+        return props;
+    }
+
+    private File write(String name, String content) throws IOException {
+        File f = new File(dir, name);
+        Files.write(f.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return f;
+    }
+}
@@ -0,0 +1,83 @@
+package org.cataractsoftware.datasponge.enhancer;
+
+import org.cataractsoftware.datasponge.DataRecord;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Properties;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * test case for the near-duplicate enhancer in local mode
+ *
+ * @author Christopher Fagiani
+ */
+@RunWith(JUnit4.class)
+public class NearDuplicateEnhancerTest {
+
+    @Test
+    public void testNearDuplicatesDropped() {
+        NearDuplicateEnhancer enhancer = buildEnhancer("drop", 1000);
+        String article = buildText(1, 300);
+        assertNotNull("First page should pass", enhancer.enhanceData(buildRecord("a", article)));
+        assertNull("Page differing only in boilerplate should be dropped",
+                enhancer.enhanceData(buildRecord("b", "Updated 10:42 " + article + " advertisement buy now")));
+        assertNotNull("Unrelated page should pass", enhancer.enhanceData(buildRecord("c", buildText(2, 300))));
+        assertNotNull("Records without the text field should pass", enhancer.enhanceData(new DataRecord("d", "page")));
+    }
+
+    @Test
+    public void testNearDuplicatesTagged() {
+        NearDuplicateEnhancer enhancer = buildEnhancer("tag", 1000);
+        String article = buildText(3, 300);
+        enhancer.enhanceData(buildRecord("a", article));
+        DataRecord tagged = enhancer.enhanceData(buildRecord("b", article.replace("w7 ", "w8 ")));
+        assertNotNull("Tagged records should be kept", tagged);
+        assertEquals("Record should be tagged", Boolean.TRUE, tagged.getFieldValue(NearDuplicateEnhancer.DUPLICATE_FIELD));
+        assertEquals("Matched record should be identified", "a", tagged.getFieldValue(NearDuplicateEnhancer.DUPLICATE_OF_FIELD));
+        assertTrue("Similarity should reach the threshold",
+                (Double) tagged.getFieldValue(NearDuplicateEnhancer.SIMILARITY_FIELD) >= 0.8);
+    }
+
+    @Test
+    public void testIndexBounded() {
+        NearDuplicateEnhancer enhancer = buildEnhancer("drop", 10);
+        String first = buildText(4, 200);
+        enhancer.enhanceData(buildRecord("first", first));
+        for (int i = 0; i < 10; i++) {
+            assertNotNull("Distinct pages should pass", enhancer.enhanceData(buildRecord("p" + i, buildText(100 + i, 200))));
+        }
+        assertNotNull("Oldest signature should have been forgotten", enhancer.enhanceData(buildRecord("again", first)));
+    }
+
+    private NearDuplicateEnhancer buildEnhancer(String action, int maxEntries) {
+        Properties props = new Properties();
+        props.setProperty(NearDuplicateEnhancer.ACTION_PROPERTY, action);
+        props.setProperty(NearDuplicateEnhancer.MAX_ENTRIES_PROPERTY, "" + maxEntries);
+        NearDuplicateEnhancer enhancer = new NearDuplicateEnhancer();
+        enhancer.init(props);
+        enhancer.setJobId("job1");
+        return enhancer;
+    }
+
+    private DataRecord buildRecord(String id, String text) {
+        DataRecord rec = new DataRecord(id, "page");
+        rec.setField("text", text);
+        return rec;
+    }
+
+    private String buildText(long seed, int words) {
+        Random random = new Random(seed);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            text.append('w').append(random.nextInt(500)).append(' ');
+        }
+        return text.toString();
+    }
+}
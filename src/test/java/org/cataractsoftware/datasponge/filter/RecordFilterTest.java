@@ -0,0 +1,83 @@
+package org.cataractsoftware.datasponge.filter;
+
+import org.cataractsoftware.datasponge.DataRecord;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * verifies filter expressions are compiled and evaluated correctly and that projection removes unlisted fields
+ *
+ * @author Christopher Fagiani
+ */
+@RunWith(JUnit4.class)
+public class RecordFilterTest {
+
+    @Test
+    public void testExpressions() {
+        DataRecord rec = new DataRecord("http://example.com/docs/a", "page");
+        rec.setField("status", 404);
+        rec.setField("code", "404");
+        rec.setField("title", "Not Found");
+        rec.setField("indexed", true);
+
+        assertTrue("Numeric comparison should match", matches("status >= 400", rec));
+        assertTrue("Numeric strings should compare numerically", matches("code > 99", rec));
+        assertFalse("String comparison should not match", matches("title == 'Found'", rec));
+        assertTrue("Record type should be available", matches("@type == \"page\"", rec));
+        assertTrue("Regular expression should match part of the value", matches("@id =~ '/docs/'", rec));
+        assertTrue("Boolean comparison should match", matches("indexed == true", rec));
+        assertTrue("Missing field should equal null", matches("missing == null", rec));
+        assertFalse("Missing field should not satisfy a range", matches("missing < 5", rec));
+        assertTrue("exists should detect fields", matches("exists title and not exists missing", rec));
+        assertTrue("Precedence should bind and tighter than or",
+                matches("status < 400 and title == 'x' or @type == 'page'", rec));
+        assertFalse("Parentheses should override precedence",
+                matches("status < 400 and (title == 'x' or @type == 'page')", rec));
+        assertTrue("Symbolic operators should be accepted", matches("!(status == 200) && (code != '500' || false == true)", rec));
+    }
+
+    @Test
+    public void testInvalidExpressions() {
+        String[] invalid = {"status >", "status = 4", "(status > 4", "title =~ 5", "title =~ '('", "status > 4 extra", "missing < null"};
+        for (String expr : invalid) {
+            try {
+                new RecordFilter(expr, null);
+                fail("Expression should be rejected: " + expr);
+            } catch (IllegalArgumentException e) {
+                assertTrue("Error should include the expression", e.getMessage().contains(expr));
+            }
+        }
+    }
+
+    @Test
+    public void testFilterAndProjection() {
+        RecordFilter filter = RecordFilter.build("keep == 'y'", Arrays.asList("keep", "a"));
+        DataRecord kept = new DataRecord("1", "t");
+        kept.setField("keep", "y");
+        kept.setField("a", 1);
+        kept.setField("b", 2);
+        DataRecord dropped = new DataRecord("2", "t");
+        dropped.setField("keep", "n");
+
+        assertNotNull("Matching record should be kept", filter.apply(kept));
+        assertEquals("Unlisted fields should be removed", 2, kept.getFieldCount());
+        assertNull("Removed field should be gone", kept.getFieldValue("b"));
+        assertNull("Non-matching record should be dropped", filter.apply(dropped));
+        assertEquals("Dropped records should be counted", 1, filter.getDroppedCount());
+        assertNull("No filter should be built without settings", RecordFilter.build(" ", null));
+    }
+
+    private boolean matches(String expr, DataRecord rec) {
+        return new RecordFilter(expr, null).matches(rec);
+    }
+}
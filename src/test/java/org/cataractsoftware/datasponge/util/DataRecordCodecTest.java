@@ -0,0 +1,158 @@
+package org.cataractsoftware.datasponge.util;
+
+import org.cataractsoftware.datasponge.DataRecord;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * tests the DataRecordCodec and compares its output size with Java serialization. The timing benchmark against Java
+ * serialization is ignored in the normal build; run it on its own (e.g. -Dtest=DataRecordCodecTest) after removing the
+ * Ignore annotation.
+ *
+ * @author Christopher Fagiani
+ */
+@RunWith(JUnit4.class)
+public class DataRecordCodecTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(DataRecordCodecTest.class);
+    private static final int BENCHMARK_RECORDS = 20000;
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        DataRecord rec = TestUtils.buildRecord("http://example.com/page", "page");
+        rec.setField("title", "Example \u00e9\u4e2d");
+        rec.setField("int", -42);
+        rec.setField("long", Long.MAX_VALUE);
+        rec.setField("double", 3.25);
+        rec.setField("flag", true);
+        rec.setField("date", new Date(1234567890L));
+        rec.setField("bytes", new byte[]{1, 2, 3});
+        rec.setField("list", new ArrayList<String>(Arrays.asList("a", "b")));
+        rec.setField("nothing", null);
+        DataRecord decoded = DataRecordCodec.decode(DataRecordCodec.encode(rec));
+        assertEquals("Identifier should round trip", rec.getIdentifier(), decoded.getIdentifier());
+        assertEquals("Type should round trip", rec.getType(), decoded.getType());
+        assertEquals("Field count should round trip", rec.getFieldCount(), decoded.getFieldCount());
+        assertEquals("Unicode strings should round trip", "Example \u00e9\u4e2d", decoded.getFieldValue("title"));
+        assertEquals("Integers should keep their type", -42, decoded.getFieldValue("int"));
+        assertEquals("Longs should round trip", Long.MAX_VALUE, decoded.getFieldValue("long"));
+        assertEquals("Doubles should round trip", 3.25, decoded.getFieldValue("double"));
+        assertEquals("Booleans should round trip", true, decoded.getFieldValue("flag"));
+        assertEquals("Dates should round trip", new Date(1234567890L), decoded.getFieldValue("date"));
+        assertArrayEquals("Byte arrays should round trip", new byte[]{1, 2, 3}, (byte[]) decoded.getFieldValue("bytes"));
+        assertEquals("Other serializable values should fall back to serialization", Arrays.asList("a", "b"), decoded.getFieldValue("list"));
+        assertNull("Null values should round trip", decoded.getFieldValue("nothing"));
+    }
+
+    @Test
+    public void testBatchAndCorruptData() throws IOException {
+        List<DataRecord> records = buildRecords(100);
+        List<DataRecord> decoded = DataRecordCodec.decodeAll(DataRecordCodec.encode(records));
+        assertEquals("All records should be decoded", 100, decoded.size());
+        assertEquals("Records should keep their order", "id57", decoded.get(57).getIdentifier());
+        assertEquals("Fields should be decoded", "value57", decoded.get(57).getFieldValue("text"));
+
+        byte[] data = DataRecordCodec.encode(records);
+        try {
+            DataRecordCodec.decodeAll(Arrays.copyOf(data, data.length / 2));
+            fail("Truncated data should be rejected");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testSmallerThanSerialization() throws Exception {
+        List<DataRecord> records = buildRecords(100);
+        long codecBytes = 0;
+        long serializedBytes = 0;
+        for (DataRecord rec : records) {
+            codecBytes += DataRecordCodec.encode(rec).length;
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                out.writeObject(rec);
+            }
+            serializedBytes += bytes.size();
+        }
+        assertTrue("Codec output should be much smaller than serialized records", codecBytes * 2 < serializedBytes);
+    }
+
+    @Test
+    @Ignore("benchmark; takes several seconds and its timings are only meaningful on an idle machine")
+    public void testBenchmarkAgainstSerialization() throws Exception {
+        List<DataRecord> records = buildRecords(BENCHMARK_RECORDS);
+        // warm up both paths before timing
+        for (int i = 0; i < 3; i++) {
+            runCodec(records);
+            runSerialization(records);
+        }
+        long start = System.nanoTime();
+        long codecBytes = runCodec(records);
+        long codecNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        long serializedBytes = runSerialization(records);
+        long serializedNanos = System.nanoTime() - start;
+        logger.info("DataRecordCodec: {} bytes/record, {} ns/record round trip; Java serialization: {} bytes/record, {} ns/record round trip",
+                codecBytes / BENCHMARK_RECORDS, codecNanos / BENCHMARK_RECORDS,
+                serializedBytes / BENCHMARK_RECORDS, serializedNanos / BENCHMARK_RECORDS);
+        assertTrue("Codec round trip should be faster than serialization", codecNanos < serializedNanos);
+    }
+
+    private long runCodec(List<DataRecord> records) throws IOException {
+        long total = 0;
+        for (DataRecord rec : records) {
+            byte[] data = DataRecordCodec.encode(rec);
+            total += data.length;
+            DataRecordCodec.decode(data);
+        }
+        return total;
+    }
+
+    private long runSerialization(List<DataRecord> records) throws Exception {
+        long total = 0;
+        for (DataRecord rec : records) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                out.writeObject(rec);
+            }
+            total += bytes.size();
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+                in.readObject();
+            }
+        }
+        return total;
+    }
+
+    private List<DataRecord> buildRecords(int count) {
+        List<DataRecord> records = new ArrayList<DataRecord>(count);
+        for (int i = 0; i < count; i++) {
+            DataRecord rec = TestUtils.buildRecord("id" + i, "page");
+            rec.setField("text", "value" + i);
+            rec.setField("url", "http://example.com/" + i);
+            rec.setField("status", 200);
+            rec.setField("size", (long) i * 1024);
+            records.add(rec);
+        }
+        return records;
+    }
+}
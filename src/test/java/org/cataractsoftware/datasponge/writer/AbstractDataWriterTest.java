@@ -0,0 +1,245 @@
+package org.cataractsoftware.datasponge.writer;
+
+import org.cataractsoftware.datasponge.DataRecord;
+import org.cataractsoftware.datasponge.util.TestUtils;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * tests the buffering behavior of the AbstractDataWriter
+ *
+ * @author Christopher Fagiani
+ */
+@RunWith(JUnit4.class)
+public class AbstractDataWriterTest {
+    private static final String REC_TYPE = "TEST";
+
+    @Test
+    public void testUnboundedByDefault() {
+        CollectingWriter writer = buildWriter(new Properties());
+        addRecords(writer, 100);
+        writer.flushBatch();
+        assertEquals("All records should have been written", 100, writer.written.size());
+    }
+
+    @Test
+    public void testDropPolicy() {
+        CollectingWriter writer = buildWriter(buildProps(10, "DROP"));
+        addRecords(writer, 25);
+        assertEquals("Overflow records should have been counted", 15, writer.getDroppedCount());
+        writer.flushBatch();
+        assertEquals("Only buffered records should have been written", 10, writer.written.size());
+    }
+
+    @Test
+    public void testSpillPolicy() {
+        CollectingWriter writer = buildWriter(buildProps(10, "SPILL"));
+        addRecords(writer, 25);
+        assertEquals("Overflow records should have been spilled", 15, writer.getSpilledCount());
+        writer.flushBatch();
+        assertEquals("Spilled records should have been written", 25, writer.written.size());
+        writer.flushBatch();
+        assertEquals("Spilled records should only be written once", 25, writer.written.size());
+    }
+
+    @Test
+    public void testBlockPolicy() throws Exception {
+        final CollectingWriter writer = buildWriter(buildProps(10, "BLOCK"));
+        addRecords(writer, 10);
+        final CountDownLatch added = new CountDownLatch(1);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writer.addItem(TestUtils.buildRecord("overflow", REC_TYPE));
+                added.countDown();
+            }
+        });
+        producer.start();
+        assertTrue("Producer should be released by the background flush", added.await(5, TimeUnit.SECONDS));
+        writer.flushBatch();
+        assertEquals("All records should have been written", 11, writer.written.size());
+    }
+
+    @Test
+    public void testAddDoesNotWaitOnWrite() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CollectingWriter writer = new CollectingWriter() {
+            @Override
+            protected void writeItem(DataRecord record) {
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.writeItem(record);
+            }
+        };
+        writer.init(new Properties());
+        addRecords(writer, 5);
+        writer.requestFlush();
+        long start = System.currentTimeMillis();
+        writer.addItem(TestUtils.buildRecord("late", REC_TYPE));
+        assertTrue("addItem should not wait for the flush in progress", System.currentTimeMillis() - start < 1000);
+        release.countDown();
+        writer.flushBatch();
+        assertEquals("All records should have been written", 6, writer.written.size());
+    }
+
+    @Test
+    public void testRecordThresholdTriggersFlush() throws Exception {
+        Properties props = new Properties();
+        props.setProperty(FlushPolicy.MAX_RECORDS_PROP, "10");
+        CollectingWriter writer = buildWriter(props);
+        addRecords(writer, 25);
+        waitForWrites(writer, 20);
+        assertTrue("Threshold should have triggered flushes", writer.written.size() >= 20);
+    }
+
+    @Test
+    public void testByteThresholdTriggersFlush() throws Exception {
+        Properties props = new Properties();
+        props.setProperty(FlushPolicy.MAX_BYTES_PROP, "1");
+        CollectingWriter writer = buildWriter(props);
+        addRecords(writer, 1);
+        waitForWrites(writer, 1);
+        assertEquals("Threshold should have triggered a flush", 1, writer.written.size());
+    }
+
+    @Test
+    public void testDelayTriggersFlush() throws Exception {
+        Properties props = new Properties();
+        props.setProperty(FlushPolicy.MAX_DELAY_PROP, "100");
+        CollectingWriter writer = buildWriter(props);
+        addRecords(writer, 3);
+        assertEquals("Records should not be written before the delay", 0, writer.written.size());
+        waitForWrites(writer, 3);
+        assertEquals("Delay should have triggered a flush", 3, writer.written.size());
+    }
+
+    @Test
+    public void testNoBackgroundFlushAfterFinish() throws Exception {
+        Properties props = new Properties();
+        props.setProperty(FlushPolicy.MAX_RECORDS_PROP, "1");
+        final FinishingWriter writer = new FinishingWriter();
+        writer.init(props);
+        addRecords(writer, 1);
+        assertTrue("Background flush should start", writer.entered.await(5, TimeUnit.SECONDS));
+        // queued behind the flush that is blocked in the write
+        writer.addItem(TestUtils.buildRecord("queued", REC_TYPE));
+        Thread finisher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writer.finish();
+            }
+        });
+        finisher.start();
+        Thread.sleep(100);
+        writer.release.countDown();
+        finisher.join(5000);
+        Thread.sleep(200);
+        assertEquals("No batch should be written after finish", 0, writer.batchesAfterFinish.get());
+    }
+
+    @Test
+    public void testDelayedFlushCancelledByFinish() throws Exception {
+        Properties props = new Properties();
+        props.setProperty(FlushPolicy.MAX_DELAY_PROP, "50");
+        FinishingWriter writer = new FinishingWriter();
+        writer.init(props);
+        writer.release.countDown();
+        addRecords(writer, 1);
+        writer.finish();
+        Thread.sleep(200);
+        assertEquals("Delayed flush should not run after finish", 0, writer.batchesAfterFinish.get());
+        assertEquals("Nothing should have been written", 0, writer.written.size());
+    }
+
+    private void waitForWrites(CollectingWriter writer, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (writer.written.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    private void addRecords(DataWriter writer, int count) {
+        for (int i = 0; i < count; i++) {
+            writer.addItem(TestUtils.buildRecord("" + i, REC_TYPE));
+        }
+    }
+
+    private Properties buildProps(int max, String policy) {
+        Properties props = new Properties();
+        props.setProperty(AbstractDataWriter.MAX_BUFFER_PROP, "" + max);
+        props.setProperty(AbstractDataWriter.OVERFLOW_POLICY_PROP, policy);
+        return props;
+    }
+
+    private CollectingWriter buildWriter(Properties props) {
+        CollectingWriter writer = new CollectingWriter();
+        writer.init(props);
+        return writer;
+    }
+
+    /**
+     * writer that just keeps everything it is asked to write
+     */
+    static class CollectingWriter extends AbstractDataWriter {
+        final List<DataRecord> written = Collections.synchronizedList(new ArrayList<DataRecord>());
+
+        @Override
+        protected void writeItem(DataRecord record) {
+            written.add(record);
+        }
+
+        @Override
+        public void finish() {
+            //no-op
+        }
+    }
+
+    /**
+     * writer whose first write blocks until released and that counts batches written after finish
+     */
+    static class FinishingWriter extends CollectingWriter {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger batchesAfterFinish = new AtomicInteger();
+        private volatile boolean done;
+
+        @Override
+        protected void writeItem(DataRecord record) {
+            entered.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            super.writeItem(record);
+        }
+
+        @Override
+        protected void completeBatch() {
+            if (done) {
+                batchesAfterFinish.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void finish() {
+            markFinished();
+            done = true;
+        }
+    }
+}
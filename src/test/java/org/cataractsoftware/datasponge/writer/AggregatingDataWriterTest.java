@@ -0,0 +1,167 @@
+package org.cataractsoftware.datasponge.writer;
+
+import org.cataractsoftware.datasponge.DataRecord;
+import org.cataractsoftware.datasponge.aggregate.AggregationSpec;
+import org.cataractsoftware.datasponge.enhancer.CombiningEnhancer;
+import org.cataractsoftware.datasponge.util.DataRecordCodec;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * runs a two-node aggregation: partial AggregatingDataWriters on each node feeding a final one on the coordinator
+ *
+ * @author Christopher Fagiani
+ */
+@RunWith(JUnit4.class)
+public class AggregatingDataWriterTest {
+
+    @Test
+    public void testPartialAndFinalAggregation() throws IOException {
+        CollectingWriter coordinatorOutput = new CollectingWriter();
+        AggregatingDataWriter coordinator = buildWriter(AggregatingDataWriter.Mode.FINAL, coordinatorOutput);
+        CombiningEnhancer combiner = new CombiningEnhancer();
+        combiner.init(buildProps(AggregatingDataWriter.Mode.PARTIAL));
+
+        int rawRecords = 0;
+        for (int node = 0; node < 2; node++) {
+            CollectingWriter shipped = new CollectingWriter();
+            AggregatingDataWriter nodeWriter = buildWriter(AggregatingDataWriter.Mode.PARTIAL, shipped);
+            for (int i = 0; i < 5000; i++) {
+                DataRecord rec = new DataRecord("n" + node + "-" + i, "match");
+                rec.setField("host", "host" + (i % 3));
+                rec.setField("index", i);
+                rec.setField("url", "http://host" + (i % 3) + "/page" + (i % 500));
+                rec.setField("context", "some long context that should not be shipped");
+                rawRecords++;
+                // node 0 projects through the combiner, node 1 writes raw records
+                nodeWriter.addItem(node == 0 ? combiner.enhanceData(rec) : rec);
+                if (i % 1000 == 999) {
+                    nodeWriter.flushBatch();
+                }
+            }
+            nodeWriter.finish();
+            assertEquals("Each flush should ship one partial per group", 15, shipped.written.size());
+            // partials travel to the coordinator encoded, as they would through the JmsDataWriter
+            for (DataRecord partial : DataRecordCodec.decodeAll(DataRecordCodec.encode(shipped.written))) {
+                assertEquals("Shipped records should be partials", AggregationSpec.PARTIAL_TYPE, partial.getType());
+                coordinator.addItem(partial);
+            }
+        }
+        coordinator.finish();
+        assertEquals("Should read every raw record", 10000, rawRecords);
+        assertEquals("Coordinator should output one record per group", 3, coordinatorOutput.written.size());
+        Map<String, DataRecord> byHost = new HashMap<String, DataRecord>();
+        for (DataRecord rec : coordinatorOutput.written) {
+            byHost.put((String) rec.getFieldValue("host"), rec);
+        }
+        DataRecord host0 = byHost.get("host0");
+        assertEquals("Count should include both nodes", 3334L, host0.getFieldValue("count"));
+        assertEquals("Min should be merged", 0, host0.getFieldValue("min_index"));
+        assertEquals("Max should be merged", 4998, host0.getFieldValue("max_index"));
+        long expectedSum = 0;
+        for (int i = 0; i < 5000; i += 3) {
+            expectedSum += i;
+        }
+        assertEquals("Sum should be merged", 2 * expectedSum, host0.getFieldValue("sum_index"));
+        long distinct = (Long) host0.getFieldValue("distinct_url");
+        assertTrue("Distinct count should be approximately 500 but was " + distinct, Math.abs(distinct - 500) <= 10);
+    }
+
+    @Test
+    public void testConcurrentPartialsAreNotDropped() throws Exception {
+        final CollectingWriter shipped = new CollectingWriter();
+        Properties props = buildProps(AggregatingDataWriter.Mode.PARTIAL);
+        // a single group slot forces a partial emission on nearly every record
+        props.setProperty(AggregatingDataWriter.MAX_GROUPS, "1");
+        final AggregatingDataWriter nodeWriter = new AggregatingDataWriter();
+        nodeWriter.init(props);
+        nodeWriter.setDelegate(shipped);
+        nodeWriter.setJobId("job1");
+        final int threads = 4;
+        final int perThread = 2000;
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            workers.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perThread; i++) {
+                        DataRecord rec = new DataRecord("t" + thread + "-" + i, "match");
+                        rec.setField("host", "host" + (i % 2));
+                        rec.setField("index", i);
+                        nodeWriter.addItem(rec);
+                        if (i % 100 == 0) {
+                            nodeWriter.flushBatch();
+                        }
+                    }
+                }
+            }));
+        }
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        nodeWriter.finish();
+
+        CollectingWriter coordinatorOutput = new CollectingWriter();
+        AggregatingDataWriter coordinator = buildWriter(AggregatingDataWriter.Mode.FINAL, coordinatorOutput);
+        for (DataRecord partial : shipped.written) {
+            coordinator.addItem(partial);
+        }
+        coordinator.finish();
+        long total = 0;
+        for (DataRecord rec : coordinatorOutput.written) {
+            total += (Long) rec.getFieldValue("count");
+        }
+        assertEquals("No partial should be lost in the delegate's buffer", (long) threads * perThread, total);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testUnknownFunction() {
+        Properties props = new Properties();
+        props.setProperty(AggregationSpec.FUNCTIONS, "median:index");
+        new AggregatingDataWriter().init(props);
+    }
+
+    private AggregatingDataWriter buildWriter(AggregatingDataWriter.Mode mode, DataWriter delegate) {
+        AggregatingDataWriter writer = new AggregatingDataWriter();
+        writer.init(buildProps(mode));
+        writer.setDelegate(delegate);
+        writer.setJobId("job1");
+        return writer;
+    }
+
+    private Properties buildProps(AggregatingDataWriter.Mode mode) {
+        Properties props = new Properties();
+        props.setProperty(AggregatingDataWriter.MODE, mode.name().toLowerCase());
+        props.setProperty(AggregationSpec.GROUP_BY, "host");
+        props.setProperty(AggregationSpec.FUNCTIONS, "count;sum:index;min:index;max:index;distinct:url");
+        return props;
+    }
+
+    private static class CollectingWriter extends AbstractDataWriter {
+        private final List<DataRecord> written = new ArrayList<DataRecord>();
+
+        @Override
+        protected void writeItem(DataRecord record) {
+            written.add(record);
+        }
+
+        @Override
+        public void finish() {
+        }
+    }
+}
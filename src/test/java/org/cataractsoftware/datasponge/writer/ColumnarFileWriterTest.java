@@ -0,0 +1,156 @@
+package org.cataractsoftware.datasponge.writer;
+
+import org.cataractsoftware.datasponge.DataRecord;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * round-trips records through the ColumnarFileWriter and ColumnarFileReader
+ *
+ * @author Christopher Fagiani
+ */
+@RunWith(JUnit4.class)
+public class ColumnarFileWriterTest {
+
+    private File dir;
+
+    @Before
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("columnartest").toFile();
+    }
+
+    @After
+    public void cleanup() {
+        delete(dir);
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        ColumnarFileWriter writer = buildWriter(1000);
+        for (int i = 0; i < 100; i++) {
+            DataRecord rec = new DataRecord("id" + i, "page");
+            rec.setField("status", i % 10 == 0 ? "error" : "ok");
+            rec.setField("size", i * 3);
+            if (i % 2 == 0) {
+                rec.setField("score", i / 4.0);
+            }
+            writer.addItem(rec);
+        }
+        writer.addItem(new DataRecord("link1", "link"));
+        writer.flushBatch();
+        writer.finish();
+
+        List<File> pageFiles = listData(new File(dir, "page"));
+        assertEquals("Page records should be in one row group", 1, pageFiles.size());
+        assertEquals("Each type should be written to its own directory", 1, listData(new File(dir, "link")).size());
+        try (ColumnarFileReader reader = new ColumnarFileReader(pageFiles.get(0))) {
+            assertEquals("Row count should match", 100, reader.getRowCount());
+            assertEquals("Record type should be stored", "page", reader.getRecordType());
+            List<Object> ids = reader.readColumn(ColumnarFileWriter.IDENTIFIER_COLUMN);
+            List<Object> sizes = reader.readColumn("size");
+            List<Object> scores = reader.readColumn("score");
+            // rows are in buffer order, so locate them by identifier
+            int row42 = ids.indexOf("id42");
+            int row43 = ids.indexOf("id43");
+            assertTrue("Identifiers should be read back", row42 >= 0 && row43 >= 0);
+            assertEquals("Integral values should be read back as longs", 126L, sizes.get(row42));
+            assertEquals("Double values should round trip", 10.5, scores.get(row42));
+            assertNull("Missing values should read back as null", scores.get(row43));
+            assertEquals("Null count should be tracked", 50, reader.getNullCount("score"));
+            assertEquals("Min should be tracked", 0L, reader.getMin("size"));
+            assertEquals("Max should be tracked", 297L, reader.getMax("size"));
+            assertTrue("Low-cardinality column should be dictionary encoded", reader.isDictionaryEncoded("status"));
+            assertFalse("Unique column should not be dictionary encoded", reader.isDictionaryEncoded("size"));
+            assertEquals("Dictionary values should decode", "error", reader.readColumn("status").get(ids.indexOf("id20")));
+        }
+    }
+
+    @Test(expected = IOException.class, timeout = 5000)
+    public void testTruncatedChunkFails() throws IOException {
+        List<Object> values = new ArrayList<Object>();
+        for (int i = 0; i < 1000; i++) {
+            values.add("value" + i);
+        }
+        ColumnChunk chunk = ColumnChunk.build("col", values, 0);
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        chunk.writeBody(body);
+        byte[] truncated = Arrays.copyOf(body.toByteArray(), chunk.getCompressedLength() / 2);
+        chunk.decode(truncated, values.size());
+    }
+
+    @Test
+    public void testRowGroupRollover() throws IOException {
+        ColumnarFileWriter writer = buildWriter(10);
+        for (int i = 0; i < 25; i++) {
+            DataRecord rec = new DataRecord("id" + i, "page");
+            if (i >= 15) {
+                rec.setField("late", "v" + i);
+            }
+            writer.addItem(rec);
+        }
+        writer.flushBatch();
+        writer.finish();
+        List<File> files = listData(new File(dir, "page"));
+        assertEquals("Full row groups should be written to separate files", 3, files.size());
+        int rows = 0;
+        for (File f : files) {
+            try (ColumnarFileReader reader = new ColumnarFileReader(f)) {
+                rows += reader.getRowCount();
+                if (reader.hasColumn("late")) {
+                    List<Object> late = reader.readColumn("late");
+                    assertEquals("Column should have one entry per row", reader.getRowCount(), late.size());
+                }
+            }
+        }
+        assertEquals("Every record should be written once", 25, rows);
+    }
+
+    private ColumnarFileWriter buildWriter(int rowGroupSize) {
+        Properties props = new Properties();
+        props.setProperty(ColumnarFileWriter.DIRECTORY, dir.getAbsolutePath());
+        props.setProperty(ColumnarFileWriter.ROW_GROUP_SIZE, "" + rowGroupSize);
+        ColumnarFileWriter writer = new ColumnarFileWriter();
+        writer.init(props);
+        return writer;
+    }
+
+    private List<File> listData(File typeDir) {
+        List<File> files = new ArrayList<File>();
+        File[] contents = typeDir.listFiles();
+        if (contents != null) {
+            for (File f : contents) {
+                if (f.getName().endsWith(ColumnarFileWriter.FILE_SUFFIX)) {
+                    files.add(f);
+                }
+            }
+        }
+        return files;
+    }
+
+    private void delete(File f) {
+        File[] contents = f.listFiles();
+        if (contents != null) {
+            for (File child : contents) {
+                delete(child);
+            }
+        }
+        f.delete();
+    }
+}
@@ -13,6 +13,7 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Properties;
 import java.util.Set;
 import java.util.UUID;
@@ -86,6 +87,23 @@ public class JdbcDataWriterTest {
         }
     }
 
+    @Test
+    public void testBatchCounters() throws SQLException {
+        Properties props = buildProps();
+        props.put(JdbcDataWriter.BATCH_SIZE_PROP, "7");
+        TestJdbcDataWriter writer = new TestJdbcDataWriter();
+        writer.init(props);
+        addRecords(20, false, writer);
+        addRecords(1, true, writer);
+        writer.flushBatch();
+        assertEquals("All good records should have been written", 20, writer.getWrittenCount());
+        assertEquals("Faulty record should have been counted", 1, writer.getFailedCount());
+        assertEquals("Flush should be committed as a single transaction", 1, writer.getBatchCount());
+        writer.flushBatch();
+        assertEquals("Empty flush should not commit", 1, writer.getBatchCount());
+        writer.finish();
+    }
+
     private Set<DataRecord> addRecords(int count, boolean faulty, DataWriter writer) {
         Set<DataRecord> records = new HashSet<>();
         for (int i = 0; i < count; i++) {
@@ -97,12 +115,16 @@ public class JdbcDataWriterTest {
     }
 
     private DataWriter initializeWriter() {
+        TestJdbcDataWriter writer = new TestJdbcDataWriter();
+        writer.init(buildProps());
+        return writer;
+    }
+
+    private Properties buildProps() {
         Properties props = new Properties();
         props.put(JdbcDataWriter.JDBC_URL_PROP, JDBC_URL);
         props.put(JdbcDataWriter.DB_USER_PROP, DB_USER);
-        TestJdbcDataWriter writer = new TestJdbcDataWriter();
-        writer.init(props);
-        return writer;
+        return props;
     }
 
     private void validateDb(DataRecord record, Connection conn, boolean shouldBeFound) {
@@ -137,6 +159,21 @@ public class JdbcDataWriterTest {
      * Sample data writer that just creates a simple row in the database.
      */
     class TestJdbcDataWriter extends JdbcDataWriter {
+        @Override
+        protected void processBatch(List<DataRecord> records, Connection connection) throws SQLException {
+            try (PreparedStatement stmt = connection.prepareStatement(INSERT_STMT)) {
+                for (DataRecord record : records) {
+                    if (FAULTY_ID.equals(record.getIdentifier())) {
+                        throw new RuntimeException("Exception!");
+                    }
+                    stmt.setString(1, record.getIdentifier());
+                    stmt.setString(2, record.getType());
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+            }
+        }
+
         @Override
         protected void processRecord(DataRecord record, Connection connection) {
             if (FAULTY_ID.equals(record.getIdentifier())) {
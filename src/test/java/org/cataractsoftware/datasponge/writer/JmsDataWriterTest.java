@@ -0,0 +1,76 @@
+package org.cataractsoftware.datasponge.writer;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.cataractsoftware.datasponge.DataRecord;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.springframework.jms.core.JmsTemplate;
+
+import javax.jms.BytesMessage;
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * verifies the JmsDataWriter batches records into compressed messages using an embedded, non-persistent broker
+ *
+ * @author Christopher Fagiani
+ */
+@RunWith(JUnit4.class)
+public class JmsDataWriterTest {
+
+    private static final String BROKER_URL = "vm://jmswritertest?broker.persistent=false&broker.useJmx=false";
+    private static final String DESTINATION = "test.output";
+
+    @Test
+    public void testFlushSendsCompressedBatches() throws JMSException, IOException {
+        ActiveMQConnectionFactory factory = new ActiveMQConnectionFactory(BROKER_URL);
+        // the embedded broker shuts down when its last connection closes, so hold one open for the whole test
+        Connection keepAlive = factory.createConnection();
+        keepAlive.start();
+        JmsTemplate template = new JmsTemplate(factory);
+        template.setReceiveTimeout(5000);
+        Properties props = new Properties();
+        props.setProperty(JmsDataWriter.DESTINATION_NAME_PROP, DESTINATION);
+        props.setProperty(JmsDataWriter.MAX_RECORDS_PER_MESSAGE_PROP, "1000");
+        props.setProperty(FlushPolicy.MAX_RECORDS_PROP, "0");
+        props.setProperty(FlushPolicy.MAX_DELAY_PROP, "0");
+        JmsDataWriter writer = new JmsDataWriter();
+        writer.setOutputJmsTemplate(template);
+        writer.init(props);
+        writer.setJobId("job1");
+        for (int i = 0; i < 2500; i++) {
+            DataRecord rec = new DataRecord("id" + i, "test");
+            rec.setField("text", "value" + i);
+            writer.addItem(rec);
+        }
+        writer.flushBatch();
+
+        Set<String> ids = new HashSet<String>();
+        for (int i = 0; i < 3; i++) {
+            BytesMessage message = (BytesMessage) template.receive(DESTINATION);
+            assertEquals("Job id should be set on every message", "job1", message.getStringProperty(JmsDataWriter.JOB_ID_PROP));
+            assertEquals("Batches should be compressed", JmsDataWriter.DEFLATE, message.getStringProperty(JmsDataWriter.COMPRESSION_PROP));
+            byte[] body = new byte[(int) message.getBodyLength()];
+            message.readBytes(body);
+            List<DataRecord> records = JmsDataWriter.decodeMessage(body, message.getStringProperty(JmsDataWriter.COMPRESSION_PROP));
+            assertEquals("Record count property should match the body", message.getIntProperty(JmsDataWriter.RECORD_COUNT_PROP), records.size());
+            for (DataRecord rec : records) {
+                ids.add(rec.getIdentifier());
+            }
+        }
+        assertEquals("Every record should be sent once", 2500, ids.size());
+        template.setReceiveTimeout(100);
+        assertNull("Records should be sent in as few messages as the batch size allows", template.receive(DESTINATION));
+        writer.finish();
+        keepAlive.close();
+    }
+}
@@ -0,0 +1,128 @@
+package org.cataractsoftware.datasponge.writer;
+
+import org.cataractsoftware.datasponge.DataRecord;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Exercises the MappedJdbcDataWriter against an in-memory H2 database.
+ */
+@RunWith(JUnit4.class)
+public class MappedJdbcDataWriterTest {
+
+    private static final String JDBC_URL = "jdbc:h2:mem:mappedtest";
+    private static final String DB_USER = "sa";
+    private static final String TEST_TYPE = "page";
+    private static final String CREATE_DDL = "CREATE TABLE pages(id varchar(256) primary key, rectype varchar(100), title varchar(256), hits int)";
+    private static final String TRUNC_STMT = "TRUNCATE TABLE pages";
+    private static Connection keepAlive;
+
+    @BeforeClass
+    public static void setupDb() throws Exception {
+        keepAlive = DriverManager.getConnection(JDBC_URL, DB_USER, null);
+        keepAlive.prepareStatement(CREATE_DDL).execute();
+    }
+
+    @AfterClass
+    public static void teardownDb() throws Exception {
+        keepAlive.close();
+    }
+
+    @Before
+    public void cleanup() throws SQLException {
+        try (PreparedStatement stmt = keepAlive.prepareStatement(TRUNC_STMT)) {
+            stmt.execute();
+        }
+    }
+
+    @Test
+    public void testInsert() throws SQLException {
+        MappedJdbcDataWriter writer = buildWriter("insert");
+        for (int i = 0; i < 100; i++) {
+            writer.addItem(buildRecord("id" + i, "title" + i, i));
+        }
+        writer.flushBatch();
+        assertEquals("All rows should have been inserted", 100, countRows());
+        assertEquals("Mapped column should have been written", "title42", getTitle("id42"));
+        writer.finish();
+    }
+
+    @Test
+    public void testUpsertReplacesRowsWithSameIdentifier() throws SQLException {
+        MappedJdbcDataWriter writer = buildWriter("upsert");
+        writer.addItem(buildRecord("a", "first", 1));
+        writer.addItem(buildRecord("b", "other", 2));
+        writer.flushBatch();
+        writer.addItem(buildRecord("a", "second", 3));
+        writer.flushBatch();
+        assertEquals("Upsert should not create duplicate rows", 2, countRows());
+        assertEquals("Upsert should have replaced the row", "second", getTitle("a"));
+        writer.finish();
+    }
+
+    @Test
+    public void testInsertDuplicateIsCountedAsFailure() throws SQLException {
+        MappedJdbcDataWriter writer = buildWriter("insert");
+        writer.addItem(buildRecord("a", "first", 1));
+        writer.flushBatch();
+        writer.addItem(buildRecord("a", "second", 2));
+        writer.addItem(buildRecord("b", "other", 3));
+        writer.flushBatch();
+        assertEquals("Non-conflicting row should still be written", 2, countRows());
+        assertEquals("Conflicting row should have been counted", 1, writer.getFailedCount());
+        assertTrue("Original row should be unchanged", "first".equals(getTitle("a")));
+        writer.finish();
+    }
+
+    private DataRecord buildRecord(String id, String title, int hits) {
+        DataRecord rec = new DataRecord(id, TEST_TYPE);
+        rec.setField("title", title);
+        rec.setField("hits", hits);
+        return rec;
+    }
+
+    private MappedJdbcDataWriter buildWriter(String mode) {
+        Properties props = new Properties();
+        props.put(JdbcDataWriter.JDBC_URL_PROP, JDBC_URL);
+        props.put(JdbcDataWriter.DB_USER_PROP, DB_USER);
+        props.put(MappedJdbcDataWriter.TABLE_PROP, "pages");
+        props.put(MappedJdbcDataWriter.ID_COLUMN_PROP, "id");
+        props.put(MappedJdbcDataWriter.TYPE_COLUMN_PROP, "rectype");
+        props.put(MappedJdbcDataWriter.COLUMN_MAPPING_PROP, "title:title;hits:hits");
+        props.put(MappedJdbcDataWriter.WRITE_MODE_PROP, mode);
+        MappedJdbcDataWriter writer = new MappedJdbcDataWriter();
+        writer.init(props);
+        return writer;
+    }
+
+    private int countRows() throws SQLException {
+        try (PreparedStatement stmt = keepAlive.prepareStatement("SELECT COUNT(*) FROM pages");
+             ResultSet rs = stmt.executeQuery()) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+
+    private String getTitle(String id) throws SQLException {
+        try (PreparedStatement stmt = keepAlive.prepareStatement("SELECT title FROM pages WHERE id = ?")) {
+            stmt.setString(1, id);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next() ? rs.getString(1) : null;
+            }
+        }
+    }
+}
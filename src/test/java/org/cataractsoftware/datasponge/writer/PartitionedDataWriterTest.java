@@ -0,0 +1,133 @@
+package org.cataractsoftware.datasponge.writer;
+
+import org.cataractsoftware.datasponge.DataRecord;
+import org.cataractsoftware.datasponge.util.DataRecordCodec;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * tests routing and parallel decoding in the PartitionedDataWriter
+ *
+ * @author Christopher Fagiani
+ */
+@RunWith(JUnit4.class)
+public class PartitionedDataWriterTest {
+
+    @Test
+    public void testRecordsAreRoutedByKey() {
+        CollectingWriter[] writers = new CollectingWriter[4];
+        for (int i = 0; i < writers.length; i++) {
+            writers[i] = new CollectingWriter();
+        }
+        PartitionedDataWriter writer = new PartitionedDataWriter(writers, 2, "host");
+        List<DataRecord> batch = new ArrayList<DataRecord>();
+        for (int i = 0; i < 1000; i++) {
+            DataRecord rec = new DataRecord("id" + i, "test");
+            rec.setField("host", "host" + (i % 20));
+            batch.add(rec);
+        }
+        for (int i = 0; i < batch.size(); i += 100) {
+            writer.addEncoded(DataRecordCodec.encode(batch.subList(i, i + 100)), null);
+        }
+        writer.finish();
+
+        int total = 0;
+        Set<String> seenHosts = new HashSet<String>();
+        for (CollectingWriter partition : writers) {
+            assertTrue("Every partition writer should be finished", partition.finished);
+            Set<String> hosts = new HashSet<String>();
+            for (DataRecord rec : partition.written) {
+                hosts.add((String) rec.getFieldValue("host"));
+            }
+            for (String host : hosts) {
+                assertTrue("Records with the same key should all go to one partition", seenHosts.add(host));
+            }
+            total += partition.written.size();
+        }
+        assertEquals("Every record should be written once", 1000, total);
+        assertTrue("Records should be spread over several partitions", writers[0].written.size() < 1000);
+    }
+
+    @Test
+    public void testSameKeyKeepsArrivalOrder() {
+        final List<Object> versions = Collections.synchronizedList(new ArrayList<Object>());
+        CollectingWriter partition = new CollectingWriter() {
+            @Override
+            public void addItem(DataRecord record) {
+                if ("slow".equals(record.getIdentifier())) {
+                    // gives the decoders of later batches time to route their records first
+                    try {
+                        Thread.sleep(200);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                } else {
+                    versions.add(record.getFieldValue("version"));
+                }
+                super.addItem(record);
+            }
+        };
+        PartitionedDataWriter writer = new PartitionedDataWriter(new CollectingWriter[]{partition}, 4, null);
+        for (int version = 0; version < 4; version++) {
+            List<DataRecord> batch = new ArrayList<DataRecord>();
+            if (version == 0) {
+                batch.add(new DataRecord("slow", "test"));
+            }
+            DataRecord rec = new DataRecord("key", "test");
+            rec.setField("version", version);
+            batch.add(rec);
+            writer.addEncoded(DataRecordCodec.encode(batch), null);
+        }
+        writer.finish();
+        assertEquals("Records with the same key should reach their writer in arrival order", Arrays.<Object>asList(0, 1, 2, 3), versions);
+    }
+
+    @Test
+    public void testMergeModeSharesWriter() {
+        CollectingWriter shared = new CollectingWriter();
+        PartitionedDataWriter writer = new PartitionedDataWriter(new DataWriter[]{shared, shared, shared}, 3, null);
+        for (int i = 0; i < 300; i++) {
+            writer.addItem(new DataRecord("id" + i, "test"));
+        }
+        writer.finish();
+        assertEquals("All records should reach the shared writer", 300, shared.written.size());
+        assertEquals("Shared writer should only be finished once", 1, shared.finishCount);
+    }
+
+    @Test
+    public void testPartitionPlaceholder() {
+        Properties props = new Properties();
+        props.setProperty("csvwriter.filename", "/out/part-{partition}.csv");
+        assertEquals("Placeholder should be replaced with the partition number", "/out/part-3.csv",
+                PartitionedDataWriter.propertiesForPartition(props, 3).getProperty("csvwriter.filename"));
+    }
+
+    private static class CollectingWriter extends AbstractDataWriter {
+        private final List<DataRecord> written = Collections.synchronizedList(new ArrayList<DataRecord>());
+        private volatile boolean finished;
+        private int finishCount;
+
+        @Override
+        protected void writeItem(DataRecord record) {
+            written.add(record);
+        }
+
+        @Override
+        public void finish() {
+            finished = true;
+            finishCount++;
+        }
+    }
+}
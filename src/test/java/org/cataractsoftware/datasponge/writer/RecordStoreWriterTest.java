@@ -0,0 +1,150 @@
+package org.cataractsoftware.datasponge.writer;
+
+import org.cataractsoftware.datasponge.DataRecord;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * tests appending, lookup, paging and recovery of the RecordStore via the RecordStoreWriter
+ *
+ * @author Christopher Fagiani
+ */
+@RunWith(JUnit4.class)
+public class RecordStoreWriterTest {
+
+    private File dir;
+
+    @Before
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("storetest").toFile();
+    }
+
+    @After
+    public void cleanup() {
+        delete(dir);
+    }
+
+    @Test
+    public void testLookupAndPaging() {
+        RecordStoreWriter writer = buildWriter();
+        for (int i = 0; i < 200; i++) {
+            writer.addItem(buildRecord(i));
+        }
+        assertNull("Records should not be visible before they are flushed", writer.getStore().get("id5"));
+        writer.flushBatch();
+        RecordStore store = writer.getStore();
+        DataRecord rec = store.get("id42");
+        assertEquals("String field should round trip", "value42", rec.getFieldValue("text"));
+        assertEquals("Integer field should round trip", 42, rec.getFieldValue("num"));
+        assertEquals("Type should round trip", "test", rec.getType());
+
+        Set<String> seen = new HashSet<String>();
+        long offset = 0;
+        RecordStore.Page page;
+        do {
+            page = store.scan(offset, 30);
+            for (DataRecord r : page.getRecords()) {
+                seen.add(r.getIdentifier());
+            }
+            offset = page.getNextOffset();
+        } while (!page.getRecords().isEmpty());
+        assertEquals("Paging should return every record across segments", 200, seen.size());
+        assertTrue("Small segments should have rolled", new File(new File(dir, "job1"), "segment-0000000001.log").exists());
+        writer.finish();
+    }
+
+    @Test
+    public void testReopenRebuildsIndex() throws IOException {
+        RecordStoreWriter writer = buildWriter();
+        for (int i = 0; i < 50; i++) {
+            writer.addItem(buildRecord(i));
+        }
+        writer.flushBatch();
+        writer.finish();
+        RecordStore reopened = new RecordStore(new File(dir, "job1"), 4096);
+        assertEquals("All records should be recovered", 50, reopened.getRecordCount());
+        assertEquals("Index should be rebuilt", "value7", reopened.get("id7").getFieldValue("text"));
+        reopened.close();
+    }
+
+    @Test
+    public void testPendingVersionDoesNotHideCommittedOne() throws IOException {
+        RecordStore store = new RecordStore(new File(dir, "job2"), 4096);
+        store.append(buildRecord(1));
+        store.commit();
+        DataRecord update = buildRecord(1);
+        update.setField("text", "updated");
+        store.append(update);
+        assertEquals("Committed version should be returned while the update is pending", "value1",
+                store.get("id1").getFieldValue("text"));
+        store.commit();
+        assertEquals("Update should be returned once committed", "updated", store.get("id1").getFieldValue("text"));
+        store.close();
+    }
+
+    @Test
+    public void testWritersForOneJobShareTheRegisteredStore() {
+        RecordStoreRegistry registry = new RecordStoreRegistry();
+        RecordStore first = null;
+        for (int iteration = 0; iteration < 3; iteration++) {
+            Properties props = new Properties();
+            props.setProperty(RecordStoreWriter.DIRECTORY, dir.getAbsolutePath());
+            RecordStoreWriter writer = new RecordStoreWriter();
+            writer.setRecordStoreRegistry(registry);
+            writer.init(props);
+            writer.setJobId("job1");
+            writer.addItem(buildRecord(iteration));
+            writer.flushBatch();
+            writer.finish();
+            if (first == null) {
+                first = writer.getStore();
+            }
+            assertSame("Each iteration should reuse the open store", first, writer.getStore());
+        }
+        assertSame("The shared store should be registered", first, registry.getStore("job1"));
+        assertEquals("Every iteration should write to the shared store", 3, first.getRecordCount());
+        registry.closeAll();
+    }
+
+    private DataRecord buildRecord(int i) {
+        DataRecord rec = new DataRecord("id" + i, "test");
+        rec.setField("text", "value" + i);
+        rec.setField("num", i);
+        return rec;
+    }
+
+    private RecordStoreWriter buildWriter() {
+        Properties props = new Properties();
+        props.setProperty(RecordStoreWriter.DIRECTORY, dir.getAbsolutePath());
+        props.setProperty(RecordStoreWriter.SEGMENT_SIZE, "4096");
+        RecordStoreWriter writer = new RecordStoreWriter();
+        writer.init(props);
+        writer.setJobId("job1");
+        return writer;
+    }
+
+    private void delete(File f) {
+        File[] contents = f.listFiles();
+        if (contents != null) {
+            for (File child : contents) {
+                delete(child);
+            }
+        }
+        f.delete();
+    }
+}
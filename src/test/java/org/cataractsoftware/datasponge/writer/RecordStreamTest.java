@@ -0,0 +1,89 @@
+package org.cataractsoftware.datasponge.writer;
+
+import org.cataractsoftware.datasponge.DataRecord;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * tests the RecordStream ring buffer and publishing from AbstractDataWriter
+ *
+ * @author Christopher Fagiani
+ */
+@RunWith(JUnit4.class)
+public class RecordStreamTest {
+
+    @Test
+    public void testLaggingConsumerIsMovedForward() throws InterruptedException {
+        RecordStream stream = new RecordStream(10);
+        for (int i = 0; i < 25; i++) {
+            stream.publish(new DataRecord("id" + i, "test"));
+        }
+        RecordStream.Batch batch = stream.read(0, 100, 0);
+        assertEquals("Consumer should be told how many records it missed", 15, batch.getMissed());
+        assertEquals("Consumer should resume at the oldest retained record", 15, batch.getFirstSequence());
+        assertEquals("Retained records should be returned", "id15", batch.getRecords().get(0).getIdentifier());
+        assertEquals("All retained records should be returned", 10, batch.getRecords().size());
+        assertFalse("Open stream should not report end of stream", batch.isEndOfStream());
+    }
+
+    @Test
+    public void testCloseEndsStreamAfterDrain() throws InterruptedException {
+        RecordStream stream = new RecordStream(10);
+        stream.publish(new DataRecord("a", "test"));
+        stream.close();
+        stream.publish(new DataRecord("b", "test"));
+        RecordStream.Batch batch = stream.read(0, 100, 1000);
+        assertEquals("Records published before close should be delivered", 1, batch.getRecords().size());
+        assertTrue("Closed, drained stream should report end of stream", batch.isEndOfStream());
+    }
+
+    @Test(timeout = 5000)
+    public void testLookupAfterCloseGetsEndOfStream() throws InterruptedException {
+        RecordStreamRegistry registry = new RecordStreamRegistry();
+        registry.getStream("job1").publish(new DataRecord("a", "test"));
+        registry.closeStream("job1");
+        RecordStream late = registry.getStream("job1");
+        assertTrue("Streams looked up after the job ended should already be closed", late.isClosed());
+        assertTrue("Late consumers should get the end of the stream", late.read(0, 100, 60000).isEndOfStream());
+    }
+
+    @Test
+    public void testOnlyRecentClosedJobsRemembered() {
+        RecordStreamRegistry registry = new RecordStreamRegistry();
+        for (int i = 0; i <= RecordStreamRegistry.MAX_CLOSED_JOBS; i++) {
+            registry.closeStream("job" + i);
+        }
+        assertTrue("Recently closed jobs should be remembered", registry.getStream("job" + RecordStreamRegistry.MAX_CLOSED_JOBS).isClosed());
+        assertFalse("The oldest closed job should have been forgotten", registry.getStream("job0").isClosed());
+    }
+
+    @Test
+    public void testWriterPublishesWhenEnabled() throws InterruptedException {
+        RecordStreamRegistry registry = new RecordStreamRegistry();
+        Properties props = new Properties();
+        props.setProperty(AbstractDataWriter.PUBLISH_STREAM_PROP, "true");
+        AbstractDataWriter writer = new AbstractDataWriter() {
+            @Override
+            protected void writeItem(DataRecord record) {
+            }
+
+            @Override
+            public void finish() {
+            }
+        };
+        writer.setRecordStreamRegistry(registry);
+        writer.init(props);
+        writer.setJobId("job1");
+        writer.addItem(new DataRecord("a", "test"));
+        writer.addItem(new DataRecord("a", "test"));
+        RecordStream.Batch batch = registry.getStream("job1").read(0, 100, 0);
+        assertEquals("Duplicate records should only be published once", 1, batch.getRecords().size());
+    }
+}
@@ -0,0 +1,136 @@
+package org.cataractsoftware.datasponge.writer;
+
+import org.cataractsoftware.datasponge.DataRecord;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Properties;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * tests quoting, rolling and compression of the RollingCsvFileWriter
+ *
+ * @author Christopher Fagiani
+ */
+@RunWith(JUnit4.class)
+public class RollingCsvFileWriterTest {
+
+    private File dir;
+
+    @Before
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("csvtest").toFile();
+    }
+
+    @After
+    public void cleanup() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testQuoting() throws IOException {
+        Properties props = buildProps("out.csv");
+        props.setProperty(RollingCsvFileWriter.HEADER_FLAG, "true");
+        RollingCsvFileWriter writer = new RollingCsvFileWriter();
+        writer.init(props);
+        writer.addItem(buildRecord("1", "plain", "has,comma"));
+        writer.flushBatch();
+        writer.addItem(buildRecord("2", "say \"hi\"", "line\nbreak"));
+        writer.flushBatch();
+        writer.finish();
+        String content = readAll(new File(dir, "out.csv"), false);
+        assertEquals("Output should be RFC 4180 quoted",
+                "a,b\r\nplain,\"has,comma\"\r\n\"say \"\"hi\"\"\",\"line\nbreak\"\r\n", content);
+    }
+
+    @Test
+    public void testRollBySizeWithCompression() throws IOException {
+        Properties props = buildProps("out.csv");
+        props.setProperty(RollingCsvFileWriter.ROLL_SIZE, "100");
+        props.setProperty(RollingCsvFileWriter.COMPRESSION, "gzip");
+        RollingCsvFileWriter writer = new RollingCsvFileWriter();
+        writer.init(props);
+        for (int i = 0; i < 50; i++) {
+            writer.addItem(buildRecord("" + i, "value" + i, "other" + i));
+        }
+        writer.flushBatch();
+        writer.finish();
+        File[] files = dir.listFiles();
+        assertTrue("Output should have been rolled to several files", files.length > 1);
+        int lines = 0;
+        for (File f : files) {
+            assertTrue("Rolled files should be compressed", f.getName().endsWith(".csv.gz"));
+            String content = readAll(f, true);
+            lines += content.split("\r\n").length;
+        }
+        assertEquals("Every record should be written exactly once", 50, lines);
+    }
+
+    @Test
+    public void testIdleFlushesDoNotRoll() throws Exception {
+        Properties props = buildProps("out.csv");
+        props.setProperty(RollingCsvFileWriter.HEADER_FLAG, "true");
+        props.setProperty(RollingCsvFileWriter.ROLL_INTERVAL, "1");
+        RollingCsvFileWriter writer = new RollingCsvFileWriter();
+        writer.init(props);
+        writer.addItem(buildRecord("1", "x", "y"));
+        Thread.sleep(5);
+        writer.flushBatch();
+        for (int i = 0; i < 5; i++) {
+            Thread.sleep(5);
+            writer.flushBatch();
+        }
+        writer.finish();
+        assertEquals("Idle flushes should not create header-only files", 1, dir.listFiles().length);
+    }
+
+    private DataRecord buildRecord(String id, String a, String b) {
+        DataRecord rec = new DataRecord(id, "test");
+        rec.setField("a", a);
+        rec.setField("b", b);
+        return rec;
+    }
+
+    private Properties buildProps(String fileName) {
+        Properties props = new Properties();
+        props.setProperty(RollingCsvFileWriter.FILENAME, new File(dir, fileName).getAbsolutePath());
+        props.setProperty(RollingCsvFileWriter.FIELDS, "a;b");
+        return props;
+    }
+
+    private String readAll(File file, boolean gzip) throws IOException {
+        InputStream in = new FileInputStream(file);
+        if (gzip) {
+            in = new GZIPInputStream(in);
+        }
+        StringBuilder builder = new StringBuilder();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            char[] buf = new char[1024];
+            int read;
+            while ((read = reader.read(buf)) > 0) {
+                builder.append(buf, 0, read);
+            }
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,196 @@
+package org.cataractsoftware.datasponge.writer;
+
+import org.cataractsoftware.datasponge.DataRecord;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * writes sorted shards with the ShardFileWriter and merges them back with the ShardMerger
+ *
+ * @author Christopher Fagiani
+ */
+@RunWith(JUnit4.class)
+public class ShardFileWriterTest {
+
+    private File dir;
+
+    @Before
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("shardtest").toFile();
+    }
+
+    @After
+    public void cleanup() {
+        delete(dir);
+    }
+
+    @Test
+    public void testShardsMergeInOrder() throws IOException {
+        ShardRegistry registry = new ShardRegistry();
+        Random random = new Random(42);
+        List<ShardFileWriter> writers = new ArrayList<ShardFileWriter>();
+        for (int node = 0; node < 3; node++) {
+            ShardFileWriter writer = buildWriter(registry, "rank", 700);
+            for (int i = 0; i < 2000; i++) {
+                DataRecord rec = new DataRecord("node" + node + "-" + i, "page");
+                rec.setField("rank", String.format("%06d", random.nextInt(1000000)));
+                writer.addItem(rec);
+            }
+            writer.flushBatch();
+            writer.finish();
+            writers.add(writer);
+        }
+        assertEquals("Each node should write one shard per run", 3, writers.get(0).getShards().size());
+        List<String> locations = registry.getLocations("job1");
+        assertEquals("Every shard should be registered", 9, locations.size());
+        assertNotNull("Shards should be servable by name",
+                registry.getFile("job1", writers.get(1).getShards().get(0).getName()));
+
+        CollectingWriter output = new CollectingWriter();
+        long merged = new ShardMerger("rank").merge(locations, output);
+        assertEquals("Every record should be merged once", 6000, merged);
+        assertEquals("Merged records should reach the writer", 6000, output.written.size());
+        for (int i = 1; i < output.written.size(); i++) {
+            String prev = (String) output.written.get(i - 1).getFieldValue("rank");
+            String cur = (String) output.written.get(i).getFieldValue("rank");
+            assertTrue("Merged output should be sorted by the shard key", prev.compareTo(cur) <= 0);
+        }
+    }
+
+    @Test
+    public void testRemoveJobDeletesShards() {
+        ShardRegistry registry = new ShardRegistry();
+        ShardFileWriter writer = buildWriter(registry, "rank", 10);
+        for (int i = 0; i < 25; i++) {
+            DataRecord rec = new DataRecord("id" + i, "page");
+            rec.setField("rank", "" + i);
+            writer.addItem(rec);
+        }
+        writer.flushBatch();
+        writer.finish();
+        List<File> shards = writer.getShards();
+        assertEquals("Each run should be written to a shard", 3, shards.size());
+        registry.removeJob("job1");
+        assertTrue("Locations should be forgotten", registry.getLocations("job1").isEmpty());
+        assertNull("Shards should no longer be served", registry.getFile("job1", shards.get(0).getName()));
+        for (File shard : shards) {
+            assertFalse("Shard files should be deleted", shard.exists());
+        }
+        assertFalse("The empty job directory should be deleted", new File(dir, "job1").exists());
+    }
+
+    @Test
+    public void testNumericSortKey() {
+        List<DataRecord> records = new ArrayList<DataRecord>();
+        Object[] ranks = {10, 9L, 2.5, "abc", null};
+        for (int i = 0; i < ranks.length; i++) {
+            DataRecord rec = new DataRecord("id" + i, "page");
+            rec.setField("rank", ranks[i]);
+            records.add(rec);
+        }
+        Collections.sort(records, ShardFileWriter.buildComparator("rank"));
+        List<Object> sorted = new ArrayList<Object>();
+        for (DataRecord rec : records) {
+            sorted.add(rec.getFieldValue("rank"));
+        }
+        assertEquals("Numbers should sort numerically, before strings and after missing values",
+                Arrays.asList(null, 2.5, 9L, 10, "abc"), sorted);
+    }
+
+    @Test
+    public void testBaseUrlLocation() {
+        ShardRegistry registry = new ShardRegistry();
+        Properties props = new Properties();
+        props.setProperty(ShardFileWriter.DIRECTORY, dir.getAbsolutePath());
+        props.setProperty(ShardFileWriter.BASE_URL, "http://node1:8080/");
+        ShardFileWriter writer = new ShardFileWriter();
+        writer.init(props);
+        writer.setJobId("job1");
+        assertEquals("Location should point at the shard endpoint", "http://node1:8080/job/job1/shards/s.shard.gz",
+                writer.getLocation(new File(dir, "s.shard.gz")));
+    }
+
+    @Test
+    public void testOnlyJobShardLocationsAccepted() throws IOException {
+        String shard = new File(new File(dir, "job1"), "w-00000.shard.gz").toURI().toString();
+        assertAccepted("http://node1:8080/job/job1/shards/w-00000.shard.gz", null);
+        assertAccepted(shard, dir);
+        assertRejected(shard, null);
+        assertRejected(new File(new File(dir, "job2"), "w-00000.shard.gz").toURI().toString(), dir);
+        assertRejected(new File(dir, "job1/../job2/w-00000.shard.gz").toURI().toString(), dir);
+        assertRejected("http://node1:8080/job/job2/shards/w-00000.shard.gz", null);
+        assertRejected("http://node1:8080/admin/secret.shard.gz", null);
+        assertRejected("http://node1:8080/job/job1/shards/w-00000.shard.gz?x=1", null);
+        assertRejected("http://user@node1:8080/job/job1/shards/w-00000.shard.gz", null);
+        assertRejected("ftp://node1/job/job1/shards/w-00000.shard.gz", null);
+        assertRejected("file:///etc/passwd", dir);
+    }
+
+    private void assertAccepted(String location, File sharedDirectory) throws IOException {
+        assertNotNull("Location should be accepted: " + location, ShardMerger.checkLocation(location, "job1", sharedDirectory));
+    }
+
+    private void assertRejected(String location, File sharedDirectory) {
+        try {
+            ShardMerger.checkLocation(location, "job1", sharedDirectory);
+            fail("Location should be rejected: " + location);
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private ShardFileWriter buildWriter(ShardRegistry registry, String sortField, int runSize) {
+        Properties props = new Properties();
+        props.setProperty(ShardFileWriter.DIRECTORY, dir.getAbsolutePath());
+        props.setProperty(ShardFileWriter.SORT_FIELD, sortField);
+        props.setProperty(ShardFileWriter.RUN_SIZE, "" + runSize);
+        ShardFileWriter writer = new ShardFileWriter();
+        writer.init(props);
+        writer.setJobId("job1");
+        writer.setShardRegistry(registry);
+        return writer;
+    }
+
+    private void delete(File f) {
+        File[] contents = f.listFiles();
+        if (contents != null) {
+            for (File child : contents) {
+                delete(child);
+            }
+        }
+        f.delete();
+    }
+
+    private static class CollectingWriter extends AbstractDataWriter {
+        private final List<DataRecord> written = new ArrayList<DataRecord>();
+
+        @Override
+        protected void writeItem(DataRecord record) {
+            written.add(record);
+        }
+
+        @Override
+        public void finish() {
+        }
+    }
+}
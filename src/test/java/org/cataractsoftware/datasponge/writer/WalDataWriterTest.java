@@ -0,0 +1,227 @@
+package org.cataractsoftware.datasponge.writer;
+
+import org.cataractsoftware.datasponge.DataRecord;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * tests replay of the write-ahead log after a failed flush and after a restart
+ *
+ * @author Christopher Fagiani
+ */
+@RunWith(JUnit4.class)
+public class WalDataWriterTest {
+
+    private File dir;
+
+    @Before
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("waltest").toFile();
+    }
+
+    @After
+    public void cleanup() {
+        File[] contents = dir.listFiles();
+        if (contents != null) {
+            for (File f : contents) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testFailedFlushIsRetried() {
+        CollectingWriter delegate = new CollectingWriter();
+        WalDataWriter writer = buildWriter("sync", delegate);
+        for (int i = 0; i < 100; i++) {
+            writer.addItem(new DataRecord("id" + i, "test"));
+        }
+        delegate.failNextFlush = true;
+        try {
+            writer.flushBatch();
+            fail("Delegate failure should propagate");
+        } catch (RuntimeException e) {
+            // expected
+        }
+        assertEquals("Nothing should be written by the failed flush", 0, delegate.written.size());
+        assertEquals("Log should be kept after a failed flush", 1, segmentCount());
+        writer.addItem(new DataRecord("id100", "test"));
+        writer.flushBatch();
+        assertEquals("Failed records should be replayed on the next flush", 101, distinct(delegate.written));
+        assertEquals("Log should be truncated after a successful flush", 0, segmentCount());
+        writer.finish();
+        assertEquals("Log directory should be empty after finish", 0, dir.listFiles().length);
+    }
+
+    @Test
+    public void testRejectedRecordIsReplayed() {
+        CollectingWriter delegate = new CollectingWriter();
+        WalDataWriter writer = buildWriter("sync", delegate);
+        writer.addItem(new DataRecord("id0", "test"));
+        delegate.failNextAdd = true;
+        try {
+            writer.addItem(new DataRecord("id1", "test"));
+            fail("Delegate failure should propagate");
+        } catch (RuntimeException e) {
+            // expected
+        }
+        writer.addItem(new DataRecord("id2", "test"));
+        writer.flushBatch();
+        assertEquals("Accepted records should be written", 2, distinct(delegate.written));
+        assertEquals("The segment holding the rejected record should be kept", 1, segmentCount());
+        writer.flushBatch();
+        assertEquals("The rejected record should be replayed on the next flush", 3, distinct(delegate.written));
+        assertEquals("Log should be truncated once the record is written", 0, segmentCount());
+        writer.finish();
+    }
+
+    @Test
+    public void testReplayAfterRestart() throws InterruptedException {
+        CollectingWriter lost = new CollectingWriter();
+        WalDataWriter crashed = buildWriter("async", lost);
+        for (int i = 0; i < 500; i++) {
+            crashed.addItem(new DataRecord("id" + i, "test"));
+        }
+        // the process "dies" here without flushing or closing the writer
+        CollectingWriter delegate = new CollectingWriter();
+        WalDataWriter restarted = buildWriter("async", delegate);
+        restarted.addItem(new DataRecord("new", "test"));
+        restarted.flushBatch();
+        assertEquals("Records from the previous run should be replayed", 501, distinct(delegate.written));
+        restarted.finish();
+        assertEquals("Replayed segments should be deleted", 0, segmentCount());
+    }
+
+    @Test
+    public void testConcurrentSyncAppends() throws InterruptedException {
+        final CollectingWriter delegate = new CollectingWriter();
+        final WalDataWriter writer = buildWriter("sync", delegate);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 8; t++) {
+            final int thread = t;
+            Thread th = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 100; i++) {
+                        writer.addItem(new DataRecord("t" + thread + "-" + i, "test"));
+                    }
+                }
+            });
+            threads.add(th);
+            th.start();
+        }
+        for (int i = 0; i < 5; i++) {
+            writer.flushBatch();
+            Thread.sleep(5);
+        }
+        for (Thread th : threads) {
+            th.join();
+        }
+        writer.finish();
+        assertEquals("Every record should be written", 800, distinct(delegate.written));
+        assertTrue("Delegate should be finished", delegate.finished);
+    }
+
+    @Test
+    public void testDelegateDoesNotFlushOnItsOwn() throws InterruptedException {
+        CollectingWriter delegate = new CollectingWriter();
+        Properties delegateProps = new Properties();
+        delegateProps.setProperty(FlushPolicy.MAX_RECORDS_PROP, "10");
+        delegate.init(delegateProps);
+        WalDataWriter writer = buildWriter("none", delegate);
+        for (int i = 0; i < 50; i++) {
+            writer.addItem(new DataRecord("id" + i, "test"));
+        }
+        Thread.sleep(100);
+        assertEquals("Delegate thresholds should not trigger flushes the log cannot see", 0, delegate.written.size());
+        writer.flushBatch();
+        assertEquals("Records should be written by the explicit flush", 50, delegate.written.size());
+        writer.finish();
+    }
+
+    private WalDataWriter buildWriter(String durability, DataWriter delegate) {
+        Properties props = new Properties();
+        props.setProperty(WalDataWriter.DIRECTORY, dir.getAbsolutePath());
+        props.setProperty(WalDataWriter.DURABILITY, durability);
+        props.setProperty(WalDataWriter.SYNC_INTERVAL, "5");
+        WalDataWriter writer = new WalDataWriter();
+        writer.init(props);
+        writer.setDelegate(delegate);
+        writer.setJobId("job1");
+        return writer;
+    }
+
+    /**
+     * counts the segments holding records (the current segment is empty right after a roll)
+     */
+    private int segmentCount() {
+        int count = 0;
+        File[] contents = dir.listFiles();
+        if (contents != null) {
+            for (File f : contents) {
+                if (f.length() > 0) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private int distinct(List<DataRecord> records) {
+        Set<DataRecord> unique = new HashSet<DataRecord>(records);
+        return unique.size();
+    }
+
+    private static class CollectingWriter extends AbstractDataWriter {
+        private final List<DataRecord> written = new ArrayList<DataRecord>();
+        private volatile boolean failNextFlush;
+        private volatile boolean failNextAdd;
+        private volatile boolean finished;
+
+        @Override
+        protected void writeBatch(Collection<DataRecord> records) {
+            if (failNextFlush) {
+                failNextFlush = false;
+                throw new RuntimeException("simulated write failure");
+            }
+            super.writeBatch(records);
+        }
+
+        @Override
+        public void addItem(DataRecord record) {
+            if (failNextAdd) {
+                failNextAdd = false;
+                throw new RuntimeException("simulated spill failure");
+            }
+            super.addItem(record);
+        }
+
+        @Override
+        protected void writeItem(DataRecord record) {
+            written.add(record);
+        }
+
+        @Override
+        public void finish() {
+            finished = true;
+        }
+    }
+}